@@ -0,0 +1,72 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.serverSide.buildDistribution.AgentsFilterResult;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class {@code AgentsFilterBenchmark}
+ *
+ * Measures agents filter during build distribution
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AgentsFilterBenchmark {
+
+  /**
+   * Single pass of build distribution. Each queued build is checked in turn,
+   * builds that are not waiting for resources are considered distributed.
+   * As no locks are released between passes, waiting builds reuse their waits from the previous pass
+   */
+  @Benchmark
+  public void distributionPass(final ServerState state, final Blackhole blackhole) {
+    final SyntheticServer server = state.server;
+    final Map<String, Object> customData = new HashMap<>();
+    final Map<QueuedBuildInfo, SBuildAgent> distributed = new LinkedHashMap<>();
+    for (QueuedBuildInfo queuedBuild: server.getQueuedBuilds()) {
+      final AgentsFilterResult result = server.getAgentsFilter().filterAgents(server.createContext(queuedBuild, distributed, customData));
+      if (result.getWaitReason() == null) {
+        distributed.put(queuedBuild, server.getAgent());
+      }
+      blackhole.consume(result);
+    }
+  }
+
+  /**
+   * Check of a single queued build in a new distribution pass
+   */
+  @Benchmark
+  public AgentsFilterResult singleBuild(final ServerState state) {
+    final SyntheticServer server = state.server;
+    final QueuedBuildInfo queuedBuild = server.getQueuedBuilds().get(0);
+    return server.getAgentsFilter().filterAgents(server.createContext(queuedBuild, new HashMap<>(), new HashMap<>()));
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.sharedResources.server.feature.LocksImpl;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class {@code LocksBenchmark}
+ *
+ * Measures reading of locks from parameters of build features of all build configurations
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocksBenchmark {
+
+  @Benchmark
+  public void fromFeatureParameters(final ServerState state, final Blackhole blackhole) {
+    for (SBuildFeatureDescriptor descriptor: state.server.getFeatureDescriptors()) {
+      blackhole.consume(state.server.getLocks().fromFeatureParameters(descriptor));
+    }
+  }
+
+  /**
+   * Reading of locks, that were not read before, i.e. after change of build configurations settings
+   */
+  @Benchmark
+  public void fromFeatureParametersNotCached(final ServerState state, final Blackhole blackhole) {
+    final LocksImpl locks = new LocksImpl();
+    for (SBuildFeatureDescriptor descriptor: state.server.getFeatureDescriptors()) {
+      blackhole.consume(locks.fromFeatureParameters(descriptor));
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.RunningBuildsManager;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.server.runtime.LocksJournal;
+import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import jetbrains.buildServer.sharedResources.server.runtime.LocksStorageImpl;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class {@code LocksStorageBenchmark}
+ *
+ * Measures concurrent reads of locks, stored for running builds
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class LocksStorageBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class StorageState {
+
+    @Param({"100", "1000"})
+    public int runningBuilds;
+
+    LocksJournal journal;
+
+    LocksStorage storage;
+
+    List<SBuild> builds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      journal = new LocksJournal(Files.createTempDirectory("shared-resources-journal").toFile());
+      final RunningBuildsManager runningBuildsManager = new Stub<>("runningBuildsManager", RunningBuildsManager.class)
+        .returns("findRunningBuildById", null)
+        .get();
+      storage = new LocksStorageImpl(EventDispatcher.create(BuildServerListener.class), journal, runningBuildsManager);
+      builds = new ArrayList<>(runningBuilds);
+      for (long id = 0; id < runningBuilds; id++) {
+        final SBuild build = new Stub<>("build-" + id, SBuild.class)
+          .returns("getBuildId", id)
+          .get();
+        final Map<Lock, String> locks = new HashMap<>();
+        locks.put(new Lock("resource" + (id % 10), LockType.READ), "value" + id);
+        locks.put(new Lock("shared", LockType.READ), "");
+        storage.store(build, locks);
+        builds.add(build);
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      journal.close();
+    }
+
+    SBuild randomBuild() {
+      return builds.get(ThreadLocalRandom.current().nextInt(builds.size()));
+    }
+  }
+
+  @Benchmark
+  public Map<String, Lock> load(final StorageState state) {
+    return state.storage.load(state.randomBuild());
+  }
+
+  @Benchmark
+  public boolean locksStored(final StorageState state) {
+    return state.storage.locksStored(state.randomBuild());
+  }
+}
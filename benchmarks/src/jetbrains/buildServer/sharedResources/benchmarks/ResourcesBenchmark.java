@@ -0,0 +1,55 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class {@code ResourcesBenchmark}
+ *
+ * Measures resolving of resources, available in each project of the tree
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourcesBenchmark {
+
+  @Benchmark
+  public void getResourcesMap(final ServerState state, final Blackhole blackhole) {
+    for (String projectId: state.server.getProjectIds()) {
+      blackhole.consume(state.server.getResources().getResourcesMap(projectId));
+    }
+  }
+
+  /**
+   * Resolving of resources after change of project settings
+   */
+  @Benchmark
+  public void getResourcesMapAfterSettingsChange(final ServerState state, final Blackhole blackhole) {
+    state.server.getSettingsVersion().increment();
+    for (String projectId: state.server.getProjectIds()) {
+      blackhole.consume(state.server.getResources().getResourcesMap(projectId));
+    }
+  }
+}
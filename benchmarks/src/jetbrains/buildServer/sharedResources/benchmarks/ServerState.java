@@ -0,0 +1,53 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Class {@code ServerState}
+ *
+ * Benchmark state with synthetic server. Size of the server is configured with JMH parameters,
+ * i.e. {@code -p projects=2000 -p runningBuilds=500}
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@State(Scope.Benchmark)
+public class ServerState {
+
+  @Param({"100", "2000"})
+  public int projects;
+
+  @Param({"50"})
+  public int resources;
+
+  @Param({"100", "1000"})
+  public int runningBuilds;
+
+  @Param({"100"})
+  public int queuedBuilds;
+
+  @Param({"3"})
+  public int locksPerBuild;
+
+  SyntheticServer server;
+
+  @Setup(Level.Trial)
+  public void createServer() {
+    server = new SyntheticServer(projects, resources, runningBuilds, queuedBuilds, locksPerBuild);
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class {@code Stub}
+ *
+ * Lightweight stub of server API interfaces, based on {@link Proxy}.
+ * Mocking frameworks record and verify invocations, which would dominate the measurements,
+ * so benchmarks use stubs that only return configured values.
+ * Answers can be added after the stub is created, that allows stubs to reference each other
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+final class Stub<T> implements InvocationHandler {
+
+  interface Answer {
+    Object answer(@NotNull final Object[] args);
+  }
+
+  @NotNull
+  private final String myName;
+
+  @NotNull
+  private final Map<String, Answer> myAnswers = new HashMap<>();
+
+  @NotNull
+  private final T myProxy;
+
+  @SuppressWarnings("unchecked")
+  Stub(@NotNull final String name, @NotNull final Class<T> type, @NotNull final Class<?>... otherTypes) {
+    myName = name;
+    final Class<?>[] types = new Class<?>[otherTypes.length + 1];
+    types[0] = type;
+    System.arraycopy(otherTypes, 0, types, 1, otherTypes.length);
+    myProxy = (T) Proxy.newProxyInstance(Stub.class.getClassLoader(), types, this);
+  }
+
+  @NotNull
+  Stub<T> returns(@NotNull final String method, final Object value) {
+    myAnswers.put(method, args -> value);
+    return this;
+  }
+
+  @NotNull
+  Stub<T> answers(@NotNull final String method, @NotNull final Answer answer) {
+    myAnswers.put(method, answer);
+    return this;
+  }
+
+  @NotNull
+  T get() {
+    return myProxy;
+  }
+
+  @Override
+  public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+    final Object[] arguments = args == null ? new Object[0] : args;
+    final Answer answer = myAnswers.get(method.getName());
+    if (answer != null) {
+      return answer.answer(arguments);
+    }
+    switch (method.getName()) {
+      case "equals":
+        return proxy == arguments[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "toString":
+        return myName;
+      default:
+        throw new UnsupportedOperationException("Method " + method.getName() + " is not stubbed in " + myName);
+    }
+  }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.buildDistribution.AgentsFilterContext;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.serverSide.buildDistribution.StartingBuildAgentsFilter;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.ConfigurationInspector;
+import jetbrains.buildServer.sharedResources.server.LockFootprints;
+import jetbrains.buildServer.sharedResources.server.SharedResourcesAgentsFilter;
+import jetbrains.buildServer.sharedResources.server.feature.*;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeaturesImpl;
+import jetbrains.buildServer.sharedResources.server.runtime.LocksJournal;
+import jetbrains.buildServer.sharedResources.server.runtime.LocksStorageImpl;
+import jetbrains.buildServer.sharedResources.server.runtime.ResourceWaitQueues;
+import jetbrains.buildServer.sharedResources.server.runtime.ResourceWaitRegistry;
+import jetbrains.buildServer.sharedResources.server.runtime.TakenLocks;
+import jetbrains.buildServer.sharedResources.server.runtime.TakenLocksImpl;
+import jetbrains.buildServer.sharedResources.server.runtime.TakenLocksIndex;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.LOCKS_FEATURE_PARAM_KEY;
+
+/**
+ * Class {@code SyntheticServer}
+ *
+ * Server with synthetic project tree, running and queued builds.
+ *
+ * Resources are defined in the root project, so that locks of every build configuration
+ * are resolved through the whole project path. Each subproject contains a single build configuration.
+ * Plugin components are real, server API is stubbed
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+final class SyntheticServer {
+
+  @NotNull
+  static final String ROOT_PROJECT_ID = "_Root";
+
+  /**
+   * Number of subprojects of each project in the tree
+   */
+  private static final int FAN_OUT = 10;
+
+  /**
+   * Quota of quoted resources and number of values of custom resources
+   */
+  private static final int CAPACITY = 10;
+
+  /**
+   * Fixed seed makes measurements comparable between runs
+   */
+  private static final long SEED = 42L;
+
+  @NotNull
+  private final Random myRandom = new Random(SEED);
+
+  @NotNull
+  private final Map<String, SProject> myProjects = new LinkedHashMap<>();
+
+  @NotNull
+  private final List<BuildTypeEx> myBuildTypes = new ArrayList<>();
+
+  @NotNull
+  private final Map<String, BuildTypeEx> myBuildTypesById = new HashMap<>();
+
+  @NotNull
+  private final List<SBuildFeatureDescriptor> myFeatureDescriptors = new ArrayList<>();
+
+  @NotNull
+  private final List<SRunningBuild> myRunningBuilds = new ArrayList<>();
+
+  @NotNull
+  private final List<QueuedBuildInfo> myQueuedBuilds = new ArrayList<>();
+
+  @NotNull
+  private final SBuildAgent myAgent = new Stub<>("agent", SBuildAgent.class).get();
+
+  @NotNull
+  private final ProjectSettingsVersion mySettingsVersion;
+
+  @NotNull
+  private final Locks myLocks;
+
+  @NotNull
+  private final Resources myResources;
+
+  @NotNull
+  private final SharedResourcesFeatures myFeatures;
+
+  @NotNull
+  private final TakenLocks myTakenLocks;
+
+  @NotNull
+  private final StartingBuildAgentsFilter myAgentsFilter;
+
+  private long myPromotionIds = 0;
+
+  /**
+   * Creates synthetic server
+   *
+   * @param projects number of projects, excluding root project
+   * @param resources number of resources
+   * @param runningBuilds number of running builds
+   * @param queuedBuilds number of queued builds
+   * @param locksPerBuild number of locks in each build configuration
+   */
+  SyntheticServer(final int projects,
+                  final int resources,
+                  final int runningBuilds,
+                  final int queuedBuilds,
+                  final int locksPerBuild) {
+    final List<String> resourceNames = createProjects(projects, resources);
+    for (SProject project: myProjects.values()) {
+      if (!ROOT_PROJECT_ID.equals(project.getProjectId())) {
+        createBuildType(project, resourceNames, locksPerBuild);
+      }
+    }
+    for (int i = 0; i < runningBuilds; i++) {
+      myRunningBuilds.add(createRunningBuild(i, randomBuildType()));
+    }
+    for (int i = 0; i < queuedBuilds; i++) {
+      myQueuedBuilds.add(createQueuedBuild(i, randomBuildType()));
+    }
+
+    final EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+    final ProjectManager projectManager = new Stub<>("projectManager", ProjectManager.class)
+      .answers("findProjectById", args -> myProjects.get((String) args[0]))
+      .answers("findBuildTypeById", args -> myBuildTypesById.get((String) args[0]))
+      .get();
+    final RunningBuildsManager runningBuildsManager = new Stub<>("runningBuildsManager", RunningBuildsManager.class)
+      .returns("getRunningBuilds", myRunningBuilds)
+      .get();
+
+    mySettingsVersion = new ProjectSettingsVersion(dispatcher);
+    myLocks = new LocksImpl();
+    myResources = new ResourcesImpl(projectManager, new ResourceProjectFeaturesImpl(mySettingsVersion), mySettingsVersion);
+    myFeatures = new SharedResourcesFeaturesImpl(new SharedResourcesFeatureFactoryImpl(myLocks));
+    myTakenLocks = new TakenLocksImpl(myLocks, myResources, new LocksStorageImpl(dispatcher, createJournal(), runningBuildsManager), myFeatures);
+    final LockFootprints footprints = new LockFootprints(dispatcher, myFeatures, myLocks, myResources,
+                                                         new ConfigurationInspector(myFeatures, myResources), mySettingsVersion, projectManager);
+    final ResourceWaitRegistry waitRegistry = new ResourceWaitRegistry(dispatcher, mySettingsVersion);
+    myAgentsFilter = new SharedResourcesAgentsFilter(footprints, myTakenLocks,
+                                                     new TakenLocksIndex(dispatcher, myTakenLocks, runningBuildsManager, mySettingsVersion, waitRegistry),
+                                                     waitRegistry, new ResourceWaitQueues(dispatcher), projectManager);
+  }
+
+  @NotNull
+  private static LocksJournal createJournal() {
+    try {
+      return new LocksJournal(Files.createTempDirectory("shared-resources-journal").toFile());
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to create directory for taken locks journal", e);
+    }
+  }
+
+  @NotNull
+  ProjectSettingsVersion getSettingsVersion() {
+    return mySettingsVersion;
+  }
+
+  @NotNull
+  Locks getLocks() {
+    return myLocks;
+  }
+
+  @NotNull
+  Resources getResources() {
+    return myResources;
+  }
+
+  @NotNull
+  SharedResourcesFeatures getFeatures() {
+    return myFeatures;
+  }
+
+  @NotNull
+  TakenLocks getTakenLocks() {
+    return myTakenLocks;
+  }
+
+  @NotNull
+  StartingBuildAgentsFilter getAgentsFilter() {
+    return myAgentsFilter;
+  }
+
+  @NotNull
+  List<String> getProjectIds() {
+    return new ArrayList<>(myProjects.keySet());
+  }
+
+  @NotNull
+  List<SBuildFeatureDescriptor> getFeatureDescriptors() {
+    return myFeatureDescriptors;
+  }
+
+  @NotNull
+  List<SRunningBuild> getRunningBuilds() {
+    return myRunningBuilds;
+  }
+
+  @NotNull
+  List<QueuedBuildInfo> getQueuedBuilds() {
+    return myQueuedBuilds;
+  }
+
+  @NotNull
+  SBuildAgent getAgent() {
+    return myAgent;
+  }
+
+  /**
+   * Creates context of build distribution
+   *
+   * @param startingBuild build to be started
+   * @param distributedBuilds builds, already distributed during current pass
+   * @param customData custom data of current pass
+   * @return agents filter context
+   */
+  @NotNull
+  AgentsFilterContext createContext(@NotNull final QueuedBuildInfo startingBuild,
+                                    @NotNull final Map<QueuedBuildInfo, SBuildAgent> distributedBuilds,
+                                    @NotNull final Map<String, Object> customData) {
+    return new Stub<>("context", AgentsFilterContext.class)
+      .returns("getStartingBuild", startingBuild)
+      .returns("getDistributedBuilds", distributedBuilds)
+      .answers("getCustomData", args -> customData.get((String) args[0]))
+      .answers("setCustomData", args -> customData.put((String) args[0], args[1]))
+      .get();
+  }
+
+  /**
+   * Creates project tree with resources, defined in the root project
+   *
+   * @return names of created resources
+   */
+  @NotNull
+  private List<String> createProjects(final int projects, final int resources) {
+    final List<SProjectFeatureDescriptor> rootFeatures = new ArrayList<>();
+    final List<String> resourceNames = new ArrayList<>();
+    for (int i = 0; i < resources; i++) {
+      final Resource resource;
+      final String name = "resource_" + i;
+      switch (i % 3) {
+        case 0:
+          resource = ResourceFactory.newQuotedResource("PROJECT_EXT_" + i, ROOT_PROJECT_ID, name, CAPACITY, true);
+          break;
+        case 1:
+          resource = ResourceFactory.newInfiniteResource("PROJECT_EXT_" + i, ROOT_PROJECT_ID, name, true);
+          break;
+        default:
+          final List<String> values = new ArrayList<>();
+          for (int v = 0; v < CAPACITY; v++) {
+            values.add("value_" + v);
+          }
+          resource = ResourceFactory.newCustomResource("PROJECT_EXT_" + i, ROOT_PROJECT_ID, name, values, true);
+      }
+      resourceNames.add(name);
+      rootFeatures.add(new Stub<>(resource.getId(), SProjectFeatureDescriptor.class)
+                         .returns("getId", resource.getId())
+                         .returns("getProjectId", ROOT_PROJECT_ID)
+                         .returns("getType", SharedResourcesPluginConstants.FEATURE_TYPE)
+                         .returns("getParameters", resource.getParameters())
+                         .get());
+    }
+    final List<SProject> projectList = new ArrayList<>();
+    projectList.add(createProject(ROOT_PROJECT_ID, null, rootFeatures));
+    for (int i = 1; i <= projects; i++) {
+      projectList.add(createProject("Project_" + i, projectList.get((i - 1) / FAN_OUT), Collections.emptyList()));
+    }
+    return resourceNames;
+  }
+
+  @NotNull
+  private SProject createProject(@NotNull final String id,
+                                 final SProject parent,
+                                 @NotNull final List<SProjectFeatureDescriptor> features) {
+    final List<SProject> path = new ArrayList<>();
+    if (parent != null) {
+      path.addAll(parent.getProjectPath());
+    }
+    final Stub<SProject> project = new Stub<>(id, SProject.class)
+      .returns("getProjectId", id)
+      .returns("getExternalId", id)
+      .returns("getParentProject", parent)
+      .returns("getProjectPath", path)
+      .returns("getOwnFeaturesOfType", features);
+    path.add(project.get());
+    myProjects.put(id, project.get());
+    return project.get();
+  }
+
+  private void createBuildType(@NotNull final SProject project,
+                               @NotNull final List<String> resourceNames,
+                               final int locksPerBuild) {
+    final String id = project.getProjectId() + "_Build";
+    final List<String> names = new ArrayList<>(resourceNames);
+    Collections.shuffle(names, myRandom);
+    final StringBuilder locks = new StringBuilder();
+    for (String name: names.subList(0, Math.min(locksPerBuild, names.size()))) {
+      // one of ten locks is a write lock
+      final LockType type = myRandom.nextInt(10) == 0 ? LockType.WRITE : LockType.READ;
+      locks.append(name).append(' ').append(type.getName()).append('\n');
+    }
+    final Map<String, String> parameters = Collections.singletonMap(LOCKS_FEATURE_PARAM_KEY, locks.toString().trim());
+    final SBuildFeatureDescriptor descriptor = new Stub<>(id + "_feature", SBuildFeatureDescriptor.class)
+      .returns("getId", "BUILD_EXT_" + myFeatureDescriptors.size())
+      .returns("getType", SharedResourcesPluginConstants.FEATURE_TYPE)
+      .returns("getParameters", parameters)
+      .get();
+    myFeatureDescriptors.add(descriptor);
+    final BuildTypeEx buildType = new Stub<>(id, BuildTypeEx.class)
+      .returns("getBuildTypeId", id)
+      .returns("getExternalId", id)
+      .returns("getProjectId", project.getProjectId())
+      .returns("getProject", project)
+      .returns("getExtendedName", id)
+      .returns("getExtendedFullName", id)
+      .returns("getBuildFeatures", Collections.singletonList(descriptor))
+      .returns("isEnabled", true)
+      .returns("getTemplates", Collections.emptyList())
+      .get();
+    myBuildTypes.add(buildType);
+    myBuildTypesById.put(id, buildType);
+  }
+
+  @NotNull
+  private BuildTypeEx randomBuildType() {
+    return myBuildTypes.get(myRandom.nextInt(myBuildTypes.size()));
+  }
+
+  @NotNull
+  private BuildPromotionEx createPromotion(@NotNull final BuildTypeEx buildType) {
+    final long id = ++myPromotionIds;
+    return new Stub<>("promotion_" + id, BuildPromotionEx.class)
+      .returns("getId", id)
+      .returns("getBuildTypeId", buildType.getBuildTypeId())
+      .returns("getProjectId", buildType.getProjectId())
+      .returns("getBuildType", buildType)
+      .get();
+  }
+
+  @NotNull
+  private SRunningBuild createRunningBuild(final long id, @NotNull final BuildTypeEx buildType) {
+    final BuildPromotionEx promotion = createPromotion(buildType);
+    return new Stub<>("running_" + id, RunningBuildEx.class)
+      .returns("getBuildId", id)
+      .returns("getProjectId", buildType.getProjectId())
+      .returns("getBuildType", buildType)
+      .returns("getBuildPromotion", promotion)
+      .returns("getBuildPromotionInfo", promotion)
+      .returns("isFinished", false)
+      .get();
+  }
+
+  @NotNull
+  private QueuedBuildInfo createQueuedBuild(final int id, @NotNull final BuildTypeEx buildType) {
+    final BuildPromotionEx promotion = createPromotion(buildType);
+    return new Stub<>("queued_" + id, QueuedBuildInfo.class)
+      .returns("getItemId", String.valueOf(id))
+      .returns("getBuildPromotionInfo", promotion)
+      .get();
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.BuildTypeEx;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class {@code TakenLocksAllocationBenchmark}
+ *
+ * Measures allocations of checking locks of a queued build against locks of running builds.
+ * Run with GC profiler, i.e. {@code -prof gc}: {@code gc.alloc.rate.norm} of
+ * {@code checkAvailableLocks} is expected to be zero, {@code checkLocks} allocates only
+ * the map of unavailable locks. Allocations of available locks check are asserted by
+ * {@code TakenLocksImplTest#testGetUnavailableLocks_AvailableDoesNotAllocate}
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TakenLocksAllocationBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class CheckState extends ServerState {
+
+    Map<Resource, TakenLock> takenLocks;
+
+    /**
+     * Locks of the queued build, resolved against resources
+     */
+    Map<Resource, Lock> locksToTake;
+
+    /**
+     * Locks of the queued build, that are available, as they are kept by lock footprint
+     */
+    List<Map.Entry<Resource, Lock>> availableLocks;
+
+    /**
+     * Fair set is reused between invocations. It already contains names of requested write locks,
+     * so that checks do not grow it
+     */
+    final Set<String> fairSet = new HashSet<>();
+
+    @Setup(Level.Trial)
+    public void collectLocks() {
+      takenLocks = server.getTakenLocks().collectTakenLocks(SyntheticServer.ROOT_PROJECT_ID, server.getRunningBuilds(), server.getQueuedBuilds());
+      final BuildTypeEx buildType = ((BuildPromotionEx) server.getQueuedBuilds().get(0).getBuildPromotionInfo()).getBuildType();
+      final Map<String, Resource> resources = server.getResources().getResourcesMap(buildType.getProjectId());
+      locksToTake = new HashMap<>();
+      for (Lock lock: server.getLocks().fromBuildFeaturesAsMap(server.getFeatures().searchForFeatures(buildType)).values()) {
+        final Resource resource = resources.get(lock.getName());
+        if (resource != null) {
+          locksToTake.put(resource, lock);
+          if (lock.getType() == LockType.WRITE) {
+            fairSet.add(lock.getName());
+          }
+        }
+      }
+      final Map<Resource, Lock> available = new HashMap<>(locksToTake);
+      available.keySet().removeAll(server.getTakenLocks().getUnavailableLocks(locksToTake, takenLocks, new HashSet<>()).keySet());
+      availableLocks = new ArrayList<>(available.entrySet());
+    }
+  }
+
+  @Benchmark
+  public Map<Resource, Lock> checkLocks(final CheckState state) {
+    return state.server.getTakenLocks().getUnavailableLocks(state.locksToTake, state.takenLocks, state.fairSet);
+  }
+
+  @Benchmark
+  public Map<Resource, Lock> checkAvailableLocks(final CheckState state) {
+    return state.server.getTakenLocks().getUnavailableLocks(state.availableLocks, state.takenLocks, state.fairSet);
+  }
+}
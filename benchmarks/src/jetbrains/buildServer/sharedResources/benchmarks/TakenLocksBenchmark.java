@@ -0,0 +1,73 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.BuildTypeEx;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class {@code TakenLocksBenchmark}
+ *
+ * Measures collecting of locks, taken by running and queued builds,
+ * and checking locks of a queued build against them
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TakenLocksBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class TakenLocksState extends ServerState {
+
+    Map<Resource, TakenLock> takenLocks;
+
+    Collection<Lock> locksToTake;
+
+    String projectId;
+
+    @Setup(Level.Trial)
+    public void collectLocks() {
+      takenLocks = server.getTakenLocks().collectTakenLocks(SyntheticServer.ROOT_PROJECT_ID, server.getRunningBuilds(), server.getQueuedBuilds());
+      final BuildTypeEx buildType = ((BuildPromotionEx) server.getQueuedBuilds().get(0).getBuildPromotionInfo()).getBuildType();
+      locksToTake = server.getLocks().fromBuildFeaturesAsMap(server.getFeatures().searchForFeatures(buildType)).values();
+      projectId = buildType.getProjectId();
+    }
+  }
+
+  @Benchmark
+  public Map<Resource, TakenLock> collectTakenLocks(final ServerState state) {
+    return state.server.getTakenLocks().collectTakenLocks(SyntheticServer.ROOT_PROJECT_ID, state.server.getRunningBuilds(), state.server.getQueuedBuilds());
+  }
+
+  @Benchmark
+  public Map<Resource, Lock> getUnavailableLocks(final TakenLocksState state) {
+    return state.server.getTakenLocks().getUnavailableLocks(state.locksToTake, state.takenLocks, state.projectId, new HashSet<>());
+  }
+}
@@ -67,7 +67,7 @@ BS.LocksUtil = {
   },
 
   lockToString: function (lock) {
-    return lock.name + " " + lock.type + " " + (lock.value ? lock.value : "") + "\n";
+    return lock.name + " " + lock.type + (lock.weight > 1 ? ":" + lock.weight : "") + " " + (lock.value ? lock.value : "") + "\n";
   },
 
   lockToTableRow: function (lock) {
@@ -81,11 +81,11 @@ BS.LocksUtil = {
         if (lock.value) {
           result.description = "Specific Value: " + lock.value;
         } else {
-          result.description = "Any Value";
+          result.description = lock.weight > 1 ? "Any " + lock.weight + " Values" : "Any Value";
         }
       }
     } else {
-      result.description = this.locksDisplay[lock.type];
+      result.description = this.locksDisplay[lock.type] + (lock.weight > 1 ? " (weight: " + lock.weight + ")" : "");
     }
     return result;
   }
@@ -419,12 +419,20 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
     var resource = BS.SharedResourcesFeatureDialog.resources[resourceName];
     lock.name = resourceName;
     ///
+    // weight is not edited in the dialog, keep the one from the feature parameters
+    var previous = this.editMode ? BS.SharedResourcesFeatureDialog.locks[this.currentLockName] : null;
     if (resource.type === 'QUOTED') {
       lock.type = $j('#newLockType option:selected').val();
+      if (previous && previous.weight) {
+        lock.weight = previous.weight;
+      }
     } else { // CUSTOM
       var typeName = $j('#newCustomLockType option:selected').val();
       if (typeName === 'ANY') {
         lock.type = "readLock";
+        if (previous && previous.weight) {
+          lock.weight = previous.weight;
+        }
       } else if (typeName === 'SPECIFIC') {
         lock.type = "readLock";
         lock.value = $j('#newCustomLockType_Values option:selected').val();
@@ -478,6 +486,7 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
   lc.name = '<bs:escapeForJs text="${item.value.name}"/>';
   lc.type = '${item.value.type.name}';
   lc.value = '<bs:escapeForJs text="${item.value.value}"/>';
+  lc.weight = ${item.value.weight};
   locks['<bs:escapeForJs text="${item.value.name}"/>'] = lc;
   </c:forEach>
   self.inherited = ${inherited};
@@ -489,6 +498,7 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
   lc.name = '<bs:escapeForJs text="${item.value.name}"/>';
   lc.type = '${item.value.type.name}';
   lc.value = '<bs:escapeForJs text="${item.value.value}"/>';
+  lc.weight = ${item.value.weight};
   invalid['<bs:escapeForJs text="${item.value.name}"/>'] = lc;
   </c:forEach>
 
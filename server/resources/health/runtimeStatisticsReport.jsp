@@ -0,0 +1,42 @@
+<%--
+  ~ Copyright 2000-2017 JetBrains s.r.o.
+  ~
+  ~ Licensed under the Apache License, Version 2.0 (the "License");
+  ~ you may not use this file except in compliance with the License.
+  ~ You may obtain a copy of the License at
+  ~
+  ~ http://www.apache.org/licenses/LICENSE-2.0
+  ~
+  ~ Unless required by applicable law or agreed to in writing, software
+  ~ distributed under the License is distributed on an "AS IS" BASIS,
+  ~ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  ~ See the License for the specific language governing permissions and
+  ~ limitations under the License.
+  --%>
+<%@ page contentType="text/html;charset=UTF-8" language="java" %>
+<%@ include file="/include-internal.jsp" %>
+<%@ page import="com.google.common.cache.CacheStats" %>
+<%@ page import="java.util.concurrent.TimeUnit" %>
+
+<jsp:useBean id="healthStatusItem" type="jetbrains.buildServer.serverSide.healthStatus.HealthStatusItem" scope="request"/>
+<%
+  final CacheStats locksStorage = (CacheStats)healthStatusItem.getAdditionalData().get("locksStorage");
+  final CacheStats valueAffinity = (CacheStats)healthStatusItem.getAdditionalData().get("valueAffinity");
+%>
+<div>
+  Shared resources runtime statistics since server start.
+  <ul>
+    <li>
+      Locks of running builds: <%=locksStorage.hitCount()%> read from memory,
+      <%=locksStorage.missCount()%> read from build artifacts
+      (<%=TimeUnit.NANOSECONDS.toMillis(locksStorage.totalLoadTime())%> ms in total)
+    </li>
+    <% if (valueAffinity != null) { %>
+    <li>
+      Values of custom resources: <%=valueAffinity.hitCount()%> builds got the value of the previous build,
+      <%=valueAffinity.missCount()%> got another value
+      (<%=Math.round(valueAffinity.hitRate() * 100)%>% hit rate)
+    </li>
+    <% } %>
+  </ul>
+</div>
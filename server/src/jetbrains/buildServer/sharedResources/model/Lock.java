@@ -18,6 +18,11 @@ package jetbrains.buildServer.sharedResources.model;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Named lock implementation
  *
@@ -28,6 +33,17 @@ public class Lock {
   @NotNull
   private static final String NO_VALUE = "";
 
+  /**
+   * Weight of the lock, that does not specify one. Lock of quoted resource takes one unit of the quota
+   */
+  public static final int DEFAULT_WEIGHT = 1;
+
+  /**
+   * Separates values of the lock, that holds several values of custom resource.
+   * Values of custom resource are defined one per line, so they never contain it
+   */
+  public static final char VALUES_SEPARATOR = '\n';
+
   /**
    * Name of the lock
    */
@@ -46,10 +62,27 @@ public class Lock {
   @NotNull
   private final String myValue;
 
-  public Lock(@NotNull final String name, @NotNull final LockType type, @NotNull final String value) {
+  /**
+   * Number of quota units of quoted resource or number of values of custom resource, taken by the lock
+   */
+  private final int myWeight;
+
+  /**
+   * Whether the weight was defined as a positive number. Lock with invalid weight takes {@link #DEFAULT_WEIGHT}
+   * and is reported as a configuration error
+   */
+  private final boolean myWeightValid;
+
+  public Lock(@NotNull final String name, @NotNull final LockType type, @NotNull final String value, final int weight) {
     myName = name;
     myType = type;
     myValue = value;
+    myWeight = Math.max(weight, DEFAULT_WEIGHT);
+    myWeightValid = weight >= DEFAULT_WEIGHT;
+  }
+
+  public Lock(@NotNull final String name, @NotNull final LockType type, @NotNull final String value) {
+    this(name, type, value, DEFAULT_WEIGHT);
   }
 
   public Lock(@NotNull final String name, @NotNull final LockType type) {
@@ -65,7 +98,50 @@ public class Lock {
    * @return copy of combined lock definition and custom value
    */
   public static Lock createFrom(@NotNull final Lock from, @NotNull final String value) {
-    return new Lock(from.getName(), from.getType(), value);
+    return new Lock(from.getName(), from.getType(), value, from.getWeight());
+  }
+
+  /**
+   * Joins several values of custom resource into the value of single lock
+   *
+   * @param values values of custom resource
+   * @return value of the lock
+   */
+  @NotNull
+  public static String joinValues(@NotNull final Collection<String> values) {
+    final StringBuilder sb = new StringBuilder();
+    for (String value: values) {
+      if (sb.length() > 0) {
+        sb.append(VALUES_SEPARATOR);
+      }
+      sb.append(value);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Splits value of the lock, joined by {@link #joinValues(Collection)}
+   *
+   * @param value value of the lock
+   * @return values of custom resource or empty list if the value is empty
+   */
+  @NotNull
+  public static List<String> splitValues(@NotNull final String value) {
+    if ("".equals(value)) {
+      return Collections.emptyList();
+    }
+    if (value.indexOf(VALUES_SEPARATOR) < 0) {
+      return Collections.singletonList(value);
+    }
+    final List<String> result = new ArrayList<>();
+    int start = 0;
+    int end;
+    while ((end = value.indexOf(VALUES_SEPARATOR, start)) >= 0) {
+      result.add(value.substring(start, end));
+      start = end + 1;
+    }
+    result.add(value.substring(start));
+    return result;
   }
 
   @NotNull
@@ -83,6 +159,34 @@ public class Lock {
     return myValue;
   }
 
+  /**
+   * Gets values of the lock. Lock, that holds several values of custom resource,
+   * keeps them joined with {@link #VALUES_SEPARATOR}
+   *
+   * @return values of the lock or empty list if the lock has no value
+   */
+  @NotNull
+  public List<String> getValues() {
+    return splitValues(myValue);
+  }
+
+  /**
+   * Gets number of quota units of quoted resource or number of any values of custom resource, taken by the lock.
+   * Lock of specific value of custom resource and write lock of custom resource ignore the weight
+   *
+   * @return weight of the lock, at least {@link #DEFAULT_WEIGHT}
+   */
+  public int getWeight() {
+    return myWeight;
+  }
+
+  /**
+   * @return {@code false} if the weight of the lock was defined, but is not a positive number
+   */
+  public boolean isWeightValid() {
+    return myWeightValid;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
@@ -90,7 +194,9 @@ public class Lock {
     Lock lock = (Lock) o;
     return myName.equals(lock.myName)
             && myType == lock.myType
-            && myValue.equals(lock.myValue);
+            && myValue.equals(lock.myValue)
+            && myWeight == lock.myWeight
+            && myWeightValid == lock.myWeightValid;
 
   }
 
@@ -99,6 +205,8 @@ public class Lock {
     int result = myName.hashCode();
     result = 31 * result + myType.hashCode();
     result = 31 * result + myValue.hashCode();
+    result = 31 * result + myWeight;
+    result = 31 * result + (myWeightValid ? 1 : 0);
     return result;
   }
 
@@ -108,6 +216,7 @@ public class Lock {
             "myName='" + myName + '\'' +
             ", myType=" + myType +
             ", myValue='" + myValue + '\'' +
+            ", myWeight=" + myWeight +
             '}';
   }
 }
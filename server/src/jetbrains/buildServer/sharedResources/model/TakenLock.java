@@ -16,18 +16,28 @@
 
 package jetbrains.buildServer.sharedResources.model;
 
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
 import jetbrains.buildServer.serverSide.buildDistribution.BuildPromotionInfo;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Class {@code TakenLock}.
  *
- * For each resource, instance of this class contains locks that are acquired
+ * For each resource, instance of this class contains locks that are acquired.
+ * Holders of the locks are kept by promotion id. Values of the locks are counted
+ * as locks are added and removed, so that checks of taken values do not allocate.
+ * Weights of the locks are summed in the same way, so that quota checks do not walk the holders
  *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
@@ -36,11 +46,54 @@ public class TakenLock {
   @NotNull
   private final Resource myResource;
 
+  /**
+   * Values of read locks in format {@code promotionId -> value}
+   */
+  @NotNull
+  private final TLongObjectMap<String> myReadLocks = new TLongObjectHashMap<String>();
+
+  /**
+   * Values of write locks in format {@code promotionId -> value}
+   */
+  @NotNull
+  private final TLongObjectMap<String> myWriteLocks = new TLongObjectHashMap<String>();
+
+  /**
+   * Promotions, holding read or write locks, in format {@code promotionId -> promotion}
+   */
+  @NotNull
+  private final TLongObjectMap<BuildPromotionInfo> myHolders = new TLongObjectHashMap<BuildPromotionInfo>();
+
+  /**
+   * Taken values of read and write locks in format {@code value -> number of locks}.
+   * Locks without value are not counted. Each value of the lock, that holds several values, is counted separately
+   */
   @NotNull
-  private final Map<BuildPromotionInfo, String> readLocks = new HashMap<BuildPromotionInfo, String>();
+  private final Map<String, Integer> myValueCounts = new HashMap<String, Integer>();
 
+  /**
+   * Weights of read and write locks in format {@code promotionId -> weight}.
+   * Only locks, heavier than {@link Lock#DEFAULT_WEIGHT}, are kept
+   */
   @NotNull
-  private final Map<BuildPromotionInfo, String> writeLocks = new HashMap<BuildPromotionInfo, String>();
+  private final TLongIntMap myReadWeights = new TLongIntHashMap();
+
+  @NotNull
+  private final TLongIntMap myWriteWeights = new TLongIntHashMap();
+
+  /**
+   * Sum of weights of all taken locks
+   */
+  private int myTakenWeight;
+
+  /**
+   * Views of read and write locks, built on first access after change
+   */
+  @Nullable
+  private Map<BuildPromotionInfo, String> myReadLocksView;
+
+  @Nullable
+  private Map<BuildPromotionInfo, String> myWriteLocksView;
 
   public TakenLock(@NotNull final Resource resource) {
     myResource = resource;
@@ -49,22 +102,118 @@ public class TakenLock {
   public void addLock(@NotNull final BuildPromotionInfo info, @NotNull final Lock lock) {
     switch (lock.getType()) {
       case READ:
-        readLocks.put(info, lock.getValue());
+        putLock(myReadLocks, myReadWeights, info, lock.getValue(), lock.getWeight());
+        myReadLocksView = null;
         break;
       case WRITE:
-        writeLocks.put(info, lock.getValue());
+        putLock(myWriteLocks, myWriteWeights, info, lock.getValue(), lock.getWeight());
+        myWriteLocksView = null;
         break;
     }
   }
 
+  /**
+   * Adds all locks from another {@code TakenLock} of the same resource
+   *
+   * @param other taken lock to add locks from
+   */
+  public void addLocks(@NotNull final TakenLock other) {
+    other.myReadLocks.forEachEntry((id, value) -> {
+      putLock(myReadLocks, myReadWeights, other.myHolders.get(id), value, getWeight(other.myReadWeights, id));
+      return true;
+    });
+    other.myWriteLocks.forEachEntry((id, value) -> {
+      putLock(myWriteLocks, myWriteWeights, other.myHolders.get(id), value, getWeight(other.myWriteWeights, id));
+      return true;
+    });
+    myReadLocksView = null;
+    myWriteLocksView = null;
+  }
+
+  /**
+   * Removes all locks held by given build promotion
+   *
+   * @param info build promotion to remove locks of
+   */
+  public void removeLocks(@NotNull final BuildPromotionInfo info) {
+    removeLocks(info.getId());
+  }
+
+  /**
+   * Removes all locks held by build promotion with given id
+   *
+   * @param promotionId id of build promotion to remove locks of
+   */
+  public void removeLocks(final long promotionId) {
+    if (myHolders.remove(promotionId) != null) {
+      releaseLock(myReadLocks, myReadWeights, promotionId);
+      releaseLock(myWriteLocks, myWriteWeights, promotionId);
+      myReadLocksView = null;
+      myWriteLocksView = null;
+    }
+  }
+
+  /**
+   * Removes all locks held by holders of another {@code TakenLock}
+   *
+   * @param other taken lock, which holders are removed
+   */
+  public void removeLocks(@NotNull final TakenLock other) {
+    for (long id: other.myHolders.keys()) {
+      removeLocks(id);
+    }
+  }
+
+  /**
+   * Creates a copy of current {@code TakenLock} that can be modified independently
+   *
+   * @return copy of the {@code TakenLock}
+   */
+  @NotNull
+  public TakenLock copy() {
+    final TakenLock result = new TakenLock(myResource);
+    result.addLocks(this);
+    return result;
+  }
+
   @NotNull
   public Map<BuildPromotionInfo, String> getReadLocks() {
-    return Collections.unmodifiableMap(readLocks);
+    if (myReadLocksView == null) {
+      myReadLocksView = createView(myReadLocks);
+    }
+    return myReadLocksView;
   }
 
   @NotNull
   public Map<BuildPromotionInfo, String> getWriteLocks() {
-    return Collections.unmodifiableMap(writeLocks);
+    if (myWriteLocksView == null) {
+      myWriteLocksView = createView(myWriteLocks);
+    }
+    return myWriteLocksView;
+  }
+
+  /**
+   * Gets ids of promotions, that hold read or write locks
+   *
+   * @return sorted ids of holders
+   */
+  @NotNull
+  public long[] getHolderIds() {
+    final long[] result = myHolders.keys();
+    Arrays.sort(result);
+    return result;
+  }
+
+  /**
+   * Passes each promotion, that holds read or write lock, to the consumer without building views of the locks
+   *
+   * @param consumer consumer of holders
+   */
+  public void forEachHolder(@NotNull final Consumer<BuildPromotionInfo> consumer) {
+    myHolders.forEachEntry((id, info) -> {
+      consumer.accept(info);
+      return true;
+    });
   }
 
   /**
@@ -83,15 +232,115 @@ public class TakenLock {
    * @return overall locks count
    */
   public int getLocksCount() {
-    return readLocks.size() + writeLocks.size();
+    return myReadLocks.size() + myWriteLocks.size();
+  }
+
+  public int getReadLocksCount() {
+    return myReadLocks.size();
+  }
+
+  public int getWriteLocksCount() {
+    return myWriteLocks.size();
+  }
+
+  /**
+   * Gets sum of weights of all taken locks.
+   * Each lock without explicit weight counts as one unit
+   *
+   * @return number of taken quota units
+   */
+  public int getTakenWeight() {
+    return myTakenWeight;
   }
 
   public boolean hasReadLocks() {
-    return !readLocks.isEmpty();
+    return !myReadLocks.isEmpty();
   }
 
   public boolean hasWriteLocks() {
-    return !writeLocks.isEmpty();
+    return !myWriteLocks.isEmpty();
+  }
+
+  /**
+   * Checks, whether given value is taken by read or write lock
+   *
+   * @param value value of custom resource
+   * @return {@code true} if value is taken
+   */
+  public boolean isValueTaken(@NotNull final String value) {
+    return myValueCounts.containsKey(value);
+  }
+
+  private void putLock(@NotNull final TLongObjectMap<String> locks,
+                       @NotNull final TLongIntMap weights,
+                       @NotNull final BuildPromotionInfo info,
+                       @NotNull final String value,
+                       final int weight) {
+    final long id = info.getId();
+    myHolders.put(id, info);
+    releaseLock(locks, weights, id);
+    locks.put(id, value);
+    if (weight != Lock.DEFAULT_WEIGHT) {
+      weights.put(id, weight);
+    }
+    myTakenWeight += weight;
+    countValues(value, true);
   }
 
+  private void releaseLock(@NotNull final TLongObjectMap<String> locks,
+                           @NotNull final TLongIntMap weights,
+                           final long id) {
+    final String value = locks.remove(id);
+    if (value != null) {
+      myTakenWeight -= getWeight(weights, id);
+      weights.remove(id);
+      countValues(value, false);
+    }
+  }
+
+  private static int getWeight(@NotNull final TLongIntMap weights, final long id) {
+    final int weight = weights.get(id);
+    return weight == 0 ? Lock.DEFAULT_WEIGHT : weight; // absent weights are returned as 0
+  }
+
+  /**
+   * Counts values of the lock, joined with {@link Lock#VALUES_SEPARATOR}.
+   * Value of the lock, that holds single value, is counted without splitting
+   *
+   * @param value value of the lock
+   * @param taken {@code true} if the value is taken, {@code false} if released
+   */
+  private void countValues(@NotNull final String value, final boolean taken) {
+    if ("".equals(value)) {
+      return;
+    }
+    int start = 0;
+    int end;
+    while ((end = value.indexOf(Lock.VALUES_SEPARATOR, start)) >= 0) {
+      countValue(value.substring(start, end), taken);
+      start = end + 1;
+    }
+    countValue(start == 0 ? value : value.substring(start), taken);
+  }
+
+  private void countValue(@NotNull final String value, final boolean taken) {
+    if (taken) {
+      myValueCounts.merge(value, 1, Integer::sum);
+    } else {
+      myValueCounts.computeIfPresent(value, (v, count) -> count > 1 ? count - 1 : null);
+    }
+  }
+
+  @NotNull
+  private Map<BuildPromotionInfo, String> createView(@NotNull final TLongObjectMap<String> locks) {
+    if (locks.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    final Map<BuildPromotionInfo, String> result = new HashMap<BuildPromotionInfo, String>(locks.size() * 2);
+    locks.forEachEntry((id, value) -> {
+      result.put(myHolders.get(id), value);
+      return true;
+    });
+    return Collections.unmodifiableMap(result);
+  }
 }
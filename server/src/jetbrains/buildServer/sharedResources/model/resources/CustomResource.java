@@ -26,7 +26,7 @@ public class CustomResource extends AbstractResource {
                          @NotNull final List<String> values,
                          boolean state) {
     super(id, projectId, name, ResourceType.CUSTOM, state);
-    myValues = new ArrayList<>(values);
+    myValues = Collections.unmodifiableList(new ArrayList<>(values));
   }
 
   @NotNull
@@ -40,7 +40,7 @@ public class CustomResource extends AbstractResource {
 
   @NotNull
   public List<String> getValues() {
-    return Collections.unmodifiableList(myValues);
+    return myValues;
   }
 
   @NotNull
@@ -29,6 +29,7 @@ import jetbrains.buildServer.serverSide.auth.SecurityContext;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.server.ConfigurationInspector;
+import jetbrains.buildServer.sharedResources.server.LockFootprints;
 import jetbrains.buildServer.sharedResources.server.ResourceUsageAnalyzer;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.users.SUser;
@@ -58,17 +59,22 @@ public class SharedResourcesPage extends EditProjectTab {
   @NotNull
   private final ResourceUsageAnalyzer myAnalyzer;
 
+  @NotNull
+  private final LockFootprints myFootprints;
+
   public SharedResourcesPage(@NotNull final PagePlaces pagePlaces,
                              @NotNull final PluginDescriptor descriptor,
                              @NotNull final Resources resources,
                              @NotNull final SecurityContext securityContext,
                              @NotNull final ConfigurationInspector inspector,
-                             @NotNull final ResourceUsageAnalyzer analyzer) {
+                             @NotNull final ResourceUsageAnalyzer analyzer,
+                             @NotNull final LockFootprints footprints) {
     super(pagePlaces, SharedResourcesPluginConstants.PLUGIN_NAME, descriptor.getPluginResourcesPath("projectPage.jsp"), TITLE_PREFIX);
     myResources = resources;
     mySecurityContext = securityContext;
     myInspector = inspector;
     myAnalyzer = analyzer;
+    myFootprints = footprints;
     addCssFile("/css/admin/buildTypeForm.css");
     addJsFile(descriptor.getPluginResourcesPath("js/ResourceDialog.js"));
   }
@@ -102,7 +108,7 @@ public class SharedResourcesPage extends EditProjectTab {
   @NotNull
   private Map<SBuildType, Map<Lock, String>> getConfigurationErrors(@NotNull final SProject project) {
     return project.getBuildTypes().stream()
-                  .map(bt -> new Pair<>(bt, myInspector.inspect(bt)))
+                  .map(bt -> new Pair<>(bt, myFootprints.get(bt).getInvalidLocks()))
                   .filter(it -> !it.second.isEmpty())
                   .collect(Collectors.toMap(
                     p -> p.first,
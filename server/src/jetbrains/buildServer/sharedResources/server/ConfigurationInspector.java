@@ -6,6 +6,7 @@ import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
 import jetbrains.buildServer.sharedResources.model.resources.QuotedResource;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
@@ -74,12 +75,22 @@ public class ConfigurationInspector {
    */
   @NotNull
   public List<String> getOwnDuplicateNames(@NotNull final SProject project) {
-    return myResources.getAllOwnResources(project).stream()
-                      .collect(Collectors.groupingBy(Resource::getName))
-                      .values().stream()
-                      .filter(list -> list.size() > 1)
-                      .map(dup -> dup.get(0).getName())
-                      .collect(Collectors.toList());
+    return getDuplicateNames(myResources.getAllOwnResources(project));
+  }
+
+  /**
+   * Finds names, shared by several resources. Used both for inspection and by {@link ResourceDefinitionsScanner}
+   * @param resources resources, defined in a single project
+   * @return list of duplicate resource names in order of their first definition
+   */
+  @NotNull
+  static List<String> getDuplicateNames(@NotNull final Collection<Resource> resources) {
+    return resources.stream()
+                    .collect(Collectors.groupingBy(Resource::getName, LinkedHashMap::new, Collectors.counting()))
+                    .entrySet().stream()
+                    .filter(entry -> entry.getValue() > 1)
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList());
   }
 
   /**
@@ -92,56 +103,66 @@ public class ConfigurationInspector {
     final Map<String, List<String>> result = new HashMap<>();
     project.getOwnFeaturesOfType(SharedResourcesPluginConstants.FEATURE_TYPE).forEach(
       fd -> {
-        final List<String> errors = new ArrayList<>();
-        final Map<String, String> parameters = fd.getParameters();
-        final String name = parameters.get(NAME);
-        if (isEmptyOrSpaces(name)) {
-          errors.add("Required parameter 'name' is missing");
+        final List<String> errors = getDefinitionErrors(fd.getParameters());
+        if (!errors.isEmpty()) {
+          result.put(fd.getId(), errors);
         }
-        final String type = parameters.get(TYPE);
-        if (isEmptyOrSpaces(type)) {
-          errors.add("Required parameter 'type' is missing");
-        } else {
-          ResourceType resourceType = ResourceType.fromString(type);
-          if (resourceType == null) {
-            errors.add("Value of parameter 'type' (" + type + ") is incorrect. Correct values are: " +
-                       ResourceType.getCorrectValues().stream().collect(Collectors.joining(", ")));
+      });
+    return result;
+  }
+
+  /**
+   * Checks parameters of a single resource definition
+   * @param parameters parameters of resource project feature
+   * @return list of errors, empty if definition is correct
+   */
+  @NotNull
+  static List<String> getDefinitionErrors(@NotNull final Map<String, String> parameters) {
+    final List<String> errors = new ArrayList<>();
+    final String name = parameters.get(NAME);
+    if (isEmptyOrSpaces(name)) {
+      errors.add("Required parameter 'name' is missing");
+    }
+    final String type = parameters.get(TYPE);
+    if (isEmptyOrSpaces(type)) {
+      errors.add("Required parameter 'type' is missing");
+    } else {
+      ResourceType resourceType = ResourceType.fromString(type);
+      if (resourceType == null) {
+        errors.add("Value of parameter 'type' (" + type + ") is incorrect. Correct values are: " +
+                   ResourceType.getCorrectValues().stream().collect(Collectors.joining(", ")));
+      } else {
+        // we have correct type
+        // check the parameters that this type requires
+        if (resourceType == ResourceType.QUOTED) {
+          String quota = parameters.get(QUOTA);
+          if (isEmptyOrSpaces(quota)) {
+            errors.add("Required parameter 'quota' is missing");
           } else {
-            // we have correct type
-            // check the parameters that this type requires
-            if (resourceType == ResourceType.QUOTED) {
-              String quota = parameters.get(QUOTA);
-              if (isEmptyOrSpaces(quota)) {
-                errors.add("Required parameter 'quota' is missing");
-              } else {
-                try {
-                  int q = Integer.parseInt(quota);
-                  if (q < -1) {
-                    errors.add("Value of parameter 'quota' must be either positive, or -1 for infinite quota. Got '" + quota + "'");
-                  }
-                } catch (NumberFormatException e) {
-                  errors.add("Value of parameter 'quota' must be a valid integer. Got '" + quota + "'");
-                }
-              }
-            } else {
-              // resource with custom values
-              final String values = parameters.get(VALUES);
-              if (isEmptyOrSpaces(values)) {
-                errors.add("Required parameter 'values' is missing");
-              } else {
-                final List<String> vals = StringUtil.split(parameters.get(VALUES), true, '\r', '\n');
-                if (vals.isEmpty()) {
-                  errors.add("At least one value for the resource with custom values must be defined");
-                }
+            try {
+              int q = Integer.parseInt(quota);
+              if (q < -1) {
+                errors.add("Value of parameter 'quota' must be either positive, or -1 for infinite quota. Got '" + quota + "'");
               }
+            } catch (NumberFormatException e) {
+              errors.add("Value of parameter 'quota' must be a valid integer. Got '" + quota + "'");
+            }
+          }
+        } else {
+          // resource with custom values
+          final String values = parameters.get(VALUES);
+          if (isEmptyOrSpaces(values)) {
+            errors.add("Required parameter 'values' is missing");
+          } else {
+            final List<String> vals = StringUtil.split(parameters.get(VALUES), true, '\r', '\n');
+            if (vals.isEmpty()) {
+              errors.add("At least one value for the resource with custom values must be defined");
             }
           }
         }
-        if (!errors.isEmpty()) {
-          result.put(fd.getId(), errors);
-        }
-      });
-    return result;
+      }
+    }
+    return errors;
   }
 
   private static final String OK = "OK";
@@ -206,6 +227,24 @@ public class ConfigurationInspector {
 
   @NotNull
   private String tryMatch(@NotNull final Resource r, @NotNull final Lock lock) {
+    if (!lock.isWeightValid()) {
+      // weight is defined, but is not a positive number
+      return "Weight of lock on resource '" + lock.getName() + "' must be a positive number";
+    }
+    if (ResourceType.QUOTED == r.getType()) {
+      final QuotedResource quoted = (QuotedResource) r;
+      if (!quoted.isInfinite() && lock.getWeight() > Lock.DEFAULT_WEIGHT && lock.getWeight() > quoted.getQuota()) {
+        // weighted lock can never be acquired, build would wait forever
+        return "Lock on resource '" + lock.getName() + "' requires " + lock.getWeight() + " units of quota, but quota of the resource is " + quoted.getQuota();
+      }
+    }
+    if (ResourceType.CUSTOM == r.getType() && LockType.READ == lock.getType() && "".equals(lock.getValue())) {
+      final int size = ((CustomResource) r).getValues().size();
+      if (lock.getWeight() > size) {
+        // read lock takes the requested number of distinct values, build would wait forever
+        return "Lock on resource '" + lock.getName() + "' requires " + lock.getWeight() + " values, but the resource defines only " + size;
+      }
+    }
     if (!"".equals(lock.getValue())) {
       if (ResourceType.CUSTOM == r.getType()) {
         if (!((CustomResource) r).getValues().contains(lock.getValue())) {
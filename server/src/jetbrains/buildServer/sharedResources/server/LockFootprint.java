@@ -0,0 +1,136 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server;
+
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class {@code LockFootprint}
+ *
+ * Locks of a build configuration, compiled against its settings and resources of the project tree.
+ * Holds locks, resolved resources and configuration errors, so that build distribution
+ * does not need to parse features and resolve resources for every queued build.
+ * Footprint is immutable and is replaced by {@link LockFootprints} after settings change
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public final class LockFootprint {
+
+  private final long mySettingsVersion;
+
+  @NotNull
+  private final Set<String> myTemplateIds;
+
+  private final boolean myHasFeatures;
+
+  @NotNull
+  private final Map<String, Lock> myLocks;
+
+  @NotNull
+  private final Map<Resource, Lock> myResolvedLocks;
+
+  /**
+   * Resolved locks as a random access list, so that checks of the locks iterate them without allocations
+   */
+  @NotNull
+  private final List<Map.Entry<Resource, Lock>> myResolvedLockList;
+
+  @NotNull
+  private final Map<Lock, String> myInvalidLocks;
+
+  LockFootprint(final long settingsVersion,
+                @NotNull final Set<String> templateIds,
+                final boolean hasFeatures,
+                @NotNull final Map<String, Lock> locks,
+                @NotNull final Map<Resource, Lock> resolvedLocks,
+                @NotNull final Map<Lock, String> invalidLocks) {
+    mySettingsVersion = settingsVersion;
+    myTemplateIds = Collections.unmodifiableSet(new HashSet<>(templateIds));
+    myHasFeatures = hasFeatures;
+    myLocks = Collections.unmodifiableMap(new HashMap<>(locks));
+    myResolvedLocks = Collections.unmodifiableMap(new HashMap<>(resolvedLocks));
+    myResolvedLockList = Collections.unmodifiableList(new ArrayList<>(myResolvedLocks.entrySet()));
+    myInvalidLocks = Collections.unmodifiableMap(new HashMap<>(invalidLocks));
+  }
+
+  /**
+   * @return {@code true} if build configuration has enabled shared resources features
+   */
+  public boolean hasFeatures() {
+    return myHasFeatures;
+  }
+
+  /**
+   * @return locks, required by build configuration, in format {@code lock name -> lock}
+   */
+  @NotNull
+  public Map<String, Lock> getLocks() {
+    return myLocks;
+  }
+
+  /**
+   * Gets locks, resolved against resources of the project tree.
+   * Locks of the resources, that do not exist, are not included
+   *
+   * @return resolved locks in format {@code resource -> lock}
+   */
+  @NotNull
+  public Map<Resource, Lock> getResolvedLocks() {
+    return myResolvedLocks;
+  }
+
+  /**
+   * @return resolved locks as a random access list of {@code <Resource, Lock>} entries
+   * @see #getResolvedLocks()
+   */
+  @NotNull
+  public List<Map.Entry<Resource, Lock>> getResolvedLockList() {
+    return myResolvedLockList;
+  }
+
+  /**
+   * @return configuration errors in format {@code lock -> error description}
+   * @see ConfigurationInspector#inspect(jetbrains.buildServer.serverSide.SBuildType)
+   */
+  @NotNull
+  public Map<Lock, String> getInvalidLocks() {
+    return myInvalidLocks;
+  }
+
+  public boolean isValid() {
+    return myInvalidLocks.isEmpty();
+  }
+
+  long getSettingsVersion() {
+    return mySettingsVersion;
+  }
+
+  @NotNull
+  Set<String> getTemplateIds() {
+    return myTemplateIds;
+  }
+}
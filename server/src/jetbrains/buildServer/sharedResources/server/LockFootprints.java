@@ -0,0 +1,228 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server;
+
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.BuildTypeTemplate;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.feature.Locks;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
+import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class {@code LockFootprints}
+ *
+ * Keeps compiled {@link LockFootprint} of each build configuration.
+ * Footprint is compiled on first request and is compiled again only after the build configuration,
+ * one of its templates or resources of the project tree change.
+ * Footprints are shared by build distribution, health reports and the shared resources page,
+ * so configuration of the build is inspected once per change.
+ * Personal builds and builds on other settings revisions have settings of their own.
+ * Footprints of such builds are kept by the id of the build promotion until the build leaves the queue
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class LockFootprints {
+
+  @NotNull
+  private final SharedResourcesFeatures myFeatures;
+
+  @NotNull
+  private final Locks myLocks;
+
+  @NotNull
+  private final Resources myResources;
+
+  @NotNull
+  private final ConfigurationInspector myInspector;
+
+  @NotNull
+  private final ProjectSettingsVersion mySettingsVersion;
+
+  @NotNull
+  private final ProjectManager myProjectManager;
+
+  /**
+   * Footprints in format {@code build type id -> footprint}
+   */
+  @NotNull
+  private final ConcurrentMap<String, LockFootprint> myFootprints = new ConcurrentHashMap<>();
+
+  /**
+   * Footprints of promotion specific settings in format {@code promotion id -> footprint}.
+   * Settings of queued build do not change, footprint is removed when the build leaves the queue
+   */
+  @NotNull
+  private final ConcurrentMap<Long, LockFootprint> myPromotionFootprints = new ConcurrentHashMap<>();
+
+  /**
+   * Number of build configuration changes. Footprint, compiled concurrently with the change, is not kept
+   */
+  @NotNull
+  private final AtomicLong myChanges = new AtomicLong();
+
+  public LockFootprints(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                        @NotNull final SharedResourcesFeatures features,
+                        @NotNull final Locks locks,
+                        @NotNull final Resources resources,
+                        @NotNull final ConfigurationInspector inspector,
+                        @NotNull final ProjectSettingsVersion settingsVersion,
+                        @NotNull final ProjectManager projectManager) {
+    myFeatures = features;
+    myLocks = locks;
+    myResources = resources;
+    myInspector = inspector;
+    mySettingsVersion = settingsVersion;
+    myProjectManager = projectManager;
+    dispatcher.addListener(new BuildServerAdapter() {
+
+      @Override
+      public void buildTypePersisted(@NotNull final SBuildType buildType) {
+        invalidate(buildType);
+      }
+
+      @Override
+      public void buildTypeRegistered(@NotNull final SBuildType buildType) {
+        invalidate(buildType);
+      }
+
+      @Override
+      public void buildTypeUnregistered(@NotNull final SBuildType buildType) {
+        invalidate(buildType);
+      }
+
+      @Override
+      public void buildTypeMoved(@NotNull final SBuildType buildType, @NotNull final SProject original) {
+        invalidate(buildType);
+      }
+
+      @Override
+      public void buildTypeTemplatePersisted(@NotNull final BuildTypeTemplate template) {
+        myChanges.incrementAndGet();
+        myFootprints.values().removeIf(footprint -> footprint.getTemplateIds().contains(template.getId()));
+        myPromotionFootprints.values().removeIf(footprint -> footprint.getTemplateIds().contains(template.getId()));
+      }
+
+      @Override
+      public void buildRemovedFromQueue(@NotNull final SQueuedBuild queuedBuild,
+                                        @Nullable final User user,
+                                        @Nullable final String comment) {
+        myPromotionFootprints.remove(queuedBuild.getBuildPromotion().getId());
+      }
+    });
+  }
+
+  /**
+   * Gets footprint of the build configuration
+   *
+   * @param buildType build configuration
+   * @return compiled footprint
+   */
+  @NotNull
+  public LockFootprint get(@NotNull final SBuildType buildType) {
+    final String id = buildType.getBuildTypeId();
+    if (myProjectManager.findBuildTypeById(id) != buildType) {
+      // settings of the build may differ from settings of registered build configuration
+      return compile(buildType, mySettingsVersion.get());
+    }
+    return get(myFootprints, id, buildType);
+  }
+
+  /**
+   * Gets footprint of the settings of queued build
+   *
+   * @param promotionId id of the build promotion
+   * @param buildType settings of the build promotion
+   * @return compiled footprint
+   */
+  @NotNull
+  public LockFootprint get(final long promotionId, @NotNull final SBuildType buildType) {
+    if (myProjectManager.findBuildTypeById(buildType.getBuildTypeId()) == buildType) {
+      return get(myFootprints, buildType.getBuildTypeId(), buildType);
+    }
+    return get(myPromotionFootprints, promotionId, buildType);
+  }
+
+  @NotNull
+  private <K> LockFootprint get(@NotNull final ConcurrentMap<K, LockFootprint> footprints,
+                                @NotNull final K key,
+                                @NotNull final SBuildType buildType) {
+    final long version = mySettingsVersion.get();
+    final LockFootprint cached = footprints.get(key);
+    if (cached != null && cached.getSettingsVersion() == version) {
+      return cached;
+    }
+    final long changes = myChanges.get();
+    final LockFootprint result = compile(buildType, version);
+    footprints.put(key, result);
+    if (myChanges.get() != changes) {
+      // build configuration could change while the footprint was compiled
+      footprints.remove(key, result);
+    }
+    return result;
+  }
+
+  @NotNull
+  private LockFootprint compile(@NotNull final SBuildType buildType, final long version) {
+    final Set<String> templateIds = new HashSet<>();
+    for (BuildTypeTemplate template: buildType.getTemplates()) {
+      templateIds.add(template.getId());
+    }
+    final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(buildType);
+    if (features.isEmpty()) {
+      return new LockFootprint(version, templateIds, false, Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+    }
+    final Map<Lock, String> invalidLocks = myInspector.inspect(buildType);
+    if (!invalidLocks.isEmpty()) {
+      return new LockFootprint(version, templateIds, true, Collections.emptyMap(), Collections.emptyMap(), invalidLocks);
+    }
+    final Map<String, Lock> locks = myLocks.fromBuildFeaturesAsMap(features);
+    final Map<Resource, Lock> resolvedLocks = new HashMap<>();
+    if (!locks.isEmpty()) {
+      final Map<String, Resource> resources = myResources.getResourcesMap(buildType.getProjectId());
+      for (Lock lock: locks.values()) {
+        final Resource resource = resources.get(lock.getName());
+        if (resource != null) {
+          resolvedLocks.put(resource, lock);
+        }
+      }
+    }
+    return new LockFootprint(version, templateIds, true, locks, resolvedLocks, Collections.emptyMap());
+  }
+
+  private void invalidate(@NotNull final SBuildType buildType) {
+    myChanges.incrementAndGet();
+    myFootprints.remove(buildType.getBuildTypeId());
+  }
+}
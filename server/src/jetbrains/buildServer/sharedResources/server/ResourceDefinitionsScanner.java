@@ -0,0 +1,161 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server;
+
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Class {@code ResourceDefinitionsScanner}
+ *
+ * Scans resource definitions of a project in a single pass over its project features.
+ * Produces duplicate names, definition errors and resources, resolved with inheritance, together.
+ * Results are cached per project until the next change of project settings,
+ * so health reports, that check the same projects, share them
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class ResourceDefinitionsScanner {
+
+  @NotNull
+  private final ProjectSettingsVersion mySettingsVersion;
+
+  /**
+   * Scan results in format {@code projectId -> result}
+   */
+  @NotNull
+  private final ConcurrentMap<String, ScanResult> myResults = new ConcurrentHashMap<>();
+
+  /**
+   * Settings version, results of previous versions were dropped for
+   */
+  private volatile long myCleanedVersion;
+
+  public ResourceDefinitionsScanner(@NotNull final ProjectSettingsVersion settingsVersion) {
+    mySettingsVersion = settingsVersion;
+    myCleanedVersion = settingsVersion.get();
+  }
+
+  /**
+   * Gets resource definitions of the project. Ancestors of the project are scanned once,
+   * their results are reused for resolving inherited resources
+   *
+   * @param project project to scan
+   * @return scan result
+   */
+  @NotNull
+  public ScanResult scan(@NotNull final SProject project) {
+    final long version = mySettingsVersion.get();
+    if (version != myCleanedVersion) {
+      myCleanedVersion = version;
+      myResults.clear();
+    }
+    final ScanResult cached = myResults.get(project.getProjectId());
+    if (cached != null && cached.myVersion == version) {
+      return cached;
+    }
+    final SProject parent = project.getParentProject();
+    final ScanResult result = scan(project, version, parent == null ? null : scan(parent));
+    myResults.put(project.getProjectId(), result);
+    return result;
+  }
+
+  @NotNull
+  private ScanResult scan(@NotNull final SProject project, final long version, @Nullable final ScanResult parent) {
+    final Map<String, List<String>> errors = new HashMap<>();
+    final List<Resource> ownResources = new ArrayList<>();
+    for (SProjectFeatureDescriptor descriptor: project.getOwnFeaturesOfType(SharedResourcesPluginConstants.FEATURE_TYPE)) {
+      final List<String> definitionErrors = ConfigurationInspector.getDefinitionErrors(descriptor.getParameters());
+      if (!definitionErrors.isEmpty()) {
+        errors.put(descriptor.getId(), definitionErrors);
+      }
+      final Resource resource = ResourceFactory.fromDescriptor(descriptor);
+      if (resource != null) {
+        ownResources.add(resource);
+      }
+    }
+    final List<String> duplicates = ConfigurationInspector.getDuplicateNames(ownResources);
+    final Map<String, Resource> resources = parent == null ? new HashMap<>() : new HashMap<>(parent.myResources);
+    for (Resource resource: ownResources) {
+      if (!duplicates.contains(resource.getName())) {
+        // resources of subprojects override resources of parent projects with the same name
+        resources.put(resource.getName(), resource);
+      }
+    }
+    return new ScanResult(version, duplicates, errors, resources);
+  }
+
+  public static final class ScanResult {
+
+    private final long myVersion;
+
+    @NotNull
+    private final List<String> myDuplicateNames;
+
+    @NotNull
+    private final Map<String, List<String>> myDefinitionErrors;
+
+    @NotNull
+    private final Map<String, Resource> myResources;
+
+    private ScanResult(final long version,
+                       @NotNull final List<String> duplicateNames,
+                       @NotNull final Map<String, List<String>> definitionErrors,
+                       @NotNull final Map<String, Resource> resources) {
+      myVersion = version;
+      myDuplicateNames = Collections.unmodifiableList(duplicateNames);
+      myDefinitionErrors = Collections.unmodifiableMap(definitionErrors);
+      myResources = Collections.unmodifiableMap(resources);
+    }
+
+    /**
+     * @return names of resources, defined in the project more than once
+     * @see ConfigurationInspector#getOwnDuplicateNames(SProject)
+     */
+    @NotNull
+    public List<String> getDuplicateNames() {
+      return myDuplicateNames;
+    }
+
+    /**
+     * @return definition errors in format {@code feature id -> errors}
+     * @see ConfigurationInspector#getOwnResourceDefinitionErrors(SProject)
+     */
+    @NotNull
+    public Map<String, List<String>> getDefinitionErrors() {
+      return myDefinitionErrors;
+    }
+
+    /**
+     * @return resources, available in the project, in format {@code resource name -> resource}
+     */
+    @NotNull
+    public Map<String, Resource> getResources() {
+      return myResources;
+    }
+  }
+}
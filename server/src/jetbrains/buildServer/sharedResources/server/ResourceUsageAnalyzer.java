@@ -17,20 +17,26 @@
 package jetbrains.buildServer.sharedResources.server;
 
 import java.util.*;
-import jetbrains.buildServer.serverSide.SBuildType;
-import jetbrains.buildServer.serverSide.SProject;
+import java.util.stream.Collectors;
+import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
-import jetbrains.buildServer.util.CollectionsUtil;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import jetbrains.buildServer.util.EventDispatcher;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Class {@code ResourceUsageAnalyzer}
  *
- * For given project, constructs a map of results usage
+ * For given project, constructs a map of results usage.
+ *
+ * Usages are served from the server-wide usage graph in format {@code resource id -> <build type, locks>}.
+ * Locks of all build configurations are read once, afterwards only changed build configurations are read again.
+ * After resources change, stored locks are resolved again without reading build configuration settings
  *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
@@ -42,10 +48,82 @@ public class ResourceUsageAnalyzer {
   @NotNull
   private final SharedResourcesFeatures myFeatures;
 
-  public ResourceUsageAnalyzer(@NotNull final Resources resources,
-                               @NotNull final SharedResourcesFeatures features) {
+  @NotNull
+  private final ProjectManager myProjectManager;
+
+  @NotNull
+  private final ProjectSettingsVersion mySettingsVersion;
+
+  @NotNull
+  private final Object myLock = new Object();
+
+  /**
+   * Indexed build configurations in format {@code build type id -> usages}
+   */
+  @NotNull
+  private final Map<String, BuildTypeUsages> myBuildTypes = new HashMap<>();
+
+  /**
+   * Usage graph in format {@code resource id -> <build type id, locks>}
+   */
+  @NotNull
+  private final Map<String, Map<String, List<Lock>>> myGraph = new HashMap<>();
+
+  /**
+   * Build configurations, changed since the last query. {@code null} value marks removed build configuration
+   */
+  @NotNull
+  private final Map<String, SBuildType> myChanged = new HashMap<>();
+
+  private boolean myInitialized = false;
+
+  /**
+   * Settings version, locks were resolved for
+   */
+  private long myIndexedVersion;
+
+  public ResourceUsageAnalyzer(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                               @NotNull final Resources resources,
+                               @NotNull final SharedResourcesFeatures features,
+                               @NotNull final ProjectManager projectManager,
+                               @NotNull final ProjectSettingsVersion settingsVersion) {
     myResources = resources;
     myFeatures = features;
+    myProjectManager = projectManager;
+    mySettingsVersion = settingsVersion;
+    dispatcher.addListener(new BuildServerAdapter() {
+
+      @Override
+      public void buildTypeRegistered(@NotNull final SBuildType buildType) {
+        changed(buildType.getBuildTypeId(), buildType);
+      }
+
+      @Override
+      public void buildTypeUnregistered(@NotNull final SBuildType buildType) {
+        changed(buildType.getBuildTypeId(), null);
+      }
+
+      @Override
+      public void buildTypePersisted(@NotNull final SBuildType buildType) {
+        changed(buildType.getBuildTypeId(), buildType);
+      }
+
+      @Override
+      public void buildTypeMoved(@NotNull final SBuildType buildType, @NotNull final SProject original) {
+        changed(buildType.getBuildTypeId(), buildType);
+      }
+
+      @Override
+      public void buildTypeTemplatePersisted(@NotNull final BuildTypeTemplate template) {
+        synchronized (myLock) {
+          for (BuildTypeUsages usages: myBuildTypes.values()) {
+            if (usages.myTemplateIds.contains(template.getId())) {
+              myChanged.put(usages.myBuildType.getBuildTypeId(), usages.myBuildType);
+            }
+          }
+        }
+      }
+    });
   }
 
   /**
@@ -61,35 +139,12 @@ public class ResourceUsageAnalyzer {
     final String projectId = project.getProjectId();
     final Map<String, Resource> availableToMeResources = myResources.getResourcesMap(projectId);
     if (!availableToMeResources.isEmpty()) {
-      for (final SBuildType bt : project.getBuildTypes()) {
-        final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(bt);
-        for (SharedResourcesFeature feature : features) {
-          // Filter the collection of resources, available to the build by the project id of the resource
-          // We are only interested only in the resources, available to current project
-          Map<String, Resource> currentBtResources;
-          final String btProjectId = bt.getProjectId();
-          if (btProjectId.equals(projectId)) {
-            currentBtResources = availableToMeResources;
-          } else {
-            currentBtResources = CollectionsUtil.filterMapByValues(
-              myResources.getResourcesMap(btProjectId), availableToMeResources::containsValue);
-          }
-          final Map<String, Lock> lockedResources = feature.getLockedResources();
-          if (!lockedResources.isEmpty()) {
-            final Map<Resource, List<Lock>> matchResult = findResourcesUsages(lockedResources, currentBtResources);
-            for (Map.Entry<Resource, List<Lock>> matched : matchResult.entrySet()) {
-              Map<SBuildType, List<Lock>> resultMatch = result.get(matched.getKey());
-              if (resultMatch == null) {
-                resultMatch = new HashMap<>();
-                result.put(matched.getKey(), resultMatch);
-              }
-              List<Lock> locksList = resultMatch.get(bt);
-              if (locksList == null) {
-                locksList = new ArrayList<>();
-                resultMatch.put(bt, locksList);
-              }
-              locksList.addAll(matched.getValue());
-            }
+      synchronized (myLock) {
+        ensureIndexed();
+        for (Resource resource: availableToMeResources.values()) {
+          final Map<SBuildType, List<Lock>> usages = getUsages(projectId, resource);
+          if (!usages.isEmpty()) {
+            result.put(resource, usages);
           }
         }
       }
@@ -98,27 +153,180 @@ public class ResourceUsageAnalyzer {
   }
 
   /**
-   * Resolves locks against given set of resources
+   * Gets number of build configurations in project subtree, that use given resource
    *
-   * @param locks locks to resolve
-   * @param resources resources to use
-   * @return a list of locks taken for each resource given
+   * @param project project
+   * @param resource resource, available to the project
+   * @return number of build configurations
+   */
+  public int getUsagesCount(@NotNull final SProject project, @NotNull final Resource resource) {
+    synchronized (myLock) {
+      ensureIndexed();
+      return getUsages(project.getProjectId(), resource).size();
+    }
+  }
+
+  /**
+   * Gets a page of usages of given resource in project subtree.
+   * Build configurations are ordered by their full names
+   *
+   * @param project project
+   * @param resource resource, available to the project
+   * @param offset number of build configurations to skip
+   * @param limit maximum number of build configurations to return
+   * @return usages in format {@code <build type, locks>}, preserving the order
    */
   @NotNull
-  private Map<Resource, List<Lock>> findResourcesUsages(@NotNull final Map<String, Lock> locks,
-                                                        @NotNull final Map<String, Resource> resources) {
-    final Map<Resource, List<Lock>> result = new HashMap<>();
-    for (Map.Entry<String, Lock> e: locks.entrySet()) {
-      final Resource r = resources.get(e.getKey());
-      if (r != null) {
-        List<Lock> matchedList = result.get(r);
-        if (matchedList == null) {
-          matchedList = new ArrayList<>();
-          result.put(r, matchedList);
+  public Map<SBuildType, List<Lock>> getResourceUsages(@NotNull final SProject project,
+                                                       @NotNull final Resource resource,
+                                                       final int offset,
+                                                       final int limit) {
+    final Map<SBuildType, List<Lock>> usages;
+    synchronized (myLock) {
+      ensureIndexed();
+      usages = getUsages(project.getProjectId(), resource);
+    }
+    final Map<SBuildType, List<Lock>> result = new LinkedHashMap<>();
+    usages.entrySet().stream()
+          .sorted(Comparator.comparing(e -> e.getKey().getExtendedFullName()))
+          .skip(Math.max(0, offset))
+          .limit(Math.max(0, limit))
+          .forEach(e -> result.put(e.getKey(), e.getValue()));
+    return result;
+  }
+
+  @NotNull
+  private Map<SBuildType, List<Lock>> getUsages(@NotNull final String projectId, @NotNull final Resource resource) {
+    final Map<SBuildType, List<Lock>> result = new HashMap<>();
+    final Map<String, List<Lock>> usages = myGraph.get(resource.getId());
+    if (usages != null) {
+      for (Map.Entry<String, List<Lock>> entry: usages.entrySet()) {
+        final BuildTypeUsages buildType = myBuildTypes.get(entry.getKey());
+        // we are only interested in build configurations from the subtree of current project
+        if (buildType != null && buildType.myProjectPath.contains(projectId)) {
+          result.put(buildType.myBuildType, new ArrayList<>(entry.getValue()));
         }
-        matchedList.add(e.getValue());
       }
     }
     return result;
   }
+
+  private void changed(@NotNull final String buildTypeId, @Nullable final SBuildType buildType) {
+    synchronized (myLock) {
+      myChanged.put(buildTypeId, buildType);
+    }
+  }
+
+  /**
+   * Brings usage graph up to date. Called under {@code myLock}
+   */
+  private void ensureIndexed() {
+    final long version = mySettingsVersion.get();
+    if (!myInitialized) {
+      myChanged.clear();
+      myBuildTypes.clear();
+      for (SBuildType buildType: myProjectManager.getAllBuildTypes()) {
+        myBuildTypes.put(buildType.getBuildTypeId(), new BuildTypeUsages(buildType));
+      }
+      myInitialized = true;
+    } else {
+      for (Map.Entry<String, SBuildType> entry: myChanged.entrySet()) {
+        final BuildTypeUsages previous = myBuildTypes.remove(entry.getKey());
+        if (previous != null) {
+          removeFromGraph(entry.getKey(), previous);
+        }
+        if (entry.getValue() != null) {
+          final BuildTypeUsages usages = new BuildTypeUsages(entry.getValue());
+          myBuildTypes.put(entry.getKey(), usages);
+          if (version == myIndexedVersion) {
+            usages.resolve();
+            addToGraph(entry.getKey(), usages);
+          }
+        }
+      }
+      myChanged.clear();
+      if (version == myIndexedVersion) {
+        return;
+      }
+    }
+    // resources have changed. Locks are resolved again
+    myGraph.clear();
+    for (Map.Entry<String, BuildTypeUsages> entry: myBuildTypes.entrySet()) {
+      entry.getValue().resolve();
+      addToGraph(entry.getKey(), entry.getValue());
+    }
+    myIndexedVersion = version;
+  }
+
+  private void addToGraph(@NotNull final String buildTypeId, @NotNull final BuildTypeUsages usages) {
+    usages.myResolved.forEach((resourceId, locks) -> myGraph.computeIfAbsent(resourceId, id -> new HashMap<>()).put(buildTypeId, locks));
+  }
+
+  private void removeFromGraph(@NotNull final String buildTypeId, @NotNull final BuildTypeUsages usages) {
+    for (String resourceId: usages.myResolved.keySet()) {
+      final Map<String, List<Lock>> resourceUsages = myGraph.get(resourceId);
+      if (resourceUsages != null) {
+        resourceUsages.remove(buildTypeId);
+        if (resourceUsages.isEmpty()) {
+          myGraph.remove(resourceId);
+        }
+      }
+    }
+  }
+
+  /**
+   * Locks of a single build configuration. Locks of each feature are kept separately,
+   * so that they can be resolved again after resources change
+   */
+  private final class BuildTypeUsages {
+
+    @NotNull
+    private final SBuildType myBuildType;
+
+    @NotNull
+    private final Set<String> myTemplateIds;
+
+    @NotNull
+    private final List<Map<String, Lock>> myFeatureLocks = new ArrayList<>();
+
+    /**
+     * Ids of projects from the root project to the project of build configuration
+     */
+    @NotNull
+    private Set<String> myProjectPath = Collections.emptySet();
+
+    /**
+     * Resolved locks in format {@code resource id -> locks}
+     */
+    @NotNull
+    private Map<String, List<Lock>> myResolved = Collections.emptyMap();
+
+    private BuildTypeUsages(@NotNull final SBuildType buildType) {
+      myBuildType = buildType;
+      myTemplateIds = buildType.getTemplates().stream().map(BuildTypeTemplate::getId).collect(Collectors.toSet());
+      for (SharedResourcesFeature feature: myFeatures.searchForFeatures(buildType)) {
+        final Map<String, Lock> locks = feature.getLockedResources();
+        if (!locks.isEmpty()) {
+          myFeatureLocks.add(locks);
+        }
+      }
+    }
+
+    private void resolve() {
+      myResolved = new HashMap<>();
+      if (myFeatureLocks.isEmpty()) {
+        return;
+      }
+      myProjectPath = myBuildType.getProject().getProjectPath().stream().map(SProject::getProjectId).collect(Collectors.toSet());
+      final Map<String, Resource> resources = myResources.getResourcesMap(myBuildType.getProjectId());
+      for (Map<String, Lock> locks: myFeatureLocks) {
+        for (Map.Entry<String, Lock> e: locks.entrySet()) {
+          final Resource r = resources.get(e.getKey());
+          if (r != null) {
+            myResolved.computeIfAbsent(r.getId(), id -> new ArrayList<>()).add(e.getValue());
+          }
+        }
+      }
+    }
+  }
 }
@@ -2,23 +2,23 @@ package jetbrains.buildServer.sharedResources.server;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.text.StringUtil;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.buildDistribution.*;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.TakenLock;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
-import jetbrains.buildServer.sharedResources.server.feature.Locks;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
-import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.runtime.ResourceWaitQueues;
+import jetbrains.buildServer.sharedResources.server.runtime.ResourceWaitRegistry;
 import jetbrains.buildServer.sharedResources.server.runtime.TakenLocks;
+import jetbrains.buildServer.sharedResources.server.runtime.TakenLocksIndex;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
 /**
  * Created with IntelliJ IDEA.
  *
@@ -30,41 +30,43 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
   private static final Logger LOG = Logger.getInstance(SharedResourcesAgentsFilter.class.getName());
 
   @NotNull
-  static final String CUSTOM_DATA_KEY = SharedResourcesPluginConstants.PLUGIN_NAME;
+  static final String TAKEN_LOCKS_DATA_KEY = SharedResourcesPluginConstants.PLUGIN_NAME + ".takenLocks";
 
   @NotNull
-  private final SharedResourcesFeatures myFeatures;
+  private final LockFootprints myFootprints;
 
   @NotNull
-  private final Locks myLocks;
+  private final TakenLocks myTakenLocks;
 
   @NotNull
-  private final TakenLocks myTakenLocks;
+  private final TakenLocksIndex myTakenLocksIndex;
+
+  @NotNull
+  private final ResourceWaitRegistry myWaitRegistry;
 
   @NotNull
-  private final RunningBuildsManager myRunningBuildsManager;
+  private final ResourceWaitQueues myWaitQueues;
 
   @NotNull
-  private final ConfigurationInspector myInspector;
+  private final WaitReasons myWaitReasons;
 
-  public SharedResourcesAgentsFilter(@NotNull final SharedResourcesFeatures features,
-                                     @NotNull final Locks locks,
+  public SharedResourcesAgentsFilter(@NotNull final LockFootprints footprints,
                                      @NotNull final TakenLocks takenLocks,
-                                     @NotNull final RunningBuildsManager runningBuildsManager,
-                                     @NotNull final ConfigurationInspector inspector) {
-    myFeatures = features;
-    myLocks = locks;
+                                     @NotNull final TakenLocksIndex takenLocksIndex,
+                                     @NotNull final ResourceWaitRegistry waitRegistry,
+                                     @NotNull final ResourceWaitQueues waitQueues,
+                                     @NotNull final ProjectManager projectManager) {
+    myFootprints = footprints;
     myTakenLocks = takenLocks;
-    myRunningBuildsManager = runningBuildsManager;
-    myInspector = inspector;
+    myTakenLocksIndex = takenLocksIndex;
+    myWaitRegistry = waitRegistry;
+    myWaitQueues = waitQueues;
+    myWaitReasons = new WaitReasons(projectManager);
   }
 
   @NotNull
   @Override
   public AgentsFilterResult filterAgents(@NotNull final AgentsFilterContext context) {
-    // get custom data
-    final Set<String> featureContext = getOrCreateFeatureData(context);
-    // get or create our collection of resources
     WaitReason reason = null;
     QueuedBuildInfo queuedBuild = context.getStartingBuild();
     final Map<QueuedBuildInfo, SBuildAgent> canBeStarted = context.getDistributedBuilds();
@@ -72,22 +74,36 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
     final String projectId = myPromotion.getProjectId();
     final SBuildType buildType = myPromotion.getBuildType();
     if (buildType != null && projectId != null) {
-      final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(buildType);
-      if (!features.isEmpty()) {
-        reason = checkForInvalidLocks(buildType);
-        if (reason == null) {
-          // Collection<Lock> ---> Collection<ResolvedLock> (i.e. lock against resolved resource. With project and so on)
-          final Collection<Lock> locksToTake = myLocks.fromBuildFeaturesAsMap(features).values();
-          if (!locksToTake.isEmpty()) {
+      // features, locks and resources of the build configuration are compiled once per settings change
+      final LockFootprint footprint = myFootprints.get(myPromotion.getId(), buildType);
+      if (footprint.hasFeatures()) {
+        reason = checkForInvalidLocks(buildType, footprint);
+        if (reason == null && !footprint.getLocks().isEmpty()) {
+          final long promotionId = myPromotion.getId();
+          final ResourceWaitRegistry.Wait wait = myWaitRegistry.getWait(promotionId, footprint.getResolvedLocks());
+          if (wait != null) {
+            // none of the resources, the build waits on, was released since the last check
+            reason = wait.getReason();
+          } else {
+            final TakenLocksAccumulator accumulator = getOrCreateTakenLocks(context);
             // Resolved locks as multi-valued taken locks (for custom - multiple custom values, for quoted - number of quotes to take)
-            final Map<Resource, TakenLock> takenLocks = myTakenLocks.collectTakenLocks(projectId, myRunningBuildsManager.getRunningBuilds(), canBeStarted.keySet());
-            // Collection<Lock> --> Collection<ResolvedLock>. For quoted - number of insufficient quotes, for custom -> custom values
-            final Map<Resource, Lock> unavailableLocks = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, projectId, featureContext);
+            final Map<Resource, TakenLock> takenLocks = accumulator.update(myTakenLocks, canBeStarted.keySet());
+            // Collection<ResolvedLock>. For quoted - number of insufficient quotes, for custom -> custom values
+            final Map<Resource, Lock> unavailableLocks = getUnavailableLocks(promotionId, footprint, takenLocks);
             if (!unavailableLocks.isEmpty()) {
-              reason = createWaitReason(takenLocks, unavailableLocks);
+              myWaitQueues.enqueue(promotionId, unavailableLocks);
+              // reason of the previous pass is kept while the build waits for the same locks of the same builds,
+              // otherwise the same reason is reused while the build waits for the same locks of the same build configurations
+              final WaitReason registered = myWaitRegistry.getReason(promotionId, unavailableLocks, takenLocks);
+              reason = registered != null ? registered : myWaitReasons.get(takenLocks, unavailableLocks);
+              myWaitRegistry.register(promotionId, footprint.getResolvedLocks(), unavailableLocks, takenLocks, reason,
+                                      isWaitCacheable(accumulator, takenLocks, unavailableLocks), accumulator.getReleaseVersion());
               if (LOG.isDebugEnabled()) {
                 LOG.debug("Firing precondition for queued build [" + queuedBuild + "] with reason: [" + reason.getDescription() + "]");
               }
+            } else {
+              myWaitQueues.acquired(promotionId, footprint.getResolvedLocks());
+              myWaitRegistry.remove(promotionId);
             }
           }
         }
@@ -98,49 +114,53 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
     return result;
   }
 
+  /**
+   * Locks are unavailable if they are taken by other builds, or if write lock requests
+   * of other waiting builds go first. Write lock requests are kept in wait queues between passes,
+   * so the set of requests, used by the check of taken locks, only holds requests of the checked build
+   */
   @NotNull
-  private WaitReason createWaitReason(@NotNull final Map<Resource, TakenLock> takenLocks,
-                                      @NotNull final Map<Resource, Lock> unavailableLocks) {
-    final StringBuilder builder = new StringBuilder("Build is waiting for the following ");
-    builder.append(unavailableLocks.size() > 1 ? "resources " : "resource ");
-    builder.append("to become available: ");
-    final Set<String> lockDescriptions = new HashSet<>();
-    for (Map.Entry<Resource, Lock> entry : unavailableLocks.entrySet()) {
-      final StringBuilder descr = new StringBuilder();
-      final Set<String> buildTypeNames = new HashSet<>();
-      final TakenLock takenLock = takenLocks.get(entry.getKey());
-      if (takenLock != null) {
-        for (BuildPromotionInfo promotion : takenLock.getReadLocks().keySet()) {
-          BuildTypeEx bt = ((BuildPromotionEx) promotion).getBuildType();
-          if (bt != null) {
-            buildTypeNames.add(bt.getExtendedFullName());
-          }
-        }
-        for (BuildPromotionInfo promotion : takenLock.getWriteLocks().keySet()) {
-          BuildTypeEx bt = ((BuildPromotionEx) promotion).getBuildType();
-          if (bt != null) {
-            buildTypeNames.add(bt.getExtendedFullName());
-          }
-        }
+  private Map<Resource, Lock> getUnavailableLocks(final long promotionId,
+                                                  @NotNull final LockFootprint footprint,
+                                                  @NotNull final Map<Resource, TakenLock> takenLocks) {
+    final Map<Resource, Lock> unavailableLocks = myTakenLocks.getUnavailableLocks(footprint.getResolvedLockList(), takenLocks, new HashSet<>());
+    final Map<Resource, Lock> queuedLocks = myWaitQueues.getBlockedLocks(promotionId, footprint.getResolvedLocks());
+    if (queuedLocks.isEmpty()) {
+      return unavailableLocks;
+    }
+    final Map<Resource, Lock> result = new HashMap<>(unavailableLocks);
+    result.putAll(queuedLocks);
+    return result;
+  }
+
+  /**
+   * Wait can be kept between distribution passes only if it ends with release of locks of running builds.
+   * Resources, locked by builds distributed during current pass, and resources, that are not locked
+   * at all, but are requested for writing by other queued builds, are checked on each pass
+   */
+  private boolean isWaitCacheable(@NotNull final TakenLocksAccumulator accumulator,
+                                  @NotNull final Map<Resource, TakenLock> takenLocks,
+                                  @NotNull final Map<Resource, Lock> unavailableLocks) {
+    for (Resource resource: unavailableLocks.keySet()) {
+      if (accumulator.isQueuedResource(resource)) {
+        return false;
       }
-      descr.append(entry.getValue().getName());
-      if (!buildTypeNames.isEmpty()) {
-        descr.append(" (locked by ");
-        descr.append(StringUtil.join(buildTypeNames, ", "));
-        descr.append(")");
+      if (resource.isEnabled()) {
+        final TakenLock takenLock = takenLocks.get(resource);
+        if (takenLock == null || takenLock.getLocksCount() == 0) {
+          return false;
+        }
       }
-      lockDescriptions.add(descr.toString());
     }
-    builder.append(StringUtil.join(lockDescriptions, ", "));
-    final String reasonDescription = builder.toString();
-    return new SimpleWaitReason(reasonDescription);
+    return true;
   }
 
   @Nullable
   @SuppressWarnings("StringBufferReplaceableByString")
-  private WaitReason checkForInvalidLocks(@NotNull final SBuildType buildType) {
+  private WaitReason checkForInvalidLocks(@NotNull final SBuildType buildType,
+                                          @NotNull final LockFootprint footprint) {
     WaitReason result = null;
-    final Map<Lock, String> invalidLocks = myInspector.inspect(buildType);
+    final Map<Lock, String> invalidLocks = footprint.getInvalidLocks();
     if (!invalidLocks.isEmpty()) {
       final StringBuilder builder = new StringBuilder("Build configuration ");
       builder.append(buildType.getExtendedName()).append(" has shared resources configuration error");
@@ -151,14 +171,19 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
     return result;
   }
 
-  @SuppressWarnings("unchecked")
+  /**
+   * Locks of running builds are collected once per distribution pass.
+   * Only locks of newly distributed builds are added afterwards
+   */
   @NotNull
-  private Set<String> getOrCreateFeatureData(@NotNull final AgentsFilterContext context) {
-    Object o = context.getCustomData(CUSTOM_DATA_KEY);
+  private TakenLocksAccumulator getOrCreateTakenLocks(@NotNull final AgentsFilterContext context) {
+    Object o = context.getCustomData(TAKEN_LOCKS_DATA_KEY);
     if (o == null) {
-      o = new HashSet<String>();
-      context.setCustomData(CUSTOM_DATA_KEY, o);
+      // release version is taken first, so that releases during the pass are not missed
+      final long releaseVersion = myWaitRegistry.getReleaseVersion();
+      o = new TakenLocksAccumulator(myTakenLocksIndex.getTakenLocks(), releaseVersion);
+      context.setCustomData(TAKEN_LOCKS_DATA_KEY, o);
     }
-    return (Set<String>)o;
+    return (TakenLocksAccumulator)o;
   }
 }
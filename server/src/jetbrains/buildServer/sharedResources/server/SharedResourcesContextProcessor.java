@@ -1,5 +1,6 @@
 package jetbrains.buildServer.sharedResources.server;
 
+import com.google.common.util.concurrent.Striped;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.sharedResources.model.Lock;
@@ -11,9 +12,12 @@ import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.runtime.CustomValuesAllocator;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import jetbrains.buildServer.sharedResources.server.runtime.ValueAffinity;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 
@@ -27,8 +31,23 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
   @NotNull
   private static final Logger log = Logger.getInstance(SharedResourcesContextProcessor.class.getName());
 
+  /**
+   * Number of stripes of resource locks
+   */
+  private static final int LOCK_STRIPES = 64;
+
+  /**
+   * Guards allocation of values of custom resources to starting builds. Stripes are keyed by {@code projectId/name}
+   * of the resource, same as allocations in {@link CustomValuesAllocator}, so that resources with the same name
+   * in different projects do not block each other.
+   *
+   * Slots of a single resource are guarded by the monitor of its allocation inside of {@link CustomValuesAllocator}.
+   * Stripe makes the whole step for the resource atomic: lookup of preferred value, allocation and remembering
+   * of the granted value in {@link ValueAffinity}, and the snapshot of available values for write lock.
+   * Builds, that use different resources, are processed in parallel
+   */
   @NotNull
-  private final Object o = new Object();
+  private final Striped<java.util.concurrent.locks.Lock> myResourceLocks = Striped.lock(LOCK_STRIPES);
 
   @NotNull
   private final SharedResourcesFeatures myFeatures;
@@ -43,18 +62,23 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
   private final LocksStorage myLocksStorage;
 
   @NotNull
-  private final RunningBuildsManager myRunningBuildsManager;
+  private final CustomValuesAllocator myValuesAllocator;
+
+  @NotNull
+  private final ValueAffinity myValueAffinity;
 
   public SharedResourcesContextProcessor(@NotNull final SharedResourcesFeatures features,
                                          @NotNull final Locks locks,
                                          @NotNull final Resources resources,
                                          @NotNull final LocksStorage locksStorage,
-                                         @NotNull final RunningBuildsManager runningBuildsManager) {
+                                         @NotNull final CustomValuesAllocator valuesAllocator,
+                                         @NotNull final ValueAffinity valueAffinity) {
     myFeatures = features;
     myLocks = locks;
     myResources = resources;
     myLocksStorage = locksStorage;
-    myRunningBuildsManager = runningBuildsManager;
+    myValuesAllocator = valuesAllocator;
+    myValueAffinity = valueAffinity;
   }
 
 
@@ -84,67 +108,87 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
     final Map<Lock, String> myTakenValues = initTakenValues(locks.values());
     // get custom resources from our locks
     final Map<String, CustomResource> myCustomResources = getCustomResources(projectId, locks);
-    synchronized (o) {
-      // decide whether we need to resolve values
-      if (!myCustomResources.isEmpty()) {
-        final Map<String, List<String>> usedValues = collectTakenValuesFromRuntime(locks);
-        for (Map.Entry<String, CustomResource> entry: myCustomResources.entrySet()) {
-          if (entry.getValue().isEnabled()) {
-            // get value space for current resources
-            final List<String> values = new ArrayList<>(entry.getValue().getValues());
-            final String key = entry.getKey();
-            // remove used values
-            usedValues.get(key).forEach(values::remove);
-            if (!values.isEmpty()) {
-              final Lock currentLock = locks.get(key);
-              final String paramName = myLocks.asBuildParameter(currentLock);
-              String currentValue;
-              if (LockType.READ.equals(currentLock.getType())) {
-                currentValue = currentLock.getValue().equals("") ? values.iterator().next() : currentLock.getValue();
-                // todo: add support of multiple values per lock in custom storage
+    final boolean affinityEnabled = myValueAffinity.isEnabled();
+    if (affinityEnabled) {
+      // remembered values are read before resources are locked
+      myValueAffinity.load();
+    }
+    // stripes are returned in canonical order, so builds with intersecting resources do not deadlock
+    final List<String> keys = new ArrayList<>();
+    for (CustomResource resource: myCustomResources.values()) {
+      keys.add(resource.getProjectId() + "/" + resource.getName());
+    }
+    final List<java.util.concurrent.locks.Lock> guards = new ArrayList<>();
+    myResourceLocks.bulkGet(keys).forEach(guards::add);
+    guards.forEach(java.util.concurrent.locks.Lock::lock);
+    try {
+      for (Map.Entry<String, CustomResource> entry: myCustomResources.entrySet()) {
+        if (entry.getValue().isEnabled()) {
+          final String key = entry.getKey();
+          final Lock currentLock = locks.get(key);
+          final String currentValue;
+          if (LockType.READ.equals(currentLock.getType())) {
+            if (currentLock.getWeight() > Lock.DEFAULT_WEIGHT && "".equals(currentLock.getValue())) {
+              // several values are allocated at once, or none of them
+              final List<String> values = myValuesAllocator.allocate(build.getBuildId(), entry.getValue(), currentLock.getWeight());
+              currentValue = values == null ? null : StringUtil.join(values, ";");
+              if (values != null) {
+                myTakenValues.put(currentLock, Lock.joinValues(values));
+              }
+            } else if ("".equals(currentLock.getValue()) && affinityEnabled) {
+              currentValue = allocatePreferred(build, entry.getValue());
+              if (currentValue != null) {
                 myTakenValues.put(currentLock, currentValue);
-              } else {
-                currentValue = StringUtil.join(values, ";");
               }
-              context.addSharedParameter(paramName, currentValue);
             } else {
-              // throw exception?
-              log.warn("Unable to assign value to lock [" + key + "] for build with id [" + build.getBuildId() + "]");
+              currentValue = myValuesAllocator.allocate(build.getBuildId(), entry.getValue(), currentLock.getValue());
+              if (currentValue != null) {
+                myTakenValues.put(currentLock, currentValue);
+              }
             }
+          } else {
+            final List<String> values = myValuesAllocator.getAvailableValues(entry.getValue());
+            currentValue = values.isEmpty() ? null : StringUtil.join(values, ";");
+          }
+          if (currentValue != null) {
+            context.addSharedParameter(myLocks.asBuildParameter(currentLock), currentValue);
+          } else {
+            // throw exception?
+            log.warn("Unable to assign value to lock [" + key + "] for build with id [" + build.getBuildId() + "]");
           }
         }
       }
-      myLocksStorage.store(build, myTakenValues);
+    } finally {
+      for (int i = guards.size() - 1; i >= 0; i--) {
+        guards.get(i).unlock();
+      }
+    }
+    // values are already allocated, storing them does not need to block other builds
+    myLocksStorage.store(build, myTakenValues);
+    if (affinityEnabled) {
+      myValueAffinity.flushIfNeeded();
     }
   }
 
   /**
-   * Collects acquired values for all locks from runtime
+   * Allocates any value of custom resource, preferring the value, given to the previous build of the same build configuration
    *
-   * @param locks locks required by current build
-   * @return map of locks and taken values
+   * @param build starting build
+   * @param resource custom resource
+   * @return allocated value or {@code null} if all values of the resource are taken
    */
-  @NotNull
-  private Map<String, List<String>> collectTakenValuesFromRuntime(@NotNull final Map<String, Lock> locks) {
-    final List<SRunningBuild> runningBuilds = myRunningBuildsManager.getRunningBuilds();
-    final Map<String, List<String>> usedValues = new HashMap<>();
-    for (String name: locks.keySet()) {
-      usedValues.put(name, new ArrayList<>());
+  @Nullable
+  private String allocatePreferred(@NotNull final SRunningBuild build,
+                                   @NotNull final CustomResource resource) {
+    final String buildTypeId = build.getBuildTypeId();
+    final String preferredValue = myValueAffinity.getPreferredValue(buildTypeId, resource.getName());
+    final String result = preferredValue == null
+                          ? myValuesAllocator.allocate(build.getBuildId(), resource, "")
+                          : myValuesAllocator.allocatePreferred(build.getBuildId(), resource, preferredValue);
+    if (result != null) {
+      myValueAffinity.granted(buildTypeId, resource.getName(), preferredValue, result);
     }
-    // collect taken values from runtime
-    for (SRunningBuild runningBuild: runningBuilds) {
-      Map<String, Lock> locksInRunningBuild = myLocksStorage.load(runningBuild);
-      for (Lock l: locks.values()) {
-        Lock runningLock = locksInRunningBuild.get(l.getName());
-        if (runningLock != null) {
-          String value = runningLock.getValue();
-          if (!"".equals(value)) {
-            usedValues.get(l.getName()).add(value);
-          }
-        }
-      }
-    }
-    return usedValues;
+    return result;
   }
 
   /**
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server;
+
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.runtime.TakenLocks;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Class {@code TakenLocksAccumulator}
+ *
+ * Taken locks, collected during single pass of build distribution.
+ * Locks of running builds are taken once per pass, locks of the builds,
+ * distributed during the pass, are added as builds appear in the distribution
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+class TakenLocksAccumulator {
+
+  @NotNull
+  private final Map<Resource, TakenLock> myTakenLocks;
+
+  /**
+   * Release version of wait registry, taken before locks of running builds were read
+   */
+  private final long myReleaseVersion;
+
+  /**
+   * Resources, locked by builds distributed during current pass.
+   * These builds may still fail to start, so waits on these resources can not be kept between passes
+   */
+  @NotNull
+  private final Set<Resource> myQueuedResources = new HashSet<>();
+
+  /**
+   * Ids of promotions of distributed builds, whose locks are already accumulated
+   */
+  @NotNull
+  private final Set<Long> myAccountedPromotions = new HashSet<>();
+
+  TakenLocksAccumulator(@NotNull final Map<Resource, TakenLock> runningLocks,
+                        final long releaseVersion) {
+    myTakenLocks = runningLocks;
+    myReleaseVersion = releaseVersion;
+  }
+
+  /**
+   * Adds locks of the builds, that were distributed since the last call
+   *
+   * @param takenLocks taken locks
+   * @param distributedBuilds all builds, distributed during current pass
+   * @return accumulated taken locks
+   */
+  @NotNull
+  Map<Resource, TakenLock> update(@NotNull final TakenLocks takenLocks,
+                                  @NotNull final Collection<QueuedBuildInfo> distributedBuilds) {
+    final List<QueuedBuildInfo> newBuilds = new ArrayList<>();
+    for (QueuedBuildInfo build: distributedBuilds) {
+      if (myAccountedPromotions.add(build.getBuildPromotionInfo().getId())) {
+        newBuilds.add(build);
+      }
+    }
+    if (!newBuilds.isEmpty()) {
+      final Map<Resource, TakenLock> queuedLocks = new HashMap<>();
+      takenLocks.addQueuedLocks(queuedLocks, newBuilds);
+      for (Map.Entry<Resource, TakenLock> entry: queuedLocks.entrySet()) {
+        final TakenLock takenLock = myTakenLocks.get(entry.getKey());
+        if (takenLock == null) {
+          myTakenLocks.put(entry.getKey(), entry.getValue());
+        } else {
+          takenLock.addLocks(entry.getValue());
+        }
+        myQueuedResources.add(entry.getKey());
+      }
+    }
+    return myTakenLocks;
+  }
+
+  long getReleaseVersion() {
+    return myReleaseVersion;
+  }
+
+  /**
+   * @param resource resource
+   * @return {@code true} if the resource is locked by builds, distributed during current pass
+   */
+  boolean isQueuedResource(@NotNull final Resource resource) {
+    return myQueuedResources.contains(resource);
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.intellij.openapi.util.text.StringUtil;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.buildDistribution.WaitReason;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Class {@code WaitReasons}
+ *
+ * Wait reasons of builds, waiting for shared resources.
+ * Wait reason is defined by unavailable locks and build configurations, that hold them,
+ * so the same instance is returned while the set of blocking locks does not change.
+ * Reasons keep only ids of build configurations, names are resolved when description is requested
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+final class WaitReasons {
+
+  /**
+   * Least recently used reasons are evicted once cache grows over this size
+   */
+  static final int MAX_SIZE = 10000;
+
+  @NotNull
+  private final ProjectManager myProjectManager;
+
+  /**
+   * Cached reasons in format {@code lock name -> ids of holding build configurations} -> reason
+   */
+  @NotNull
+  private final Cache<Map<String, Set<String>>, LockWaitReason> myReasons = CacheBuilder.newBuilder()
+          .maximumSize(MAX_SIZE)
+          .build();
+
+  WaitReasons(@NotNull final ProjectManager projectManager) {
+    myProjectManager = projectManager;
+  }
+
+  /**
+   * Gets wait reason for unavailable locks
+   *
+   * @param takenLocks taken locks
+   * @param unavailableLocks locks, the build waits for
+   * @return wait reason
+   */
+  @NotNull
+  WaitReason get(@NotNull final Map<Resource, TakenLock> takenLocks,
+                 @NotNull final Map<Resource, Lock> unavailableLocks) {
+    final Map<String, Set<String>> key = new HashMap<>(unavailableLocks.size() * 2);
+    for (Map.Entry<Resource, Lock> entry: unavailableLocks.entrySet()) {
+      final Set<String> buildTypeIds = new HashSet<>();
+      final TakenLock takenLock = takenLocks.get(entry.getKey());
+      if (takenLock != null) {
+        takenLock.forEachHolder(promotion -> {
+          final String buildTypeId = promotion.getBuildTypeId();
+          if (buildTypeId != null) {
+            buildTypeIds.add(buildTypeId);
+          }
+        });
+      }
+      key.merge(entry.getValue().getName(), buildTypeIds, (first, second) -> {
+        first.addAll(second);
+        return first;
+      });
+    }
+    LockWaitReason result = myReasons.getIfPresent(key);
+    if (result == null) {
+      // concurrent passes may create equal reasons for the same key, the last one is kept
+      result = new LockWaitReason(key, myProjectManager);
+      myReasons.put(key, result);
+    }
+    return result;
+  }
+
+  long size() {
+    return myReasons.size();
+  }
+
+  /**
+   * Wait reason, which description lists unavailable locks and names of build configurations, that hold them
+   */
+  private static final class LockWaitReason implements WaitReason {
+
+    @NotNull
+    private final Map<String, Set<String>> myBlockingLocks;
+
+    @NotNull
+    private final ProjectManager myProjectManager;
+
+    private LockWaitReason(@NotNull final Map<String, Set<String>> blockingLocks,
+                           @NotNull final ProjectManager projectManager) {
+      myBlockingLocks = blockingLocks;
+      myProjectManager = projectManager;
+    }
+
+    @NotNull
+    @Override
+    public String getDescription() {
+      final StringBuilder builder = new StringBuilder("Build is waiting for the following ");
+      builder.append(myBlockingLocks.size() > 1 ? "resources " : "resource ");
+      builder.append("to become available: ");
+      final Set<String> lockDescriptions = new HashSet<>();
+      for (Map.Entry<String, Set<String>> entry: myBlockingLocks.entrySet()) {
+        final StringBuilder descr = new StringBuilder();
+        final Set<String> buildTypeNames = new HashSet<>();
+        for (String buildTypeId: entry.getValue()) {
+          final SBuildType bt = myProjectManager.findBuildTypeById(buildTypeId);
+          if (bt != null) {
+            buildTypeNames.add(bt.getExtendedFullName());
+          }
+        }
+        descr.append(entry.getKey());
+        if (!buildTypeNames.isEmpty()) {
+          descr.append(" (locked by ");
+          descr.append(StringUtil.join(buildTypeNames, ", "));
+          descr.append(")");
+        }
+        lockDescriptions.add(descr.toString());
+      }
+      builder.append(StringUtil.join(lockDescriptions, ", "));
+      return builder.toString();
+    }
+  }
+}
@@ -42,7 +42,7 @@ public interface Locks {
    * Parses build feature descriptor for parameters containing locks
    *
    * @param descriptor build feature descriptor
-   * @return map of locks, taken by the build
+   * @return immutable map of locks, taken by the build
    */
   @NotNull
   Map<String, Lock> fromFeatureParameters(@NotNull final SBuildFeatureDescriptor descriptor);
@@ -52,7 +52,7 @@ public interface Locks {
    * Parses given map of parameters for entries that contain locks
    *
    * @param parameters map of parameters
-   * @return map of locks, taken by the build
+   * @return immutable map of locks, taken by the build
    */
   @NotNull
   Map<String, Lock> fromFeatureParameters(@NotNull final Map<String, String> parameters);
@@ -16,6 +16,9 @@
 
 package jetbrains.buildServer.sharedResources.server.feature;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
@@ -24,6 +27,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -37,6 +41,27 @@ import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams
  */
 public final class LocksImpl implements Locks {
 
+  /**
+   * Separates lock type and weight of the lock in format {@code name type[:weight] [value]}.
+   * Weight is the number of quota units of quoted resource or the number of any values of custom resource
+   */
+  private static final char WEIGHT_SEPARATOR = ':';
+
+  /**
+   * Parsed locks in format {@code locks feature parameter -> <lock name, lock>}.
+   * Features are read on each pass of build distribution, while their parameters rarely change,
+   * so parameter value itself is used as a key. Values are immutable and are shared between features
+   */
+  @NotNull
+  private final LoadingCache<String, Map<String, Lock>> myParsedLocks = CacheBuilder.newBuilder()
+          .maximumSize(1000) // each entry corresponds to distinct locks definition
+          .build(new CacheLoader<String, Map<String, Lock>>() {
+            @Override
+            public Map<String, Lock> load(@NotNull final String locksString) throws Exception {
+              return Collections.unmodifiableMap(parseLocks(locksString));
+            }
+          });
+
   @NotNull
   @Override
   public Map<String, Lock> fromFeatureParameters(@NotNull final SBuildFeatureDescriptor descriptor) {
@@ -85,7 +110,11 @@ public final class LocksImpl implements Locks {
       final StringBuilder builder = new StringBuilder();
       for (Lock lock: locks) {
         builder.append(lock.getName()).append(" ");
-        builder.append(lock.getType()).append(" ");
+        builder.append(lock.getType());
+        if (lock.getWeight() != Lock.DEFAULT_WEIGHT) {
+          builder.append(WEIGHT_SEPARATOR).append(lock.getWeight());
+        }
+        builder.append(" ");
         builder.append(lock.getValue()).append("\n");
       }
       result = builder.substring(0, builder.length() - 1);
@@ -118,14 +147,20 @@ public final class LocksImpl implements Locks {
   @NotNull
   private Map<String, Lock> fromFeatureParametersInternal(@NotNull final Map<String, String> featureParameters) {
     final String locksString = featureParameters.get(LOCKS_FEATURE_PARAM_KEY);
+    if (locksString == null || "".equals(locksString)) {
+      return Collections.emptyMap();
+    }
+    return myParsedLocks.getUnchecked(locksString);
+  }
+
+  @NotNull
+  private Map<String, Lock> parseLocks(@NotNull final String locksString) {
     final Map<String, Lock> result = new HashMap<String, Lock>();
-    if (locksString != null && !"".equals(locksString)) {
-      final List<String> serializedLocks = StringUtil.split(locksString, true, '\n');
-      for (String str: serializedLocks) {
-        final Lock lock = getSingleLockFromString(str);
-        if (lock != null) {
-          result.put(lock.getName(), lock);
-        }
+    final List<String> serializedLocks = StringUtil.split(locksString, true, '\n');
+    for (String str: serializedLocks) {
+      final Lock lock = getSingleLockFromString(str);
+      if (lock != null) {
+        result.put(lock.getName(), lock);
       }
     }
     return result;
@@ -147,15 +182,29 @@ public final class LocksImpl implements Locks {
     if (type != null) {
       final String name = str.substring(0, t).trim();
       int m = str.indexOf(' ', t + 1);
-      // lock is valid
-      if (m > 0) {
-        // values
-        result = new Lock(name, type, str.substring(m + 1).trim());
-      } else {
-        // no values
-        result = new Lock(name, type);
-      }
+      final int weight = parseWeight(str.substring(t + type.getName().length(), m > 0 ? m : str.length()));
+      final String value = m > 0 ? str.substring(m + 1).trim() : "";
+      // lock is valid. Lock of specific value takes single value
+      result = new Lock(name, type, value, "".equals(value) ? weight : Lock.DEFAULT_WEIGHT);
     }
     return result;
   }
+
+  /**
+   * Parses weight, that follows lock type
+   *
+   * @param str part of serialized lock between type and value
+   * @return weight of the lock, {@link Lock#DEFAULT_WEIGHT} if weight is not specified
+   * or {@code 0} if weight is not a number, so that the lock is reported as invalid
+   */
+  private int parseWeight(@NotNull final String str) {
+    if (str.isEmpty() || str.charAt(0) != WEIGHT_SEPARATOR) {
+      return Lock.DEFAULT_WEIGHT;
+    }
+    try {
+      return Integer.parseInt(str.substring(1));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
 }
@@ -17,11 +17,13 @@
 package jetbrains.buildServer.sharedResources.server.feature;
 
 import java.util.*;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.serverSide.ProjectManager;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeature;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeatures;
 import org.jetbrains.annotations.NotNull;
@@ -29,6 +31,9 @@ import org.jetbrains.annotations.NotNull;
 /**
  * Created with IntelliJ IDEA.
  *
+ * Resolved resources are cached per project until the next change of project settings.
+ * Cached collections are immutable and are shared between callers
+ *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
 public final class ResourcesImpl implements Resources {
@@ -39,19 +44,46 @@ public final class ResourcesImpl implements Resources {
   @NotNull
   private final ProjectManager myProjectManager;
 
+  @NotNull
+  private final ProjectSettingsVersion mySettingsVersion;
+
+  /**
+   * Resources defined in the project itself, in format {@code projectId -> own resources}
+   */
+  @NotNull
+  private final ConcurrentMap<String, OwnResources> myOwnResources = new ConcurrentHashMap<>();
+
+  /**
+   * Resources available in the project, in format {@code projectId -> resolved resources}
+   */
+  @NotNull
+  private final ConcurrentMap<String, ResolvedResources> myResolvedResources = new ConcurrentHashMap<>();
+
+  /**
+   * Settings version, cached values of previous versions were dropped for
+   */
+  private volatile long myCleanedVersion;
 
   public ResourcesImpl(@NotNull final ProjectManager projectManager,
-                       @NotNull final ResourceProjectFeatures resourceProjectFeatures) {
+                       @NotNull final ResourceProjectFeatures resourceProjectFeatures,
+                       @NotNull final ProjectSettingsVersion settingsVersion) {
     myProjectManager = projectManager;
     myFeatures = resourceProjectFeatures;
+    mySettingsVersion = settingsVersion;
+    myCleanedVersion = settingsVersion.get();
   }
 
   @NotNull
   @Override
   public Map<String, Resource> getResourcesMap(@NotNull final String projectId) {
+    final long version = currentVersion();
+    final ResolvedResources cached = myResolvedResources.get(projectId);
+    if (cached != null && cached.myVersion == version) {
+      return cached.myResourcesMap;
+    }
     final SProject project = myProjectManager.findProjectById(projectId);
     if (project != null) {
-      return getResources(project).stream().collect(Collectors.toMap(Resource::getName, Function.identity()));
+      return resolve(project, version).myResourcesMap;
     } else {
       return Collections.emptyMap();
     }
@@ -60,43 +92,128 @@ public final class ResourcesImpl implements Resources {
   @NotNull
   @Override
   public List<Resource> getAllOwnResources(@NotNull final SProject project) {
-    return myFeatures.getOwnFeatures(project).stream()
-                     .map(ResourceProjectFeature::getResource)
-                     .filter(Objects::nonNull)
-                     .collect(Collectors.toList());
-
+    return getOwn(project, currentVersion()).myAll;
   }
 
   @NotNull
   @Override
   public List<Resource> getOwnResources(@NotNull final SProject project) {
-    return myFeatures.getOwnFeatures(project).stream()
-                     .map(ResourceProjectFeature::getResource)
-                     .filter(Objects::nonNull)
-                     .collect(Collectors.groupingBy(Resource::getName)).values().stream() // collect by name
-                     .filter(list -> list.size() == 1) // exclude duplicates
-                     .map(list -> list.get(0))
-                     .collect(Collectors.toList());
-
+    return getOwn(project, currentVersion()).myUnique;
   }
 
   @NotNull
   @Override
   public List<Resource> getResources(@NotNull final SProject project) {
-    final Set<String> names = new HashSet<>();
-    final Set<Resource> result = new HashSet<>();
+    return getResolved(project, currentVersion()).myResources;
+  }
+
+  @Override
+  public int getCount(@NotNull final SProject project) {
+    return getResources(project).size();
+  }
+
+  /**
+   * Gets current settings version. Drops values, cached for previous versions,
+   * so that removed projects do not stay in cache
+   *
+   * @return current settings version
+   */
+  private long currentVersion() {
+    final long version = mySettingsVersion.get();
+    if (version != myCleanedVersion) {
+      myCleanedVersion = version;
+      myOwnResources.clear();
+      myResolvedResources.clear();
+    }
+    return version;
+  }
+
+  @NotNull
+  private OwnResources getOwn(@NotNull final SProject project, final long version) {
+    OwnResources result = myOwnResources.get(project.getProjectId());
+    if (result == null || result.myVersion != version) {
+      final List<Resource> all = myFeatures.getOwnFeatures(project).stream()
+                                           .map(ResourceProjectFeature::getResource)
+                                           .filter(Objects::nonNull)
+                                           .collect(Collectors.toList());
+      final List<Resource> unique = all.stream()
+                                       .collect(Collectors.groupingBy(Resource::getName)).values().stream() // collect by name
+                                       .filter(list -> list.size() == 1) // exclude duplicates
+                                       .map(list -> list.get(0))
+                                       .collect(Collectors.toList());
+      result = new OwnResources(version, all, unique);
+      myOwnResources.put(project.getProjectId(), result);
+    }
+    return result;
+  }
+
+  @NotNull
+  private ResolvedResources getResolved(@NotNull final SProject project, final long version) {
+    final ResolvedResources result = myResolvedResources.get(project.getProjectId());
+    if (result != null && result.myVersion == version) {
+      return result;
+    }
+    return resolve(project, version);
+  }
+
+  /**
+   * Walks project path from the project to the root.
+   * Resources of subprojects override resources of parent projects with the same name
+   */
+  @NotNull
+  private ResolvedResources resolve(@NotNull final SProject project, final long version) {
+    final Map<String, Resource> resources = new HashMap<>();
     final List<SProject> path = project.getProjectPath();
     final ListIterator<SProject> it = path.listIterator(path.size());
     while (it.hasPrevious()) {
-      final Set<Resource> filtered = getOwnResources(it.previous()).stream().filter(data -> !names.contains(data.getName())).collect(Collectors.toSet());
-      result.addAll(filtered);
-      names.addAll(filtered.stream().map(Resource::getName).collect(Collectors.toSet()));
+      for (Resource resource: getOwn(it.previous(), version).myUnique) {
+        resources.putIfAbsent(resource.getName(), resource);
+      }
     }
-    return new ArrayList<>(result);
+    final ResolvedResources result = new ResolvedResources(version, resources);
+    myResolvedResources.put(project.getProjectId(), result);
+    return result;
   }
 
-  @Override
-  public int getCount(@NotNull final SProject project) {
-    return getResources(project).size();
+  private static final class OwnResources {
+
+    private final long myVersion;
+
+    /**
+     * All resources, defined in the project, including duplicates
+     */
+    @NotNull
+    private final List<Resource> myAll;
+
+    /**
+     * Resources, defined in the project, excluding duplicates
+     */
+    @NotNull
+    private final List<Resource> myUnique;
+
+    private OwnResources(final long version,
+                         @NotNull final List<Resource> all,
+                         @NotNull final List<Resource> unique) {
+      myVersion = version;
+      myAll = Collections.unmodifiableList(all);
+      myUnique = Collections.unmodifiableList(unique);
+    }
+  }
+
+  private static final class ResolvedResources {
+
+    private final long myVersion;
+
+    @NotNull
+    private final Map<String, Resource> myResourcesMap;
+
+    @NotNull
+    private final List<Resource> myResources;
+
+    private ResolvedResources(final long version, @NotNull final Map<String, Resource> resources) {
+      myVersion = version;
+      myResourcesMap = Collections.unmodifiableMap(resources);
+      myResources = Collections.unmodifiableList(new ArrayList<>(resources.values()));
+    }
   }
 }
@@ -41,8 +41,12 @@ public final class SharedResourcesFeatureImpl implements SharedResourcesFeature
   @NotNull
   private final SBuildFeatureDescriptor myDescriptor;
 
+  /**
+   * Locks of the feature. Map is shared between features with the same locks and is never modified.
+   * Updated locks are put into a new map
+   */
   @NotNull
-  private final Map<String, Lock> myLockedResources;
+  private Map<String, Lock> myLockedResources;
 
 
   public SharedResourcesFeatureImpl(@NotNull final Locks locks,
@@ -55,7 +59,7 @@ public final class SharedResourcesFeatureImpl implements SharedResourcesFeature
   @NotNull
   @Override
   public Map<String, Lock> getLockedResources() {
-    return Collections.unmodifiableMap(myLockedResources);
+    return myLockedResources;
   }
 
   @Override
@@ -63,14 +67,17 @@ public final class SharedResourcesFeatureImpl implements SharedResourcesFeature
                             @NotNull final String oldName,
                             @NotNull final String newName) {
     boolean result = false;
-    final Lock lock = myLockedResources.remove(oldName);
+    final Lock lock = myLockedResources.get(oldName);
     if (lock != null) {
       // save its type
       result = true;
       final LockType lockType = lock.getType();
       final String lockValue = lock.getValue();
       // add lock with new resource name and saved type
-      myLockedResources.put(newName, new Lock(newName, lockType, lockValue));
+      final Map<String, Lock> updatedLocks = new HashMap<>(myLockedResources);
+      updatedLocks.remove(oldName);
+      updatedLocks.put(newName, new Lock(newName, lockType, lockValue, lock.getWeight()));
+      myLockedResources = Collections.unmodifiableMap(updatedLocks);
       // serialize locks
       final String locksAsString = myLocks.asFeatureParameter(myLockedResources.values());
       // update build feature parameters
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.health;
+
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Class {@code InvalidLocksCollector}
+ *
+ * Collects invalid locks of build configurations for {@link InvalidLocksReport}.
+ * Build configurations are grouped by project, so that configurations of the same project are inspected
+ * by the same task and share resources, resolved for the project. Resources of parent projects are cached
+ * by {@code Resources} server-wide, so groups of the same subtree do not need to be inspected together.
+ * Large scopes are inspected in a long-lived fork-join pool, which parallelism is limited by {@link #PARALLELISM_PROPERTY}.
+ * Idle threads of the pool terminate by themselves. The pool is shut down with the server
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+final class InvalidLocksCollector {
+
+  /**
+   * Maximum number of threads, inspecting build configurations. Values less than 2 disable parallel inspection
+   */
+  @NotNull
+  static final String PARALLELISM_PROPERTY = "teamcity.sharedResources.health.parallelism";
+
+  /**
+   * Scopes up to this size are inspected in the calling thread. Also the size of a single fork-join task
+   */
+  static final int BUILD_TYPES_PER_TASK = 200;
+
+  @NotNull
+  private final Function<SBuildType, Map<Lock, String>> myInspection;
+
+  @NotNull
+  private final IntSupplier myParallelism;
+
+  /**
+   * Pool, created on first inspection of large scope. Replaced, if parallelism changes
+   */
+  @Nullable
+  private ForkJoinPool myPool;
+
+  /**
+   * Set on server shutdown. Inspections, requested after shutdown, run in the calling thread
+   */
+  private boolean myShutdown = false;
+
+  InvalidLocksCollector(@NotNull final Function<SBuildType, Map<Lock, String>> inspection) {
+    this(inspection, () -> TeamCityProperties.getInteger(PARALLELISM_PROPERTY, Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+  }
+
+  InvalidLocksCollector(@NotNull final Function<SBuildType, Map<Lock, String>> inspection, final int parallelism) {
+    this(inspection, () -> parallelism);
+  }
+
+  private InvalidLocksCollector(@NotNull final Function<SBuildType, Map<Lock, String>> inspection, @NotNull final IntSupplier parallelism) {
+    myInspection = inspection;
+    myParallelism = parallelism;
+  }
+
+  /**
+   * Inspects given build configurations
+   *
+   * @param buildTypes build configurations to inspect
+   * @return invalid locks of build configurations, that have configuration errors
+   */
+  @NotNull
+  Map<SBuildType, Map<Lock, String>> collect(@NotNull final Collection<SBuildType> buildTypes) {
+    final List<List<SBuildType>> groups = new ArrayList<>(buildTypes.stream()
+                                                                    .collect(Collectors.groupingBy(SBuildType::getProjectId,
+                                                                                                   LinkedHashMap::new,
+                                                                                                   Collectors.toList()))
+                                                                    .values());
+    final int parallelism = myParallelism.getAsInt();
+    if (parallelism < 2 || buildTypes.size() <= BUILD_TYPES_PER_TASK) {
+      return inspect(groups);
+    }
+    final ForkJoinPool pool = getPool(parallelism);
+    return pool == null ? inspect(groups) : pool.invoke(new InspectTask(groups));
+  }
+
+  /**
+   * Shuts down the pool. Tasks, already submitted to the pool, are completed
+   */
+  synchronized void shutdown() {
+    myShutdown = true;
+    if (myPool != null) {
+      myPool.shutdown();
+      myPool = null;
+    }
+  }
+
+  @Nullable
+  private synchronized ForkJoinPool getPool(final int parallelism) {
+    if (myShutdown) {
+      return null;
+    }
+    if (myPool == null || myPool.getParallelism() != parallelism) {
+      if (myPool != null) {
+        // tasks, already submitted to the previous pool, are completed
+        myPool.shutdown();
+      }
+      myPool = new ForkJoinPool(parallelism);
+    }
+    return myPool;
+  }
+
+  @NotNull
+  private Map<SBuildType, Map<Lock, String>> inspect(@NotNull final List<List<SBuildType>> groups) {
+    final Map<SBuildType, Map<Lock, String>> result = new LinkedHashMap<>();
+    for (List<SBuildType> group: groups) {
+      for (SBuildType buildType: group) {
+        final Map<Lock, String> invalidLocks = myInspection.apply(buildType);
+        if (!invalidLocks.isEmpty()) {
+          result.put(buildType, invalidLocks);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Splits groups of build configurations in halves until they fit into a single task.
+   * Each task produces its own results, results are merged on join
+   */
+  private final class InspectTask extends RecursiveTask<Map<SBuildType, Map<Lock, String>>> {
+
+    @NotNull
+    private final List<List<SBuildType>> myGroups;
+
+    private InspectTask(@NotNull final List<List<SBuildType>> groups) {
+      myGroups = groups;
+    }
+
+    @Override
+    protected Map<SBuildType, Map<Lock, String>> compute() {
+      if (myGroups.size() < 2 || myGroups.stream().mapToInt(List::size).sum() <= BUILD_TYPES_PER_TASK) {
+        return inspect(myGroups);
+      }
+      final int middle = myGroups.size() / 2;
+      final InspectTask second = new InspectTask(myGroups.subList(middle, myGroups.size()));
+      second.fork();
+      final Map<SBuildType, Map<Lock, String>> result = new InspectTask(myGroups.subList(0, middle)).compute();
+      result.putAll(second.join());
+      return result;
+    }
+  }
+}
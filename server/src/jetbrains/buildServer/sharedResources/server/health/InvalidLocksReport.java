@@ -16,10 +16,13 @@
 
 package jetbrains.buildServer.sharedResources.server.health;
 
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.serverSide.healthStatus.*;
 import jetbrains.buildServer.sharedResources.model.Lock;
-import jetbrains.buildServer.sharedResources.server.ConfigurationInspector;
+import jetbrains.buildServer.sharedResources.server.LockFootprints;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.web.openapi.PagePlaces;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 import jetbrains.buildServer.web.openapi.healthStatus.HealthStatusItemPageExtension;
@@ -53,12 +56,20 @@ public class InvalidLocksReport extends HealthStatusReport {
   private final ItemCategory myCategory;
 
   @NotNull
-  private final ConfigurationInspector myInspector;
+  private final InvalidLocksCollector myCollector;
 
   public InvalidLocksReport(@NotNull final PluginDescriptor pluginDescriptor,
                             @NotNull final PagePlaces pagePlaces,
-                            @NotNull final ConfigurationInspector inspector) {
-    myInspector = inspector;
+                            @NotNull final LockFootprints footprints,
+                            @NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    // inspection results are kept in footprints until configuration changes
+    myCollector = new InvalidLocksCollector(type -> footprints.get(type).getInvalidLocks());
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        myCollector.shutdown();
+      }
+    });
     myCategory = new ItemCategory(CATEGORY_ID, CATEGORY_NAME, ItemSeverity.WARN);
     final HealthStatusItemPageExtension myPEx = new HealthStatusItemPageExtension(TYPE, pagePlaces);
     myPEx.setIncludeUrl(pluginDescriptor.getPluginResourcesPath("/health/invalidLocksReport.jsp"));
@@ -92,16 +103,13 @@ public class InvalidLocksReport extends HealthStatusReport {
 
   @Override
   public void report(@NotNull final HealthStatusScope scope, @NotNull final HealthStatusItemConsumer resultConsumer) {
-    for (final SBuildType type: scope.getBuildTypes()) {
-      final Map<Lock, String> invalidLocks = myInspector.inspect(type);
-      if (!invalidLocks.isEmpty()) {
-        resultConsumer.consumeForBuildType(
-                type,
-                new HealthStatusItem("shared_resources_invalid_locks_" + type.getExtendedFullName(), myCategory, new HashMap<String, Object>() {{
-          put("invalid_locks", invalidLocks);
-          put("build_type", type);
-        }}));
-      }
-    }
+    final Map<SBuildType, Map<Lock, String>> invalidLocks = myCollector.collect(scope.getBuildTypes());
+    // consumer is fed from the calling thread
+    invalidLocks.forEach((type, locks) -> resultConsumer.consumeForBuildType(
+      type,
+      new HealthStatusItem("shared_resources_invalid_locks_" + type.getExtendedFullName(), myCategory, new HashMap<String, Object>() {{
+        put("invalid_locks", locks);
+        put("build_type", type);
+      }})));
   }
 }
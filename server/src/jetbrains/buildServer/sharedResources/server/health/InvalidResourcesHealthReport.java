@@ -19,7 +19,7 @@ package jetbrains.buildServer.sharedResources.server.health;
 import java.util.*;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.healthStatus.*;
-import jetbrains.buildServer.sharedResources.server.ConfigurationInspector;
+import jetbrains.buildServer.sharedResources.server.ResourceDefinitionsScanner;
 import jetbrains.buildServer.web.openapi.PagePlaces;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 import jetbrains.buildServer.web.openapi.healthStatus.HealthStatusItemPageExtension;
@@ -39,12 +39,12 @@ public class InvalidResourcesHealthReport extends HealthStatusReport {
                                                          ItemSeverity.ERROR);
 
   @NotNull
-  private final ConfigurationInspector myInspector;
+  private final ResourceDefinitionsScanner myScanner;
 
   public InvalidResourcesHealthReport(@NotNull final PluginDescriptor pluginDescriptor,
                                       @NotNull final PagePlaces pagePlaces,
-                                      @NotNull final ConfigurationInspector inspector) {
-    myInspector = inspector;
+                                      @NotNull final ResourceDefinitionsScanner scanner) {
+    myScanner = scanner;
     final HealthStatusItemPageExtension myPEx = new HealthStatusItemPageExtension(TYPE, pagePlaces);
     myPEx.setIncludeUrl(pluginDescriptor.getPluginResourcesPath("/health/invalidResourcesReport.jsp"));
     myPEx.setVisibleOutsideAdminArea(true);
@@ -77,7 +77,7 @@ public class InvalidResourcesHealthReport extends HealthStatusReport {
   @Override
   public void report(@NotNull final HealthStatusScope scope, @NotNull final HealthStatusItemConsumer resultConsumer) {
     scope.getProjects().forEach(p -> {
-      final Map<String, List<String>> definitionErrors = myInspector.getOwnResourceDefinitionErrors(p);
+      final Map<String, List<String>> definitionErrors = myScanner.scan(p).getDefinitionErrors();
       if (!definitionErrors.isEmpty()) {
         resultConsumer.consumeForProject(p, createDefinitionErrorsItem(p, definitionErrors));
       }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.sharedResources.server.health;
+
+import jetbrains.buildServer.serverSide.healthStatus.*;
+import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import jetbrains.buildServer.sharedResources.server.runtime.ValueAffinity;
+import jetbrains.buildServer.web.openapi.PagePlaces;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import jetbrains.buildServer.web.openapi.healthStatus.HealthStatusItemPageExtension;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class {@code RuntimeStatisticsHealthReport}
+ *
+ * Shows statistics of runtime caches of shared resources to server administrators.
+ * Single informational item is reported globally, when the scope accepts items of {@link ItemSeverity#INFO} severity
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class RuntimeStatisticsHealthReport extends HealthStatusReport {
+
+  @NotNull
+  private static final String TYPE = "SharedResourcesRuntimeStatistics";
+
+  @NotNull
+  private final ItemCategory CATEGORY = new ItemCategory("shared_resources_runtime_statistics",
+                                                         "Shared resources runtime statistics",
+                                                         ItemSeverity.INFO);
+
+  @NotNull
+  private final LocksStorage myLocksStorage;
+
+  @NotNull
+  private final ValueAffinity myValueAffinity;
+
+  public RuntimeStatisticsHealthReport(@NotNull final PluginDescriptor pluginDescriptor,
+                                       @NotNull final PagePlaces pagePlaces,
+                                       @NotNull final LocksStorage locksStorage,
+                                       @NotNull final ValueAffinity valueAffinity) {
+    myLocksStorage = locksStorage;
+    myValueAffinity = valueAffinity;
+    final HealthStatusItemPageExtension myPEx = new HealthStatusItemPageExtension(TYPE, pagePlaces);
+    myPEx.setIncludeUrl(pluginDescriptor.getPluginResourcesPath("/health/runtimeStatisticsReport.jsp"));
+    myPEx.register();
+  }
+
+  @NotNull
+  @Override
+  public String getType() {
+    return TYPE;
+  }
+
+  @NotNull
+  @Override
+  public String getDisplayName() {
+    return "Show statistics of shared resources runtime caches";
+  }
+
+  @NotNull
+  @Override
+  public Collection<ItemCategory> getCategories() {
+    return Collections.singleton(CATEGORY);
+  }
+
+  @Override
+  public boolean canReportItemsFor(@NotNull final HealthStatusScope scope) {
+    return scope.isItemWithSeverityAccepted(CATEGORY.getSeverity());
+  }
+
+  @Override
+  public void report(@NotNull final HealthStatusScope scope, @NotNull final HealthStatusItemConsumer resultConsumer) {
+    final Map<String, Object> data = new HashMap<>();
+    data.put("locksStorage", myLocksStorage.getStatistics());
+    if (myValueAffinity.isEnabled()) {
+      data.put("valueAffinity", myValueAffinity.getStatistics());
+    }
+    resultConsumer.consumeGlobal(new HealthStatusItem(CATEGORY.getId(), CATEGORY, data));
+  }
+}
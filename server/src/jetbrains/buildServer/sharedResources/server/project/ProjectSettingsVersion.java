@@ -0,0 +1,107 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.project;
+
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class {@code ProjectSettingsVersion}
+ *
+ * Version of project settings, that shared resources depend on.
+ * Version is increased each time project tree or project features change,
+ * so that values, computed from settings, can be cached until the next change
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class ProjectSettingsVersion {
+
+  @NotNull
+  private final AtomicLong myVersion = new AtomicLong();
+
+  public ProjectSettingsVersion(@NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    dispatcher.addListener(new BuildServerAdapter() {
+
+      @Override
+      public void projectCreated(@NotNull final String projectId, @Nullable final SUser user) {
+        increment();
+      }
+
+      @Override
+      public void projectRemoved(@NotNull final SProject project) {
+        increment();
+      }
+
+      @Override
+      public void projectPersisted(@NotNull final String projectId) {
+        increment();
+      }
+
+      @Override
+      public void projectRestored(@NotNull final String projectId) {
+        increment();
+      }
+
+      @Override
+      public void projectMoved(@NotNull final SProject project, @NotNull final SProject originalParent) {
+        increment();
+      }
+
+      @Override
+      public void projectFeatureAdded(@NotNull final SProject project, @NotNull final SProjectFeatureDescriptor projectFeature) {
+        increment();
+      }
+
+      @Override
+      public void projectFeatureRemoved(@NotNull final SProject project, @NotNull final SProjectFeatureDescriptor projectFeature) {
+        increment();
+      }
+
+      @Override
+      public void projectFeatureChanged(@NotNull final SProject project,
+                                        @NotNull final SProjectFeatureDescriptor before,
+                                        @NotNull final SProjectFeatureDescriptor after) {
+        increment();
+      }
+    });
+  }
+
+  /**
+   * Gets current version of settings
+   *
+   * @return current version
+   */
+  public long get() {
+    return myVersion.get();
+  }
+
+  /**
+   * Marks settings as changed. Called by the listener and by the code,
+   * that modifies resource features directly
+   */
+  public void increment() {
+    myVersion.incrementAndGet();
+  }
+}
@@ -34,10 +34,18 @@ import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstan
  */
 public class ResourceProjectFeaturesImpl implements ResourceProjectFeatures {
 
+  @NotNull
+  private final ProjectSettingsVersion mySettingsVersion;
+
+  public ResourceProjectFeaturesImpl(@NotNull final ProjectSettingsVersion settingsVersion) {
+    mySettingsVersion = settingsVersion;
+  }
+
   @Override
   public void addFeature(@NotNull final SProject project,
                          @NotNull final Map<String, String> featureParameters) {
     project.addFeature(FEATURE_TYPE, featureParameters);
+    mySettingsVersion.increment();
   }
 
   @Override
@@ -45,6 +53,7 @@ public class ResourceProjectFeaturesImpl implements ResourceProjectFeatures {
     final SProjectFeatureDescriptor descriptor = getFeatureById(project, id);
     if (descriptor != null) {
       project.removeFeature(descriptor.getId());
+      mySettingsVersion.increment();
     }
   }
 
@@ -54,6 +63,7 @@ public class ResourceProjectFeaturesImpl implements ResourceProjectFeatures {
     final SProjectFeatureDescriptor descriptor = getFeatureById(project, id);
     if (descriptor != null) {
       project.updateFeature(id, FEATURE_TYPE, featureParameters);
+      mySettingsVersion.increment();
     }
   }
 
@@ -0,0 +1,662 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.RunningBuildsManager;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Class {@code CustomValuesAllocator}
+ *
+ * Allocates values of custom resources to starting builds.
+ *
+ * Each value of the resource occupies a slot. Duplicate values occupy separate slots.
+ * Free slots are tracked in a bit set, so that picking any free value or a specific value
+ * does not require copying and filtering the values of the resource.
+ * Number of free slots is maintained, so that allocation of several values fails fast, without taking any slot.
+ * Free value for a lock of any value is selected by {@link ValueSelectionPolicy}. Each slot counts its uses and releases,
+ * and policies, other than the default one, keep free slots ordered, so that selection takes logarithmic time.
+ * Slots are taken when the build starts and released when it finishes or is interrupted.
+ *
+ * Values, taken by builds before the resource was first allocated, are taken from the reverse index of {@link LocksStorage}.
+ * Projects may define resources with the same name, so values are tracked by project of the resource and its name
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class CustomValuesAllocator {
+
+  @NotNull
+  private final LocksStorage myLocksStorage;
+
+  @NotNull
+  private final RunningBuildsManager myRunningBuildsManager;
+
+  @NotNull
+  private final ProjectSettingsVersion mySettingsVersion;
+
+  @NotNull
+  private final Resources myResources;
+
+  /**
+   * Allocations in format {@code resource key -> allocation}.
+   * Values held by builds are changed under the lock of the allocation of their resource,
+   * or under the lock of this map, if there is no allocation for the resource yet
+   */
+  @NotNull
+  private final ConcurrentMap<String, Allocation> myAllocations = new ConcurrentHashMap<>();
+
+  /**
+   * Values held by running builds in format {@code buildId -> <resource key, held value>}
+   */
+  @NotNull
+  private final ConcurrentMap<Long, Map<String, HeldValue>> myHeldValues = new ConcurrentHashMap<>();
+
+  @NotNull
+  private final Object myInitLock = new Object();
+
+  /**
+   * Locks of running builds are read on first access.
+   * Builds, that were running before the plugin was loaded, produced no events
+   */
+  private volatile boolean myInitialized = false;
+
+  public CustomValuesAllocator(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                               @NotNull final LocksStorage locksStorage,
+                               @NotNull final RunningBuildsManager runningBuildsManager,
+                               @NotNull final ProjectSettingsVersion settingsVersion,
+                               @NotNull final Resources resources) {
+    myLocksStorage = locksStorage;
+    myRunningBuildsManager = runningBuildsManager;
+    mySettingsVersion = settingsVersion;
+    myResources = resources;
+    dispatcher.addListener(new BuildServerAdapter() {
+
+      @Override
+      public void buildFinished(@NotNull final SRunningBuild build) {
+        release(build.getBuildId());
+      }
+
+      @Override
+      public void buildInterrupted(@NotNull final SRunningBuild build) {
+        release(build.getBuildId());
+      }
+    });
+  }
+
+  /**
+   * Allocates value of custom resource to the build
+   *
+   * @param buildId id of the build
+   * @param resource custom resource
+   * @param requestedValue specific value, requested by the lock, or empty string if any value fits
+   * @return allocated value or {@code null} if all values of the resource are taken,
+   * or if the requested value is taken or is not defined
+   */
+  @Nullable
+  public String allocate(final long buildId,
+                         @NotNull final CustomResource resource,
+                         @NotNull final String requestedValue) {
+    ensureInitialized();
+    while (true) {
+      final Allocation allocation = getAllocation(resource);
+      synchronized (allocation) {
+        if (!allocation.myValid) {
+          continue;
+        }
+        if (!allocation.hasFree()) {
+          return null;
+        }
+        allocation.setPolicy(getPolicy());
+        final HeldValue value;
+        if ("".equals(requestedValue)) {
+          final int slot = allocation.takeFree();
+          value = new HeldValue(allocation.myValues.get(slot), new int[] {slot});
+        } else {
+          final int slot = allocation.take(requestedValue);
+          if (slot < 0) {
+            return null;
+          }
+          value = new HeldValue(requestedValue, new int[] {slot});
+        }
+        hold(buildId, resource, allocation, value);
+        return value.myValue;
+      }
+    }
+  }
+
+  /**
+   * Allocates any value of custom resource to the build, preferring the given value.
+   * If preferred value is taken or is no longer defined, free value is selected by {@link ValueSelectionPolicy}
+   *
+   * @param buildId id of the build
+   * @param resource custom resource
+   * @param preferredValue value to allocate, if it is free
+   * @return allocated value or {@code null} if all values of the resource are taken
+   */
+  @Nullable
+  public String allocatePreferred(final long buildId,
+                                  @NotNull final CustomResource resource,
+                                  @NotNull final String preferredValue) {
+    ensureInitialized();
+    while (true) {
+      final Allocation allocation = getAllocation(resource);
+      synchronized (allocation) {
+        if (!allocation.myValid) {
+          continue;
+        }
+        if (!allocation.hasFree()) {
+          return null;
+        }
+        allocation.setPolicy(getPolicy());
+        int slot = allocation.take(preferredValue);
+        if (slot < 0) {
+          slot = allocation.takeFree();
+        }
+        final HeldValue value = new HeldValue(allocation.myValues.get(slot), new int[] {slot});
+        hold(buildId, resource, allocation, value);
+        return value.myValue;
+      }
+    }
+  }
+
+  /**
+   * Allocates several values of custom resource to the build at once.
+   * Either all requested values are allocated, or none of them
+   *
+   * @param buildId id of the build
+   * @param resource custom resource
+   * @param count number of values to allocate
+   * @return allocated values in the order of selection or {@code null} if the resource has less free values
+   */
+  @Nullable
+  public List<String> allocate(final long buildId,
+                               @NotNull final CustomResource resource,
+                               final int count) {
+    ensureInitialized();
+    while (true) {
+      final Allocation allocation = getAllocation(resource);
+      synchronized (allocation) {
+        if (!allocation.myValid) {
+          continue;
+        }
+        if (allocation.myFreeCount < count) {
+          return null;
+        }
+        allocation.setPolicy(getPolicy());
+        final int[] slots = allocation.takeFree(count);
+        final List<String> values = new ArrayList<>(count);
+        for (int slot: slots) {
+          values.add(allocation.myValues.get(slot));
+        }
+        hold(buildId, resource, allocation, new HeldValue(Lock.joinValues(values), slots));
+        return values;
+      }
+    }
+  }
+
+  /**
+   * Remembers value, held by the build. Value of the resource, previously held by the build, is released.
+   * Called under the lock of the allocation
+   */
+  private void hold(final long buildId,
+                    @NotNull final CustomResource resource,
+                    @NotNull final Allocation allocation,
+                    @NotNull final HeldValue value) {
+    final HeldValue previous = myHeldValues.computeIfAbsent(buildId, id -> new ConcurrentHashMap<>()).put(getKey(resource), value);
+    if (previous != null) {
+      allocation.release(previous.mySlots);
+    }
+  }
+
+  /**
+   * Gets values of custom resource, that are not held by running builds
+   *
+   * @param resource custom resource
+   * @return available values in the order of definition
+   */
+  @NotNull
+  public List<String> getAvailableValues(@NotNull final CustomResource resource) {
+    ensureInitialized();
+    while (true) {
+      final Allocation allocation = getAllocation(resource);
+      synchronized (allocation) {
+        if (allocation.myValid) {
+          return allocation.getFree();
+        }
+      }
+    }
+  }
+
+  private void release(final long buildId) {
+    final Map<String, HeldValue> held = myHeldValues.get(buildId);
+    if (held == null) {
+      return;
+    }
+    for (String key: new ArrayList<>(held.keySet())) {
+      release(held, key);
+    }
+    myHeldValues.remove(buildId, Collections.emptyMap());
+  }
+
+  private void release(@NotNull final Map<String, HeldValue> held, @NotNull final String key) {
+    while (true) {
+      final Allocation allocation = myAllocations.get(key);
+      if (allocation == null) {
+        synchronized (myAllocations) {
+          if (!myAllocations.containsKey(key)) {
+            held.remove(key);
+            return;
+          }
+        }
+      } else {
+        synchronized (allocation) {
+          if (allocation.myValid) {
+            final HeldValue value = held.remove(key);
+            if (value != null) {
+              allocation.release(value.mySlots);
+            }
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  @NotNull
+  private Allocation getAllocation(@NotNull final CustomResource resource) {
+    final long version = mySettingsVersion.get();
+    final String key = getKey(resource);
+    Allocation allocation = myAllocations.get(key);
+    if (allocation == null) {
+      synchronized (myAllocations) {
+        allocation = myAllocations.get(key);
+        if (allocation == null) {
+          addStoredValues(resource);
+          allocation = createAllocation(key, resource.getValues(), version, null);
+          myAllocations.put(key, allocation);
+        }
+      }
+    } else if (allocation.myVersion != version || allocation.myResourceValues != resource.getValues()) {
+      // values are compared even if settings version is the same, so that the caller never gets a value, it did not define
+      synchronized (allocation) {
+        if (allocation.myValid && (allocation.myVersion != version || allocation.myResourceValues != resource.getValues())) {
+          if (allocation.myValues.equals(resource.getValues())) {
+            allocation.myVersion = version;
+            allocation.myResourceValues = resource.getValues();
+          } else {
+            // values of the resource were changed. Held values are placed into slots of new values
+            final Allocation updated = createAllocation(key, resource.getValues(), version, allocation);
+            myAllocations.put(key, updated);
+            allocation.myValid = false;
+            allocation = updated;
+          }
+        }
+      }
+    }
+    return allocation;
+  }
+
+  /**
+   * Adds values of the resource, taken by running builds before the resource was first allocated.
+   * Storage keeps values by resource name, so values of resources with the same name from other projects are skipped
+   *
+   * @param resource custom resource
+   */
+  private void addStoredValues(@NotNull final CustomResource resource) {
+    final String key = getKey(resource);
+    for (Map.Entry<Long, String> entry: myLocksStorage.getTakenValues(resource.getName()).entrySet()) {
+      final SRunningBuild build = myRunningBuildsManager.findRunningBuildById(entry.getKey());
+      // build, that has finished after its values were stored, is already released
+      if (build != null && !build.isFinished() && isResolvedTo(build, resource)) {
+        myHeldValues.computeIfAbsent(entry.getKey(), id -> new ConcurrentHashMap<>()).putIfAbsent(key, new HeldValue(entry.getValue(), HeldValue.NO_SLOTS));
+      }
+    }
+  }
+
+  /**
+   * @return {@code true} if lock on the resource name in the project of the build refers to the given resource
+   */
+  private boolean isResolvedTo(@NotNull final SRunningBuild build, @NotNull final CustomResource resource) {
+    final String projectId = build.getProjectId();
+    if (projectId == null) {
+      return false;
+    }
+    final Resource resolved = myResources.getResourcesMap(projectId).get(resource.getName());
+    return resolved != null && resource.getProjectId().equals(resolved.getProjectId());
+  }
+
+  /**
+   * Resources are resolved by name in the project hierarchy. Resources with the same name in
+   * different projects are different resources
+   */
+  @NotNull
+  private static String getKey(@NotNull final Resource resource) {
+    return resource.getProjectId() + "/" + resource.getName();
+  }
+
+  /**
+   * Creates allocation of the resource. Usage of values is taken from the previous allocation of the resource
+   */
+  @NotNull
+  private Allocation createAllocation(@NotNull final String key,
+                                      @NotNull final List<String> values,
+                                      final long version,
+                                      @Nullable final Allocation previous) {
+    final Allocation result = new Allocation(values, version);
+    if (previous != null) {
+      result.copyUsage(previous);
+    }
+    result.setPolicy(getPolicy());
+    for (Map<String, HeldValue> held: myHeldValues.values()) {
+      final HeldValue value = held.get(key);
+      if (value != null) {
+        final List<String> heldValues = Lock.splitValues(value.myValue);
+        final int[] slots = new int[heldValues.size()];
+        for (int i = 0; i < slots.length; i++) {
+          slots[i] = result.take(heldValues.get(i));
+        }
+        value.mySlots = slots;
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private static ValueSelectionPolicy getPolicy() {
+    return ValueSelectionPolicy.byName(TeamCityProperties.getProperty(ValueSelectionPolicy.PROPERTY_NAME, ValueSelectionPolicy.FIRST_FREE.getName()));
+  }
+
+  /**
+   * Reads locks of running builds, that are not known to the storage,
+   * so that their values appear among taken values of the storage
+   */
+  private void ensureInitialized() {
+    if (myInitialized) {
+      return;
+    }
+    synchronized (myInitLock) {
+      if (!myInitialized) {
+        for (SRunningBuild build: myRunningBuildsManager.getRunningBuilds()) {
+          if (!myLocksStorage.locksStored(build)) {
+            myLocksStorage.load(build);
+          }
+        }
+        myInitialized = true;
+      }
+    }
+  }
+
+  /**
+   * Slots of values of a single custom resource
+   */
+  private static final class Allocation {
+
+    @NotNull
+    private final List<String> myValues;
+
+    /**
+     * Values of the resource, the allocation was last checked against.
+     * Resources are cached until settings change, so the same list is usually passed again
+     */
+    @NotNull
+    private volatile List<String> myResourceValues;
+
+    /**
+     * Slots of each value in format {@code value -> slots}
+     */
+    @NotNull
+    private final Map<String, int[]> mySlots;
+
+    @NotNull
+    private final BitSet myTaken;
+
+    private int myFreeCount;
+
+    /**
+     * Number of releases of each slot, i.e. number of builds, that used the slot
+     */
+    @NotNull
+    private final long[] myUseCounts;
+
+    /**
+     * Sequence number of the last release of each slot. Slots, that were never released, have {@code 0}
+     */
+    @NotNull
+    private final long[] myReleasedAt;
+
+    private long myReleaseSequence;
+
+    @NotNull
+    private ValueSelectionPolicy myPolicy = ValueSelectionPolicy.FIRST_FREE;
+
+    /**
+     * Free slots, ordered by selection policy. Not kept for {@link ValueSelectionPolicy#FIRST_FREE},
+     * as the first free slot is found in the bit set
+     */
+    @Nullable
+    private TreeSet<Integer> myFree;
+
+    /**
+     * Slot, next round robin selection starts from
+     */
+    private int myNextSlot;
+
+    private volatile long myVersion;
+
+    /**
+     * Allocation is replaced when values of the resource change
+     */
+    private boolean myValid = true;
+
+    private Allocation(@NotNull final List<String> values, final long version) {
+      myValues = new ArrayList<>(values);
+      myResourceValues = values;
+      myTaken = new BitSet(myValues.size());
+      myFreeCount = myValues.size();
+      myUseCounts = new long[myValues.size()];
+      myReleasedAt = new long[myValues.size()];
+      myVersion = version;
+      final Map<String, List<Integer>> slots = new HashMap<>();
+      for (int i = 0; i < myValues.size(); i++) {
+        slots.computeIfAbsent(myValues.get(i), v -> new ArrayList<>()).add(i);
+      }
+      mySlots = new HashMap<>(slots.size());
+      slots.forEach((value, indices) -> mySlots.put(value, indices.stream().mapToInt(Integer::intValue).toArray()));
+    }
+
+    private boolean hasFree() {
+      return myFreeCount > 0;
+    }
+
+    /**
+     * Changes selection policy. Free slots are ordered again, if the policy needs it
+     */
+    private void setPolicy(@NotNull final ValueSelectionPolicy policy) {
+      if (myPolicy == policy) {
+        return;
+      }
+      myPolicy = policy;
+      switch (policy) {
+        case ROUND_ROBIN:
+          myFree = new TreeSet<>();
+          break;
+        case LEAST_RECENTLY_RELEASED:
+          myFree = new TreeSet<>(Comparator.<Integer>comparingLong(slot -> myReleasedAt[slot]).thenComparingInt(slot -> slot));
+          break;
+        case LEAST_TOTAL_USE:
+          myFree = new TreeSet<>(Comparator.<Integer>comparingLong(slot -> myUseCounts[slot]).thenComparingInt(slot -> slot));
+          break;
+        default:
+          myFree = null;
+          return;
+      }
+      for (int slot = myTaken.nextClearBit(0); slot < myValues.size(); slot = myTaken.nextClearBit(slot + 1)) {
+        myFree.add(slot);
+      }
+    }
+
+    /**
+     * Copies usage of slots of the same values from previous allocation of the resource
+     */
+    private void copyUsage(@NotNull final Allocation previous) {
+      mySlots.forEach((value, slots) -> {
+        final int[] previousSlots = previous.mySlots.get(value);
+        if (previousSlots != null) {
+          for (int i = 0; i < Math.min(slots.length, previousSlots.length); i++) {
+            myUseCounts[slots[i]] = previous.myUseCounts[previousSlots[i]];
+            myReleasedAt[slots[i]] = previous.myReleasedAt[previousSlots[i]];
+          }
+        }
+      });
+      myReleaseSequence = previous.myReleaseSequence;
+    }
+
+    private int takeFree() {
+      final int slot = selectFree();
+      takeSlot(slot);
+      return slot;
+    }
+
+    /**
+     * Takes given number of free slots. Without ordered free slots bit set is scanned once
+     *
+     * @param count number of slots to take, not greater than the number of free slots
+     * @return taken slots in the order of selection
+     */
+    @NotNull
+    private int[] takeFree(final int count) {
+      final int[] result = new int[count];
+      if (myFree == null) {
+        int slot = -1;
+        for (int i = 0; i < count; i++) {
+          slot = myTaken.nextClearBit(slot + 1);
+          myTaken.set(slot);
+          result[i] = slot;
+        }
+        myFreeCount -= count;
+      } else {
+        for (int i = 0; i < count; i++) {
+          result[i] = takeFree();
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Selects free slot according to the policy. Allocation must have free slots
+     */
+    private int selectFree() {
+      if (myFree == null) {
+        return myTaken.nextClearBit(0);
+      }
+      if (myPolicy == ValueSelectionPolicy.ROUND_ROBIN) {
+        Integer slot = myFree.ceiling(myNextSlot);
+        if (slot == null) {
+          slot = myFree.first();
+        }
+        myNextSlot = slot + 1;
+        return slot;
+      }
+      return myFree.first();
+    }
+
+    private void takeSlot(final int slot) {
+      myTaken.set(slot);
+      myFreeCount--;
+      if (myFree != null) {
+        myFree.remove(slot);
+      }
+    }
+
+    /**
+     * Takes free slot of the value
+     *
+     * @return taken slot or {@code -1}, if the value is not defined or all its slots are taken
+     */
+    private int take(@NotNull final String value) {
+      final int[] slots = mySlots.get(value);
+      if (slots != null) {
+        for (int slot: slots) {
+          if (!myTaken.get(slot)) {
+            takeSlot(slot);
+            return slot;
+          }
+        }
+      }
+      return -1;
+    }
+
+    private void release(@NotNull final int[] slots) {
+      for (int slot: slots) {
+        if (slot >= 0 && myTaken.get(slot)) {
+          myTaken.clear(slot);
+          myFreeCount++;
+          myUseCounts[slot]++;
+          myReleasedAt[slot] = ++myReleaseSequence;
+          if (myFree != null) {
+            myFree.add(slot);
+          }
+        }
+      }
+    }
+
+    @NotNull
+    private List<String> getFree() {
+      final List<String> result = new ArrayList<>();
+      for (int slot = myTaken.nextClearBit(0); slot < myValues.size(); slot = myTaken.nextClearBit(slot + 1)) {
+        result.add(myValues.get(slot));
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Value, held by running build, and the slots it occupies.
+   * Several values of the resource are joined with {@link Lock#VALUES_SEPARATOR}
+   */
+  private static final class HeldValue {
+
+    @NotNull
+    private static final int[] NO_SLOTS = new int[0];
+
+    @NotNull
+    private final String myValue;
+
+    @NotNull
+    private int[] mySlots;
+
+    private HeldValue(@NotNull final String value, @NotNull final int[] slots) {
+      myValue = value;
+      mySlots = slots;
+    }
+  }
+}
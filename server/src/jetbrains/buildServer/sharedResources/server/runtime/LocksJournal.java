@@ -0,0 +1,637 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Class {@code LocksJournal}
+ *
+ * Server-local journal of locks, taken by running builds.
+ *
+ * Journal is a memory-mapped file with append-only records. Locks of the build are appended when
+ * the build starts, removal record is appended when the build finishes. Records of finished builds
+ * are dropped during compaction, that writes records of running builds into the second journal file.
+ * The file with the latest generation is replayed on server start.
+ *
+ * File format: header {@code [magic][format version][generation]} followed by records {@code [length][crc][body]}.
+ * Length of the record is written after its body, so zero length marks the end of the journal.
+ * Replay stops at the first record, which checksum does not match its body.
+ * Each record is forced to disk before the call, that writes it, returns. Forcing is done outside of
+ * the monitor of the journal, so that concurrent writers share a single force of the file
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class LocksJournal {
+
+  @NotNull
+  private static final Logger log = Logger.getInstance(LocksJournal.class.getName());
+
+  @NotNull
+  static final String[] FILE_NAMES = {"taken_locks.0.journal", "taken_locks.1.journal"}; // package visibility for tests
+
+  private static final int MAGIC = 0x534A524C;
+
+  private static final int FORMAT_VERSION = 2;
+
+  /**
+   * Format without checksums. Journal of this format is replayed and compacted into the current format
+   */
+  private static final int FORMAT_VERSION_NO_CRC = 1;
+
+  private static final int HEADER_SIZE = 16;
+
+  private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+  /**
+   * Journal is compacted when records of finished builds take more space than records
+   * of running builds and more than this number of bytes
+   */
+  private static final int COMPACTION_THRESHOLD = 64 * 1024;
+
+  /**
+   * Size of length and checksum, that precede the body of the record
+   */
+  private static final int RECORD_HEADER_SIZE = 8;
+
+  @NotNull
+  private static final byte[] ZEROS = new byte[4096];
+
+  private static final byte RECORD_STORE = 1;
+
+  private static final byte RECORD_REMOVE = 2;
+
+  /**
+   * Same as {@link #RECORD_STORE}, followed by weight of each lock.
+   * Written only if some lock has weight, so that journals without weights stay readable by older versions
+   */
+  private static final byte RECORD_STORE_WEIGHTED = 3;
+
+  @NotNull
+  private final File myDirectory;
+
+  /**
+   * Locks of running builds in format {@code buildId -> <lock name, lock>}
+   */
+  @NotNull
+  private final Map<Long, Map<String, Lock>> myLocks = new HashMap<>();
+
+  /**
+   * Sizes of records, that contain locks of running builds
+   */
+  @NotNull
+  private Map<Long, Integer> myRecordSizes = new HashMap<>();
+
+  @NotNull
+  private final JournalFile[] myFiles = new JournalFile[2];
+
+  private int myActive;
+
+  private long myGeneration;
+
+  /**
+   * Position of the next record in active file
+   */
+  private int myPosition;
+
+  private long myLiveBytes;
+
+  private long myDeadBytes;
+
+  private boolean myInitialized = false;
+
+  private boolean myAvailable = false;
+
+  /**
+   * Number of records, written to the journal
+   */
+  private volatile long myWritten;
+
+  /**
+   * Number of records, that are known to be forced to disk. Guarded by {@link #myForceLock}
+   */
+  private long myForced;
+
+  @NotNull
+  private final Object myForceLock = new Object();
+
+  public LocksJournal(@NotNull final ServerPaths serverPaths,
+                      @NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    this(new File(serverPaths.getPluginDataDirectory(), SharedResourcesPluginConstants.PLUGIN_NAME));
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        close();
+      }
+    });
+  }
+
+  public LocksJournal(@NotNull final File directory) {
+    myDirectory = directory;
+  }
+
+  /**
+   * Appends locks of the build to the journal
+   *
+   * @param buildId id of the build
+   * @param locks locks with resolved values in format {@code <lock name, lock>}
+   * @return {@code true} if locks were written to the journal, {@code false} if journal is not available
+   */
+  public boolean store(final long buildId, @NotNull final Map<String, Lock> locks) {
+    final long record;
+    synchronized (this) {
+      if (!ensureInitialized()) {
+        return false;
+      }
+      try {
+        final byte[] body = serializeStore(buildId, locks);
+        myPosition = myFiles[myActive].write(myPosition, body);
+        onStored(buildId, new HashMap<>(locks), body.length + RECORD_HEADER_SIZE);
+        record = ++myWritten;
+      } catch (IOException e) {
+        disable("Failed to write taken locks of build [" + buildId + "] to journal", e);
+        return false;
+      }
+    }
+    force(record);
+    return true;
+  }
+
+  /**
+   * Gets locks of the build from the journal
+   *
+   * @param buildId id of the build
+   * @return locks of the build or {@code null} if the journal contains no locks of the build
+   */
+  @Nullable
+  public synchronized Map<String, Lock> load(final long buildId) {
+    if (!ensureInitialized()) {
+      return null;
+    }
+    return myLocks.get(buildId);
+  }
+
+  /**
+   * Gets ids of the builds, which locks are stored in the journal
+   *
+   * @return ids of the builds
+   */
+  @NotNull
+  public synchronized Set<Long> getBuildIds() {
+    if (!ensureInitialized()) {
+      return Collections.emptySet();
+    }
+    return new HashSet<>(myLocks.keySet());
+  }
+
+  /**
+   * Removes locks of the finished build. Compacts the journal if needed
+   *
+   * @param buildId id of the build
+   */
+  public void remove(final long buildId) {
+    final long record;
+    synchronized (this) {
+      if (!ensureInitialized() || !myLocks.containsKey(buildId)) {
+        return;
+      }
+      try {
+        final byte[] body = serializeRemove(buildId);
+        myPosition = myFiles[myActive].write(myPosition, body);
+        onRemoved(buildId, body.length + RECORD_HEADER_SIZE);
+        record = ++myWritten;
+        if (myDeadBytes > COMPACTION_THRESHOLD && myDeadBytes > myLiveBytes) {
+          // compaction forces the new file itself
+          compact();
+        }
+      } catch (IOException e) {
+        disable("Failed to write removal of taken locks of build [" + buildId + "] to journal", e);
+        return;
+      }
+    }
+    force(record);
+  }
+
+  /**
+   * Removes locks of the builds, that are known to be finished, and compacts the journal,
+   * so that records of these builds are dropped at once
+   *
+   * @param buildIds ids of the builds
+   */
+  public synchronized void removeAll(@NotNull final Collection<Long> buildIds) {
+    if (!ensureInitialized()) {
+      return;
+    }
+    boolean removed = false;
+    for (Long buildId: buildIds) {
+      final Integer size = myRecordSizes.remove(buildId);
+      if (size != null) {
+        myLiveBytes -= size;
+        myDeadBytes += size;
+      }
+      removed |= myLocks.remove(buildId) != null;
+    }
+    if (removed) {
+      try {
+        compact();
+      } catch (IOException e) {
+        disable("Failed to compact taken locks journal", e);
+      }
+    }
+  }
+
+  /**
+   * Flushes and closes journal files
+   */
+  public synchronized void close() {
+    if (myAvailable) {
+      for (JournalFile file: myFiles) {
+        file.force();
+      }
+    }
+    closeFiles();
+    myInitialized = true;
+    myAvailable = false;
+  }
+
+  /**
+   * Forces active journal file to disk, unless the record was already forced by concurrent writer.
+   * Single force covers all records, written before it started
+   *
+   * @param record number of the record to be forced
+   */
+  private void force(final long record) {
+    synchronized (myForceLock) {
+      if (myForced >= record) {
+        return;
+      }
+      final JournalFile file;
+      final long written;
+      synchronized (this) {
+        if (!myAvailable) {
+          return;
+        }
+        file = myFiles[myActive];
+        written = myWritten;
+      }
+      file.force();
+      myForced = written;
+    }
+  }
+
+  synchronized long getGeneration() { // package visibility for tests
+    ensureInitialized();
+    return myGeneration;
+  }
+
+  private boolean ensureInitialized() {
+    if (!myInitialized) {
+      myInitialized = true;
+      try {
+        open();
+        myAvailable = true;
+      } catch (IOException e) {
+        disable("Failed to open taken locks journal in " + myDirectory.getAbsolutePath(), e);
+      }
+    }
+    return myAvailable;
+  }
+
+  private void open() throws IOException {
+    if (!myDirectory.isDirectory() && !myDirectory.mkdirs()) {
+      throw new IOException("Failed to create directory " + myDirectory.getAbsolutePath());
+    }
+    for (int i = 0; i < myFiles.length; i++) {
+      myFiles[i] = new JournalFile(new File(myDirectory, FILE_NAMES[i]));
+    }
+    final long first = myFiles[0].readGeneration();
+    final long second = myFiles[1].readGeneration();
+    if (first < 0 && second < 0) {
+      myActive = 0;
+      myGeneration = 1;
+      myFiles[myActive].zero(HEADER_SIZE);
+      myFiles[myActive].writeHeader(myGeneration);
+      myPosition = HEADER_SIZE;
+    } else {
+      myActive = first >= second ? 0 : 1;
+      myGeneration = Math.max(first, second);
+      if (myFiles[myActive].readFormatVersion() == FORMAT_VERSION_NO_CRC) {
+        replayNoCrc();
+        // records of the running builds are written with checksums
+        compact();
+      } else {
+        replay();
+      }
+    }
+  }
+
+  private void replay() {
+    final JournalFile file = myFiles[myActive];
+    final CRC32 crc = new CRC32();
+    int position = HEADER_SIZE;
+    while (position + RECORD_HEADER_SIZE <= file.myCapacity) {
+      final int length = file.myBuffer.getInt(position);
+      if (length <= 0 || position + RECORD_HEADER_SIZE + length > file.myCapacity) {
+        break;
+      }
+      final byte[] body = new byte[length];
+      file.myBuffer.position(position + RECORD_HEADER_SIZE);
+      file.myBuffer.get(body);
+      crc.reset();
+      crc.update(body, 0, length);
+      if ((int) crc.getValue() != file.myBuffer.getInt(position + 4)) {
+        log.warn("Checksum mismatch in taken locks journal " + file.myFile.getAbsolutePath() + " at position " + position + ". Following records are ignored");
+        break;
+      }
+      try {
+        apply(body, length + RECORD_HEADER_SIZE);
+      } catch (IOException e) {
+        log.warn("Corrupted record in taken locks journal " + file.myFile.getAbsolutePath() + " at position " + position + ". Following records are ignored");
+        break;
+      }
+      position += RECORD_HEADER_SIZE + length;
+    }
+    myPosition = position;
+    // drop the rest of the file, if it contains partially written or corrupted record
+    if (position + 4 <= file.myCapacity && file.myBuffer.getInt(position) != 0) {
+      file.zero(position);
+    }
+  }
+
+  /**
+   * Replays journal of the format without checksums
+   */
+  private void replayNoCrc() {
+    final JournalFile file = myFiles[myActive];
+    int position = HEADER_SIZE;
+    while (position + 4 <= file.myCapacity) {
+      final int length = file.myBuffer.getInt(position);
+      if (length <= 0 || position + 4 + length > file.myCapacity) {
+        break;
+      }
+      final byte[] body = new byte[length];
+      file.myBuffer.position(position + 4);
+      file.myBuffer.get(body);
+      try {
+        apply(body, length + 4);
+      } catch (IOException e) {
+        log.warn("Corrupted record in taken locks journal " + file.myFile.getAbsolutePath() + " at position " + position + ". Following records are ignored");
+        break;
+      }
+      position += 4 + length;
+    }
+    myPosition = position;
+  }
+
+  private void apply(@NotNull final byte[] body, final int recordSize) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    final byte kind = in.readByte();
+    final long buildId = in.readLong();
+    if (kind == RECORD_STORE || kind == RECORD_STORE_WEIGHTED) {
+      final int count = in.readInt();
+      final Map<String, Lock> locks = new HashMap<>();
+      for (int i = 0; i < count; i++) {
+        final String name = in.readUTF();
+        final LockType type = LockType.byName(in.readUTF());
+        final String value = in.readUTF();
+        final int weight = kind == RECORD_STORE_WEIGHTED ? in.readInt() : Lock.DEFAULT_WEIGHT;
+        if (type == null) {
+          throw new IOException("Unknown lock type");
+        }
+        locks.put(name, new Lock(name, type, value, weight));
+      }
+      onStored(buildId, locks, recordSize);
+    } else if (kind == RECORD_REMOVE) {
+      onRemoved(buildId, recordSize);
+    } else {
+      throw new IOException("Unknown record type: " + kind);
+    }
+  }
+
+  private void onStored(final long buildId, @NotNull final Map<String, Lock> locks, final int recordSize) {
+    final Integer previous = myRecordSizes.put(buildId, recordSize);
+    if (previous != null) {
+      myLiveBytes -= previous;
+      myDeadBytes += previous;
+    }
+    myLiveBytes += recordSize;
+    myLocks.put(buildId, Collections.unmodifiableMap(locks));
+  }
+
+  private void onRemoved(final long buildId, final int recordSize) {
+    final Integer size = myRecordSizes.remove(buildId);
+    if (size != null) {
+      myLiveBytes -= size;
+      myDeadBytes += size;
+    }
+    myDeadBytes += recordSize;
+    myLocks.remove(buildId);
+  }
+
+  /**
+   * Writes records of running builds into inactive file and makes it active.
+   * Until the header of the new file is written, the previous file remains the latest valid one
+   */
+  private void compact() throws IOException {
+    final int target = 1 - myActive;
+    final JournalFile file = myFiles[target];
+    file.writeHeader(0);
+    final Map<Long, Integer> recordSizes = new HashMap<>();
+    int position = HEADER_SIZE;
+    for (Map.Entry<Long, Map<String, Lock>> entry: myLocks.entrySet()) {
+      final byte[] body = serializeStore(entry.getKey(), entry.getValue());
+      position = file.write(position, body);
+      recordSizes.put(entry.getKey(), body.length + RECORD_HEADER_SIZE);
+    }
+    file.zero(position);
+    // records are on disk before the header makes the file the latest one
+    file.force();
+    file.writeHeader(myGeneration + 1);
+    file.force();
+    myActive = target;
+    myGeneration++;
+    myPosition = position;
+    myRecordSizes = recordSizes;
+    myLiveBytes = position - HEADER_SIZE;
+    myDeadBytes = 0;
+    if (log.isDebugEnabled()) {
+      log.debug("Compacted taken locks journal. Generation: " + myGeneration + ", running builds: " + myLocks.size());
+    }
+  }
+
+  private void disable(@NotNull final String message, @NotNull final IOException e) {
+    log.warn(message + ". Taken locks will be stored in build artifacts. Message is: " + e.getMessage());
+    closeFiles();
+    myAvailable = false;
+  }
+
+  private void closeFiles() {
+    for (int i = 0; i < myFiles.length; i++) {
+      if (myFiles[i] != null) {
+        myFiles[i].close();
+        myFiles[i] = null;
+      }
+    }
+  }
+
+  @NotNull
+  private static byte[] serializeStore(final long buildId, @NotNull final Map<String, Lock> locks) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    boolean weighted = false;
+    for (Lock lock: locks.values()) {
+      weighted |= lock.getWeight() != Lock.DEFAULT_WEIGHT;
+    }
+    out.writeByte(weighted ? RECORD_STORE_WEIGHTED : RECORD_STORE);
+    out.writeLong(buildId);
+    out.writeInt(locks.size());
+    for (Lock lock: locks.values()) {
+      out.writeUTF(lock.getName());
+      out.writeUTF(lock.getType().getName());
+      out.writeUTF(lock.getValue());
+      if (weighted) {
+        out.writeInt(lock.getWeight());
+      }
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  @NotNull
+  private static byte[] serializeRemove(final long buildId) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(RECORD_REMOVE);
+    out.writeLong(buildId);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Single memory-mapped journal file. Mapping grows, when records do not fit into it
+   */
+  private static final class JournalFile {
+
+    @NotNull
+    private final File myFile;
+
+    @NotNull
+    private final RandomAccessFile myRandomAccessFile;
+
+    @NotNull
+    private final FileChannel myChannel;
+
+    @NotNull
+    private MappedByteBuffer myBuffer;
+
+    private int myCapacity;
+
+    private JournalFile(@NotNull final File file) throws IOException {
+      myFile = file;
+      myRandomAccessFile = new RandomAccessFile(file, "rw");
+      myChannel = myRandomAccessFile.getChannel();
+      myCapacity = (int) Math.max(INITIAL_CAPACITY, myRandomAccessFile.length());
+      myBuffer = myChannel.map(FileChannel.MapMode.READ_WRITE, 0, myCapacity);
+    }
+
+    private long readGeneration() {
+      final int version = readFormatVersion();
+      if (version != FORMAT_VERSION && version != FORMAT_VERSION_NO_CRC) {
+        return -1;
+      }
+      final long generation = myBuffer.getLong(8);
+      return generation > 0 ? generation : -1;
+    }
+
+    private int readFormatVersion() {
+      return myBuffer.getInt(0) == MAGIC ? myBuffer.getInt(4) : -1;
+    }
+
+    private void writeHeader(final long generation) {
+      myBuffer.putInt(0, MAGIC);
+      myBuffer.putInt(4, FORMAT_VERSION);
+      myBuffer.putLong(8, generation);
+    }
+
+    /**
+     * Writes record at given position
+     *
+     * @return position of the next record
+     */
+    private int write(final int position, @NotNull final byte[] body) throws IOException {
+      // record and the length of the next record, that marks the end of the journal
+      final long required = (long) position + RECORD_HEADER_SIZE + body.length + 4;
+      if (required > myCapacity) {
+        grow(required);
+      }
+      final CRC32 crc = new CRC32();
+      crc.update(body, 0, body.length);
+      myBuffer.position(position + RECORD_HEADER_SIZE);
+      myBuffer.put(body);
+      myBuffer.putInt(position + 4, (int) crc.getValue());
+      myBuffer.putInt(position, body.length);
+      return position + RECORD_HEADER_SIZE + body.length;
+    }
+
+    private void grow(final long required) throws IOException {
+      long capacity = myCapacity;
+      while (capacity < required) {
+        capacity *= 2;
+      }
+      if (capacity > Integer.MAX_VALUE) {
+        throw new IOException("Journal file " + myFile.getAbsolutePath() + " is too large");
+      }
+      myBuffer = myChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      myCapacity = (int) capacity;
+    }
+
+    private void force() {
+      myBuffer.force();
+    }
+
+    private void zero(final int from) {
+      myBuffer.position(from);
+      while (myBuffer.hasRemaining()) {
+        myBuffer.put(ZEROS, 0, Math.min(ZEROS.length, myBuffer.remaining()));
+      }
+    }
+
+    private void close() {
+      try {
+        myChannel.close();
+        myRandomAccessFile.close();
+      } catch (IOException e) {
+        log.warn("Failed to close taken locks journal " + myFile.getAbsolutePath() + ". Message is: " + e.getMessage());
+      }
+    }
+  }
+}
@@ -16,6 +16,7 @@
 
 package jetbrains.buildServer.sharedResources.server.runtime;
 
+import com.google.common.cache.CacheStats;
 import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import org.jetbrains.annotations.NotNull;
@@ -57,4 +58,23 @@ public interface LocksStorage {
    */
   boolean locksStored(@NotNull final SBuild build);
 
+  /**
+   * Gets values of the resource, taken by running builds, which locks are stored or were loaded
+   *
+   * @param resourceName name of the resource
+   * @return taken values in format {@code buildId -> value}
+   */
+  @NotNull
+  Map<Long, String> getTakenValues(@NotNull final String resourceName);
+
+  /**
+   * Gets statistics of reading of stored locks.
+   * Hits are reads of stored locks or locks, that were already read from artifacts,
+   * misses are reads of artifacts
+   *
+   * @return statistics since server start
+   */
+  @NotNull
+  CacheStats getStatistics();
+
 }
@@ -16,18 +16,14 @@
 
 package jetbrains.buildServer.sharedResources.server.runtime;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.cache.CacheStats;
 import com.intellij.openapi.diagnostic.Logger;
-import gnu.trove.TLongHashSet;
-import gnu.trove.impl.sync.TSynchronizedLongObjectMap;
-import gnu.trove.map.TLongObjectMap;
-import gnu.trove.map.hash.TLongObjectHashMap;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
 import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.RunningBuildsManager;
 import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
@@ -40,12 +36,17 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class {@code LocksStorageImpl}
  *
- * Implements storage for taken locks during build execution
+ * Implements storage for taken locks during build execution.
+ * Locks are kept in server-local {@link LocksJournal}. Build artifact with taken locks is written
+ * only if export is enabled or the journal is not available
  *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
@@ -60,6 +61,12 @@ public class LocksStorageImpl implements LocksStorage {
   @NotNull
   static final String FILE_PATH = FILE_PARENT + "/" + FILE_NAME; // package visibility for tests
 
+  /**
+   * Enables export of taken locks into build artifacts in addition to the journal
+   */
+  @NotNull
+  static final String EXPORT_TO_ARTIFACTS_PROPERTY = "teamcity.sharedResources.locks.exportToArtifacts";
+
   @NotNull
   private static final Logger log = Logger.getInstance(LocksStorageImpl.class.getName());
 
@@ -67,79 +74,74 @@ public class LocksStorageImpl implements LocksStorage {
   private static final String MY_ENCODING = "UTF-8";
 
   /**
-   * Contains the set of build ids, that contain taken locks that are stored
-   * Added to avoid calling of {@code CacheLoader} for the items that were not stored
+   * Locks of running builds in format {@code buildId -> stored locks}.
+   * Locks of the build are published at once, after they are written to the journal or artifact,
+   * so readers never see partially stored locks and do not need to lock
    */
   @NotNull
-  private final TLongHashSet existsSet = new TLongHashSet();
+  private final ConcurrentMap<Long, StoredLocks> myStoredLocks = new ConcurrentHashMap<>();
 
   /**
-   * Stores last N entries of taken locks
-   * It is highly unlikely, that we will have more than 300 running builds at the same time
-   * Ff we do, data for at least 300 of them will be accessed without accessing artifacts storage
+   * Locks, read from artifacts of running builds, which locks were not stored in the journal.
+   * Entries are pinned until the build finishes, so artifacts of running build are read once
    */
   @NotNull
-  private LoadingCache<SBuild, Map<String, Lock>> myLocksCache;
+  private final ConcurrentMap<Long, StoredLocks> myLoadedLocks = new ConcurrentHashMap<>();
+
+  @NotNull
+  private final AtomicLong myHitCount = new AtomicLong();
+
+  @NotNull
+  private final AtomicLong myMissCount = new AtomicLong();
+
+  @NotNull
+  private final AtomicLong myLoadTime = new AtomicLong();
 
   /**
-   * Map with separate guarding lock for each build
+   * Values of resources, taken by running builds, in format {@code resource name -> <buildId, value>}
    */
   @NotNull
-  private final TLongObjectMap<ReentrantLock> myGuards = new TSynchronizedLongObjectMap<ReentrantLock>(new TLongObjectHashMap<ReentrantLock>());
+  private final ConcurrentMap<String, Map<Long, String>> myTakenValues = new ConcurrentHashMap<>();
 
-  public LocksStorageImpl(@NotNull final EventDispatcher<BuildServerListener> dispatcher) {
-    CacheLoader<SBuild, Map<String, Lock>> loader = new CacheLoader<SBuild, Map<String, Lock>>() {
-      @Override
-      public Map<String, Lock> load(@NotNull final SBuild build) throws Exception {
-        final Map<String, Lock> result;
-        final File artifact = new File(build.getArtifactsDirectory(), FILE_PATH);
-        if (artifact.exists()) {
-          result = new HashMap<String, Lock>();
-          try {
-            final String content = FileUtil.readText(artifact, MY_ENCODING);
-            final String[] lines = content.split("\\r?\\n");
-            for (String line: lines) {
-              final Lock lock = deserializeTakenLock(line);
-              if (lock != null) {
-                result.put(lock.getName(), lock);
-              } else {
-                if (log.isDebugEnabled()) {
-                  log.debug("Wrong locks storage format in file {" + artifact.getAbsolutePath() + "} line: {" + line + "}");
-                }
-              }
-            }
-          } catch(IOException e) {
-            log.warn("Failed to load taken locks for build [" + build + "]; Message is: " + e.getMessage());
-          }
-        } else {
-          result = Collections.emptyMap();
-        }
-        return result;
-      }
-    };
-    myLocksCache = CacheBuilder.<SBuild, Map<String, Lock>>newBuilder()
-            .maximumSize(300) // each entry corresponds to a running build
-            .build(loader);
+  /**
+   * Resources, which values are taken by running build, in format {@code buildId -> resource names}.
+   * Used to prune {@code myTakenValues} when the build finishes
+   */
+  @NotNull
+  private final ConcurrentMap<Long, Collection<String>> myBuildValues = new ConcurrentHashMap<>();
+
+  @NotNull
+  private final LocksJournal myJournal;
+
+  @NotNull
+  private final RunningBuildsManager myRunningBuildsManager;
 
+  @NotNull
+  private final Object myJournalLock = new Object();
+
+  /**
+   * Locks from the journal are published on first access
+   */
+  private volatile boolean myJournalRead = false;
+
+  public LocksStorageImpl(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                          @NotNull final LocksJournal journal,
+                          @NotNull final RunningBuildsManager runningBuildsManager) {
+    myJournal = journal;
+    myRunningBuildsManager = runningBuildsManager;
     dispatcher.addListener(new BuildServerAdapter() {
 
       /**
-       * Evicts stored items from cache, as the build is finished and locks are no longer needed
+       * Evicts stored items, as the build is finished and locks are no longer needed
        */
       @Override
       public void buildFinished(@NotNull SRunningBuild build) {
-        final ReentrantLock l = myGuards.get(build.getBuildId());
-        try {
-          if (l != null) {
-            l.lock();
-          }
-          myLocksCache.invalidate(build);
-          existsSet.remove(build.getBuildId());
-        } finally {
-          if (l != null) {
-            l.unlock();
-          }
-        }
+        ensureJournalRead();
+        final long buildId = build.getBuildId();
+        myStoredLocks.remove(buildId);
+        myLoadedLocks.remove(buildId);
+        myJournal.remove(buildId);
+        removeTakenValues(buildId);
       }
     });
   }
@@ -147,32 +149,33 @@ public class LocksStorageImpl implements LocksStorage {
   @Override
   public void store(@NotNull final SBuild build, @NotNull final Map<Lock, String> takenLocks) {
     if (!takenLocks.isEmpty()) {
-      final Long buildId = build.getBuildId();
-      final ReentrantLock l = new ReentrantLock(true);
-      try {
-        l.lock();
-        myGuards.put(buildId, l);
-        final Collection<String> serializedStrings = new ArrayList<String>();
-        Map<String, Lock> locksToStore = new HashMap<String, Lock>();
-        for (Map.Entry<Lock, String> entry: takenLocks.entrySet()) {
-          serializedStrings.add(serializeTakenLock(entry.getKey(), entry.getValue()));
-          locksToStore.put(entry.getKey().getName(), Lock.createFrom(entry.getKey(), entry.getValue()));
-        }
+      ensureJournalRead();
+      final long buildId = build.getBuildId();
+      final Collection<String> serializedStrings = new ArrayList<String>();
+      final Map<String, Lock> locksToStore = new HashMap<String, Lock>();
+      for (Map.Entry<Lock, String> entry: takenLocks.entrySet()) {
+        serializedStrings.add(serializeTakenLock(entry.getKey(), entry.getValue()));
+        locksToStore.put(entry.getKey().getName(), Lock.createFrom(entry.getKey(), entry.getValue()));
+      }
+      final StoredLocks stored = new StoredLocks(locksToStore);
+      addTakenValues(buildId, stored.myLocks);
+      boolean published = false;
+      if (myJournal.store(buildId, stored.myLocks)) {
+        myStoredLocks.put(buildId, stored);
+        published = true;
+      }
+      if (!published || TeamCityProperties.getBoolean(EXPORT_TO_ARTIFACTS_PROPERTY)) {
         try {
           final File artifact = new File(build.getArtifactsDirectory(), FILE_PATH);
           if (FileUtil.createParentDirs(artifact)) {
             FileUtil.writeFile(artifact, StringUtil.join(serializedStrings, "\n"), MY_ENCODING);
-            myLocksCache.put(build, locksToStore);
-            existsSet.add(buildId);
+            myStoredLocks.put(buildId, stored);
           } else {
             log.warn("Failed to create parent dirs for file with taken locks for build {" + build + "}");
           }
         } catch (IOException e) {
           log.warn("Failed to store taken locks for build [" + build + "]; Message is: " + e.getMessage());
         }
-      } finally {
-        l.unlock();
-        myGuards.remove(buildId);
       }
     }
   }
@@ -180,57 +183,189 @@ public class LocksStorageImpl implements LocksStorage {
   @NotNull
   @Override
   public Map<String, Lock> load(@NotNull final SBuild build) {
-    final ReentrantLock l = myGuards.get(build.getBuildId());
-    try {
-      if (l != null) {
-        l.lock();
+    ensureJournalRead();
+    final long id = build.getBuildId();
+    StoredLocks stored = myStoredLocks.get(id);
+    if (stored == null) {
+      stored = myLoadedLocks.get(id);
+    }
+    if (stored != null) {
+      myHitCount.incrementAndGet();
+      return stored.myLocks;
+    }
+    myMissCount.incrementAndGet();
+    final long start = System.nanoTime();
+    final StoredLocks loaded = new StoredLocks(readArtifact(build));
+    final long loadTime = System.nanoTime() - start;
+    myLoadTime.addAndGet(loadTime);
+    if (log.isDebugEnabled()) {
+      log.debug("Read taken locks of build [" + id + "] from artifacts in " + TimeUnit.NANOSECONDS.toMillis(loadTime) + " ms. Statistics: " + getStatistics());
+    }
+    if (build instanceof SRunningBuild && !((SRunningBuild) build).isFinished()) {
+      final StoredLocks previous = myLoadedLocks.putIfAbsent(id, loaded);
+      if (previous != null) {
+        return previous.myLocks;
       }
+      // builds, which locks are stored only in artifacts
+      addTakenValues(id, loaded.myLocks);
+    }
+    return loaded.myLocks;
+  }
+
+  @NotNull
+  @Override
+  public CacheStats getStatistics() {
+    final long misses = myMissCount.get();
+    return new CacheStats(myHitCount.get(), misses, misses, 0, myLoadTime.get(), 0);
+  }
+
+  @NotNull
+  private Map<String, Lock> readArtifact(@NotNull final SBuild build) {
+    final Map<String, Lock> result = new HashMap<String, Lock>();
+    final File artifact = new File(build.getArtifactsDirectory(), FILE_PATH);
+    if (artifact.exists()) {
       try {
-        return myLocksCache.get(build);
-      } catch (Exception e) {
-        log.warn(e);
-        return Collections.emptyMap();
-      }
-    } finally {
-      if (l != null) {
-        l.unlock();
+        final String content = FileUtil.readText(artifact, MY_ENCODING);
+        final String[] lines = content.split("\\r?\\n");
+        for (String line: lines) {
+          final Lock lock = deserializeTakenLock(line);
+          if (lock != null) {
+            result.put(lock.getName(), lock);
+          } else {
+            if (log.isDebugEnabled()) {
+              log.debug("Wrong locks storage format in file {" + artifact.getAbsolutePath() + "} line: {" + line + "}");
+            }
+          }
+        }
+      } catch(IOException e) {
+        log.warn("Failed to load taken locks for build [" + build + "]; Message is: " + e.getMessage());
       }
     }
+    return result;
   }
 
   @Override
   public boolean locksStored(@NotNull final SBuild build) {
-    final long id = build.getBuildId();
-    final ReentrantLock l = myGuards.get(id);
-    try {
-      if (l != null) {
-        l.lock();
+    ensureJournalRead();
+    return myStoredLocks.containsKey(build.getBuildId());
+  }
+
+  @NotNull
+  @Override
+  public Map<Long, String> getTakenValues(@NotNull final String resourceName) {
+    ensureJournalRead();
+    final Map<Long, String> result = myTakenValues.get(resourceName);
+    return result == null ? Collections.emptyMap() : Collections.unmodifiableMap(result);
+  }
+
+  private void addTakenValues(final long buildId, @NotNull final Map<String, Lock> locks) {
+    for (Lock lock: locks.values()) {
+      if (!"".equals(lock.getValue())) {
+        // values map is changed inside compute, as it is removed by buildFinished when empty
+        myTakenValues.compute(lock.getName(), (name, values) -> {
+          final Map<Long, String> result = values == null ? new ConcurrentHashMap<>() : values;
+          result.put(buildId, lock.getValue());
+          return result;
+        });
+        myBuildValues.computeIfAbsent(buildId, id -> ConcurrentHashMap.newKeySet()).add(lock.getName());
       }
-      return existsSet.contains(id);
-    } finally {
-      if (l != null) {
-        l.unlock();
+    }
+  }
+
+  private void removeTakenValues(final long buildId) {
+    final Collection<String> names = myBuildValues.remove(buildId);
+    if (names != null) {
+      for (String name: names) {
+        myTakenValues.computeIfPresent(name, (key, values) -> {
+          values.remove(buildId);
+          return values.isEmpty() ? null : values;
+        });
       }
     }
   }
 
+  /**
+   * Builds, that were running before server restart, have their locks in the journal.
+   * Called before any change of stored locks, so that finished builds are not restored from the journal.
+   * Builds, that are no longer running, finished or were lost while the server was down. No finish event
+   * will come for them, so their locks are not restored and are removed from the journal
+   */
+  private void ensureJournalRead() {
+    if (!myJournalRead) {
+      synchronized (myJournalLock) {
+        if (!myJournalRead) {
+          final Set<Long> notRunning = new HashSet<>();
+          for (Long id: myJournal.getBuildIds()) {
+            final SRunningBuild build = myRunningBuildsManager.findRunningBuildById(id);
+            if (build == null || build.isFinished()) {
+              notRunning.add(id);
+              continue;
+            }
+            final Map<String, Lock> locks = myJournal.load(id);
+            if (locks != null) {
+              myStoredLocks.putIfAbsent(id, new StoredLocks(locks));
+              addTakenValues(id, locks);
+            }
+          }
+          if (!notRunning.isEmpty()) {
+            if (log.isDebugEnabled()) {
+              log.debug("Locks of builds " + notRunning + " are removed from the journal, as the builds are no longer running");
+            }
+            myJournal.removeAll(notRunning);
+          }
+          myJournalRead = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Serializes taken lock in format {@code name type value... [weight]}.
+   * Weight is written only for weighted locks. Lock, that holds several values, is always weighted
+   */
   @NotNull
   private String serializeTakenLock(@NotNull final Lock lock, @NotNull final String value) {
-    return StringUtil.join("\t", lock.getName(), lock.getType(), value.equals("") ? " " : value);
+    final String result = StringUtil.join("\t", lock.getName(), lock.getType(), value.equals("") ? " " : value.replace(Lock.VALUES_SEPARATOR, '\t'));
+    return lock.getWeight() == Lock.DEFAULT_WEIGHT ? result : result + "\t" + lock.getWeight();
   }
 
   @Nullable
   private Lock deserializeTakenLock(@NotNull final String line) {
     final List<String> strings = StringUtil.split(line, true, '\t'); // we need empty values for locks without values
     Lock result = null;
-    if (strings.size() == 3) {
-      String value =  StringUtil.trim(strings.get(2));
-      if (value == null) {
-        value = "";
+    if (strings.size() >= 3) {
+      int weight = Lock.DEFAULT_WEIGHT;
+      int valuesEnd = strings.size();
+      if (strings.size() > 3) {
+        try {
+          weight = Integer.parseInt(strings.get(strings.size() - 1).trim());
+          valuesEnd--;
+        } catch (NumberFormatException e) {
+          return null;
+        }
       }
-      result = new Lock(strings.get(0), LockType.byName(strings.get(1)), value);
+      final List<String> values = new ArrayList<>(valuesEnd - 2);
+      for (String str: strings.subList(2, valuesEnd)) {
+        final String value = StringUtil.trim(str);
+        if (value != null && !value.isEmpty()) {
+          values.add(value);
+        }
+      }
+      result = new Lock(strings.get(0), LockType.byName(strings.get(1)), Lock.joinValues(values), weight);
     }
     return result;
   }
 
+  /**
+   * Locks of a single build. Never changed after publishing
+   */
+  private static final class StoredLocks {
+
+    @NotNull
+    private final Map<String, Lock> myLocks;
+
+    private StoredLocks(@NotNull final Map<String, Lock> locks) {
+      myLocks = Collections.unmodifiableMap(new HashMap<>(locks));
+    }
+  }
 }
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class {@code ResourceWaitQueues}
+ *
+ * Wait queues of write lock requests, that live across distribution passes.
+ * Queued build, that can not acquire write lock on a resource, is put into the queue of the resource.
+ * Builds, that request write lock on the same resource later, wait for the builds in the queue.
+ * Read locks may bypass the oldest write request only a limited number of times
+ * and only until the request becomes old enough. Bypass is counted only when the reader starts.
+ * By default, {@link #DEFAULT_MAX_BYPASS} readers may start ahead of the oldest write request,
+ * set {@link #MAX_BYPASS_PROPERTY} to {@code 0} to make readers always wait for it.
+ *
+ * Waiting builds are ordered by the time they first waited for a write lock,
+ * so the order of the builds is the same in queues of all resources
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class ResourceWaitQueues {
+
+  /**
+   * Number of times read locks can be acquired while write lock request is waiting
+   */
+  @NotNull
+  static final String MAX_BYPASS_PROPERTY = "teamcity.sharedResources.writeLock.maxBypass";
+
+  static final int DEFAULT_MAX_BYPASS = 10;
+
+  /**
+   * Time in seconds, after which read locks no longer bypass waiting write lock request
+   */
+  @NotNull
+  static final String MAX_WAIT_PROPERTY = "teamcity.sharedResources.writeLock.maxWaitSeconds";
+
+  static final int DEFAULT_MAX_WAIT = 300;
+
+  @NotNull
+  private final Object myLock = new Object();
+
+  /**
+   * Write requests of waiting builds in format {@code promotionId -> waiter}
+   */
+  @NotNull
+  private final Map<Long, Waiter> myWaiters = new HashMap<>();
+
+  /**
+   * Queues of write requests in format {@code resource -> waiters, oldest first}
+   */
+  @NotNull
+  private final Map<Resource, NavigableSet<Waiter>> myQueues = new HashMap<>();
+
+  /**
+   * Write requests, bypassed by builds with read locks, in format {@code promotionId -> waiters}.
+   * Bypasses are counted when the build leaves the build queue to start
+   */
+  @NotNull
+  private final Map<Long, List<Waiter>> myBypasses = new HashMap<>();
+
+  private long mySequence = 0;
+
+  public ResourceWaitQueues(@NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void buildRemovedFromQueue(@NotNull final SQueuedBuild queuedBuild,
+                                        @Nullable final User user,
+                                        @Nullable final String comment) {
+        final BuildPromotion promotion = queuedBuild.getBuildPromotion();
+        if (promotion.getAssociatedBuild() instanceof SRunningBuild) {
+          started(promotion.getId());
+        } else {
+          remove(promotion.getId());
+        }
+      }
+    });
+  }
+
+  /**
+   * Gets locks of the build, that are held back by write requests, waiting in the queues
+   *
+   * @param promotionId id of queued build promotion
+   * @param locks required locks of the build
+   * @return locks, that can not be acquired until the requests in the queues are served
+   */
+  @NotNull
+  public Map<Resource, Lock> getBlockedLocks(final long promotionId, @NotNull final Map<Resource, Lock> locks) {
+    Map<Resource, Lock> result = null;
+    synchronized (myLock) {
+      if (myQueues.isEmpty()) {
+        return Collections.emptyMap();
+      }
+      final Waiter self = myWaiters.get(promotionId);
+      for (Map.Entry<Resource, Lock> entry: locks.entrySet()) {
+        final NavigableSet<Waiter> queue = myQueues.get(entry.getKey());
+        if (queue != null && isBlocked(self, queue.first(), entry.getValue().getType())) {
+          if (result == null) {
+            result = new HashMap<>();
+          }
+          result.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    return result == null ? Collections.emptyMap() : result;
+  }
+
+  /**
+   * Puts unavailable write locks of the build into queues of their resources
+   *
+   * @param promotionId id of queued build promotion
+   * @param unavailableLocks locks, the build waits for
+   */
+  public void enqueue(final long promotionId, @NotNull final Map<Resource, Lock> unavailableLocks) {
+    synchronized (myLock) {
+      // the build waits again, it does not bypass anyone
+      myBypasses.remove(promotionId);
+      Waiter waiter = myWaiters.get(promotionId);
+      for (Map.Entry<Resource, Lock> entry: unavailableLocks.entrySet()) {
+        if (entry.getValue().getType() == LockType.WRITE) {
+          if (waiter == null) {
+            waiter = new Waiter(promotionId, System.currentTimeMillis(), ++mySequence);
+            myWaiters.put(promotionId, waiter);
+          }
+          if (waiter.myResources.add(entry.getKey())) {
+            myQueues.computeIfAbsent(entry.getKey(), r -> new TreeSet<>()).add(waiter);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Notifies queues, that the build acquires its locks.
+   * Write requests, that the build bypasses with read locks, are remembered and counted once the build starts.
+   * Write requests of the build stay in the queues until the build leaves the build queue,
+   * as the build can still be rejected by other agent filters and must not lose its position
+   *
+   * @param promotionId id of queued build promotion
+   * @param locks locks, acquired by the build
+   */
+  public void acquired(final long promotionId, @NotNull final Map<Resource, Lock> locks) {
+    synchronized (myLock) {
+      myBypasses.remove(promotionId);
+      if (myQueues.isEmpty()) {
+        return;
+      }
+      final Waiter self = myWaiters.get(promotionId);
+      List<Waiter> bypassed = null;
+      for (Map.Entry<Resource, Lock> entry: locks.entrySet()) {
+        if (entry.getValue().getType() == LockType.READ) {
+          final NavigableSet<Waiter> queue = myQueues.get(entry.getKey());
+          if (queue != null && (self == null || self.compareTo(queue.first()) > 0)) {
+            if (bypassed == null) {
+              bypassed = new ArrayList<>();
+            }
+            bypassed.add(queue.first());
+          }
+        }
+      }
+      if (bypassed != null) {
+        myBypasses.put(promotionId, bypassed);
+      }
+    }
+  }
+
+  /**
+   * Counts bypasses of the build, that left the build queue to start, and removes its write requests
+   *
+   * @param promotionId id of build promotion
+   */
+  public void started(final long promotionId) {
+    synchronized (myLock) {
+      final List<Waiter> bypassed = myBypasses.get(promotionId);
+      if (bypassed != null) {
+        bypassed.forEach(waiter -> waiter.myBypassCount++);
+      }
+      remove(promotionId);
+    }
+  }
+
+  /**
+   * Removes write requests of the build, that left the build queue, either to start or to be canceled
+   *
+   * @param promotionId id of build promotion
+   */
+  public void remove(final long promotionId) {
+    synchronized (myLock) {
+      myBypasses.remove(promotionId);
+      final Waiter waiter = myWaiters.remove(promotionId);
+      if (waiter != null) {
+        dequeue(waiter);
+      }
+    }
+  }
+
+  /**
+   * @param resource resource
+   * @return number of write requests, waiting for the resource
+   */
+  int getQueueLength(@NotNull final Resource resource) {
+    synchronized (myLock) {
+      final NavigableSet<Waiter> queue = myQueues.get(resource);
+      return queue == null ? 0 : queue.size();
+    }
+  }
+
+  private void dequeue(@NotNull final Waiter waiter) {
+    for (Resource resource: waiter.myResources) {
+      final NavigableSet<Waiter> queue = myQueues.get(resource);
+      if (queue != null) {
+        queue.remove(waiter);
+        if (queue.isEmpty()) {
+          myQueues.remove(resource);
+        }
+      }
+    }
+    waiter.myResources.clear();
+  }
+
+  /**
+   * Write lock waits for all older write requests.
+   * Read lock waits for the oldest write request, unless it can still be bypassed
+   */
+  private boolean isBlocked(@Nullable final Waiter self,
+                            @NotNull final Waiter head,
+                            @NotNull final LockType type) {
+    if (self != null && self.compareTo(head) <= 0) {
+      return false;
+    }
+    if (type == LockType.WRITE) {
+      return true;
+    }
+    final long maxWait = TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(MAX_WAIT_PROPERTY, DEFAULT_MAX_WAIT));
+    return head.myBypassCount >= TeamCityProperties.getInteger(MAX_BYPASS_PROPERTY, DEFAULT_MAX_BYPASS)
+           || System.currentTimeMillis() - head.myEnqueueTime >= maxWait;
+  }
+
+  /**
+   * Write requests of a single waiting build
+   */
+  private static final class Waiter implements Comparable<Waiter> {
+
+    private final long myPromotionId;
+
+    private final long myEnqueueTime;
+
+    /**
+     * Order of waiters with the same enqueue time
+     */
+    private final long mySequence;
+
+    /**
+     * Resources, which queues contain the waiter
+     */
+    @NotNull
+    private final Set<Resource> myResources = new HashSet<>();
+
+    /**
+     * Number of builds, that started with read locks while the waiter was the oldest in the queue
+     */
+    private int myBypassCount = 0;
+
+    private Waiter(final long promotionId, final long enqueueTime, final long sequence) {
+      myPromotionId = promotionId;
+      myEnqueueTime = enqueueTime;
+      mySequence = sequence;
+    }
+
+    @Override
+    public int compareTo(@NotNull final Waiter other) {
+      final int result = Long.compare(myEnqueueTime, other.myEnqueueTime);
+      return result != 0 ? result : Long.compare(mySequence, other.mySequence);
+    }
+
+    @Override
+    public String toString() {
+      return "Waiter{promotionId=" + myPromotionId + ", enqueueTime=" + myEnqueueTime + "}";
+    }
+  }
+}
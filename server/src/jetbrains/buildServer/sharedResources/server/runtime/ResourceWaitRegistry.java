@@ -0,0 +1,360 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.buildDistribution.WaitReason;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Class {@code ResourceWaitRegistry}
+ *
+ * Registry of queued builds, that wait for shared resources.
+ * For each waiting build promotion, registry keeps resources it is blocked on.
+ * When locks on a resource are released, waits on the resource are dropped,
+ * so only builds, waiting on the released resource, are checked again by build distribution.
+ * Other waiting builds keep their wait reason until one of their resources is released
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class ResourceWaitRegistry {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(ResourceWaitRegistry.class.getName());
+
+  @NotNull
+  private static final long[] NO_HOLDERS = new long[0];
+
+  @NotNull
+  private final ProjectSettingsVersion mySettingsVersion;
+
+  @NotNull
+  private final Object myLock = new Object();
+
+  /**
+   * Waits of queued builds in format {@code promotionId -> wait}
+   */
+  @NotNull
+  private final Map<Long, Wait> myWaits = new HashMap<>();
+
+  /**
+   * Builds, waiting on resource, in format {@code resource -> promotion ids}
+   */
+  @NotNull
+  private final Map<Resource, Set<Long>> myWaiters = new HashMap<>();
+
+  /**
+   * Release versions of resources in format {@code resource -> release version}.
+   * Used to detect releases, that happened while wait was computed
+   */
+  @NotNull
+  private final Map<Resource, Long> myReleaseVersions = new HashMap<>();
+
+  private long myReleaseVersion = 0;
+
+  /**
+   * Settings version, current waits were computed for
+   */
+  private long myRegisteredVersion;
+
+  public ResourceWaitRegistry(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                              @NotNull final ProjectSettingsVersion settingsVersion) {
+    mySettingsVersion = settingsVersion;
+    myRegisteredVersion = settingsVersion.get();
+    dispatcher.addListener(new BuildServerAdapter() {
+
+      /**
+       * Build, that leaves the queue, no longer waits. Builds, that lost the resource
+       * to its write lock request, are checked again
+       */
+      @Override
+      public void buildRemovedFromQueue(@NotNull final SQueuedBuild queuedBuild,
+                                        @Nullable final User user,
+                                        @Nullable final String comment) {
+        remove(queuedBuild.getBuildPromotion().getId());
+      }
+    });
+  }
+
+  /**
+   * Gets current release version. Taken before taken locks are read,
+   * to detect releases that happened while wait was computed
+   *
+   * @return current release version
+   */
+  public long getReleaseVersion() {
+    synchronized (myLock) {
+      return myReleaseVersion;
+    }
+  }
+
+  /**
+   * Gets wait of the build promotion, if none of the resources, the build waits on, was released since
+   * the wait was registered
+   *
+   * @param promotionId id of queued build promotion
+   * @param requiredLocks locks, required by the build
+   * @return wait of the build or {@code null}, if build must be checked again
+   */
+  @Nullable
+  public Wait getWait(final long promotionId, @NotNull final Map<Resource, Lock> requiredLocks) {
+    synchronized (myLock) {
+      ensureVersion();
+      final Wait wait = myWaits.get(promotionId);
+      if (wait != null && wait.myCacheable && (wait.myRequiredLocks == requiredLocks || wait.myRequiredLocks.equals(requiredLocks))) {
+        return wait;
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Gets reason of the wait, registered for the build, if the build still waits for the same locks,
+   * held by the same builds. Used for the builds, that are checked on each distribution pass
+   *
+   * @param promotionId id of queued build promotion
+   * @param unavailableLocks locks, the build waits for
+   * @param takenLocks taken locks
+   * @return registered wait reason or {@code null}, if the set of blocking locks changed
+   */
+  @Nullable
+  public WaitReason getReason(final long promotionId,
+                              @NotNull final Map<Resource, Lock> unavailableLocks,
+                              @NotNull final Map<Resource, TakenLock> takenLocks) {
+    synchronized (myLock) {
+      ensureVersion();
+      final Wait wait = myWaits.get(promotionId);
+      if (wait == null || !wait.myUnavailableLocks.equals(unavailableLocks)) {
+        return null;
+      }
+      for (Map.Entry<Resource, long[]> entry: wait.myHolderIds.entrySet()) {
+        if (!Arrays.equals(entry.getValue(), getHolderIds(takenLocks.get(entry.getKey())))) {
+          return null;
+        }
+      }
+      return wait.myReason;
+    }
+  }
+
+  /**
+   * Registers wait of queued build
+   *
+   * @param promotionId id of queued build promotion
+   * @param requiredLocks locks, required by the build
+   * @param unavailableLocks locks, the build waits for
+   * @param takenLocks taken locks, the wait was computed against
+   * @param reason wait reason of the build
+   * @param cacheable {@code false} if the wait may end without release of any lock,
+   *                  in this case the build is checked again on each distribution pass
+   * @param releaseVersion release version, taken before taken locks were read
+   */
+  public void register(final long promotionId,
+                       @NotNull final Map<Resource, Lock> requiredLocks,
+                       @NotNull final Map<Resource, Lock> unavailableLocks,
+                       @NotNull final Map<Resource, TakenLock> takenLocks,
+                       @NotNull final WaitReason reason,
+                       final boolean cacheable,
+                       final long releaseVersion) {
+    synchronized (myLock) {
+      ensureVersion();
+      removeInternal(promotionId);
+      boolean releasedSince = false;
+      for (Resource resource: unavailableLocks.keySet()) {
+        final Long version = myReleaseVersions.get(resource);
+        if (version != null && version > releaseVersion) {
+          releasedSince = true;
+          break;
+        }
+      }
+      final Map<Resource, long[]> holderIds = new HashMap<>();
+      for (Resource resource: unavailableLocks.keySet()) {
+        holderIds.put(resource, getHolderIds(takenLocks.get(resource)));
+      }
+      final Wait wait = new Wait(requiredLocks, unavailableLocks, holderIds, reason, cacheable && !releasedSince);
+      myWaits.put(promotionId, wait);
+      for (Resource resource: unavailableLocks.keySet()) {
+        myWaiters.computeIfAbsent(resource, r -> new HashSet<>()).add(promotionId);
+      }
+    }
+  }
+
+  /**
+   * Removes wait of the build, that can start or left the queue.
+   * Write lock requests of the build no longer block other builds, so their resources are released
+   *
+   * @param promotionId id of build promotion
+   */
+  public void remove(final long promotionId) {
+    synchronized (myLock) {
+      final Wait wait = removeInternal(promotionId);
+      if (wait != null && !wait.myWriteRequests.isEmpty()) {
+        releasedInternal(wait.myWriteRequests);
+      }
+    }
+  }
+
+  /**
+   * Notifies registry, that locks on the resources were released
+   *
+   * @param resources resources, which locks were released
+   * @return ids of build promotions, that were waiting on the resources and will be checked again
+   */
+  @NotNull
+  public Set<Long> released(@NotNull final Collection<Resource> resources) {
+    if (resources.isEmpty()) {
+      return Collections.emptySet();
+    }
+    synchronized (myLock) {
+      return releasedInternal(resources);
+    }
+  }
+
+  /**
+   * Builds, woken by release, are checked again, so their write lock requests
+   * no longer block other builds until they register their waits again
+   */
+  @NotNull
+  private Set<Long> releasedInternal(@NotNull final Collection<Resource> resources) {
+    final long version = ++myReleaseVersion;
+    final Set<Long> result = new HashSet<>();
+    final Deque<Resource> released = new ArrayDeque<>(resources);
+    while (!released.isEmpty()) {
+      final Resource resource = released.poll();
+      myReleaseVersions.put(resource, version);
+      final Set<Long> waiters = myWaiters.remove(resource);
+      if (waiters != null) {
+        for (Long id: waiters) {
+          final Wait wait = removeInternal(id);
+          if (wait != null) {
+            result.add(id);
+            released.addAll(wait.myWriteRequests);
+          }
+        }
+      }
+    }
+    if (LOG.isDebugEnabled() && !result.isEmpty()) {
+      LOG.debug("Released resources " + resources + " unblock queued builds " + result);
+    }
+    return result;
+  }
+
+  @Nullable
+  private Wait removeInternal(final long promotionId) {
+    final Wait wait = myWaits.remove(promotionId);
+    if (wait != null) {
+      for (Resource resource: wait.myResources) {
+        final Set<Long> waiters = myWaiters.get(resource);
+        if (waiters != null) {
+          waiters.remove(promotionId);
+          if (waiters.isEmpty()) {
+            myWaiters.remove(resource);
+          }
+        }
+      }
+    }
+    return wait;
+  }
+
+  @NotNull
+  private static long[] getHolderIds(@Nullable final TakenLock takenLock) {
+    return takenLock == null ? NO_HOLDERS : takenLock.getHolderIds();
+  }
+
+  /**
+   * Waits are computed against resources, so they are dropped after resource settings change
+   */
+  private void ensureVersion() {
+    final long version = mySettingsVersion.get();
+    if (version != myRegisteredVersion) {
+      myWaits.clear();
+      myWaiters.clear();
+      myReleaseVersions.clear();
+      myRegisteredVersion = version;
+    }
+  }
+
+  /**
+   * Wait of a single queued build. Never changed after registration
+   */
+  public static final class Wait {
+
+    @NotNull
+    private final Map<Resource, Lock> myRequiredLocks;
+
+    @NotNull
+    private final Set<Resource> myResources;
+
+    @NotNull
+    private final Map<Resource, Lock> myUnavailableLocks;
+
+    /**
+     * Holders of unavailable locks in format {@code resource -> sorted promotion ids}
+     */
+    @NotNull
+    private final Map<Resource, long[]> myHolderIds;
+
+    /**
+     * Resources, the build requested write lock on. Build keeps other builds from
+     * taking read locks on these resources while it waits
+     */
+    @NotNull
+    private final Set<Resource> myWriteRequests;
+
+    @NotNull
+    private final WaitReason myReason;
+
+    private final boolean myCacheable;
+
+    private Wait(@NotNull final Map<Resource, Lock> requiredLocks,
+                 @NotNull final Map<Resource, Lock> unavailableLocks,
+                 @NotNull final Map<Resource, long[]> holderIds,
+                 @NotNull final WaitReason reason,
+                 final boolean cacheable) {
+      myRequiredLocks = requiredLocks;
+      myResources = new HashSet<>(unavailableLocks.keySet());
+      myUnavailableLocks = unavailableLocks;
+      myHolderIds = holderIds;
+      final Set<Resource> writeRequests = new HashSet<>();
+      for (Map.Entry<Resource, Lock> entry: unavailableLocks.entrySet()) {
+        if (entry.getValue().getType() == LockType.WRITE) {
+          writeRequests.add(entry.getKey());
+        }
+      }
+      myWriteRequests = writeRequests.isEmpty() ? Collections.emptySet() : writeRequests;
+      myReason = reason;
+      myCacheable = cacheable;
+    }
+
+    @NotNull
+    public WaitReason getReason() {
+      return myReason;
+    }
+  }
+}
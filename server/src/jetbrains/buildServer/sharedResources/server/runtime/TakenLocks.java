@@ -24,6 +24,7 @@ import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -52,6 +53,18 @@ public interface TakenLocks {
                                              @NotNull final Collection<SRunningBuild> runningBuilds,
                                              @NotNull final Collection<QueuedBuildInfo> queuedBuilds);
 
+  /**
+   * Adds locks of given queued builds to already collected taken locks.
+   * Locks of queued builds are resolved using promotion+buildType
+   *
+   * @param takenLocks taken locks to add locks to, in format {@code <Resource, TakenLock>}
+   * @param queuedBuilds queued builds
+   *
+   * @see TakenLocksIndex#getTakenLocks()
+   */
+  void addQueuedLocks(@NotNull final Map<Resource, TakenLock> takenLocks,
+                      @NotNull final Collection<QueuedBuildInfo> queuedBuilds);
+
   /**
    * Decides, whether required locks can be acquired by the build
    *
@@ -66,4 +79,34 @@ public interface TakenLocks {
                                           @NotNull final String projectId,
                                           @NotNull final Set<String> fairSet);
 
+  /**
+   * Decides, whether required locks, already resolved against resources, can be acquired by the build
+   *
+   * @param locksToTake required locks in format {@code <Resource, Lock>}
+   * @param takenLocks taken locks
+   * @param fairSet set used to remember write access requests
+   * @return empty collection, if locks can be acquired, collection, that contains unavailable locks otherwise
+   *
+   * @see jetbrains.buildServer.sharedResources.server.LockFootprint#getResolvedLocks()
+   */
+  @NotNull
+  Map<Resource, Lock> getUnavailableLocks(@NotNull final Map<Resource, Lock> locksToTake,
+                                          @NotNull final Map<Resource, TakenLock> takenLocks,
+                                          @NotNull final Set<String> fairSet);
+
+  /**
+   * Decides, whether required locks, already resolved against resources, can be acquired by the build.
+   * Locks are iterated by index, so nothing is allocated, when all locks are available
+   *
+   * @param locksToTake required locks as a random access list of {@code <Resource, Lock>} entries
+   * @param takenLocks taken locks
+   * @param fairSet set used to remember write access requests
+   * @return empty collection, if locks can be acquired, collection, that contains unavailable locks otherwise
+   *
+   * @see jetbrains.buildServer.sharedResources.server.LockFootprint#getResolvedLockList()
+   */
+  @NotNull
+  Map<Resource, Lock> getUnavailableLocks(@NotNull final List<Map.Entry<Resource, Lock>> locksToTake,
+                                          @NotNull final Map<Resource, TakenLock> takenLocks,
+                                          @NotNull final Set<String> fairSet);
 }
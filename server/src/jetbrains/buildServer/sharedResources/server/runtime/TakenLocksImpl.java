@@ -29,6 +29,7 @@ import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 
@@ -78,7 +79,7 @@ public class TakenLocksImpl implements TakenLocks {
         if (myLocksStorage.locksStored(rbEx)) { // lock values are already resolved
           locks = myLocksStorage.load(rbEx);
         } else {
-          locks = myLocks.fromBuildFeaturesAsMap(features); // in future: <String, Set<Lock>>
+          locks = myLocks.fromBuildFeaturesAsMap(features);
         }
         if (locks.isEmpty()) continue;
         // get resources defined in project tree, respecting inheritance
@@ -93,14 +94,26 @@ public class TakenLocksImpl implements TakenLocks {
         }
       }
     }
+    addQueuedLocks(result, queuedBuilds, cachedResources);
+    return result;
+  }
+
+  @Override
+  public void addQueuedLocks(@NotNull final Map<Resource, TakenLock> takenLocks,
+                             @NotNull final Collection<QueuedBuildInfo> queuedBuilds) {
+    addQueuedLocks(takenLocks, queuedBuilds, new HashMap<>());
+  }
 
+  private void addQueuedLocks(@NotNull final Map<Resource, TakenLock> takenLocks,
+                              @NotNull final Collection<QueuedBuildInfo> queuedBuilds,
+                              @NotNull final Map<String, Map<String, Resource>> cachedResources) {
     for (QueuedBuildInfo build : queuedBuilds) {
       BuildPromotionEx bpEx = (BuildPromotionEx) build.getBuildPromotionInfo();
       final BuildTypeEx buildType = bpEx.getBuildType();
       if (buildType != null) {
         final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(buildType);
         if (features.isEmpty()) continue;
-        Map<String, Lock> locks = myLocks.fromBuildFeaturesAsMap(features); // in future: <String, Set<Lock>>
+        Map<String, Lock> locks = myLocks.fromBuildFeaturesAsMap(features);
         if (locks.isEmpty()) continue;
         // get resources defined in project tree, respecting inheritance
         final Map<String, Resource> resources = getResources(buildType.getProjectId(), cachedResources);
@@ -108,12 +121,11 @@ public class TakenLocksImpl implements TakenLocks {
           // collection, promotion, resource, lock
           final Resource resource = resources.get(entry.getKey());
           if (resource != null) {
-            addLockToTaken(result, bpEx, resource, entry.getValue());
+            addLockToTaken(takenLocks, bpEx, resource, entry.getValue());
           }
         }
       }
     }
-    return result;
   }
 
   @NotNull
@@ -129,15 +141,67 @@ public class TakenLocksImpl implements TakenLocks {
                                                  @NotNull String projectId,
                                                  @NotNull final Set<String> fairSet) {
     final Map<String, Resource> resources = myResources.getResourcesMap(projectId);
-    final Map<Resource, Lock> result = new HashMap<>();
+    final Map<Resource, Lock> resolvedLocks = new HashMap<>();
     for (Lock lock : locksToTake) {
       final Resource resource = resources.get(lock.getName());
       if (resource != null) {
-        if (!resource.isEnabled() || !checkAgainstResource(lock, takenLocks, resource, fairSet)) {
-          result.put(resource, lock);
-        }
+        resolvedLocks.put(resource, lock);
       }
     }
+    return getUnavailableLocks(resolvedLocks, takenLocks, fairSet);
+  }
+
+  /**
+   * Checks locks against taken locks. Taken locks are not changed by the check,
+   * resources without taken locks are considered free
+   */
+  @NotNull
+  @Override
+  public Map<Resource, Lock> getUnavailableLocks(@NotNull final Map<Resource, Lock> locksToTake,
+                                                 @NotNull final Map<Resource, TakenLock> takenLocks,
+                                                 @NotNull final Set<String> fairSet) {
+    Map<Resource, Lock> result = null;
+    for (Map.Entry<Resource, Lock> entry : locksToTake.entrySet()) {
+      result = addIfUnavailable(result, entry.getKey(), entry.getValue(), takenLocks, fairSet);
+    }
+    return result == null ? Collections.emptyMap() : result;
+  }
+
+  /**
+   * Checks locks against taken locks without iterators,
+   * so that nothing is allocated when all locks are available
+   */
+  @NotNull
+  @Override
+  public Map<Resource, Lock> getUnavailableLocks(@NotNull final List<Map.Entry<Resource, Lock>> locksToTake,
+                                                 @NotNull final Map<Resource, TakenLock> takenLocks,
+                                                 @NotNull final Set<String> fairSet) {
+    Map<Resource, Lock> result = null;
+    for (int i = 0; i < locksToTake.size(); i++) {
+      final Map.Entry<Resource, Lock> entry = locksToTake.get(i);
+      result = addIfUnavailable(result, entry.getKey(), entry.getValue(), takenLocks, fairSet);
+    }
+    return result == null ? Collections.emptyMap() : result;
+  }
+
+  /**
+   * Adds lock to the unavailable locks, if resource is disabled or the lock can not be taken.
+   * Map of unavailable locks is created for the first unavailable lock
+   *
+   * @return map of unavailable locks, {@code null} if all locks checked so far are available
+   */
+  @Nullable
+  private Map<Resource, Lock> addIfUnavailable(@Nullable Map<Resource, Lock> result,
+                                               @NotNull final Resource resource,
+                                               @NotNull final Lock lock,
+                                               @NotNull final Map<Resource, TakenLock> takenLocks,
+                                               @NotNull final Set<String> fairSet) {
+    if (!resource.isEnabled() || !checkAgainstResource(lock, takenLocks.get(resource), resource, fairSet)) {
+      if (result == null) {
+        result = new HashMap<>();
+      }
+      result.put(resource, lock);
+    }
     return result;
   }
 
@@ -145,73 +209,65 @@ public class TakenLocksImpl implements TakenLocks {
                               @NotNull final BuildPromotionEx bpEx,
                               @NotNull final Resource resource,
                               @NotNull final Lock lock) {
-    final TakenLock takenLock = getOrCreateTakenLock(takenLocks, resource);
-    takenLock.addLock(bpEx, lock);
-  }
-
-  private TakenLock getOrCreateTakenLock(@NotNull final Map<Resource, TakenLock> takenLocks,
-                                         @NotNull final Resource resource) {
-    return takenLocks.computeIfAbsent(resource, TakenLock::new);
+    takenLocks.computeIfAbsent(resource, TakenLock::new).addLock(bpEx, lock);
   }
 
   private boolean checkAgainstResource(@NotNull final Lock lock,
-                                       @NotNull final Map<Resource, TakenLock> takenLocks,
+                                       @Nullable final TakenLock takenLock,
                                        @NotNull final Resource resource,
                                        @NotNull final Set<String> fairSet) {
     boolean result = true;
     if (ResourceType.QUOTED.equals(resource.getType())) {
-      result = checkAgainstQuotedResource(lock, takenLocks, (QuotedResource) resource, fairSet);
+      result = checkAgainstQuotedResource(lock, takenLock, (QuotedResource) resource, fairSet);
     } else if (ResourceType.CUSTOM.equals(resource.getType())) {
-      result = checkAgainstCustomResource(lock, takenLocks, (CustomResource) resource, fairSet);
+      result = checkAgainstCustomResource(lock, takenLock, (CustomResource) resource, fairSet);
     }
     return result;
   }
 
   private boolean checkAgainstCustomResource(@NotNull final Lock lock,
-                                             @NotNull final Map<Resource, TakenLock> takenLocks,
+                                             @Nullable final TakenLock takenLock,
                                              @NotNull final CustomResource resource,
                                              @NotNull final Set<String> fairSet) {
     boolean result = true;
     // what type of lock do we have
     // write            -> all
     // read with value  -> specific
-    // read             -> any
-    final TakenLock takenLock = getOrCreateTakenLock(takenLocks, resource);
+    // read             -> any (weight of the lock is the number of values)
     switch (lock.getType()) {
-      case READ:   // check at least one value is available
+      case READ:   // check enough values are available
         // check for unique writeLocks
         if (fairSet.contains(lock.getName())) {
           result = false;
           break;
         }
-
+        if (takenLock == null) { // nothing is taken
+          if (resource.getValues().size() < lock.getWeight()) { // resource does not define enough values
+            result = false;
+          }
+          break;
+        }
         // check for write locks
         if (takenLock.hasWriteLocks()) { // ALL values are locked
           result = false;
           break;
         }
-        // 2) check for quota (read + write)
-        if (resource.getValues().size() <= takenLock.getLocksCount()) {
+        // 2) check for quota (read + write). Each lock takes as many values, as its weight
+        if (resource.getValues().size() < takenLock.getTakenWeight() + lock.getWeight()) {
           // quota exceeded
           result = false;
           break;
         }
         // 3) SPECIFIC case
-        if (!"".equals(lock.getValue())) { // we have custom lock
-          final String requiredValue = lock.getValue();
-          final Set<String> takenValues = new HashSet<>();
-          takenValues.addAll(takenLock.getReadLocks().values());
-          takenValues.addAll(takenLock.getWriteLocks().values());
-          if (takenValues.contains(requiredValue)) {
-            // value was already taken
-            result = false;
-            break;
-          }
+        if (!"".equals(lock.getValue()) && takenLock.isValueTaken(lock.getValue())) {
+          // value was already taken
+          result = false;
+          break;
         }
         break;
       case WRITE:
         // 'ALL' case
-        if (takenLock.hasReadLocks() || takenLock.hasWriteLocks()) {
+        if (takenLock != null && takenLock.getLocksCount() > 0) {
           fairSet.add(lock.getName());
           result = false;
           break;
@@ -222,11 +278,11 @@ public class TakenLocksImpl implements TakenLocks {
   }
 
   private boolean checkAgainstQuotedResource(@NotNull final Lock lock,
-                                             @NotNull final Map<Resource, TakenLock> takenLocks,
+                                             @Nullable final TakenLock takenLock,
                                              @NotNull final QuotedResource resource,
                                              @NotNull final Set<String> fairSet) {
     boolean result = true;
-    final TakenLock takenLock = getOrCreateTakenLock(takenLocks, resource);
+    final int takenWeight = takenLock == null ? 0 : takenLock.getTakenWeight();
     switch (lock.getType()) {
       case READ:
         if (fairSet.contains(lock.getName())) { // some build requested write lock before us
@@ -234,18 +290,18 @@ public class TakenLocksImpl implements TakenLocks {
           break;
         }
         // Check that no write lock exists
-        if (takenLock.hasWriteLocks()) {
+        if (takenLock != null && takenLock.hasWriteLocks()) {
           result = false;
           break;
         }
-        if (!isQuotaEnough(takenLock, resource)) {
+        if (!isQuotaEnough(takenWeight, lock, resource)) {
           result = false;
           break;
         }
         break;
       case WRITE:
         // if anyone is accessing the resource
-        if (takenLock.hasReadLocks() || takenLock.hasWriteLocks() || !isQuotaEnough(takenLock, resource)) {
+        if (takenWeight > 0 || !isQuotaEnough(takenWeight, lock, resource)) {
           fairSet.add(lock.getName()); // remember write access request
           result = false;
         }
@@ -253,7 +309,13 @@ public class TakenLocksImpl implements TakenLocks {
     return result;
   }
 
-  private boolean isQuotaEnough(@NotNull final TakenLock takenLock, @NotNull final QuotedResource resource) {
-    return resource.isInfinite() || takenLock.getLocksCount() < resource.getQuota();
+  /**
+   * Checks, that quota of the resource has enough free units for the lock.
+   * Lock of weight {@code N} takes {@code N} units of the quota
+   */
+  private boolean isQuotaEnough(final int takenWeight,
+                                @NotNull final Lock lock,
+                                @NotNull final QuotedResource resource) {
+    return resource.isInfinite() || takenWeight + lock.getWeight() <= resource.getQuota();
   }
 }
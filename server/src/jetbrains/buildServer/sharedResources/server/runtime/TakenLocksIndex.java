@@ -0,0 +1,285 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Class {@code TakenLocksIndex}
+ *
+ * Server-wide index of locks, taken by running builds.
+ * Index is updated on build events, so that build distribution does not
+ * need to walk all running builds each time it checks locks of a queued build
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class TakenLocksIndex {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(TakenLocksIndex.class.getName());
+
+  @NotNull
+  private final TakenLocks myTakenLocks;
+
+  @NotNull
+  private final RunningBuildsManager myRunningBuildsManager;
+
+  @NotNull
+  private final ProjectSettingsVersion mySettingsVersion;
+
+  @NotNull
+  private final ResourceWaitRegistry myWaitRegistry;
+
+  @NotNull
+  private final Object myLock = new Object();
+
+  /**
+   * Locks of each running build, in format {@code buildId -> <Resource, TakenLock>}
+   */
+  @NotNull
+  private final Map<Long, Map<Resource, TakenLock>> myBuildLocks = new HashMap<>();
+
+  /**
+   * Locks of all running builds, merged by resource
+   */
+  @NotNull
+  private final Map<Resource, TakenLock> myIndex = new HashMap<>();
+
+  /**
+   * Index is filled from running builds on first access.
+   * Builds, that were running before the plugin was loaded, produced no events.
+   * Index is filled again after resource settings change, as locks are resolved against resources
+   */
+  private boolean myInitialized = false;
+
+  /**
+   * Settings version, the index was filled for
+   */
+  private long myIndexedVersion;
+
+  /**
+   * Serializes filling of the index. Filled index replaces the current one at once,
+   * so that readers never see partially filled index
+   */
+  @NotNull
+  private final Object myRebuildLock = new Object();
+
+  /**
+   * Ids of builds, removed while the index is filled. Guarded by {@code myLock}
+   */
+  @Nullable
+  private Set<Long> myRemovedDuringRebuild;
+
+  public TakenLocksIndex(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                         @NotNull final TakenLocks takenLocks,
+                         @NotNull final RunningBuildsManager runningBuildsManager,
+                         @NotNull final ProjectSettingsVersion settingsVersion,
+                         @NotNull final ResourceWaitRegistry waitRegistry) {
+    myTakenLocks = takenLocks;
+    myRunningBuildsManager = runningBuildsManager;
+    mySettingsVersion = settingsVersion;
+    myWaitRegistry = waitRegistry;
+    dispatcher.addListener(new BuildServerAdapter() {
+
+      @Override
+      public void buildStarted(@NotNull final SRunningBuild build) {
+        addBuild(build);
+      }
+
+      @Override
+      public void buildFinished(@NotNull final SRunningBuild build) {
+        removeBuild(build.getBuildId());
+      }
+
+      @Override
+      public void buildInterrupted(@NotNull final SRunningBuild build) {
+        removeBuild(build.getBuildId());
+      }
+
+      /**
+       * Build that leaves the queue to start holds its locks before {@code buildStarted} is fired
+       */
+      @Override
+      public void buildRemovedFromQueue(@NotNull final SQueuedBuild queuedBuild,
+                                        @Nullable final User user,
+                                        @Nullable final String comment) {
+        final SBuild build = queuedBuild.getBuildPromotion().getAssociatedBuild();
+        if (build instanceof SRunningBuild && !build.isFinished()) {
+          addBuild((SRunningBuild) build);
+        }
+      }
+    });
+  }
+
+  /**
+   * Gets locks, taken by running builds.
+   * Returned map and its values are copies and can be modified by the caller
+   *
+   * @return taken locks in format {@code <Resource, TakenLock>}
+   */
+  @NotNull
+  public Map<Resource, TakenLock> getTakenLocks() {
+    ensureInitialized();
+    synchronized (myLock) {
+      final Map<Resource, TakenLock> result = new HashMap<>(myIndex.size());
+      for (Map.Entry<Resource, TakenLock> entry: myIndex.entrySet()) {
+        result.put(entry.getKey(), entry.getValue().copy());
+      }
+      return result;
+    }
+  }
+
+  private void ensureInitialized() {
+    if (isIndexed(mySettingsVersion.get())) {
+      return;
+    }
+    synchronized (myRebuildLock) {
+      final long version = mySettingsVersion.get();
+      if (isIndexed(version)) {
+        return;
+      }
+      synchronized (myLock) {
+        myRemovedDuringRebuild = new HashSet<>();
+      }
+      final Map<Long, Map<Resource, TakenLock>> buildLocks = new HashMap<>();
+      try {
+        // locks of running builds are resolved again against changed resources
+        for (SRunningBuild build: myRunningBuildsManager.getRunningBuilds()) {
+          if (!build.isFinished()) {
+            final Map<Resource, TakenLock> locks = collectLocks(build);
+            if (!locks.isEmpty()) {
+              buildLocks.put(build.getBuildId(), locks);
+            }
+          }
+        }
+      } finally {
+        synchronized (myLock) {
+          if (myRemovedDuringRebuild != null) {
+            buildLocks.keySet().removeAll(myRemovedDuringRebuild);
+            myRemovedDuringRebuild = null;
+          }
+        }
+      }
+      synchronized (myLock) {
+        // builds, that started after running builds were read, are kept as they were added
+        for (Map.Entry<Long, Map<Resource, TakenLock>> entry: myBuildLocks.entrySet()) {
+          buildLocks.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+        myBuildLocks.clear();
+        myIndex.clear();
+        for (Map.Entry<Long, Map<Resource, TakenLock>> entry: buildLocks.entrySet()) {
+          myBuildLocks.put(entry.getKey(), entry.getValue());
+          addToIndex(entry.getValue());
+        }
+        myInitialized = true;
+        myIndexedVersion = version;
+      }
+    }
+  }
+
+  private boolean isIndexed(final long version) {
+    synchronized (myLock) {
+      return myInitialized && myIndexedVersion == version;
+    }
+  }
+
+  private void addBuild(@NotNull final SRunningBuild build) {
+    // resolve locks outside of the index lock, as it may require reading stored locks
+    final Map<Resource, TakenLock> buildLocks = collectLocks(build);
+    final Set<Resource> released;
+    synchronized (myLock) {
+      released = removeBuildInternal(build.getBuildId());
+      if (!buildLocks.isEmpty() && !build.isFinished()) {
+        myBuildLocks.put(build.getBuildId(), buildLocks);
+        addToIndex(buildLocks);
+      }
+    }
+    notifyReleased(released);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Added locks of build [" + build.getBuildId() + "] to the index: " + buildLocks.keySet());
+    }
+  }
+
+  @NotNull
+  private Map<Resource, TakenLock> collectLocks(@NotNull final SRunningBuild build) {
+    final String projectId = build.getProjectId();
+    if (projectId == null) {
+      return Collections.emptyMap();
+    }
+    return myTakenLocks.collectTakenLocks(projectId, Collections.singleton(build), Collections.emptyList());
+  }
+
+  private void addToIndex(@NotNull final Map<Resource, TakenLock> buildLocks) {
+    for (Map.Entry<Resource, TakenLock> entry: buildLocks.entrySet()) {
+      myIndex.computeIfAbsent(entry.getKey(), TakenLock::new).addLocks(entry.getValue());
+    }
+  }
+
+  private void removeBuild(final long buildId) {
+    final Set<Resource> released;
+    synchronized (myLock) {
+      released = removeBuildInternal(buildId);
+    }
+    notifyReleased(released);
+  }
+
+  /**
+   * Removes locks of the build from the index. Called under the index lock
+   *
+   * @return resources, released by the build
+   */
+  @NotNull
+  private Set<Resource> removeBuildInternal(final long buildId) {
+    if (myRemovedDuringRebuild != null) {
+      myRemovedDuringRebuild.add(buildId);
+    }
+    final Map<Resource, TakenLock> buildLocks = myBuildLocks.remove(buildId);
+    if (buildLocks == null) {
+      return Collections.emptySet();
+    }
+    for (Map.Entry<Resource, TakenLock> entry: buildLocks.entrySet()) {
+      final TakenLock takenLock = myIndex.get(entry.getKey());
+      if (takenLock != null) {
+        takenLock.removeLocks(entry.getValue());
+        if (takenLock.getLocksCount() == 0) {
+          myIndex.remove(entry.getKey());
+        }
+      }
+    }
+    return buildLocks.keySet();
+  }
+
+  /**
+   * Builds, waiting on released resources, are checked again.
+   * Wait registry is notified outside of the index lock
+   */
+  private void notifyReleased(@NotNull final Set<Resource> released) {
+    if (!released.isEmpty()) {
+      myWaitRegistry.released(released);
+    }
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.google.common.cache.CacheStats;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class {@code ValueAffinity}
+ *
+ * Remembers the value of custom resource, that was given to the last build of each build configuration,
+ * so that the next build gets the same value, if it is free. Builds, that reuse the value of previous build,
+ * start faster, when the value stands for an environment with state, such as test database or emulator.
+ *
+ * Affinity is enabled by internal property {@link #ENABLED_PROPERTY}. Remembered values are kept
+ * in plugin data directory. File is read and written by {@link #load()} and {@link #flushIfNeeded()}, that are called
+ * out of resource locks, so that file operations do not delay other starting builds.
+ * File is written at most once in {@link #FLUSH_INTERVAL} and on server shutdown
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class ValueAffinity {
+
+  @NotNull
+  public static final String ENABLED_PROPERTY = "teamcity.sharedResources.customValues.affinity";
+
+  @NotNull
+  static final String FILE_NAME = "value_affinity.txt"; // package visibility for tests
+
+  private static final long FLUSH_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+  @NotNull
+  private static final Logger log = Logger.getInstance(ValueAffinity.class.getName());
+
+  @NotNull
+  private static final String MY_ENCODING = "UTF-8";
+
+  @NotNull
+  private final File myFile;
+
+  /**
+   * Remembered values in format {@code build type id -> <resource name, value>}.
+   * Maps of build types are small, they are not changed, but replaced
+   */
+  @NotNull
+  private final ConcurrentMap<String, Map<String, String>> myValues = new ConcurrentHashMap<>();
+
+  @NotNull
+  private final AtomicLong myHitCount = new AtomicLong();
+
+  @NotNull
+  private final AtomicLong myMissCount = new AtomicLong();
+
+  @NotNull
+  private final Object myFileLock = new Object();
+
+  private volatile boolean myLoaded = false;
+
+  private volatile boolean myDirty = false;
+
+  /**
+   * Time of the last write of the file. Guarded by {@code myFileLock}
+   */
+  private long myFlushedAt;
+
+  public ValueAffinity(@NotNull final ServerPaths serverPaths,
+                       @NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    this(new File(new File(serverPaths.getPluginDataDirectory(), SharedResourcesPluginConstants.PLUGIN_NAME), FILE_NAME));
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void buildTypeUnregistered(@NotNull final SBuildType buildType) {
+        removeBuildType(buildType.getBuildTypeId());
+      }
+
+      @Override
+      public void serverShutdown() {
+        flush();
+      }
+    });
+  }
+
+  public ValueAffinity(@NotNull final File file) {
+    myFile = file;
+  }
+
+  public boolean isEnabled() {
+    return TeamCityProperties.getBoolean(ENABLED_PROPERTY);
+  }
+
+  /**
+   * Gets value, that was given to the last build of the build configuration
+   *
+   * @param buildTypeId id of build configuration
+   * @param resourceName name of custom resource
+   * @return remembered value or {@code null}, if no value was remembered
+   */
+  @Nullable
+  public String getPreferredValue(@NotNull final String buildTypeId, @NotNull final String resourceName) {
+    load();
+    final Map<String, String> values = myValues.get(buildTypeId);
+    return values == null ? null : values.get(resourceName);
+  }
+
+  /**
+   * Remembers value, given to the build of the build configuration.
+   * Counts a hit, if the build got preferred value, and a miss otherwise
+   *
+   * @param buildTypeId id of build configuration
+   * @param resourceName name of custom resource
+   * @param preferredValue value, preferred for the build, or {@code null}, if there was none
+   * @param value value, given to the build
+   */
+  public void granted(@NotNull final String buildTypeId,
+                      @NotNull final String resourceName,
+                      @Nullable final String preferredValue,
+                      @NotNull final String value) {
+    load();
+    if (value.equals(preferredValue)) {
+      myHitCount.incrementAndGet();
+    } else {
+      myMissCount.incrementAndGet();
+      put(buildTypeId, resourceName, value);
+      myDirty = true;
+      if (log.isDebugEnabled()) {
+        log.debug("Build configuration [" + buildTypeId + "] got value [" + value + "] of resource [" + resourceName + "] instead of ["
+                  + preferredValue + "]. Statistics: " + getStatistics());
+      }
+    }
+  }
+
+  /**
+   * Gets statistics of preferred values. Hits are builds, that got preferred value,
+   * misses are builds, that had no preferred value or preferred value was taken
+   *
+   * @return statistics since server start
+   */
+  @NotNull
+  public CacheStats getStatistics() {
+    return new CacheStats(myHitCount.get(), myMissCount.get(), 0, 0, 0, 0);
+  }
+
+  /**
+   * Forgets values, given to the builds of removed build configuration
+   *
+   * @param buildTypeId id of build configuration
+   */
+  void removeBuildType(@NotNull final String buildTypeId) {
+    load();
+    if (myValues.remove(buildTypeId) != null) {
+      myDirty = true;
+    }
+  }
+
+  /**
+   * Writes remembered values to the file, if they were changed
+   */
+  public void flush() {
+    synchronized (myFileLock) {
+      if (!myDirty) {
+        return;
+      }
+      myDirty = false;
+      myFlushedAt = System.currentTimeMillis();
+      final StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, Map<String, String>> entry: myValues.entrySet()) {
+        for (Map.Entry<String, String> value: entry.getValue().entrySet()) {
+          sb.append(StringUtil.join("\t", entry.getKey(), value.getKey(), value.getValue())).append("\n");
+        }
+      }
+      try {
+        if (!FileUtil.createParentDirs(myFile)) {
+          throw new IOException("Failed to create parent directories");
+        }
+        final File temp = new File(myFile.getParentFile(), myFile.getName() + ".tmp");
+        FileUtil.writeFile(temp, sb.toString(), MY_ENCODING);
+        Files.move(temp.toPath(), myFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        myDirty = true;
+        log.warn("Failed to write values of custom resources to " + myFile.getAbsolutePath() + ". Message is: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Writes remembered values to the file, if they were changed and were not written for {@link #FLUSH_INTERVAL}
+   */
+  public void flushIfNeeded() {
+    if (myDirty) {
+      synchronized (myFileLock) {
+        if (System.currentTimeMillis() - myFlushedAt < FLUSH_INTERVAL) {
+          return;
+        }
+      }
+      flush();
+    }
+  }
+
+  private void put(@NotNull final String buildTypeId,
+                   @NotNull final String resourceName,
+                   @NotNull final String value) {
+    myValues.compute(buildTypeId, (id, values) -> {
+      if (values == null) {
+        return Collections.singletonMap(resourceName, value.intern());
+      }
+      final Map<String, String> result = new HashMap<>(values);
+      result.put(resourceName, value.intern());
+      return Collections.unmodifiableMap(result);
+    });
+  }
+
+  /**
+   * Reads remembered values from the file, if they were not read yet
+   */
+  public void load() {
+    if (myLoaded) {
+      return;
+    }
+    synchronized (myFileLock) {
+      if (myLoaded) {
+        return;
+      }
+      if (myFile.isFile()) {
+        try {
+          for (String line: FileUtil.readText(myFile, MY_ENCODING).split("\n")) {
+            final String[] parts = line.split("\t");
+            if (parts.length == 3) {
+              put(parts[0], parts[1], parts[2]);
+            }
+          }
+        } catch (IOException e) {
+          log.warn("Failed to read values of custom resources from " + myFile.getAbsolutePath() + ". Message is: " + e.getMessage());
+        }
+      }
+      myFlushedAt = System.currentTimeMillis();
+      myLoaded = true;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Class {@code ValueSelectionPolicy}
+ *
+ * Defines, which free value of custom resource is given to the build, that locks any value.
+ * Policy is set by internal property {@link #PROPERTY_NAME}
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public enum ValueSelectionPolicy {
+
+  /**
+   * First free value in the order of definition
+   */
+  FIRST_FREE("firstFree"),
+
+  /**
+   * Next free value after the value, that was given last
+   */
+  ROUND_ROBIN("roundRobin"),
+
+  /**
+   * Free value, that was released before other free values. Values, that were never taken, go first
+   */
+  LEAST_RECENTLY_RELEASED("leastRecentlyReleased"),
+
+  /**
+   * Free value, that was used by the least number of finished builds
+   */
+  LEAST_TOTAL_USE("leastTotalUse");
+
+  @NotNull
+  static final String PROPERTY_NAME = "teamcity.sharedResources.customValues.selectionPolicy";
+
+  @NotNull
+  private final String myName;
+
+  ValueSelectionPolicy(@NotNull final String name) {
+    myName = name;
+  }
+
+  @NotNull
+  public String getName() {
+    return myName;
+  }
+
+  /**
+   * Finds policy by name
+   *
+   * @param name name of the policy
+   * @return policy or {@link #FIRST_FREE} if name is unknown
+   */
+  @NotNull
+  public static ValueSelectionPolicy byName(@NotNull final String name) {
+    for (ValueSelectionPolicy policy: values()) {
+      if (policy.myName.equals(name)) {
+        return policy;
+      }
+    }
+    return FIRST_FREE;
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    return myName;
+  }
+}
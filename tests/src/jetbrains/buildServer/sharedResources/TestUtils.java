@@ -16,12 +16,17 @@
 
 package jetbrains.buildServer.sharedResources;
 
+import jetbrains.buildServer.serverSide.buildDistribution.BuildPromotionInfo;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.server.feature.Locks;
 
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created with IntelliJ IDEA.
@@ -35,6 +40,9 @@ public class TestUtils {
   /** For random size of collections */
   private static final Random R = new Random();
 
+  /** Ids of mocked build promotions */
+  private static final AtomicLong PROMOTION_IDS = new AtomicLong();
+
   /** Maximum size of collection */
   public static final int RANDOM_UPPER_BOUNDARY = 20;
 
@@ -76,4 +84,29 @@ public class TestUtils {
   public static String generateRandomName() {
     return UUID.randomUUID().toString();
   }
+
+  /**
+   * Creates mock of build promotion with unique id
+   * @return mocked build promotion
+   */
+  public static <T extends BuildPromotionInfo> T mockPromotion(final Mockery m, final Class<T> promotionClass) {
+    return withId(m, m.mock(promotionClass));
+  }
+
+  /**
+   * Creates named mock of build promotion with unique id
+   * @return mocked build promotion
+   */
+  public static <T extends BuildPromotionInfo> T mockPromotion(final Mockery m, final Class<T> promotionClass, final String name) {
+    return withId(m, m.mock(promotionClass, name));
+  }
+
+  private static <T extends BuildPromotionInfo> T withId(final Mockery m, final T promotion) {
+    final long id = PROMOTION_IDS.incrementAndGet();
+    m.checking(new Expectations() {{
+      allowing(promotion).getId();
+      will(returnValue(id));
+    }});
+    return promotion;
+  }
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.model;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.buildDistribution.BuildPromotionInfo;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.util.TestFor;
+import org.jmock.Mockery;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static jetbrains.buildServer.sharedResources.TestUtils.mockPromotion;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = TakenLock.class)
+public class TakenLockTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private final Resource myResource = ResourceFactory.newCustomResource("resource1", "MY_PROJECT_ID", "resource1", Arrays.asList("v1", "v2", "v3"), true);
+
+  private BuildPromotionInfo myPromotion1;
+
+  private BuildPromotionInfo myPromotion2;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myPromotion1 = mockPromotion(m, BuildPromotionInfo.class, "promotion-1");
+    myPromotion2 = mockPromotion(m, BuildPromotionInfo.class, "promotion-2");
+  }
+
+  @Test
+  public void testValuesTaken() throws Exception {
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(myPromotion1, new Lock("resource1", LockType.READ, "v1"));
+    takenLock.addLock(myPromotion2, new Lock("resource1", LockType.WRITE, "v2"));
+
+    assertTrue(takenLock.isValueTaken("v1"));
+    assertTrue(takenLock.isValueTaken("v2"));
+    assertFalse(takenLock.isValueTaken("v3"));
+    assertEquals(1, takenLock.getReadLocksCount());
+    assertEquals(1, takenLock.getWriteLocksCount());
+  }
+
+  @Test
+  public void testLocksWithoutValue() throws Exception {
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(myPromotion1, new Lock("resource1", LockType.READ));
+
+    assertFalse(takenLock.isValueTaken(""));
+    assertEquals(1, takenLock.getLocksCount());
+  }
+
+  @Test
+  public void testValueReleasedOnRemove() throws Exception {
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(myPromotion1, new Lock("resource1", LockType.READ, "v1"));
+    takenLock.addLock(myPromotion2, new Lock("resource1", LockType.READ, "v1"));
+
+    takenLock.removeLocks(myPromotion1);
+    assertTrue(takenLock.isValueTaken("v1"));
+    takenLock.removeLocks(myPromotion2);
+    assertFalse(takenLock.isValueTaken("v1"));
+    assertEquals(0, takenLock.getLocksCount());
+  }
+
+  @Test
+  public void testValueReplaced() throws Exception {
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(myPromotion1, new Lock("resource1", LockType.READ, "v1"));
+    takenLock.addLock(myPromotion1, new Lock("resource1", LockType.READ, "v2"));
+
+    assertFalse(takenLock.isValueTaken("v1"));
+    assertTrue(takenLock.isValueTaken("v2"));
+    assertEquals(1, takenLock.getLocksCount());
+  }
+
+  @Test
+  public void testCopyKeepsValues() throws Exception {
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(myPromotion1, new Lock("resource1", LockType.READ, "v1"));
+
+    final TakenLock copy = takenLock.copy();
+    copy.removeLocks(myPromotion1);
+    assertFalse(copy.isValueTaken("v1"));
+    assertTrue(takenLock.isValueTaken("v1"));
+  }
+
+  @Test
+  public void testViews() throws Exception {
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(myPromotion1, new Lock("resource1", LockType.READ, "v1"));
+
+    final Map<BuildPromotionInfo, String> readLocks = takenLock.getReadLocks();
+    assertEquals("v1", readLocks.get(myPromotion1));
+    assertSame(readLocks, takenLock.getReadLocks());
+    assertEmpty(takenLock.getWriteLocks().keySet());
+
+    takenLock.addLock(myPromotion2, new Lock("resource1", LockType.WRITE));
+    assertEquals(1, takenLock.getReadLocks().size());
+    assertEquals("", takenLock.getWriteLocks().get(myPromotion2));
+  }
+
+  @Test
+  public void testRemoveLocksOfOther() throws Exception {
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(myPromotion1, new Lock("resource1", LockType.READ, "v1"));
+    takenLock.addLock(myPromotion2, new Lock("resource1", LockType.READ, "v2"));
+
+    final TakenLock other = new TakenLock(myResource);
+    other.addLock(myPromotion1, new Lock("resource1", LockType.READ, "v1"));
+
+    takenLock.removeLocks(other);
+    assertEquals(1, takenLock.getLocksCount());
+    assertFalse(takenLock.isValueTaken("v1"));
+    assertTrue(takenLock.getReadLocks().containsKey(myPromotion2));
+  }
+
+  @Test
+  public void testTakenWeight() throws Exception {
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(myPromotion1, new Lock("resource1", LockType.READ, "", 4));
+    takenLock.addLock(myPromotion2, new Lock("resource1", LockType.READ));
+    assertEquals(2, takenLock.getLocksCount());
+    assertEquals(5, takenLock.getTakenWeight());
+
+    // replaced lock releases its weight
+    takenLock.addLock(myPromotion1, new Lock("resource1", LockType.READ, "", 2));
+    assertEquals(3, takenLock.getTakenWeight());
+
+    final TakenLock copy = takenLock.copy();
+    assertEquals(3, copy.getTakenWeight());
+
+    takenLock.removeLocks(myPromotion1);
+    assertEquals(1, takenLock.getTakenWeight());
+    takenLock.removeLocks(myPromotion2);
+    assertEquals(0, takenLock.getTakenWeight());
+    assertEquals(3, copy.getTakenWeight());
+  }
+
+  @Test
+  public void testTakenWeight_AddRemoveOther() throws Exception {
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(myPromotion1, new Lock("resource1", LockType.READ, "", 3));
+
+    final TakenLock other = new TakenLock(myResource);
+    other.addLock(myPromotion2, new Lock("resource1", LockType.WRITE, "", 5));
+
+    takenLock.addLocks(other);
+    assertEquals(8, takenLock.getTakenWeight());
+    takenLock.removeLocks(other);
+    assertEquals(3, takenLock.getTakenWeight());
+  }
+
+  @Test
+  public void testSeveralValues() throws Exception {
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(myPromotion1, new Lock("resource1", LockType.READ, Lock.joinValues(Arrays.asList("v1", "v3")), 2));
+    takenLock.addLock(myPromotion2, new Lock("resource1", LockType.READ, "v3"));
+
+    assertTrue(takenLock.isValueTaken("v1"));
+    assertFalse(takenLock.isValueTaken("v2"));
+    assertTrue(takenLock.isValueTaken("v3"));
+    assertEquals(3, takenLock.getTakenWeight());
+
+    takenLock.removeLocks(myPromotion1);
+    assertFalse(takenLock.isValueTaken("v1"));
+    assertTrue(takenLock.isValueTaken("v3"));
+    assertEquals(1, takenLock.getTakenWeight());
+  }
+}
@@ -200,6 +200,112 @@ public class ConfigurationInspectorTest extends BaseTestCase {
     assertEquals("Resource 'lock1' does not exist", result.get(lock));
   }
 
+  @Test
+  @SuppressWarnings("Duplicates")
+  public void testInspect_SingleFeature_InvalidWeight() {
+    final Lock zero = new Lock("lock1", LockType.READ, "", 0);
+    final Lock negative = new Lock("lock2", LockType.WRITE, "", -3);
+    final Map<String, Lock> locks = new HashMap<String, Lock>() {{
+      put("lock1", zero);
+      put("lock2", negative);
+    }};
+
+    final List<Resource> resources = new ArrayList<Resource>() {{
+      add(ResourceFactory.newQuotedResource("lock1", PROJECT_ID, "lock1", 5, true));
+      add(ResourceFactory.newInfiniteResource("lock2", PROJECT_ID, "lock2", true));
+    }};
+
+    m.checking(new Expectations() {{
+      oneOf(myFeature).getLockedResources();
+      will(returnValue(locks));
+
+      oneOf(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      oneOf(myResources).getAllOwnResources(myProject);
+      will(returnValue(resources));
+
+      oneOf(myResources).getOwnResources(myProject);
+      will(returnValue(resources));
+    }});
+
+    final Map<Lock, String> result = myInspector.inspect(myProject, myFeature);
+    assertEquals("Locks with invalid weight should produce errors", 2, result.size());
+    assertEquals("Weight of lock on resource 'lock1' must be a positive number", result.get(zero));
+    assertEquals("Weight of lock on resource 'lock2' must be a positive number", result.get(negative));
+  }
+
+  @Test
+  @SuppressWarnings("Duplicates")
+  public void testInspect_SingleFeature_WeightExceedsQuota() {
+    final Lock tooHeavy = new Lock("lock1", LockType.READ, "", 6);
+    final Lock fits = new Lock("lock2", LockType.WRITE, "", 5);
+    final Lock infinite = new Lock("lock3", LockType.READ, "", 100);
+    final Map<String, Lock> locks = new HashMap<String, Lock>() {{
+      put("lock1", tooHeavy);
+      put("lock2", fits);
+      put("lock3", infinite);
+    }};
+
+    final List<Resource> resources = new ArrayList<Resource>() {{
+      add(ResourceFactory.newQuotedResource("lock1", PROJECT_ID, "lock1", 5, true));
+      add(ResourceFactory.newQuotedResource("lock2", PROJECT_ID, "lock2", 5, true));
+      add(ResourceFactory.newInfiniteResource("lock3", PROJECT_ID, "lock3", true));
+    }};
+
+    m.checking(new Expectations() {{
+      oneOf(myFeature).getLockedResources();
+      will(returnValue(locks));
+
+      oneOf(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      oneOf(myResources).getAllOwnResources(myProject);
+      will(returnValue(resources));
+
+      oneOf(myResources).getOwnResources(myProject);
+      will(returnValue(resources));
+    }});
+
+    final Map<Lock, String> result = myInspector.inspect(myProject, myFeature);
+    assertEquals("Only lock heavier than quota should produce error", 1, result.size());
+    assertEquals("Lock on resource 'lock1' requires 6 units of quota, but quota of the resource is 5", result.get(tooHeavy));
+  }
+
+  @Test
+  @SuppressWarnings("Duplicates")
+  public void testInspect_SingleFeature_WeightExceedsValues() {
+    final Lock tooMany = new Lock("lock1", LockType.READ, "", 3);
+    final Lock enough = new Lock("lock2", LockType.READ, "", 2);
+    final Map<String, Lock> locks = new HashMap<String, Lock>() {{
+      put("lock1", tooMany);
+      put("lock2", enough);
+    }};
+
+    final List<Resource> resources = new ArrayList<Resource>() {{
+      add(ResourceFactory.newCustomResource("lock1", PROJECT_ID, "lock1", Arrays.asList("a", "b"), true));
+      add(ResourceFactory.newCustomResource("lock2", PROJECT_ID, "lock2", Arrays.asList("a", "b"), true));
+    }};
+
+    m.checking(new Expectations() {{
+      oneOf(myFeature).getLockedResources();
+      will(returnValue(locks));
+
+      oneOf(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      oneOf(myResources).getAllOwnResources(myProject);
+      will(returnValue(resources));
+
+      oneOf(myResources).getOwnResources(myProject);
+      will(returnValue(resources));
+    }});
+
+    final Map<Lock, String> result = myInspector.inspect(myProject, myFeature);
+    assertEquals("Only lock requiring more values than defined should produce error", 1, result.size());
+    assertEquals("Lock on resource 'lock1' requires 3 values, but the resource defines only 2", result.get(tooMany));
+  }
+
   @Test
   @SuppressWarnings("Duplicates")
   public void testInspect_SingleFeature_WrongType() {
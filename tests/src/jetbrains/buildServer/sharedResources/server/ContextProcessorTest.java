@@ -28,13 +28,19 @@ import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import jetbrains.buildServer.sharedResources.server.runtime.CustomValuesAllocator;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import jetbrains.buildServer.sharedResources.server.runtime.ValueAffinity;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.TestFor;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.File;
 import java.util.*;
 
 /**
@@ -55,6 +61,7 @@ public class ContextProcessorTest extends BaseTestCase {
   private SBuildType myBuildType;
   private BuildPromotionEx myBuildPromotion;
   private BuildStartContext myBuildStartContext;
+  private ValueAffinity myValueAffinity;
 
   /** Class under test */
   private SharedResourcesContextProcessor myProcessor;
@@ -74,10 +81,20 @@ public class ContextProcessorTest extends BaseTestCase {
     myRunningBuild = m.mock(SRunningBuild.class);
     myBuildType = m.mock(SBuildType.class);
     myBuildPromotion = m.mock(BuildPromotionEx.class);
-    myProcessor = new SharedResourcesContextProcessor(myFeatures, myLocks, myResources, myLocksStorage, myRunningBuildsManager);
+    final EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+    final CustomValuesAllocator valuesAllocator = new CustomValuesAllocator(dispatcher, myLocksStorage, myRunningBuildsManager, new ProjectSettingsVersion(dispatcher), myResources);
+    myValueAffinity = new ValueAffinity(new File(createTempDir(), "value_affinity.txt"));
+    myProcessor = new SharedResourcesContextProcessor(myFeatures, myLocks, myResources, myLocksStorage, valuesAllocator, myValueAffinity);
     m.checking(createCommonExpectations());
   }
 
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(ValueAffinity.ENABLED_PROPERTY);
+    super.tearDown();
+  }
+
   @Test
   @TestFor(issues = "TW-29779")
   public void testWriteLockShouldProvideAllResourceValues() throws Exception {
@@ -112,6 +129,9 @@ public class ContextProcessorTest extends BaseTestCase {
 
       oneOf(myBuildStartContext).addSharedParameter(lockParamName, StringUtil.join(resource.getValues(), ";"));
 
+      allowing(myLocksStorage).getTakenValues(resource.getName());
+      will(returnValue(Collections.emptyMap()));
+
       allowing(myLocksStorage);
     }});
     myProcessor.updateParameters(myBuildStartContext);
@@ -150,6 +170,9 @@ public class ContextProcessorTest extends BaseTestCase {
 
       oneOf(myBuildStartContext).addSharedParameter(lockParamName, resource.getValues().iterator().next());
 
+      allowing(myLocksStorage).getTakenValues(resource.getName());
+      will(returnValue(Collections.emptyMap()));
+
       allowing(myLocksStorage);
     }});
     myProcessor.updateParameters(myBuildStartContext);
@@ -181,15 +204,34 @@ public class ContextProcessorTest extends BaseTestCase {
       oneOf(currentFeature).getLockedResources();
       will(returnValue(myTakenLocks));
 
-      oneOf(myResources).getResourcesMap(PROJECT_ID);
+      // resources are resolved again for running builds, which values are stored
+      allowing(myResources).getResourcesMap(PROJECT_ID);
       will(returnValue(myDefinedResources));
 
       oneOf(myRunningBuildsManager).getRunningBuilds();
       will(returnValue(Collections.singletonList(otherRunningBuild)));
 
+      oneOf(myLocksStorage).getTakenValues(resource.getName());
+      will(returnValue(Collections.singletonMap(2L, "value1")));
+
       oneOf(myLocksStorage).load(otherRunningBuild);
       will(returnValue(otherTakenLocks));
 
+      allowing(otherRunningBuild).getBuildId();
+      will(returnValue(2L));
+
+      allowing(otherRunningBuild).isFinished();
+      will(returnValue(false));
+
+      allowing(otherRunningBuild).getProjectId();
+      will(returnValue(PROJECT_ID));
+
+      allowing(myRunningBuildsManager).findRunningBuildById(2L);
+      will(returnValue(otherRunningBuild));
+
+      oneOf(myLocksStorage).locksStored(otherRunningBuild);
+      will(returnValue(false));
+
       oneOf(myLocks).asBuildParameter(lock);
       will(returnValue(lockParamName));
 
@@ -202,6 +244,95 @@ public class ContextProcessorTest extends BaseTestCase {
     myProcessor.updateParameters(myBuildStartContext);
   }
 
+  @Test
+  public void testProvideSeveralValues() throws Exception {
+    final Map<String, Lock> myTakenLocks = new HashMap<>();
+    final Lock lock = new Lock("CustomResource", LockType.READ, "", 2);
+    myTakenLocks.put(lock.getName(), lock);
+
+    final Map<String, Resource> myDefinedResources = new HashMap<>();
+    final CustomResource resource = (CustomResource) ResourceFactory.newCustomResource("CustomResource", PROJECT_ID, "CustomResource", Arrays.asList("value1", "value2", "value3"), true);
+    myDefinedResources.put(resource.getName(), resource);
+
+    final String lockParamName = "teamcity.locks.readLock." + lock.getName();
+
+    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
+    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
+
+    m.checking(new Expectations() {{
+      oneOf(myFeatures).searchForFeatures(myBuildType);
+      will(returnValue(features));
+
+      oneOf(feature).getLockedResources();
+      will(returnValue(myTakenLocks));
+
+      oneOf(myResources).getResourcesMap(PROJECT_ID);
+      will(returnValue(myDefinedResources));
+
+      oneOf(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(Collections.emptyList()));
+
+      oneOf(myLocks).asBuildParameter(lock);
+      will(returnValue(lockParamName));
+
+      oneOf(myBuildStartContext).addSharedParameter(lockParamName, "value1;value2");
+
+      oneOf(myLocksStorage).store(myRunningBuild, Collections.singletonMap(lock, "value1" + Lock.VALUES_SEPARATOR + "value2"));
+
+      allowing(myLocksStorage).getTakenValues(resource.getName());
+      will(returnValue(Collections.emptyMap()));
+    }});
+    myProcessor.updateParameters(myBuildStartContext);
+  }
+
+  @Test
+  public void testProvideValueAny_Affinity() throws Exception {
+    System.setProperty(ValueAffinity.ENABLED_PROPERTY, "true");
+    myValueAffinity.granted("bt1", "CustomResource", null, "value2");
+
+    final Map<String, Lock> myTakenLocks = new HashMap<>();
+    final Lock lock = new Lock("CustomResource", LockType.READ);
+    myTakenLocks.put(lock.getName(), lock);
+
+    final Map<String, Resource> myDefinedResources = new HashMap<>();
+    final CustomResource resource = (CustomResource) ResourceFactory.newCustomResource("CustomResource", PROJECT_ID, "CustomResource", Arrays.asList("value1", "value2"), true);
+    myDefinedResources.put(resource.getName(), resource);
+
+    final String lockParamName = "teamcity.locks.readLock." + lock.getName();
+
+    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
+    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
+
+    m.checking(new Expectations() {{
+      oneOf(myFeatures).searchForFeatures(myBuildType);
+      will(returnValue(features));
+
+      oneOf(feature).getLockedResources();
+      will(returnValue(myTakenLocks));
+
+      oneOf(myResources).getResourcesMap(PROJECT_ID);
+      will(returnValue(myDefinedResources));
+
+      oneOf(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(Collections.emptyList()));
+
+      allowing(myRunningBuild).getBuildTypeId();
+      will(returnValue("bt1"));
+
+      oneOf(myLocks).asBuildParameter(lock);
+      will(returnValue(lockParamName));
+
+      oneOf(myBuildStartContext).addSharedParameter(lockParamName, "value2");
+
+      oneOf(myLocksStorage).store(myRunningBuild, Collections.singletonMap(lock, "value2"));
+
+      allowing(myLocksStorage).getTakenValues(resource.getName());
+      will(returnValue(Collections.emptyMap()));
+    }});
+    myProcessor.updateParameters(myBuildStartContext);
+    assertEquals(1, myValueAffinity.getStatistics().hitCount());
+  }
+
   @Test
   public void testProvideValueSpecific() throws Exception {
     final Map<String, Lock> myTakenLocks = new HashMap<>();
@@ -237,6 +368,9 @@ public class ContextProcessorTest extends BaseTestCase {
 
       oneOf(myBuildStartContext).addSharedParameter(lockParamName, lock.getValue());
 
+      allowing(myLocksStorage).getTakenValues(resource.getName());
+      will(returnValue(Collections.emptyMap()));
+
       allowing(myLocksStorage);
     }});
     myProcessor.updateParameters(myBuildStartContext);
@@ -270,15 +404,34 @@ public class ContextProcessorTest extends BaseTestCase {
       oneOf(feature).getLockedResources();
       will(returnValue(takenLocks));
 
-      oneOf(myResources).getResourcesMap(PROJECT_ID);
+      // resources are resolved again for running builds, which values are stored
+      allowing(myResources).getResourcesMap(PROJECT_ID);
       will(returnValue(definedResources));
 
       oneOf(myRunningBuildsManager).getRunningBuilds();
       will(returnValue(Collections.singletonList(runningBuild)));
 
+      oneOf(myLocksStorage).getTakenValues(resource.getName());
+      will(returnValue(Collections.singletonMap(3L, VALUE)));
+
       oneOf(myLocksStorage).load(runningBuild);
       will(returnValue(runningBuildLocks));
 
+      allowing(runningBuild).getBuildId();
+      will(returnValue(3L));
+
+      allowing(runningBuild).isFinished();
+      will(returnValue(false));
+
+      allowing(runningBuild).getProjectId();
+      will(returnValue(PROJECT_ID));
+
+      allowing(myRunningBuildsManager).findRunningBuildById(3L);
+      will(returnValue(runningBuild));
+
+      oneOf(myLocksStorage).locksStored(runningBuild);
+      will(returnValue(false));
+
       oneOf(myLocks).asBuildParameter(lock);
       will(returnValue(lockParamName));
 
@@ -332,18 +485,55 @@ public class ContextProcessorTest extends BaseTestCase {
       oneOf(feature).getLockedResources();
       will(returnValue(takenLocks));
 
-      oneOf(myResources).getResourcesMap(PROJECT_ID);
+      // resources are resolved again for running builds, which values are stored
+      allowing(myResources).getResourcesMap(PROJECT_ID);
       will(returnValue(definedResources));
 
       oneOf(myRunningBuildsManager).getRunningBuilds();
       will(returnValue(Arrays.asList(runningBuild1, runningBuild2)));
 
+      final Map<Long, String> takenValues = new HashMap<>();
+      takenValues.put(4L, VALUE_HELD);
+      takenValues.put(5L, VALUE_HELD);
+      oneOf(myLocksStorage).getTakenValues(resource.getName());
+      will(returnValue(takenValues));
+
       oneOf(myLocksStorage).load(runningBuild1);
       will(returnValue(runningBuildLocks1));
 
+      allowing(runningBuild1).getBuildId();
+      will(returnValue(4L));
+
+      allowing(runningBuild1).isFinished();
+      will(returnValue(false));
+
+      allowing(runningBuild1).getProjectId();
+      will(returnValue(PROJECT_ID));
+
+      allowing(myRunningBuildsManager).findRunningBuildById(4L);
+      will(returnValue(runningBuild1));
+
+      oneOf(myLocksStorage).locksStored(runningBuild1);
+      will(returnValue(false));
+
       oneOf(myLocksStorage).load(runningBuild2);
       will(returnValue(runningBuildLocks2));
 
+      allowing(runningBuild2).getBuildId();
+      will(returnValue(5L));
+
+      allowing(runningBuild2).isFinished();
+      will(returnValue(false));
+
+      allowing(runningBuild2).getProjectId();
+      will(returnValue(PROJECT_ID));
+
+      allowing(myRunningBuildsManager).findRunningBuildById(5L);
+      will(returnValue(runningBuild2));
+
+      oneOf(myLocksStorage).locksStored(runningBuild2);
+      will(returnValue(false));
+
       oneOf(myLocks).asBuildParameter(lock);
       will(returnValue(lockParamName));
 
@@ -371,6 +561,9 @@ public class ContextProcessorTest extends BaseTestCase {
 
       oneOf(myRunningBuild).getBuildPromotion();
       will(returnValue(myBuildPromotion));
+
+      allowing(myRunningBuild).getBuildId();
+      will(returnValue(1L));
     }};
   }
 }
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.BuildTypeTemplate;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.feature.Locks;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
+import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = LockFootprints.class)
+public class LockFootprintsTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private SharedResourcesFeatures myFeatures;
+
+  private Locks myLocks;
+
+  private Resources myResources;
+
+  private ConfigurationInspector myInspector;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private ProjectSettingsVersion mySettingsVersion;
+
+  private BuildTypeTemplate myTemplate;
+
+  private ProjectManager myProjectManager;
+
+  private final String myProjectId = "MY_PROJECT_ID";
+
+  private final Resource myResource = ResourceFactory.newQuotedResource("resource1", myProjectId, "resource1", 1, true);
+
+  private final Lock myLock = new Lock("resource1", LockType.READ);
+
+  /**
+   * Class under test
+   */
+  private LockFootprints myFootprints;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    myFeatures = m.mock(SharedResourcesFeatures.class);
+    myLocks = m.mock(Locks.class);
+    myResources = m.mock(Resources.class);
+    myInspector = m.mock(ConfigurationInspector.class);
+    myTemplate = m.mock(BuildTypeTemplate.class);
+    myProjectManager = m.mock(ProjectManager.class);
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    mySettingsVersion = new ProjectSettingsVersion(myDispatcher);
+    m.checking(new Expectations() {{
+      allowing(myTemplate).getId();
+      will(returnValue("TEMPLATE_ID"));
+
+      allowing(myResources).getResourcesMap(myProjectId);
+      will(returnValue(Collections.singletonMap(myResource.getName(), myResource)));
+    }});
+    myFootprints = new LockFootprints(myDispatcher, myFeatures, myLocks, myResources, myInspector, mySettingsVersion, myProjectManager);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testPromotionSettingsNotCached() throws Exception {
+    final SBuildType buildType = mockBuildType("bt1", 1);
+    // personal build or build on other settings revision
+    final SBuildType promotionSettings = mockSettings("bt1", "bt1-promotion", 2);
+
+    final LockFootprint footprint = myFootprints.get(buildType);
+    assertNotSame(footprint, myFootprints.get(promotionSettings));
+    myFootprints.get(promotionSettings);
+    assertSame(footprint, myFootprints.get(buildType));
+  }
+
+  @Test
+  public void testQueuedPromotionCached() throws Exception {
+    final SBuildType buildType = mockBuildType("bt1", 1);
+    // personal build or build on other settings revision, compiled once while in the queue and once after re-queue
+    final SBuildType promotionSettings = mockSettings("bt1", "bt1-promotion", 2);
+    final SQueuedBuild queuedBuild = m.mock(SQueuedBuild.class);
+    final BuildPromotion promotion = m.mock(BuildPromotion.class);
+    m.checking(new Expectations() {{
+      allowing(queuedBuild).getBuildPromotion();
+      will(returnValue(promotion));
+
+      allowing(promotion).getId();
+      will(returnValue(100L));
+    }});
+
+    final LockFootprint footprint = myFootprints.get(100L, promotionSettings);
+    assertSame(footprint, myFootprints.get(100L, promotionSettings));
+    assertNotSame(footprint, myFootprints.get(100L, buildType));
+    // registered build configuration is kept by its id
+    assertSame(myFootprints.get(buildType), myFootprints.get(200L, buildType));
+
+    myDispatcher.getMulticaster().buildRemovedFromQueue(queuedBuild, null, null);
+    assertNotSame(footprint, myFootprints.get(100L, promotionSettings));
+  }
+
+  @Test
+  public void testCompiled() throws Exception {
+    final SBuildType buildType = mockBuildType("bt1", 1);
+
+    final LockFootprint footprint = myFootprints.get(buildType);
+    assertTrue(footprint.hasFeatures());
+    assertTrue(footprint.isValid());
+    assertEquals(Collections.singletonMap(myLock.getName(), myLock), footprint.getLocks());
+    assertEquals(Collections.singletonMap(myResource, myLock), footprint.getResolvedLocks());
+    // second request does not compile the footprint again
+    assertSame(footprint, myFootprints.get(buildType));
+  }
+
+  @Test
+  public void testNoFeatures() throws Exception {
+    final SBuildType buildType = m.mock(SBuildType.class);
+    m.checking(new Expectations() {{
+      allowing(buildType).getBuildTypeId();
+      will(returnValue("bt1"));
+
+      allowing(myProjectManager).findBuildTypeById("bt1");
+      will(returnValue(buildType));
+
+      allowing(buildType).getTemplates();
+      will(returnValue(Collections.emptyList()));
+
+      oneOf(myFeatures).searchForFeatures(buildType);
+      will(returnValue(Collections.emptyList()));
+    }});
+
+    final LockFootprint footprint = myFootprints.get(buildType);
+    assertFalse(footprint.hasFeatures());
+    assertEmpty(footprint.getLocks().keySet());
+    assertSame(footprint, myFootprints.get(buildType));
+  }
+
+  @Test
+  public void testInvalidLocks() throws Exception {
+    final SBuildType buildType = m.mock(SBuildType.class);
+    final Collection<SharedResourcesFeature> features = Collections.singleton(m.mock(SharedResourcesFeature.class));
+    m.checking(new Expectations() {{
+      allowing(buildType).getBuildTypeId();
+      will(returnValue("bt1"));
+
+      allowing(myProjectManager).findBuildTypeById("bt1");
+      will(returnValue(buildType));
+
+      allowing(buildType).getTemplates();
+      will(returnValue(Collections.emptyList()));
+
+      oneOf(myFeatures).searchForFeatures(buildType);
+      will(returnValue(features));
+
+      oneOf(myInspector).inspect(buildType);
+      will(returnValue(Collections.singletonMap(myLock, "Resource 'resource1' does not exist")));
+    }});
+
+    final LockFootprint footprint = myFootprints.get(buildType);
+    assertTrue(footprint.hasFeatures());
+    assertFalse(footprint.isValid());
+    assertEquals(1, footprint.getInvalidLocks().size());
+    // configuration is not inspected again until it changes
+    assertSame(footprint, myFootprints.get(buildType));
+  }
+
+  @Test
+  public void testRecompiledOnSettingsChange() throws Exception {
+    final SBuildType buildType = mockBuildType("bt1", 2);
+
+    final LockFootprint footprint = myFootprints.get(buildType);
+    myDispatcher.getMulticaster().projectPersisted(myProjectId);
+    final LockFootprint recompiled = myFootprints.get(buildType);
+    assertNotSame(footprint, recompiled);
+    assertSame(recompiled, myFootprints.get(buildType));
+  }
+
+  @Test
+  public void testRecompiledOnBuildTypePersisted() throws Exception {
+    final SBuildType buildType = mockBuildType("bt1", 2);
+    final SBuildType other = mockBuildType("bt2", 1);
+
+    myFootprints.get(buildType);
+    myFootprints.get(other);
+    myDispatcher.getMulticaster().buildTypePersisted(buildType);
+    myFootprints.get(buildType);
+    // footprints of other build configurations are kept
+    myFootprints.get(other);
+  }
+
+  @Test
+  public void testRecompiledOnBuildTypeMoved() throws Exception {
+    final SBuildType buildType = mockBuildType("bt1", 2);
+
+    myFootprints.get(buildType);
+    myDispatcher.getMulticaster().buildTypeMoved(buildType, m.mock(SProject.class));
+    myFootprints.get(buildType);
+  }
+
+  @Test
+  public void testRecompiledOnTemplatePersisted() throws Exception {
+    final SBuildType buildType = mockBuildType("bt1", 2, myTemplate);
+    final SBuildType other = mockBuildType("bt2", 1);
+
+    myFootprints.get(buildType);
+    myFootprints.get(other);
+    myDispatcher.getMulticaster().buildTypeTemplatePersisted(myTemplate);
+    myFootprints.get(buildType);
+    myFootprints.get(other);
+  }
+
+  /**
+   * Mocks build configuration, which footprint is expected to be compiled given number of times
+   */
+  @NotNull
+  private SBuildType mockBuildType(@NotNull final String id, final int compilations, @NotNull final BuildTypeTemplate... templates) {
+    final SBuildType buildType = mockSettings(id, id, compilations, templates);
+    m.checking(new Expectations() {{
+      allowing(myProjectManager).findBuildTypeById(id);
+      will(returnValue(buildType));
+    }});
+    return buildType;
+  }
+
+  /**
+   * Mocks settings of build configuration, that may be not registered in project manager
+   */
+  @NotNull
+  private SBuildType mockSettings(@NotNull final String id, @NotNull final String name, final int compilations, @NotNull final BuildTypeTemplate... templates) {
+    final SBuildType buildType = m.mock(SBuildType.class, name);
+    final Collection<SharedResourcesFeature> features = Collections.singleton(m.mock(SharedResourcesFeature.class, name + "-feature"));
+    m.checking(new Expectations() {{
+      allowing(buildType).getBuildTypeId();
+      will(returnValue(id));
+
+      allowing(buildType).getProjectId();
+      will(returnValue(myProjectId));
+
+      allowing(buildType).getTemplates();
+      will(returnValue(Arrays.asList(templates)));
+
+      exactly(compilations).of(myFeatures).searchForFeatures(buildType);
+      will(returnValue(features));
+
+      exactly(compilations).of(myInspector).inspect(buildType);
+      will(returnValue(Collections.emptyMap()));
+
+      exactly(compilations).of(myLocks).fromBuildFeaturesAsMap(features);
+      will(returnValue(Collections.singletonMap(myLock.getName(), myLock)));
+    }});
+    return buildType;
+  }
+}
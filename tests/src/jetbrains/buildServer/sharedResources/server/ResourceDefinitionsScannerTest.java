@@ -0,0 +1,176 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.ProjectFeatureParameters.*;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = ResourceDefinitionsScanner.class)
+public class ResourceDefinitionsScannerTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private ProjectSettingsVersion mySettingsVersion;
+
+  private int myDescriptorsCount = 0;
+
+  /**
+   * Class under test
+   */
+  private ResourceDefinitionsScanner myScanner;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    mySettingsVersion = new ProjectSettingsVersion(EventDispatcher.create(BuildServerListener.class));
+    myScanner = new ResourceDefinitionsScanner(mySettingsVersion);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testSinglePass() throws Exception {
+    final SProjectFeatureDescriptor invalid = quoted("PROJECT", "invalid", "abc");
+    final SProject project = mockProject("PROJECT", null, 1,
+                                         quoted("PROJECT", "quoted", "1"),
+                                         custom("PROJECT", "duplicate", "v1"),
+                                         custom("PROJECT", "duplicate", "v2"),
+                                         invalid);
+
+    final ResourceDefinitionsScanner.ScanResult result = myScanner.scan(project);
+    assertEquals(Collections.singletonList("duplicate"), result.getDuplicateNames());
+    assertEquals(Collections.singleton(invalid.getId()), result.getDefinitionErrors().keySet());
+    assertEquals(Collections.singleton("quoted"), result.getResources().keySet());
+    // project features are scanned once
+    assertSame(result, myScanner.scan(project));
+  }
+
+  @Test
+  public void testInheritance() throws Exception {
+    final SProject root = mockProject("ROOT", null, 1,
+                                      quoted("ROOT", "resource1", "1"),
+                                      quoted("ROOT", "resource2", "1"),
+                                      quoted("ROOT", "resource3", "1"));
+    final SProject child = mockProject("CHILD", root, 1,
+                                       quoted("CHILD", "resource1", "2"),
+                                       quoted("CHILD", "resource2", "2"),
+                                       quoted("CHILD", "resource2", "3"));
+
+    final Map<String, Resource> resources = myScanner.scan(child).getResources();
+    assertEquals(3, resources.size());
+    // own resource overrides inherited one
+    assertEquals("CHILD", resources.get("resource1").getProjectId());
+    // duplicates do not override inherited resource
+    assertEquals("ROOT", resources.get("resource2").getProjectId());
+    assertEquals("ROOT", resources.get("resource3").getProjectId());
+    assertEmpty(myScanner.scan(root).getDuplicateNames());
+    assertEquals(Collections.singletonList("resource2"), myScanner.scan(child).getDuplicateNames());
+  }
+
+  @Test
+  public void testScannedAgainOnSettingsChange() throws Exception {
+    final SProject project = mockProject("PROJECT", null, 2, quoted("PROJECT", "quoted", "1"));
+
+    final ResourceDefinitionsScanner.ScanResult result = myScanner.scan(project);
+    mySettingsVersion.increment();
+    final ResourceDefinitionsScanner.ScanResult rescanned = myScanner.scan(project);
+    assertNotSame(result, rescanned);
+    assertEquals(result.getResources().keySet(), rescanned.getResources().keySet());
+  }
+
+  @NotNull
+  private SProject mockProject(@NotNull final String id,
+                               @Nullable final SProject parent,
+                               final int scans,
+                               @NotNull final SProjectFeatureDescriptor... descriptors) {
+    final SProject project = m.mock(SProject.class, id);
+    m.checking(new Expectations() {{
+      allowing(project).getProjectId();
+      will(returnValue(id));
+
+      allowing(project).getParentProject();
+      will(returnValue(parent));
+
+      exactly(scans).of(project).getOwnFeaturesOfType(SharedResourcesPluginConstants.FEATURE_TYPE);
+      will(returnValue(Arrays.asList(descriptors)));
+    }});
+    return project;
+  }
+
+  @NotNull
+  private SProjectFeatureDescriptor quoted(@NotNull final String projectId, @NotNull final String name, @NotNull final String quota) {
+    final Map<String, String> parameters = new HashMap<>();
+    parameters.put(NAME, name);
+    parameters.put(TYPE, "quoted");
+    parameters.put(QUOTA, quota);
+    return mockDescriptor(projectId, parameters);
+  }
+
+  @NotNull
+  private SProjectFeatureDescriptor custom(@NotNull final String projectId, @NotNull final String name, @NotNull final String values) {
+    final Map<String, String> parameters = new HashMap<>();
+    parameters.put(NAME, name);
+    parameters.put(TYPE, "custom");
+    parameters.put(VALUES, values);
+    return mockDescriptor(projectId, parameters);
+  }
+
+  @NotNull
+  private SProjectFeatureDescriptor mockDescriptor(@NotNull final String projectId, @NotNull final Map<String, String> parameters) {
+    final String id = "PROJECT_EXT_" + myDescriptorsCount++;
+    final SProjectFeatureDescriptor descriptor = m.mock(SProjectFeatureDescriptor.class, id);
+    m.checking(new Expectations() {{
+      allowing(descriptor).getId();
+      will(returnValue(id));
+
+      allowing(descriptor).getProjectId();
+      will(returnValue(projectId));
+
+      allowing(descriptor).getParameters();
+      will(returnValue(parameters));
+    }});
+    return descriptor;
+  }
+}
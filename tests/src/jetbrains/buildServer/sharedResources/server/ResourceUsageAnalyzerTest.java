@@ -17,8 +17,7 @@
 package jetbrains.buildServer.sharedResources.server;
 
 import jetbrains.buildServer.BaseTestCase;
-import jetbrains.buildServer.serverSide.SBuildType;
-import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
@@ -26,7 +25,10 @@ import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.testng.annotations.AfterMethod;
@@ -53,8 +55,21 @@ public class ResourceUsageAnalyzerTest extends BaseTestCase {
 
   private SProject myProject;
 
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private ProjectSettingsVersion mySettingsVersion;
+
+  /**
+   * All build configurations of the server
+   */
+  private final List<SBuildType> myBuildTypes = new ArrayList<>();
+
   private static final String myProjectId = "PROJECT_ID";
 
+  private static final String subProjectId = "MY_SUB_PROJECT";
+
+  private SProject mySubProject;
+
   @BeforeMethod
   @Override
   protected void setUp() throws Exception {
@@ -62,10 +77,32 @@ public class ResourceUsageAnalyzerTest extends BaseTestCase {
     m = new Mockery();
     myResources = m.mock(Resources.class);
     myFeatures = m.mock(SharedResourcesFeatures.class);
+    final ProjectManager projectManager = m.mock(ProjectManager.class);
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    mySettingsVersion = new ProjectSettingsVersion(myDispatcher);
+    myBuildTypes.clear();
 
     myProject = m.mock(SProject.class, "projectId: " + myProjectId);
+    mySubProject = m.mock(SProject.class, "projectId: " + subProjectId);
 
-    myAnalyzer = new ResourceUsageAnalyzer(myResources, myFeatures);
+    m.checking(new Expectations() {{
+      allowing(myProject).getProjectId();
+      will(returnValue(myProjectId));
+
+      allowing(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      allowing(mySubProject).getProjectId();
+      will(returnValue(subProjectId));
+
+      allowing(mySubProject).getProjectPath();
+      will(returnValue(Arrays.asList(myProject, mySubProject)));
+
+      allowing(projectManager).getAllBuildTypes();
+      will(returnValue(myBuildTypes));
+    }});
+
+    myAnalyzer = new ResourceUsageAnalyzer(myDispatcher, myResources, myFeatures, projectManager, mySettingsVersion);
   }
 
   @AfterMethod
@@ -78,9 +115,6 @@ public class ResourceUsageAnalyzerTest extends BaseTestCase {
   @Test
   public void testNoResources() throws Exception {
     m.checking(new Expectations() {{
-      oneOf(myProject).getProjectId();
-      will(returnValue(myProjectId));
-
       oneOf(myResources).getResourcesMap(myProjectId);
       will(returnValue(Collections.emptyMap()));
     }});
@@ -93,20 +127,7 @@ public class ResourceUsageAnalyzerTest extends BaseTestCase {
   @Test
   public void testNoBuildConfigurations() throws Exception {
     final Resource resource = ResourceFactory.newInfiniteResource("resource1", myProjectId, "resource1", true);
-    final Map<String, Resource> resourceMap = new HashMap<String, Resource>() {{
-       put(resource.getName(), resource);
-    }};
-
-    m.checking(new Expectations() {{
-      oneOf(myProject).getProjectId();
-      will(returnValue(myProjectId));
-
-      oneOf(myResources).getResourcesMap(myProjectId);
-      will(returnValue(resourceMap));
-
-      oneOf(myProject).getBuildTypes();
-      will(returnValue(Collections.emptyList()));
-    }});
+    expectResources(myProjectId, resource);
 
     final Map<Resource, Map<SBuildType, List<Lock>>> result = myAnalyzer.collectResourceUsages(myProject);
     assertTrue(result.isEmpty());
@@ -115,25 +136,8 @@ public class ResourceUsageAnalyzerTest extends BaseTestCase {
   @Test
   public void testNoFeatures() throws Exception {
     final Resource resource = ResourceFactory.newInfiniteResource("resource1", myProjectId, "resource1", true);
-    final Map<String, Resource> resourceMap = new HashMap<String, Resource>() {{
-      put(resource.getName(), resource);
-    }};
-
-    final SBuildType bt = m.mock(SBuildType.class, "buildType: " + myProjectId);
-
-    m.checking(new Expectations() {{
-      oneOf(myProject).getProjectId();
-      will(returnValue(myProjectId));
-
-      oneOf(myResources).getResourcesMap(myProjectId);
-      will(returnValue(resourceMap));
-
-      oneOf(myProject).getBuildTypes();
-      will(returnValue(Collections.singletonList(bt)));
-
-      oneOf(myFeatures).searchForFeatures(bt);
-      will(returnValue(Collections.emptyList()));
-    }});
+    expectResources(myProjectId, resource);
+    createBuildType("bt", myProject);
 
     final Map<Resource, Map<SBuildType, List<Lock>>> result = myAnalyzer.collectResourceUsages(myProject);
     assertTrue(result.isEmpty());
@@ -142,32 +146,8 @@ public class ResourceUsageAnalyzerTest extends BaseTestCase {
   @Test
   public void testNoLocks() throws Exception {
     final Resource resource = ResourceFactory.newInfiniteResource("resource1", myProjectId, "resource1", true);
-    final Map<String, Resource> resourceMap = new HashMap<String, Resource>() {{
-      put(resource.getName(), resource);
-    }};
-
-    final SBuildType bt = m.mock(SBuildType.class, "buildType: " + myProjectId);
-    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
-
-    m.checking(new Expectations() {{
-      oneOf(myProject).getProjectId();
-      will(returnValue(myProjectId));
-
-      oneOf(myResources).getResourcesMap(myProjectId);
-      will(returnValue(resourceMap));
-
-      oneOf(myProject).getBuildTypes();
-      will(returnValue(Collections.singletonList(bt)));
-
-      oneOf(myFeatures).searchForFeatures(bt);
-      will(returnValue(Collections.singletonList(feature)));
-
-      oneOf(bt).getProjectId();
-      will(returnValue(myProjectId));
-
-      oneOf(feature).getLockedResources();
-      will(returnValue(Collections.emptyMap()));
-    }});
+    expectResources(myProjectId, resource);
+    createBuildType("bt", myProject, Collections.emptyMap());
 
     final Map<Resource, Map<SBuildType, List<Lock>>> result = myAnalyzer.collectResourceUsages(myProject);
     assertTrue(result.isEmpty());
@@ -181,37 +161,9 @@ public class ResourceUsageAnalyzerTest extends BaseTestCase {
   @Test
   public void testNoSubProjects() throws Exception {
     final Resource resource = ResourceFactory.newInfiniteResource("resource1", myProjectId, "resource1", true);
-    final Map<String, Resource> resourceMap = new HashMap<String, Resource>() {{
-      put(resource.getName(), resource);
-    }};
-
-    final SBuildType bt = m.mock(SBuildType.class, "buildType: " + myProjectId);
-    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
-
+    expectResources(myProjectId, resource);
     final Lock lock = new Lock("resource1", LockType.READ);
-    final Map<String, Lock> lockedResources = new HashMap<String, Lock>() {{
-      put(lock.getName(), lock);
-    }};
-
-    m.checking(new Expectations() {{
-      oneOf(myProject).getProjectId();
-      will(returnValue(myProjectId));
-
-      oneOf(myResources).getResourcesMap(myProjectId);
-      will(returnValue(resourceMap));
-
-      oneOf(myProject).getBuildTypes();
-      will(returnValue(Collections.singletonList(bt)));
-
-      oneOf(myFeatures).searchForFeatures(bt);
-      will(returnValue(Collections.singletonList(feature)));
-
-      oneOf(bt).getProjectId();
-      will(returnValue(myProjectId));
-
-      oneOf(feature).getLockedResources();
-      will(returnValue(lockedResources));
-    }});
+    final SBuildType bt = createBuildType("bt", myProject, Collections.singletonMap(lock.getName(), lock));
 
     final Map<Resource, Map<SBuildType, List<Lock>>> result = myAnalyzer.collectResourceUsages(myProject);
     assertFalse(result.isEmpty());
@@ -228,29 +180,13 @@ public class ResourceUsageAnalyzerTest extends BaseTestCase {
   @Test
   public void testSubProjectNoOverride() throws Exception {
     final Resource resource = ResourceFactory.newInfiniteResource("resource1", myProjectId, "resource1", true);
-    final Map<String, Resource> resourceMap = new HashMap<String, Resource>() {{
-      put(resource.getName(), resource);
-    }};
-
-    final String subProjectId = "MY_SUB_PROJECT";
-
     final Resource subResource = ResourceFactory.newInfiniteResource("resource2", subProjectId, "resource2", true);
-    final Map<String, Resource> subProjectResourceMap = new HashMap<String, Resource>() {{
-      putAll(resourceMap);
-      put(subResource.getName(), subResource);
-    }};
-
-    final SBuildType bt = m.mock(SBuildType.class, "buildType: " + myProjectId);
-    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class, "feature: " + myProjectId);
-
-    final SBuildType subBt = m.mock(SBuildType.class, "buildType: " + subProjectId);
-    final SharedResourcesFeature subFeature = m.mock(SharedResourcesFeature.class, "feature: " + subProjectId);
+    expectResources(myProjectId, resource);
+    expectResources(subProjectId, resource, subResource);
 
     final Lock lock = new Lock("resource1", LockType.READ);
-    final Map<String, Lock> lockedResources = new HashMap<String, Lock>() {{
-      put(lock.getName(), lock);
-    }};
-    setupResourcesForProject(resourceMap, subProjectId, subProjectResourceMap, bt, feature, subBt, subFeature, lockedResources);
+    final SBuildType bt = createBuildType("bt", myProject, Collections.singletonMap(lock.getName(), lock));
+    final SBuildType subBt = createBuildType("subBt", mySubProject, Collections.singletonMap(lock.getName(), lock));
 
     final Map<Resource, Map<SBuildType, List<Lock>>> result = myAnalyzer.collectResourceUsages(myProject);
     assertFalse(result.isEmpty());
@@ -276,29 +212,13 @@ public class ResourceUsageAnalyzerTest extends BaseTestCase {
   @Test
   public void testSubProjectOverride() throws Exception {
     final Resource resource = ResourceFactory.newInfiniteResource("resource1_my", myProjectId, "resource1", true);
-    final Map<String, Resource> resourceMap = new HashMap<String, Resource>() {{
-      put(resource.getName(), resource);
-    }};
-
-    final String subProjectId = "MY_SUB_PROJECT";
     final Resource subResource = ResourceFactory.newInfiniteResource("resource1_sub", subProjectId, "resource1", true);
-    final Map<String, Resource> subProjectResourceMap = new HashMap<String, Resource>() {{
-      putAll(resourceMap);
-      put(subResource.getName(), subResource);
-    }};
-
-    final SBuildType bt = m.mock(SBuildType.class, "buildType: " + myProjectId);
-    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class, "feature: " + myProjectId);
-
-    final SBuildType subBt = m.mock(SBuildType.class, "buildType: " + subProjectId);
-    final SharedResourcesFeature subFeature = m.mock(SharedResourcesFeature.class, "feature: " + subProjectId);
+    expectResources(myProjectId, resource);
+    expectResources(subProjectId, subResource);
 
     final Lock lock = new Lock("resource1", LockType.READ);
-    final Map<String, Lock> lockedResources = new HashMap<String, Lock>() {{
-      put(lock.getName(), lock);
-    }};
-
-    setupResourcesForProject(resourceMap, subProjectId, subProjectResourceMap, bt, feature, subBt, subFeature, lockedResources);
+    final SBuildType bt = createBuildType("bt", myProject, Collections.singletonMap(lock.getName(), lock));
+    createBuildType("subBt", mySubProject, Collections.singletonMap(lock.getName(), lock));
 
     final Map<Resource, Map<SBuildType, List<Lock>>> result = myAnalyzer.collectResourceUsages(myProject);
     assertFalse(result.isEmpty());
@@ -312,37 +232,157 @@ public class ResourceUsageAnalyzerTest extends BaseTestCase {
     assertContains(locksList, lock);
   }
 
-  private void setupResourcesForProject(final Map<String, Resource> resourceMap, final String subProjectId, final Map<String, Resource> subProjectResourceMap, final SBuildType bt, final SharedResourcesFeature feature, final SBuildType subBt, final SharedResourcesFeature subFeature, final Map<String, Lock> lockedResources) {
+  /**
+   * Usages of subproject do not include build configurations of the parent project
+   */
+  @Test
+  public void testSubProjectScope() throws Exception {
+    final Resource resource = ResourceFactory.newInfiniteResource("resource1", myProjectId, "resource1", true);
+    expectResources(myProjectId, resource);
+    expectResources(subProjectId, resource);
+
+    final Lock lock = new Lock("resource1", LockType.READ);
+    createBuildType("bt", myProject, Collections.singletonMap(lock.getName(), lock));
+    final SBuildType subBt = createBuildType("subBt", mySubProject, Collections.singletonMap(lock.getName(), lock));
+
+    final Map<Resource, Map<SBuildType, List<Lock>>> result = myAnalyzer.collectResourceUsages(mySubProject);
+    assertEquals(Collections.singleton(subBt), result.get(resource).keySet());
+  }
+
+  @Test
+  public void testFeaturesReadOnce() throws Exception {
+    final Resource resource = ResourceFactory.newInfiniteResource("resource1", myProjectId, "resource1", true);
+    expectResources(myProjectId, resource);
+    final Lock lock = new Lock("resource1", LockType.READ);
+    createBuildType("bt", myProject, Collections.singletonMap(lock.getName(), lock));
+
+    assertEquals(1, myAnalyzer.collectResourceUsages(myProject).size());
+    assertEquals(1, myAnalyzer.collectResourceUsages(myProject).size());
+    // resources change, stored locks are resolved again
+    mySettingsVersion.increment();
+    assertEquals(1, myAnalyzer.collectResourceUsages(myProject).size());
+  }
+
+  @Test
+  public void testBuildTypeChanged() throws Exception {
+    final Resource resource = ResourceFactory.newInfiniteResource("resource1", myProjectId, "resource1", true);
+    expectResources(myProjectId, resource);
+    final Lock lock = new Lock("resource1", LockType.READ);
+    final SBuildType bt = createBuildType("bt", myProject, 2, Collections.singletonMap(lock.getName(), lock));
+    final SBuildType other = createBuildType("other", myProject, Collections.singletonMap(lock.getName(), lock));
+
+    assertEquals(2, myAnalyzer.getUsagesCount(myProject, resource));
+    myDispatcher.getMulticaster().buildTypePersisted(bt);
+    assertEquals(2, myAnalyzer.getUsagesCount(myProject, resource));
+    myDispatcher.getMulticaster().buildTypeUnregistered(other);
+    assertEquals(Collections.singleton(bt), myAnalyzer.collectResourceUsages(myProject).get(resource).keySet());
+  }
+
+  @Test
+  public void testTemplateChanged() throws Exception {
+    final Resource resource = ResourceFactory.newInfiniteResource("resource1", myProjectId, "resource1", true);
+    expectResources(myProjectId, resource);
+    final BuildTypeTemplate template = m.mock(BuildTypeTemplate.class);
     m.checking(new Expectations() {{
-      oneOf(myProject).getProjectId();
-      will(returnValue(myProjectId));
+      allowing(template).getId();
+      will(returnValue("TEMPLATE_ID"));
+    }});
+    final Lock lock = new Lock("resource1", LockType.READ);
+    createBuildType("bt", myProject, 2, Collections.singletonList(template), Collections.singletonMap(lock.getName(), lock));
+    createBuildType("other", myProject, Collections.singletonMap(lock.getName(), lock));
 
-      oneOf(myResources).getResourcesMap(myProjectId);
-      will(returnValue(resourceMap));
+    assertEquals(2, myAnalyzer.getUsagesCount(myProject, resource));
+    myDispatcher.getMulticaster().buildTypeTemplatePersisted(template);
+    assertEquals(2, myAnalyzer.getUsagesCount(myProject, resource));
+  }
 
-      oneOf(myProject).getBuildTypes();
-      will(returnValue(Arrays.asList(bt, subBt)));
+  @Test
+  public void testPagination() throws Exception {
+    final Resource resource = ResourceFactory.newInfiniteResource("resource1", myProjectId, "resource1", true);
+    expectResources(myProjectId, resource);
+    final Lock lock = new Lock("resource1", LockType.READ);
+    final List<SBuildType> buildTypes = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      final SBuildType bt = createBuildType("bt" + i, myProject, Collections.singletonMap(lock.getName(), lock));
+      m.checking(new Expectations() {{
+        allowing(bt).getExtendedFullName();
+        will(returnValue(bt.getBuildTypeId()));
+      }});
+      buildTypes.add(bt);
+    }
+
+    assertEquals(5, myAnalyzer.getUsagesCount(myProject, resource));
+    assertEquals(buildTypes.subList(0, 2), new ArrayList<>(myAnalyzer.getResourceUsages(myProject, resource, 0, 2).keySet()));
+    assertEquals(buildTypes.subList(2, 4), new ArrayList<>(myAnalyzer.getResourceUsages(myProject, resource, 2, 2).keySet()));
+    assertEquals(buildTypes.subList(4, 5), new ArrayList<>(myAnalyzer.getResourceUsages(myProject, resource, 4, 2).keySet()));
+    assertEmpty(myAnalyzer.getResourceUsages(myProject, resource, 6, 2).keySet());
+  }
 
-      oneOf(myFeatures).searchForFeatures(bt);
-      will(returnValue(Collections.singletonList(feature)));
+  private void expectResources(@NotNull final String projectId, @NotNull final Resource... resources) {
+    final Map<String, Resource> resourceMap = new HashMap<>();
+    for (Resource resource: resources) {
+      resourceMap.put(resource.getName(), resource);
+    }
+    m.checking(new Expectations() {{
+      allowing(myResources).getResourcesMap(projectId);
+      will(returnValue(resourceMap));
+    }});
+  }
 
-      oneOf(bt).getProjectId();
-      will(returnValue(myProjectId));
+  @NotNull
+  @SuppressWarnings("unchecked")
+  private SBuildType createBuildType(@NotNull final String id,
+                                     @NotNull final SProject project,
+                                     @NotNull final Map<String, Lock>... featureLocks) {
+    return createBuildType(id, project, 1, Collections.emptyList(), featureLocks);
+  }
 
-      oneOf(feature).getLockedResources();
-      will(returnValue(lockedResources));
+  @NotNull
+  @SuppressWarnings("unchecked")
+  private SBuildType createBuildType(@NotNull final String id,
+                                     @NotNull final SProject project,
+                                     final int reads,
+                                     @NotNull final Map<String, Lock>... featureLocks) {
+    return createBuildType(id, project, reads, Collections.emptyList(), featureLocks);
+  }
 
-      oneOf(myFeatures).searchForFeatures(subBt);
-      will(returnValue(Collections.singletonList(subFeature)));
+  /**
+   * Creates build configuration, which features are expected to be read given number of times
+   */
+  @NotNull
+  private SBuildType createBuildType(@NotNull final String id,
+                                     @NotNull final SProject project,
+                                     final int reads,
+                                     @NotNull final List<BuildTypeTemplate> templates,
+                                     @NotNull final Map<String, Lock>... featureLocks) {
+    final SBuildType bt = m.mock(SBuildType.class, "buildType: " + id);
+    final List<SharedResourcesFeature> features = new ArrayList<>();
+    for (int i = 0; i < featureLocks.length; i++) {
+      final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class, "feature: " + id + i);
+      final Map<String, Lock> locks = featureLocks[i];
+      m.checking(new Expectations() {{
+        exactly(reads).of(feature).getLockedResources();
+        will(returnValue(locks));
+      }});
+      features.add(feature);
+    }
+    m.checking(new Expectations() {{
+      allowing(bt).getBuildTypeId();
+      will(returnValue(id));
 
-      oneOf(subBt).getProjectId();
-      will(returnValue(subProjectId));
+      allowing(bt).getProjectId();
+      will(returnValue(project.getProjectId()));
+
+      allowing(bt).getProject();
+      will(returnValue(project));
 
-      oneOf(myResources).getResourcesMap(subProjectId);
-      will(returnValue(subProjectResourceMap));
+      allowing(bt).getTemplates();
+      will(returnValue(templates));
 
-      oneOf(subFeature).getLockedResources();
-      will(returnValue(lockedResources));
+      exactly(reads).of(myFeatures).searchForFeatures(bt);
+      will(returnValue(features));
     }});
+    myBuildTypes.add(bt);
+    return bt;
   }
 }
@@ -1,7 +1,6 @@
 package jetbrains.buildServer.sharedResources.server;
 
 import jetbrains.buildServer.BaseTestCase;
-import jetbrains.buildServer.BuildAgent;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.buildDistribution.*;
 import jetbrains.buildServer.serverSide.impl.ProjectEx;
@@ -11,9 +10,15 @@ import jetbrains.buildServer.sharedResources.model.TakenLock;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
 import jetbrains.buildServer.sharedResources.server.feature.Locks;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import jetbrains.buildServer.sharedResources.server.runtime.ResourceWaitQueues;
+import jetbrains.buildServer.sharedResources.server.runtime.ResourceWaitRegistry;
 import jetbrains.buildServer.sharedResources.server.runtime.TakenLocks;
+import jetbrains.buildServer.sharedResources.server.runtime.TakenLocksIndex;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.TestFor;
 import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
@@ -25,6 +30,8 @@ import org.testng.annotations.Test;
 
 import java.util.*;
 
+import static jetbrains.buildServer.sharedResources.TestUtils.mockPromotion;
+
 /**
  * Created with IntelliJ IDEA.
  *
@@ -55,13 +62,21 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
 
   private TakenLocks myTakenLocks;
 
-  private RunningBuildsManager myRunningBuildsManager;
+  private TakenLocksIndex myTakenLocksIndex;
+
+  private ResourceWaitRegistry myWaitRegistry;
+
+  private ResourceWaitQueues myWaitQueues;
 
   private Map<String, Object> myCustomData;
 
   private ConfigurationInspector myInspector;
 
-  private Set<String> fairSet = new HashSet<>();
+  private Resources myResources;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private ProjectManager myProjectManager;
 
   /**
    * Class under test
@@ -83,10 +98,11 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
     myBuildPromotion = m.mock(BuildPromotionEx.class);
     myTakenLocks = m.mock(TakenLocks.class);
     myBuildDistributorInput = m.mock(BuildDistributorInput.class);
-    myRunningBuildsManager = m.mock(RunningBuildsManager.class);
+    myTakenLocksIndex = m.mock(TakenLocksIndex.class);
     myCustomData = new HashMap<>();
-    myCustomData.put(SharedResourcesAgentsFilter.CUSTOM_DATA_KEY, fairSet);
     myInspector = m.mock(ConfigurationInspector.class);
+    myResources = m.mock(Resources.class);
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
     myProject = m.mock(ProjectEx.class);
     m.checking(new Expectations() {{
       allowing(myProject).getProjectId();
@@ -95,8 +111,28 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
       allowing(myProject).getExtendedFullName();
       will(returnValue(PROJECT_NAME));
 
+      allowing(myBuildType).getBuildTypeId();
+      will(returnValue("BUILD_TYPE_ID"));
+
+      allowing(myBuildType).getProjectId();
+      will(returnValue(myProjectId));
+
+      allowing(myBuildType).getTemplates();
+      will(returnValue(Collections.emptyList()));
+
+      allowing(myBuildPromotion).getId();
+      will(returnValue(1000L));
     }});
-    myAgentsFilter = new SharedResourcesAgentsFilter(myFeatures, myLocks, myTakenLocks, myRunningBuildsManager, myInspector);
+    final ProjectSettingsVersion settingsVersion = new ProjectSettingsVersion(myDispatcher);
+    myProjectManager = m.mock(ProjectManager.class);
+    m.checking(new Expectations() {{
+      allowing(myProjectManager).findBuildTypeById("BUILD_TYPE_ID");
+      will(returnValue(myBuildType));
+    }});
+    final LockFootprints footprints = new LockFootprints(myDispatcher, myFeatures, myLocks, myResources, myInspector, settingsVersion, myProjectManager);
+    myWaitRegistry = new ResourceWaitRegistry(myDispatcher, settingsVersion);
+    myWaitQueues = new ResourceWaitQueues(myDispatcher);
+    myAgentsFilter = new SharedResourcesAgentsFilter(footprints, myTakenLocks, myTakenLocksIndex, myWaitRegistry, myWaitQueues, myProjectManager);
   }
 
   @Override
@@ -245,12 +281,10 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
     final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
     final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
 
-    final Map<QueuedBuildInfo, BuildAgent> canBeStarted = Collections.emptyMap();
-    final Collection<SRunningBuild> runningBuilds = Collections.emptyList();
 
     final Map<Resource, TakenLock> takenLocks = Collections.emptyMap();
 
-    setupLocks(locksToTake, features, canBeStarted, runningBuilds, takenLocks, Collections.emptyMap());
+    setupLocks(locksToTake, features, takenLocks, Collections.emptyMap());
 
     final AgentsFilterResult result = myAgentsFilter.filterAgents(createContext());
     assertNotNull(result);
@@ -270,17 +304,15 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
     final Lock lock = new Lock("resource1", LockType.READ);
     locksToTake.put(lock.getName(), lock);
 
-    final Map<QueuedBuildInfo, BuildAgent> canBeStarted = Collections.emptyMap();
-    final Collection<SRunningBuild> runningBuilds = Collections.emptyList();
 
     final Lock lock2 = new Lock("resource2", LockType.READ);
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<>();
     final TakenLock tl = new TakenLock(resource2);
-    tl.addLock(m.mock(BuildPromotionInfo.class), lock2);
+    tl.addLock(mockPromotion(m, BuildPromotionInfo.class), lock2);
     takenLocks.put(tl.getResource(), tl);
 
-    setupLocks(locksToTake, features, canBeStarted, runningBuilds, takenLocks, Collections.emptyMap());
+    setupLocks(locksToTake, features, takenLocks, Collections.emptyMap());
 
     final AgentsFilterResult result = myAgentsFilter.filterAgents(createContext());
     assertNotNull(result);
@@ -300,10 +332,8 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
     final Lock lock = new Lock("resource1", LockType.READ);
     locksToTake.put(lock.getName(), lock);
 
-    final Map<QueuedBuildInfo, BuildAgent> canBeStarted = Collections.emptyMap();
-    final Collection<SRunningBuild> runningBuilds = Collections.emptyList();
 
-    final BuildPromotionEx bpex = m.mock(BuildPromotionEx.class, "bpex-lock1");
+    final BuildPromotionEx bpex = mockPromotion(m, BuildPromotionEx.class, "bpex-lock1");
     final Lock takenLock1 = new Lock("resource1", LockType.WRITE);
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<>();
@@ -319,10 +349,13 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
     }};
 
 
-    setupLocks(locksToTake, features, canBeStarted, runningBuilds, takenLocks, unavailableLocks);
+    setupLocks(locksToTake, features, takenLocks, unavailableLocks, Collections.singleton(resource1));
 
     m.checking(new Expectations() {{
-      oneOf(bpex).getBuildType();
+      allowing(bpex).getBuildTypeId();
+      will(returnValue("bpex-btex"));
+
+      oneOf(myProjectManager).findBuildTypeById("bpex-btex");
       will(returnValue(buildTypeEx));
 
       oneOf(buildTypeEx).getExtendedFullName();
@@ -332,6 +365,8 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
     final AgentsFilterResult result = myAgentsFilter.filterAgents(createContext());
     assertNotNull(result);
     assertNotNull(result.getWaitReason());
+    assertEquals("Build is waiting for the following resource to become available: resource1 (locked by UNAVAILABLE)",
+                 result.getWaitReason().getDescription());
     assertNull(result.getFilteredConnectedAgents());
   }
 
@@ -351,8 +386,6 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
     final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
     final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
 
-    final Map<QueuedBuildInfo, BuildAgent> canBeStarted = Collections.emptyMap();
-    final Collection<SRunningBuild> runningBuilds = Collections.emptyList();
 
     final Map<Resource, TakenLock> takenLocks = Collections.emptyMap();
 
@@ -360,7 +393,7 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
       put(resource1, lock);
     }};
 
-    setupLocks(locksToTake, features, canBeStarted, runningBuilds, takenLocks, unavailableLocks);
+    setupLocks(locksToTake, features, takenLocks, unavailableLocks, Collections.singleton(resource1));
 
     final AgentsFilterResult result = myAgentsFilter.filterAgents(createContext());
     assertNotNull(result);
@@ -403,12 +436,232 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
     assertNull(result.getFilteredConnectedAgents());
   }
 
+  @Test
+  public void testTakenLocksCollectedOncePerPass() throws Exception {
+    final Map<String, Lock> locksToTake = new HashMap<>();
+    final Lock lock = new Lock("lock1", LockType.READ);
+    locksToTake.put(lock.getName(), lock);
+
+    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
+    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+
+    final QueuedBuildInfo distributed1 = m.mock(QueuedBuildInfo.class, "distributed-1");
+    final BuildPromotionEx distributedPromotion1 = m.mock(BuildPromotionEx.class, "distributed-promotion-1");
+    final QueuedBuildInfo distributed2 = m.mock(QueuedBuildInfo.class, "distributed-2");
+    final BuildPromotionEx distributedPromotion2 = m.mock(BuildPromotionEx.class, "distributed-promotion-2");
+
+    final Map<QueuedBuildInfo, SBuildAgent> distributedFirst = new LinkedHashMap<>();
+    distributedFirst.put(distributed1, null);
+    final Map<QueuedBuildInfo, SBuildAgent> distributedSecond = new LinkedHashMap<>(distributedFirst);
+    distributedSecond.put(distributed2, null);
+
+    m.checking(new Expectations() {{
+      exactly(2).of(myQueuedBuild).getBuildPromotionInfo();
+      will(returnValue(myBuildPromotion));
+
+      exactly(2).of(myBuildPromotion).getBuildType();
+      will(returnValue(myBuildType));
+
+      exactly(2).of(myBuildPromotion).getProjectId();
+      will(returnValue(myProjectId));
+
+      // footprint of the build configuration is compiled once
+      oneOf(myFeatures).searchForFeatures(myBuildType);
+      will(returnValue(features));
+
+      oneOf(myLocks).fromBuildFeaturesAsMap(features);
+      will(returnValue(locksToTake));
+
+      oneOf(myInspector).inspect(myBuildType);
+      will(returnValue(Collections.emptyMap()));
+
+      oneOf(myResources).getResourcesMap(myProjectId);
+      will(returnValue(Collections.emptyMap()));
+
+      allowing(distributed1).getBuildPromotionInfo();
+      will(returnValue(distributedPromotion1));
+
+      allowing(distributedPromotion1).getId();
+      will(returnValue(1L));
+
+      allowing(distributed2).getBuildPromotionInfo();
+      will(returnValue(distributedPromotion2));
+
+      allowing(distributedPromotion2).getId();
+      will(returnValue(2L));
+
+      // running builds are collected only once per pass
+      oneOf(myTakenLocksIndex).getTakenLocks();
+      will(returnValue(takenLocks));
+
+      // each distributed build is added only once
+      oneOf(myTakenLocks).addQueuedLocks(takenLocks, Collections.singletonList(distributed1));
+      oneOf(myTakenLocks).addQueuedLocks(takenLocks, Collections.singletonList(distributed2));
+
+      exactly(2).of(myTakenLocks).getUnavailableLocks(Collections.<Map.Entry<Resource, Lock>>emptyList(), takenLocks, Collections.<String>emptySet());
+      will(returnValue(Collections.emptyMap()));
+    }});
+
+    assertNull(myAgentsFilter.filterAgents(createContext(distributedFirst)).getWaitReason());
+    assertNull(myAgentsFilter.filterAgents(createContext(distributedSecond)).getWaitReason());
+  }
+
+  @Test
+  public void testWaitKeptUntilRelease() throws Exception {
+    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
+    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
+
+    final Resource resource1 = ResourceFactory.newQuotedResource("resource1", myProjectId, "resource1", 1, true);
+    final Lock lock = new Lock("resource1", LockType.READ);
+    final Map<String, Lock> locksToTake = Collections.singletonMap(lock.getName(), lock);
+
+    final BuildPromotionEx runningPromotion = mockPromotion(m, BuildPromotionEx.class, "running-promotion");
+    final BuildTypeEx runningBuildType = m.mock(BuildTypeEx.class, "running-build-type");
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final TakenLock tl = new TakenLock(resource1);
+    tl.addLock(runningPromotion, new Lock("resource1", LockType.WRITE));
+    takenLocks.put(resource1, tl);
+
+    final Map<Resource, Lock> unavailableLocks = Collections.singletonMap(resource1, lock);
+    setupLocks(locksToTake, features, takenLocks, unavailableLocks, Collections.singleton(resource1));
+
+    m.checking(new Expectations() {{
+      allowing(runningPromotion).getBuildTypeId();
+      will(returnValue("running-build-type"));
+
+      allowing(myProjectManager).findBuildTypeById("running-build-type");
+      will(returnValue(runningBuildType));
+
+      allowing(runningBuildType).getExtendedFullName();
+      will(returnValue("Running"));
+
+      // the build is checked again in the second and the third pass
+      exactly(2).of(myQueuedBuild).getBuildPromotionInfo();
+      will(returnValue(myBuildPromotion));
+
+      exactly(2).of(myBuildPromotion).getBuildType();
+      will(returnValue(myBuildType));
+
+      exactly(2).of(myBuildPromotion).getProjectId();
+      will(returnValue(myProjectId));
+    }});
+
+    final WaitReason reason = myAgentsFilter.filterAgents(createContext()).getWaitReason();
+    assertNotNull(reason);
+
+    // no locks were released, taken locks are not read again
+    startNewPass();
+    assertSame(reason, myAgentsFilter.filterAgents(createContext()).getWaitReason());
+
+    // released resource wakes the build
+    final Map<Resource, TakenLock> released = new HashMap<>();
+    assertEquals(Collections.singleton(1000L), myWaitRegistry.released(Collections.singleton(resource1)));
+    m.checking(new Expectations() {{
+      oneOf(myTakenLocksIndex).getTakenLocks();
+      will(returnValue(released));
+
+      oneOf(myTakenLocks).getUnavailableLocks(resolvedLockList(Collections.singletonMap(resource1, lock)), released, Collections.<String>emptySet());
+      will(returnValue(Collections.emptyMap()));
+    }});
+    startNewPass();
+    assertNull(myAgentsFilter.filterAgents(createContext()).getWaitReason());
+  }
+
+  @Test
+  public void testWriterRejectedByOtherFilter_KeepsQueuePosition() throws Exception {
+    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
+    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
+
+    final Resource resource1 = ResourceFactory.newQuotedResource("resource1", myProjectId, "resource1", 1, true);
+    final Lock lock = new Lock("resource1", LockType.WRITE);
+    final Map<String, Lock> locksToTake = Collections.singletonMap(lock.getName(), lock);
+    final Map<Resource, Lock> writeLocks = Collections.singletonMap(resource1, lock);
+
+    final BuildPromotionEx runningPromotion = mockPromotion(m, BuildPromotionEx.class, "running-promotion");
+    final BuildTypeEx runningBuildType = m.mock(BuildTypeEx.class, "running-build-type");
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final TakenLock tl = new TakenLock(resource1);
+    tl.addLock(runningPromotion, new Lock("resource1", LockType.READ));
+    takenLocks.put(resource1, tl);
+
+    setupLocks(locksToTake, features, takenLocks, writeLocks, Collections.singleton(resource1));
+    m.checking(new Expectations() {{
+      allowing(runningPromotion).getBuildTypeId();
+      will(returnValue("running-build-type"));
+
+      allowing(myProjectManager).findBuildTypeById("running-build-type");
+      will(returnValue(runningBuildType));
+
+      allowing(runningBuildType).getExtendedFullName();
+      will(returnValue("Running"));
+    }});
+    // the build waits for the write lock and is put into the queue of the resource
+    assertNotNull(myAgentsFilter.filterAgents(createContext()).getWaitReason());
+    assertEquals(writeLocks, myWaitQueues.getBlockedLocks(2000L, writeLocks));
+
+    final Map<Resource, TakenLock> released = new HashMap<>();
+    myWaitRegistry.released(Collections.singleton(resource1));
+    m.checking(new Expectations() {{
+      oneOf(myQueuedBuild).getBuildPromotionInfo();
+      will(returnValue(myBuildPromotion));
+
+      oneOf(myBuildPromotion).getBuildType();
+      will(returnValue(myBuildType));
+
+      oneOf(myBuildPromotion).getProjectId();
+      will(returnValue(myProjectId));
+
+      oneOf(myTakenLocksIndex).getTakenLocks();
+      will(returnValue(released));
+
+      oneOf(myTakenLocks).getUnavailableLocks(resolvedLockList(writeLocks), released, Collections.<String>emptySet());
+      will(returnValue(Collections.emptyMap()));
+    }});
+    startNewPass();
+    // the build passes this filter, but is rejected by other agent filters and stays in the queue
+    assertNull(myAgentsFilter.filterAgents(createContext()).getWaitReason());
+    assertEquals(writeLocks, myWaitQueues.getBlockedLocks(2000L, writeLocks));
+
+    // the build leaves the queue to start
+    final SQueuedBuild queuedBuild = m.mock(SQueuedBuild.class);
+    final SRunningBuild runningBuild = m.mock(SRunningBuild.class);
+    m.checking(new Expectations() {{
+      allowing(queuedBuild).getBuildPromotion();
+      will(returnValue(myBuildPromotion));
+
+      allowing(myBuildPromotion).getAssociatedBuild();
+      will(returnValue(runningBuild));
+    }});
+    myDispatcher.getMulticaster().buildRemovedFromQueue(queuedBuild, null, null);
+    assertEmpty(myWaitQueues.getBlockedLocks(2000L, writeLocks).keySet());
+  }
+
+  private void startNewPass() {
+    myCustomData.remove(SharedResourcesAgentsFilter.TAKEN_LOCKS_DATA_KEY);
+  }
+
   private void setupLocks(final Map<String, Lock> locksToTake,
                           final Collection<SharedResourcesFeature> features,
-                          final Map<QueuedBuildInfo, BuildAgent> canBeStarted,
-                          final Collection<SRunningBuild> runningBuilds,
                           final Map<Resource, TakenLock> takenLocks,
                           final Map<Resource, Lock> unavailableLocks) {
+    setupLocks(locksToTake, features, takenLocks, unavailableLocks, Collections.emptyList());
+  }
+
+  private void setupLocks(final Map<String, Lock> locksToTake,
+                          final Collection<SharedResourcesFeature> features,
+                          final Map<Resource, TakenLock> takenLocks,
+                          final Map<Resource, Lock> unavailableLocks,
+                          final Collection<Resource> resources) {
+    final Map<String, Resource> resourcesMap = new HashMap<>();
+    resources.forEach(rc -> resourcesMap.put(rc.getName(), rc));
+    final Map<Resource, Lock> resolvedLocks = new HashMap<>();
+    resources.forEach(rc -> {
+      final Lock lock = locksToTake.get(rc.getName());
+      if (lock != null) {
+        resolvedLocks.put(rc, lock);
+      }
+    });
     m.checking(new Expectations() {{
       oneOf(myQueuedBuild).getBuildPromotionInfo();
       will(returnValue(myBuildPromotion));
@@ -428,19 +681,30 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
       oneOf(myInspector).inspect(myBuildType);
       will(returnValue(Collections.emptyMap()));
 
-      oneOf(myRunningBuildsManager).getRunningBuilds();
-      will(returnValue(runningBuilds));
-
-      oneOf(myTakenLocks).collectTakenLocks(myProjectId, runningBuilds, canBeStarted.keySet());
+      oneOf(myTakenLocksIndex).getTakenLocks();
       will(returnValue(takenLocks));
 
-      oneOf(myTakenLocks).getUnavailableLocks(locksToTake.values(), takenLocks, myProjectId, fairSet);
+      oneOf(myResources).getResourcesMap(myProjectId);
+      will(returnValue(resourcesMap));
+
+      oneOf(myTakenLocks).getUnavailableLocks(resolvedLockList(resolvedLocks), takenLocks, Collections.<String>emptySet());
       will(returnValue(unavailableLocks));
 
     }});
   }
 
+  /**
+   * Resolved locks in the order, the footprint keeps them
+   */
+  private static List<Map.Entry<Resource, Lock>> resolvedLockList(@NotNull final Map<Resource, Lock> resolvedLocks) {
+    return new ArrayList<>(new HashMap<>(resolvedLocks).entrySet());
+  }
+
   private AgentsFilterContext createContext() {
+    return createContext(Collections.emptyMap());
+  }
+
+  private AgentsFilterContext createContext(@NotNull final Map<QueuedBuildInfo, SBuildAgent> distributedBuilds) {
     return new DefaultAgentsFilterContext(myCustomData) {
 
       @NotNull
@@ -458,7 +722,7 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
       @NotNull
       @Override
       public Map<QueuedBuildInfo, SBuildAgent> getDistributedBuilds() {
-        return Collections.emptyMap();
+        return distributedBuilds;
       }
 
       @NotNull
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.BuildTypeEx;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.buildDistribution.WaitReason;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = WaitReasons.class)
+public class WaitReasonsTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private ProjectManager myProjectManager;
+
+  private final Resource myResource = ResourceFactory.newQuotedResource("resource1", "MY_PROJECT_ID", "resource1", 1, true);
+
+  private final Map<Resource, Lock> myUnavailableLocks = Collections.singletonMap(myResource, new Lock("resource1", LockType.READ));
+
+  /**
+   * Class under test
+   */
+  private WaitReasons myWaitReasons;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myProjectManager = m.mock(ProjectManager.class);
+    myWaitReasons = new WaitReasons(myProjectManager);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testReasonReused() throws Exception {
+    final BuildPromotionEx holder1 = mockHolder("holder1", "bt1", "Project :: Build 1");
+    final BuildPromotionEx holder2 = mockHolder("holder2", "bt1", "Project :: Build 1");
+
+    final WaitReason reason = myWaitReasons.get(takenLocks(holder1), myUnavailableLocks);
+    // other build of the same build configuration holds the lock
+    assertSame(reason, myWaitReasons.get(takenLocks(holder2), myUnavailableLocks));
+    assertEquals(1, myWaitReasons.size());
+  }
+
+  @Test
+  public void testOtherHolder() throws Exception {
+    final BuildPromotionEx holder1 = mockHolder("holder1", "bt1", "Project :: Build 1");
+    final BuildPromotionEx holder2 = mockHolder("holder2", "bt2", "Project :: Build 2");
+
+    final WaitReason reason = myWaitReasons.get(takenLocks(holder1), myUnavailableLocks);
+    final WaitReason other = myWaitReasons.get(takenLocks(holder2), myUnavailableLocks);
+    assertNotSame(reason, other);
+    assertEquals("Build is waiting for the following resource to become available: resource1 (locked by Project :: Build 2)",
+                 other.getDescription());
+  }
+
+  @Test
+  public void testNoHolders() throws Exception {
+    final WaitReason reason = myWaitReasons.get(Collections.emptyMap(), myUnavailableLocks);
+    assertEquals("Build is waiting for the following resource to become available: resource1", reason.getDescription());
+  }
+
+  @Test
+  public void testDescriptionRenderedOnRequest() throws Exception {
+    final BuildPromotionEx holder = m.mock(BuildPromotionEx.class, "holder");
+    m.checking(new Expectations() {{
+      allowing(holder).getBuildTypeId();
+      will(returnValue("bt1"));
+
+      allowing(holder).getId();
+      will(returnValue(1L));
+
+      never(myProjectManager).findBuildTypeById("bt1");
+    }});
+    assertNotNull(myWaitReasons.get(takenLocks(holder), myUnavailableLocks));
+  }
+
+  @Test
+  public void testSizeBounded() throws Exception {
+    for (int i = 0; i <= WaitReasons.MAX_SIZE; i++) {
+      final Resource resource = ResourceFactory.newQuotedResource("other" + i, "MY_PROJECT_ID", "other" + i, 1, true);
+      myWaitReasons.get(Collections.emptyMap(), Collections.singletonMap(resource, new Lock(resource.getName(), LockType.READ)));
+    }
+    // old reasons are evicted one by one, cache is not cleared at once
+    assertTrue(myWaitReasons.size() <= WaitReasons.MAX_SIZE);
+    assertTrue(myWaitReasons.size() > WaitReasons.MAX_SIZE / 2);
+  }
+
+  @NotNull
+  private Map<Resource, TakenLock> takenLocks(@NotNull final BuildPromotionEx holder) {
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(holder, new Lock("resource1", LockType.WRITE));
+    final Map<Resource, TakenLock> result = new HashMap<>();
+    result.put(myResource, takenLock);
+    return result;
+  }
+
+  @NotNull
+  private BuildPromotionEx mockHolder(@NotNull final String name,
+                                      @NotNull final String buildTypeId,
+                                      @NotNull final String buildTypeName) {
+    final BuildPromotionEx holder = m.mock(BuildPromotionEx.class, name);
+    final BuildTypeEx buildType = m.mock(BuildTypeEx.class, name + "-build-type");
+    m.checking(new Expectations() {{
+      allowing(myProjectManager).findBuildTypeById(buildTypeId);
+      will(returnValue(buildType));
+
+      allowing(holder).getBuildTypeId();
+      will(returnValue(buildTypeId));
+
+      allowing(holder).getId();
+      will(returnValue((long) name.hashCode()));
+
+      allowing(buildType).getExtendedFullName();
+      will(returnValue(buildTypeName));
+    }});
+    return holder;
+  }
+}
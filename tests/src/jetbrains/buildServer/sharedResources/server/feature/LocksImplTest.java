@@ -97,6 +97,25 @@ public class LocksImplTest extends BaseTestCase {
     }
   }
 
+  @Test
+  public void testFromFeatureParameters_Cached() throws Exception {
+    final Map<String, String> params1 = Collections.singletonMap(LOCKS_FEATURE_PARAM_KEY, "lock1 readLock\nlock2 writeLock");
+    final Map<String, String> params2 = Collections.singletonMap(LOCKS_FEATURE_PARAM_KEY, "lock1 readLock\nlock2 writeLock");
+    final Map<String, Lock> result = myLocks.fromFeatureParameters(params1);
+    assertEquals(2, result.size());
+    assertSame(result, myLocks.fromFeatureParameters(params2));
+
+    final Map<String, Lock> changed = myLocks.fromFeatureParameters(Collections.singletonMap(LOCKS_FEATURE_PARAM_KEY, "lock1 readLock"));
+    assertEquals(1, changed.size());
+    assertEquals(LockType.READ, changed.get("lock1").getType());
+  }
+
+  @Test(expectedExceptions = UnsupportedOperationException.class)
+  public void testFromFeatureParameters_Immutable() throws Exception {
+    final Map<String, Lock> result = myLocks.fromFeatureParameters(Collections.singletonMap(LOCKS_FEATURE_PARAM_KEY, "lock1 readLock"));
+    result.remove("lock1");
+  }
+
   @Test
   public void testFromFeatureParameters_LocksTricky() throws Exception {
     final Map<String, String> params = new HashMap<String, String>() {{
@@ -277,4 +296,45 @@ public class LocksImplTest extends BaseTestCase {
       assertEquals(lock.getValue(), val);
     }
   }
+
+  @Test
+  public void testFromFeatureParams_Weights() throws Exception {
+    final Map<String, String> params = new HashMap<>();
+    params.put(LOCKS_FEATURE_PARAM_KEY, "db readLock:4\nslots writeLock:2\nlight readLock\ncustom readLock:3 VAL1\nbroken readLock:x\nzero readLock:0\nnegative writeLock:-3");
+    final Map<String, Lock> result = myLocks.fromFeatureParameters(params);
+    assertEquals(7, result.size());
+    assertEquals(new Lock("db", LockType.READ, "", 4), result.get("db"));
+    assertEquals(new Lock("slots", LockType.WRITE, "", 2), result.get("slots"));
+    assertEquals(Lock.DEFAULT_WEIGHT, result.get("light").getWeight());
+    // lock of specific value takes single value
+    assertEquals(new Lock("custom", LockType.READ, "VAL1"), result.get("custom"));
+    assertTrue(result.get("light").isWeightValid());
+    // invalid weights take default weight, but are marked as invalid
+    for (String name: Arrays.asList("broken", "zero", "negative")) {
+      final Lock lock = result.get(name);
+      assertEquals(Lock.DEFAULT_WEIGHT, lock.getWeight());
+      assertFalse(lock.isWeightValid());
+      assertFalse(new Lock(name, lock.getType()).equals(lock));
+    }
+  }
+
+  @Test
+  public void testToFeatureParams_Weights() throws Exception {
+    final Collection<Lock> locks = new ArrayList<>();
+    locks.add(new Lock("db", LockType.READ, "", 4));
+    locks.add(new Lock("light", LockType.READ));
+    locks.add(new Lock("custom", LockType.WRITE, "", 2));
+
+    final String str = myLocks.asFeatureParameter(locks);
+    assertTrue(str.contains("db readLock:4"));
+    assertTrue(str.contains("light readLock "));
+    assertFalse(str.contains("light readLock:"));
+    assertTrue(str.contains("custom writeLock:2 "));
+
+    final Map<String, String> params = new HashMap<>();
+    params.put(LOCKS_FEATURE_PARAM_KEY, str);
+    final Map<String, Lock> parsed = myLocks.fromFeatureParameters(params);
+    assertEquals(3, parsed.size());
+    assertTrue(parsed.values().containsAll(locks));
+  }
 }
@@ -2,6 +2,7 @@ package jetbrains.buildServer.sharedResources.server.feature;
 
 import java.util.*;
 import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.ProjectManager;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
@@ -9,9 +10,11 @@ import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.TestUtils;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeature;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeatureImpl;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeatures;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.TestFor;
 import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
@@ -43,6 +46,8 @@ public class ResourcesImplTest extends BaseTestCase {
 
   private final String myRootProjectId = "<ROOT>";
 
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
   private ResourcesImpl resources;
 
   @BeforeMethod
@@ -56,7 +61,15 @@ public class ResourcesImplTest extends BaseTestCase {
     myProject = m.mock(SProject.class, "currentProject");
     myRootProject = m.mock(SProject.class, "rootProject");
     myResourceProjectFeatures = m.mock(ResourceProjectFeatures.class);
-    resources = new ResourcesImpl(myProjectManager, myResourceProjectFeatures);
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    resources = new ResourcesImpl(myProjectManager, myResourceProjectFeatures, new ProjectSettingsVersion(myDispatcher));
+    m.checking(new Expectations() {{
+      allowing(myProject).getProjectId();
+      will(returnValue(myProjectId));
+
+      allowing(myRootProject).getProjectId();
+      will(returnValue(myRootProjectId));
+    }});
   }
 
   @Override
@@ -311,6 +324,79 @@ public class ResourcesImplTest extends BaseTestCase {
     assertEquals(1, resources.getCount(myProject));
   }
 
+  @Test
+  @SuppressWarnings("Duplicates")
+  public void testResourcesCached() {
+    final List<ResourceProjectFeature> projectFeatures = Collections.singletonList(
+      createFeature(ResourceFactory.newInfiniteResource("project1", myProjectId, "RESOURCE_1", true))
+    );
+
+    final List<ResourceProjectFeature> rootFeatures = Collections.singletonList(
+      createFeature(ResourceFactory.newInfiniteResource("root1", myRootProjectId, "RESOURCE_2", true))
+    );
+
+    m.checking(new Expectations() {{
+      oneOf(myProjectManager).findProjectById(myProjectId);
+      will(returnValue(myProject));
+
+      oneOf(myProject).getProjectPath();
+      will(returnValue(Arrays.asList(myRootProject, myProject)));
+
+      oneOf(myResourceProjectFeatures).getOwnFeatures(myProject);
+      will(returnValue(projectFeatures));
+
+      oneOf(myResourceProjectFeatures).getOwnFeatures(myRootProject);
+      will(returnValue(rootFeatures));
+    }});
+
+    final Map<String, Resource> result = resources.getResourcesMap(myProjectId);
+    assertEquals(2, result.size());
+    assertSame(result, resources.getResourcesMap(myProjectId));
+    assertEquals(2, resources.getCount(myProject));
+    assertEquals(1, resources.getOwnResources(myRootProject).size());
+  }
+
+  @Test
+  @SuppressWarnings("Duplicates")
+  public void testCacheInvalidatedOnFeatureChange() {
+    final ResourceProjectFeature feature = createFeature(ResourceFactory.newInfiniteResource("project1", myProjectId, "RESOURCE_1", true));
+    final List<ResourceProjectFeature> before = Collections.singletonList(feature);
+    final List<ResourceProjectFeature> after = Arrays.asList(
+      feature,
+      createFeature(ResourceFactory.newInfiniteResource("project2", myProjectId, "RESOURCE_2", true))
+    );
+    final SProjectFeatureDescriptor descriptor = m.mock(SProjectFeatureDescriptor.class, "added");
+
+    m.checking(new Expectations() {{
+      exactly(2).of(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      oneOf(myResourceProjectFeatures).getOwnFeatures(myProject);
+      will(returnValue(before));
+
+      oneOf(myResourceProjectFeatures).getOwnFeatures(myProject);
+      will(returnValue(after));
+    }});
+
+    assertEquals(1, resources.getCount(myProject));
+    assertEquals(1, resources.getCount(myProject));
+    myDispatcher.getMulticaster().projectFeatureAdded(myProject, descriptor);
+    assertEquals(2, resources.getCount(myProject));
+  }
+
+  @Test(expectedExceptions = UnsupportedOperationException.class)
+  public void testCachedResourcesImmutable() {
+    m.checking(new Expectations() {{
+      oneOf(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      oneOf(myResourceProjectFeatures).getOwnFeatures(myProject);
+      will(returnValue(Collections.emptyList()));
+    }});
+
+    resources.getResources(myProject).add(ResourceFactory.newInfiniteResource("project1", myProjectId, "RESOURCE_1", true));
+  }
+
   private ResourceProjectFeature createFeature(@NotNull final Resource resource) {
     final SProjectFeatureDescriptor descriptor = m.mock(SProjectFeatureDescriptor.class, "descriptor" + resource.getProjectId() + "_" + resource.getId());
     m.checking(new Expectations() {{
@@ -1,5 +1,6 @@
 package jetbrains.buildServer.sharedResources.server.feature;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import jetbrains.buildServer.BaseTestCase;
@@ -105,7 +106,7 @@ public class SharedResourcesFeatureImplTest extends BaseTestCase {
       oneOf(myLocks).fromFeatureParameters(myBuildFeatureDescriptor);
       will(returnValue(myLockedResources));
 
-      oneOf(myLocks).asFeatureParameter(myLockedResources.values());
+      oneOf(myLocks).asFeatureParameter(with(any(Collection.class)));
       will(returnValue(newLocksAsString));
 
       oneOf(myBuildFeatureDescriptor).getId();
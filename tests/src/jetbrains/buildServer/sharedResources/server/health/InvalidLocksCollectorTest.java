@@ -0,0 +1,184 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.health;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = InvalidLocksCollector.class)
+public class InvalidLocksCollectorTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private final Map<Lock, String> myInvalidLocks = Collections.singletonMap(new Lock("lock1", LockType.READ), "Resource 'lock1' does not exist");
+
+  /**
+   * Build types, that have configuration errors
+   */
+  private final Set<SBuildType> myInvalid = new HashSet<>();
+
+  /**
+   * Inspections in format {@code build type -> number of inspections}
+   */
+  private final ConcurrentMap<SBuildType, AtomicInteger> myInspections = new ConcurrentHashMap<>();
+
+  /**
+   * Threads, that performed inspections
+   */
+  private final Set<Thread> myThreads = ConcurrentHashMap.newKeySet();
+
+  private final Function<SBuildType, Map<Lock, String>> myInspection = type -> {
+    myInspections.computeIfAbsent(type, t -> new AtomicInteger()).incrementAndGet();
+    myThreads.add(Thread.currentThread());
+    return myInvalid.contains(type) ? myInvalidLocks : Collections.emptyMap();
+  };
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myInvalid.clear();
+    myInspections.clear();
+    myThreads.clear();
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testSmallScope_CallingThread() throws Exception {
+    final List<SBuildType> buildTypes = createBuildTypes(3, 10);
+
+    final Map<SBuildType, Map<Lock, String>> result = new InvalidLocksCollector(myInspection, 4).collect(buildTypes);
+    assertEquals(myInvalid, result.keySet());
+    assertEquals(Collections.singleton(Thread.currentThread()), myThreads);
+  }
+
+  @Test
+  public void testLargeScope_Parallel() throws Exception {
+    final List<SBuildType> buildTypes = createBuildTypes(40, 25);
+
+    final Map<SBuildType, Map<Lock, String>> result = new InvalidLocksCollector(myInspection, 4).collect(buildTypes);
+    assertEquals(myInvalid, result.keySet());
+    result.values().forEach(locks -> assertEquals(myInvalidLocks, locks));
+    assertEquals(buildTypes.size(), myInspections.size());
+    myInspections.values().forEach(count -> assertEquals(1, count.get()));
+    assertFalse(myThreads.contains(Thread.currentThread()));
+  }
+
+  @Test
+  public void testLargeScope_PoolReused() throws Exception {
+    final List<SBuildType> buildTypes = createBuildTypes(40, 25);
+    final InvalidLocksCollector collector = new InvalidLocksCollector(myInspection, 4);
+    collector.collect(buildTypes);
+    final Set<ForkJoinPool> firstPools = getPools(myThreads);
+    myThreads.clear();
+    collector.collect(buildTypes);
+    // workers of the same pool inspect build types of the second call
+    assertEquals(1, firstPools.size());
+    assertEquals(firstPools, getPools(myThreads));
+  }
+
+  @Test
+  public void testShutdown() throws Exception {
+    final List<SBuildType> buildTypes = createBuildTypes(40, 25);
+    final InvalidLocksCollector collector = new InvalidLocksCollector(myInspection, 4);
+    collector.collect(buildTypes);
+    final Set<ForkJoinPool> pools = getPools(myThreads);
+    assertEquals(1, pools.size());
+
+    collector.shutdown();
+    assertTrue(pools.iterator().next().isShutdown());
+    myThreads.clear();
+    myInspections.clear();
+    // inspections after shutdown run in the calling thread
+    assertEquals(myInvalid, collector.collect(buildTypes).keySet());
+    assertEquals(Collections.singleton(Thread.currentThread()), myThreads);
+  }
+
+  @Test
+  public void testLargeScope_ParallelismDisabled() throws Exception {
+    final List<SBuildType> buildTypes = createBuildTypes(40, 25);
+
+    final Map<SBuildType, Map<Lock, String>> result = new InvalidLocksCollector(myInspection, 1).collect(buildTypes);
+    assertEquals(myInvalid, result.keySet());
+    assertEquals(buildTypes.size(), myInspections.size());
+    assertEquals(Collections.singleton(Thread.currentThread()), myThreads);
+  }
+
+  @Test
+  public void testEmptyScope() throws Exception {
+    assertEmpty(new InvalidLocksCollector(myInspection, 4).collect(Collections.emptyList()).keySet());
+  }
+
+  private static Set<ForkJoinPool> getPools(@NotNull final Set<Thread> threads) {
+    final Set<ForkJoinPool> result = new HashSet<>();
+    for (Thread thread: threads) {
+      if (thread instanceof ForkJoinWorkerThread) {
+        result.add(((ForkJoinWorkerThread) thread).getPool());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Creates build types in given number of projects. Each seventh build type has configuration errors
+   */
+  private List<SBuildType> createBuildTypes(final int projects, final int buildTypesPerProject) {
+    final List<SBuildType> result = new ArrayList<>();
+    for (int p = 0; p < projects; p++) {
+      for (int b = 0; b < buildTypesPerProject; b++) {
+        final String projectId = "project" + p;
+        final SBuildType buildType = m.mock(SBuildType.class, projectId + "_bt" + b);
+        m.checking(new Expectations() {{
+          allowing(buildType).getProjectId();
+          will(returnValue(projectId));
+        }});
+        if (result.size() % 7 == 0) {
+          myInvalid.add(buildType);
+        }
+        result.add(buildType);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.sharedResources.server.health;
+
+import com.google.common.cache.CacheStats;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.healthStatus.HealthStatusItem;
+import jetbrains.buildServer.serverSide.healthStatus.HealthStatusItemConsumer;
+import jetbrains.buildServer.serverSide.healthStatus.HealthStatusScope;
+import jetbrains.buildServer.serverSide.healthStatus.ItemSeverity;
+import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import jetbrains.buildServer.sharedResources.server.runtime.ValueAffinity;
+import jetbrains.buildServer.util.TestFor;
+import jetbrains.buildServer.web.openapi.PagePlaces;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = RuntimeStatisticsHealthReport.class)
+public class RuntimeStatisticsHealthReportTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private LocksStorage myLocksStorage;
+
+  private ValueAffinity myValueAffinity;
+
+  private HealthStatusScope myScope;
+
+  /**
+   * Class under test
+   */
+  private RuntimeStatisticsHealthReport myReport;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myLocksStorage = m.mock(LocksStorage.class);
+    myValueAffinity = new ValueAffinity(new File(createTempDir(), "affinity.txt"));
+    myScope = m.mock(HealthStatusScope.class);
+    final PluginDescriptor descriptor = m.mock(PluginDescriptor.class);
+    m.checking(new Expectations() {{
+      allowing(descriptor).getPluginResourcesPath("/health/runtimeStatisticsReport.jsp");
+      will(returnValue("/plugins/sharedResources/health/runtimeStatisticsReport.jsp"));
+    }});
+    myReport = new RuntimeStatisticsHealthReport(descriptor, m.mock(PagePlaces.class), myLocksStorage, myValueAffinity);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    System.clearProperty(ValueAffinity.ENABLED_PROPERTY);
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testOnlyInfoScope() throws Exception {
+    m.checking(new Expectations() {{
+      oneOf(myScope).isItemWithSeverityAccepted(ItemSeverity.INFO);
+      will(returnValue(false));
+    }});
+    assertFalse(myReport.canReportItemsFor(myScope));
+  }
+
+  @Test
+  public void testStatisticsReportedGlobally() throws Exception {
+    final CacheStats stats = new CacheStats(3, 1, 1, 0, 100, 0);
+    final List<HealthStatusItem> items = new ArrayList<>();
+    final HealthStatusItemConsumer consumer = m.mock(HealthStatusItemConsumer.class);
+    m.checking(new Expectations() {{
+      oneOf(myLocksStorage).getStatistics();
+      will(returnValue(stats));
+
+      oneOf(consumer).consumeGlobal(with(any(HealthStatusItem.class)));
+      will(new CustomAction("collect item") {
+        @Override
+        public Object invoke(final Invocation invocation) throws Throwable {
+          items.add((HealthStatusItem) invocation.getParameter(0));
+          return null;
+        }
+      });
+    }});
+    myReport.report(myScope, consumer);
+    assertEquals(1, items.size());
+    assertSame(stats, items.get(0).getAdditionalData().get("locksStorage"));
+    // affinity is disabled
+    assertNull(items.get(0).getAdditionalData().get("valueAffinity"));
+  }
+
+  @Test
+  public void testAffinityStatisticsReported() throws Exception {
+    System.setProperty(ValueAffinity.ENABLED_PROPERTY, "true");
+    myValueAffinity.granted("bt1", "resource", null, "a");
+    myValueAffinity.granted("bt1", "resource", "a", "a");
+    final List<HealthStatusItem> items = new ArrayList<>();
+    final HealthStatusItemConsumer consumer = m.mock(HealthStatusItemConsumer.class);
+    m.checking(new Expectations() {{
+      oneOf(myLocksStorage).getStatistics();
+      will(returnValue(new CacheStats(0, 0, 0, 0, 0, 0)));
+
+      oneOf(consumer).consumeGlobal(with(any(HealthStatusItem.class)));
+      will(new CustomAction("collect item") {
+        @Override
+        public Object invoke(final Invocation invocation) throws Throwable {
+          items.add((HealthStatusItem) invocation.getParameter(0));
+          return null;
+        }
+      });
+    }});
+    myReport.report(myScope, consumer);
+    final CacheStats stats = (CacheStats) items.get(0).getAdditionalData().get("valueAffinity");
+    assertEquals(1, stats.hitCount());
+    assertEquals(1, stats.missCount());
+  }
+}
@@ -20,12 +20,14 @@ import com.intellij.openapi.util.Pair;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.ProjectFeatureParameters;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
 import jetbrains.buildServer.sharedResources.model.resources.ResourceType;
+import jetbrains.buildServer.util.EventDispatcher;
 import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
@@ -56,7 +58,7 @@ public class ResourceProjectFeaturesTest extends BaseTestCase {
   protected void setUp() throws Exception {
     super.setUp();
     m = new Mockery();
-    myFeatures = new ResourceProjectFeaturesImpl();
+    myFeatures = new ResourceProjectFeaturesImpl(new ProjectSettingsVersion(EventDispatcher.create(BuildServerListener.class)));
     myProject = m.mock(SProject.class, "My Project");
   }
 
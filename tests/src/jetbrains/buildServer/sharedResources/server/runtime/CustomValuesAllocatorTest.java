@@ -0,0 +1,433 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.RunningBuildsManager;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = CustomValuesAllocator.class)
+public class CustomValuesAllocatorTest extends BaseTestCase {
+
+  private final String myProjectId = "MY_PROJECT_ID";
+
+  private final String myOtherProjectId = "OTHER_PROJECT_ID";
+
+  private Mockery m;
+
+  private LocksJournal myJournal;
+
+  private LocksStorage myLocksStorage;
+
+  private RunningBuildsManager myRunningBuildsManager;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private ProjectSettingsVersion mySettingsVersion;
+
+  private final List<SRunningBuild> myRunningBuilds = new ArrayList<>();
+
+  /**
+   * Resources, visible in projects, in format {@code projectId -> <name, resource>}
+   */
+  private final Map<String, Map<String, Resource>> myProjectResources = new HashMap<>();
+
+  /**
+   * Class under test
+   */
+  private CustomValuesAllocator myAllocator;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myRunningBuildsManager = m.mock(RunningBuildsManager.class);
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myJournal = new LocksJournal(createTempDir());
+    myLocksStorage = new LocksStorageImpl(myDispatcher, myJournal, myRunningBuildsManager);
+    mySettingsVersion = new ProjectSettingsVersion(myDispatcher);
+    myRunningBuilds.clear();
+    myProjectResources.clear();
+    myProjectResources.put(myProjectId, new HashMap<>());
+    myProjectResources.put(myOtherProjectId, new HashMap<>());
+    final Resources resources = m.mock(Resources.class);
+    m.checking(new Expectations() {{
+      allowing(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(myRunningBuilds));
+
+      allowing(resources).getResourcesMap(myProjectId);
+      will(returnValue(myProjectResources.get(myProjectId)));
+
+      allowing(resources).getResourcesMap(myOtherProjectId);
+      will(returnValue(myProjectResources.get(myOtherProjectId)));
+    }});
+    myAllocator = new CustomValuesAllocator(myDispatcher, myLocksStorage, myRunningBuildsManager, mySettingsVersion, resources);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    System.clearProperty(ValueSelectionPolicy.PROPERTY_NAME);
+    myJournal.close();
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testAllocateAny() throws Exception {
+    final CustomResource resource = createResource("a", "b");
+    assertEquals("a", myAllocator.allocate(1L, resource, ""));
+    assertEquals("b", myAllocator.allocate(2L, resource, ""));
+    assertNull(myAllocator.allocate(3L, resource, ""));
+  }
+
+  @Test
+  public void testAllocatePreferred() throws Exception {
+    final CustomResource resource = createResource("a", "b", "c");
+    assertEquals("b", myAllocator.allocatePreferred(1L, resource, "b"));
+    // preferred value is taken, free value is selected by the policy
+    assertEquals("a", myAllocator.allocatePreferred(2L, resource, "b"));
+    // preferred value is no longer defined
+    assertEquals("c", myAllocator.allocatePreferred(3L, resource, "d"));
+    assertNull(myAllocator.allocatePreferred(4L, resource, "a"));
+  }
+
+  @Test
+  public void testAllocateSpecific() throws Exception {
+    final CustomResource resource = createResource("a", "b", "c");
+    assertEquals("b", myAllocator.allocate(1L, resource, "b"));
+    assertEquals(Arrays.asList("a", "c"), myAllocator.getAvailableValues(resource));
+    assertEquals("a", myAllocator.allocate(2L, resource, ""));
+  }
+
+  @Test
+  public void testAllocateSpecific_Twice() throws Exception {
+    final CustomResource resource = createResource("a", "b");
+    assertEquals("b", myAllocator.allocate(1L, resource, "b"));
+    // value is held by the first build
+    assertNull(myAllocator.allocate(2L, resource, "b"));
+    // value is not defined
+    assertNull(myAllocator.allocate(2L, resource, "c"));
+    assertEquals(Collections.singletonList("a"), myAllocator.getAvailableValues(resource));
+
+    myDispatcher.getMulticaster().buildFinished(mockBuild(1L));
+    assertEquals("b", myAllocator.allocate(2L, resource, "b"));
+  }
+
+  @Test
+  public void testAllocateSeveral() throws Exception {
+    final CustomResource resource = createResource("a", "b", "c", "d");
+    assertEquals("b", myAllocator.allocate(1L, resource, "b"));
+    assertEquals(Arrays.asList("a", "c"), myAllocator.allocate(2L, resource, 2));
+    // not enough values, nothing is taken
+    assertNull(myAllocator.allocate(3L, resource, 2));
+    assertEquals(Collections.singletonList("d"), myAllocator.getAvailableValues(resource));
+
+    myDispatcher.getMulticaster().buildFinished(mockBuild(2L));
+    assertEquals(Arrays.asList("a", "c", "d"), myAllocator.allocate(3L, resource, 3));
+    assertEmpty(myAllocator.getAvailableValues(resource));
+  }
+
+  @Test
+  public void testAllocateSeveral_Reallocated() throws Exception {
+    final CustomResource resource = createResource("a", "b", "c");
+    assertEquals(Arrays.asList("a", "b"), myAllocator.allocate(1L, resource, 2));
+    // values, previously held by the build, are released
+    assertEquals(Collections.singletonList("c"), myAllocator.allocate(1L, resource, 1));
+    assertEquals(Arrays.asList("a", "b"), myAllocator.getAvailableValues(resource));
+  }
+
+  @Test
+  public void testDuplicateValues() throws Exception {
+    final CustomResource resource = createResource("a", "a", "b");
+    assertEquals("a", myAllocator.allocate(1L, resource, "a"));
+    assertEquals("a", myAllocator.allocate(2L, resource, ""));
+    assertEquals("b", myAllocator.allocate(3L, resource, ""));
+  }
+
+  @Test
+  public void testReleasedOnBuildFinish() throws Exception {
+    final CustomResource resource = createResource("a", "b");
+    myAllocator.allocate(1L, resource, "");
+    myAllocator.allocate(2L, resource, "");
+    assertEmpty(myAllocator.getAvailableValues(resource));
+
+    myDispatcher.getMulticaster().buildFinished(mockBuild(1L));
+    assertEquals(Collections.singletonList("a"), myAllocator.getAvailableValues(resource));
+
+    myDispatcher.getMulticaster().buildInterrupted(mockBuild(2L));
+    assertEquals(Arrays.asList("a", "b"), myAllocator.getAvailableValues(resource));
+  }
+
+  @Test
+  public void testInitializedFromRunningBuilds() throws Exception {
+    final CustomResource resource = createResource("a", "b", "c");
+    final SRunningBuild build = mockBuild(1L);
+    myLocksStorage.store(build, Collections.singletonMap(new Lock(resource.getName(), LockType.READ), "b"));
+    myRunningBuilds.add(build);
+    assertEquals(Arrays.asList("a", "c"), myAllocator.getAvailableValues(resource));
+
+    myDispatcher.getMulticaster().buildFinished(build);
+    assertEquals(Arrays.asList("a", "b", "c"), myAllocator.getAvailableValues(resource));
+  }
+
+  @Test
+  public void testInitializedFromArtifacts() throws Exception {
+    final CustomResource resource = createResource("a", "b", "c");
+    final File artifactsDir = createTempDir();
+    final File artifact = new File(artifactsDir, LocksStorageImpl.FILE_PATH);
+    FileUtil.createParentDirs(artifact);
+    FileUtil.writeFile(artifact, resource.getName() + "\treadLock\tc", "UTF-8");
+    final SRunningBuild build = mockBuild(1L);
+    m.checking(new Expectations() {{
+      oneOf(build).getArtifactsDirectory();
+      will(returnValue(artifactsDir));
+    }});
+    myRunningBuilds.add(build);
+    assertEquals(Arrays.asList("a", "b"), myAllocator.getAvailableValues(resource));
+  }
+
+  @Test
+  public void testInitializedFromRunningBuilds_SeveralValues() throws Exception {
+    final CustomResource resource = createResource("a", "b", "c", "d");
+    final SRunningBuild build = mockBuild(1L);
+    myLocksStorage.store(build, Collections.singletonMap(new Lock(resource.getName(), LockType.READ, "", 2), Lock.joinValues(Arrays.asList("b", "d"))));
+    myRunningBuilds.add(build);
+    assertEquals(Arrays.asList("a", "c"), myAllocator.getAvailableValues(resource));
+
+    myDispatcher.getMulticaster().buildFinished(build);
+    assertEquals(Arrays.asList("a", "b", "c", "d"), myAllocator.getAvailableValues(resource));
+  }
+
+  @Test
+  public void testFinishedBuildNotInitialized() throws Exception {
+    final CustomResource resource = createResource("a", "b");
+    final SRunningBuild build = mockBuild(1L);
+    myLocksStorage.store(build, Collections.singletonMap(new Lock(resource.getName(), LockType.READ), "a"));
+    // storage still has values of the build, but the build is no longer running
+    final SBuild finished = m.mock(SBuild.class, "finished-build");
+    m.checking(new Expectations() {{
+      allowing(finished).getBuildId();
+      will(returnValue(2L));
+
+      allowing(myRunningBuildsManager).findRunningBuildById(2L);
+      will(returnValue(null));
+    }});
+    myLocksStorage.store(finished, Collections.singletonMap(new Lock(resource.getName(), LockType.READ), "b"));
+    assertEquals(Collections.singletonList("b"), myAllocator.getAvailableValues(resource));
+  }
+
+  @Test
+  public void testValuesChanged() throws Exception {
+    final CustomResource resource = createResource("a", "b");
+    myAllocator.allocate(1L, resource, "");
+    myAllocator.allocate(2L, resource, "");
+
+    mySettingsVersion.increment();
+    final CustomResource changed = createResource("b", "c", "d");
+    // value "b" is still held, value "a" is no longer defined
+    assertEquals(Arrays.asList("c", "d"), myAllocator.getAvailableValues(changed));
+
+    myDispatcher.getMulticaster().buildFinished(mockBuild(2L));
+    assertEquals(Arrays.asList("b", "c", "d"), myAllocator.getAvailableValues(changed));
+  }
+
+  @Test
+  public void testResourcesIndependent() throws Exception {
+    final CustomResource resource1 = createNamedResource("resource1", "a");
+    final CustomResource resource2 = createNamedResource("resource2", "a");
+    assertEquals("a", myAllocator.allocate(1L, resource1, ""));
+    assertEquals("a", myAllocator.allocate(1L, resource2, ""));
+    assertNull(myAllocator.allocate(2L, resource1, ""));
+  }
+
+  @Test
+  public void testSameNameInDifferentProjects() throws Exception {
+    final CustomResource resource = createResource("a", "b");
+    final CustomResource other = createResourceInProject(myOtherProjectId, "resource", "x");
+    assertEquals("a", myAllocator.allocate(1L, resource, ""));
+    assertEquals("x", myAllocator.allocate(2L, other, ""));
+    assertEquals("b", myAllocator.allocate(3L, resource, ""));
+    assertNull(myAllocator.allocate(4L, other, ""));
+    assertNull(myAllocator.allocatePreferred(5L, other, "a"));
+  }
+
+  @Test
+  public void testValuesChecked_SameSettingsVersion() throws Exception {
+    final CustomResource resource = createResource("a", "b");
+    assertEquals("a", myAllocator.allocate(1L, resource, ""));
+    // resource with other values is never served from allocation of previous values
+    final CustomResource changed = createResource("x", "a");
+    assertEquals(Collections.singletonList("x"), myAllocator.getAvailableValues(changed));
+    assertEquals("x", myAllocator.allocate(2L, changed, ""));
+  }
+
+  @Test
+  public void testStoredValuesOfOtherProjectSkipped() throws Exception {
+    final CustomResource resource = createResource("a", "b");
+    createResourceInProject(myOtherProjectId, "resource", "a", "b");
+    final SRunningBuild otherBuild = mockBuild(1L, myOtherProjectId);
+    myLocksStorage.store(otherBuild, Collections.singletonMap(new Lock(resource.getName(), LockType.READ), "a"));
+    final SRunningBuild build = mockBuild(2L);
+    myLocksStorage.store(build, Collections.singletonMap(new Lock(resource.getName(), LockType.READ), "b"));
+    assertEquals(Collections.singletonList("a"), myAllocator.getAvailableValues(resource));
+  }
+
+  @Test
+  public void testPolicy_RoundRobin() throws Exception {
+    setPolicy(ValueSelectionPolicy.ROUND_ROBIN);
+    final CustomResource resource = createResource("a", "b", "c");
+    assertEquals("a", myAllocator.allocate(1L, resource, ""));
+    finish(1L);
+    assertEquals("b", myAllocator.allocate(2L, resource, ""));
+    assertEquals("c", myAllocator.allocate(3L, resource, ""));
+    finish(2L);
+    // wraps around to the first free value
+    assertEquals("a", myAllocator.allocate(4L, resource, ""));
+    assertEquals("b", myAllocator.allocate(5L, resource, ""));
+    assertNull(myAllocator.allocate(6L, resource, ""));
+  }
+
+  @Test
+  public void testPolicy_LeastRecentlyReleased() throws Exception {
+    setPolicy(ValueSelectionPolicy.LEAST_RECENTLY_RELEASED);
+    final CustomResource resource = createResource("a", "b", "c");
+    assertEquals("a", myAllocator.allocate(1L, resource, ""));
+    assertEquals("b", myAllocator.allocate(2L, resource, ""));
+    finish(2L);
+    finish(1L);
+    // "c" was never taken, "b" was released before "a"
+    assertEquals("c", myAllocator.allocate(3L, resource, ""));
+    assertEquals("b", myAllocator.allocate(4L, resource, ""));
+    assertEquals("a", myAllocator.allocate(5L, resource, ""));
+  }
+
+  @Test
+  public void testPolicy_LeastTotalUse() throws Exception {
+    setPolicy(ValueSelectionPolicy.LEAST_TOTAL_USE);
+    final CustomResource resource = createResource("a", "b", "c");
+    assertEquals("b", myAllocator.allocate(1L, resource, "b"));
+    finish(1L);
+    assertEquals("a", myAllocator.allocate(2L, resource, ""));
+    finish(2L);
+    assertEquals("c", myAllocator.allocate(3L, resource, ""));
+    finish(3L);
+    assertEquals("a", myAllocator.allocate(4L, resource, "a"));
+    finish(4L);
+    // "a" is used twice, "b" and "c" once
+    assertEquals(Arrays.asList("b", "c"), myAllocator.allocate(5L, resource, 2));
+    assertEquals("a", myAllocator.allocate(6L, resource, ""));
+  }
+
+  @Test
+  public void testPolicy_Changed() throws Exception {
+    final CustomResource resource = createResource("a", "b", "c");
+    assertEquals("a", myAllocator.allocate(1L, resource, ""));
+    finish(1L);
+    setPolicy(ValueSelectionPolicy.LEAST_TOTAL_USE);
+    assertEquals("b", myAllocator.allocate(2L, resource, ""));
+    setPolicy(ValueSelectionPolicy.FIRST_FREE);
+    assertEquals("a", myAllocator.allocate(3L, resource, ""));
+  }
+
+  @Test
+  public void testPolicy_UsageKeptOnValuesChange() throws Exception {
+    setPolicy(ValueSelectionPolicy.LEAST_TOTAL_USE);
+    final CustomResource resource = createResource("a", "b");
+    assertEquals("a", myAllocator.allocate(1L, resource, ""));
+    finish(1L);
+
+    mySettingsVersion.increment();
+    final CustomResource changed = createResource("c", "a", "b");
+    assertEquals(Arrays.asList("c", "b"), myAllocator.allocate(2L, changed, 2));
+    assertEquals("a", myAllocator.allocate(3L, changed, ""));
+  }
+
+  private void setPolicy(@NotNull final ValueSelectionPolicy policy) {
+    System.setProperty(ValueSelectionPolicy.PROPERTY_NAME, policy.getName());
+  }
+
+  private void finish(final long buildId) {
+    myDispatcher.getMulticaster().buildFinished(mockBuild(buildId));
+  }
+
+  @NotNull
+  private CustomResource createResource(@NotNull final String... values) {
+    return createNamedResource("resource", values);
+  }
+
+  @NotNull
+  private CustomResource createNamedResource(@NotNull final String name, @NotNull final String... values) {
+    return createResourceInProject(myProjectId, name, values);
+  }
+
+  @NotNull
+  private CustomResource createResourceInProject(@NotNull final String projectId, @NotNull final String name, @NotNull final String... values) {
+    final CustomResource result = (CustomResource) ResourceFactory.newCustomResource(name, projectId, name, Arrays.asList(values), true);
+    myProjectResources.get(projectId).put(name, result);
+    return result;
+  }
+
+  @NotNull
+  private SRunningBuild mockBuild(final long id) {
+    return mockBuild(id, myProjectId);
+  }
+
+  @NotNull
+  private SRunningBuild mockBuild(final long id, @NotNull final String projectId) {
+    final SRunningBuild build = m.mock(SRunningBuild.class, "build-" + id);
+    m.checking(new Expectations() {{
+      allowing(build).getBuildId();
+      will(returnValue(id));
+
+      allowing(build).getProjectId();
+      will(returnValue(projectId));
+
+      allowing(build).isFinished();
+      will(returnValue(false));
+
+      allowing(myRunningBuildsManager).findRunningBuildById(id);
+      will(returnValue(build));
+    }});
+    return build;
+  }
+}
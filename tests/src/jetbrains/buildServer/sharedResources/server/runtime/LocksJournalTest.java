@@ -0,0 +1,275 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = LocksJournal.class)
+public class LocksJournalTest extends BaseTestCase {
+
+  private File myDir;
+
+  /**
+   * Class under test
+   */
+  private LocksJournal myJournal;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = createTempDir();
+    myJournal = new LocksJournal(myDir);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myJournal.close();
+    super.tearDown();
+  }
+
+  @Test
+  public void testStoreLoad() throws Exception {
+    assertNull(myJournal.load(1L));
+    assertTrue(myJournal.store(1L, createLocks(2)));
+
+    final Map<String, Lock> result = myJournal.load(1L);
+    assertNotNull(result);
+    assertEquals(2, result.size());
+    assertEquals(LockType.READ, result.get("lock0").getType());
+    assertEquals("", result.get("lock0").getValue());
+    assertEquals(LockType.WRITE, result.get("lock1").getType());
+    assertEquals("value1", result.get("lock1").getValue());
+    assertContains(myJournal.getBuildIds(), 1L);
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    myJournal.store(1L, createLocks(1));
+    myJournal.store(2L, createLocks(1));
+    myJournal.remove(1L);
+    assertNull(myJournal.load(1L));
+    assertNotNull(myJournal.load(2L));
+    assertEquals(1, myJournal.getBuildIds().size());
+  }
+
+  @Test
+  public void testRestored() throws Exception {
+    myJournal.store(1L, createLocks(3));
+    myJournal.store(2L, createLocks(1));
+    myJournal.remove(2L);
+    reopen();
+
+    final Map<String, Lock> result = myJournal.load(1L);
+    assertNotNull(result);
+    assertEquals(3, result.size());
+    assertEquals("value2", result.get("lock2").getValue());
+    assertNull(myJournal.load(2L));
+  }
+
+  @Test
+  public void testWeightsRestored() throws Exception {
+    final Map<String, Lock> locks = createLocks(2);
+    locks.put("weighted", new Lock("weighted", LockType.READ, "", 4));
+    myJournal.store(1L, locks);
+    myJournal.store(2L, createLocks(1));
+    reopen();
+
+    final Map<String, Lock> result = myJournal.load(1L);
+    assertNotNull(result);
+    assertEquals(locks, result);
+    assertEquals(4, result.get("weighted").getWeight());
+    assertEquals(createLocks(1), myJournal.load(2L));
+  }
+
+  @Test
+  public void testStoredTwice() throws Exception {
+    myJournal.store(1L, createLocks(3));
+    myJournal.store(1L, createLocks(1));
+    reopen();
+
+    final Map<String, Lock> result = myJournal.load(1L);
+    assertNotNull(result);
+    assertEquals(1, result.size());
+  }
+
+  @Test
+  public void testGrowsBeyondInitialCapacity() throws Exception {
+    final int builds = 10000;
+    for (long id = 0; id < builds; id++) {
+      assertTrue(myJournal.store(id, createLocks(5)));
+    }
+    reopen();
+    assertEquals(builds, myJournal.getBuildIds().size());
+    assertEquals(5, myJournal.load(builds - 1).size());
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    final long generation = myJournal.getGeneration();
+    for (long id = 0; id < 2000; id++) {
+      myJournal.store(id, createLocks(3));
+    }
+    for (long id = 10; id < 2000; id++) {
+      myJournal.remove(id);
+    }
+    assertTrue(myJournal.getGeneration() > generation);
+    assertEquals(10, myJournal.getBuildIds().size());
+    // records appended after compaction are kept too
+    myJournal.store(5000L, createLocks(1));
+    reopen();
+
+    assertEquals(11, myJournal.getBuildIds().size());
+    assertEquals(3, myJournal.load(0L).size());
+    assertEquals(1, myJournal.load(5000L).size());
+    assertNull(myJournal.load(10L));
+  }
+
+  @Test
+  public void testCorruptedTailIgnored() throws Exception {
+    myJournal.store(1L, createLocks(1));
+    myJournal.store(2L, createLocks(1));
+    myJournal.close();
+    // partially written record of unknown type
+    try (RandomAccessFile file = new RandomAccessFile(new File(myDir, LocksJournal.FILE_NAMES[0]), "rw")) {
+      final long end = findEnd(file);
+      file.seek(end);
+      file.writeInt(9);
+      file.writeInt(0);
+      file.writeByte(42);
+      file.writeLong(3L);
+    }
+    myJournal = new LocksJournal(myDir);
+    assertEquals(2, myJournal.getBuildIds().size());
+
+    myJournal.store(4L, createLocks(2));
+    reopen();
+    assertEquals(3, myJournal.getBuildIds().size());
+    assertEquals(2, myJournal.load(4L).size());
+  }
+
+  @Test
+  public void testChecksumMismatchStopsReplay() throws Exception {
+    myJournal.store(1L, createLocks(1));
+    myJournal.store(2L, createLocks(2));
+    myJournal.store(3L, createLocks(1));
+    myJournal.close();
+    // flip the last byte of the second record
+    try (RandomAccessFile file = new RandomAccessFile(new File(myDir, LocksJournal.FILE_NAMES[0]), "rw")) {
+      file.seek(16);
+      final long second = 16 + 8 + file.readInt();
+      file.seek(second);
+      final long last = second + 8 + file.readInt() - 1;
+      file.seek(last);
+      final int b = file.readByte();
+      file.seek(last);
+      file.writeByte(b ^ 0xFF);
+    }
+    myJournal = new LocksJournal(myDir);
+    assertEquals(Collections.singleton(1L), myJournal.getBuildIds());
+
+    myJournal.store(4L, createLocks(1));
+    reopen();
+    assertEquals(new HashSet<>(Arrays.asList(1L, 4L)), myJournal.getBuildIds());
+  }
+
+  @Test
+  public void testPreviousFormatReplayed() throws Exception {
+    myJournal.close();
+    // journal without checksums: [length][body]
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream body = new DataOutputStream(bytes);
+    body.writeByte(1);
+    body.writeLong(1L);
+    body.writeInt(1);
+    body.writeUTF("lock0");
+    body.writeUTF(LockType.READ.getName());
+    body.writeUTF("");
+    body.flush();
+    try (RandomAccessFile file = new RandomAccessFile(new File(myDir, LocksJournal.FILE_NAMES[0]), "rw")) {
+      file.writeInt(0x534A524C);
+      file.writeInt(1);
+      file.writeLong(1L);
+      file.writeInt(bytes.size());
+      file.write(bytes.toByteArray());
+      file.writeInt(0);
+    }
+    myJournal = new LocksJournal(myDir);
+    assertEquals(createLocks(1), myJournal.load(1L));
+    // replayed journal is compacted into the current format
+    assertEquals(2L, myJournal.getGeneration());
+
+    myJournal.store(2L, createLocks(2));
+    reopen();
+    assertEquals(createLocks(1), myJournal.load(1L));
+    assertEquals(createLocks(2), myJournal.load(2L));
+  }
+
+  @Test
+  public void testNotAvailable() throws Exception {
+    myJournal = new LocksJournal(new File(createTempFile(), "journal"));
+    assertFalse(myJournal.store(1L, createLocks(1)));
+    assertNull(myJournal.load(1L));
+    assertEmpty(myJournal.getBuildIds());
+  }
+
+  private void reopen() {
+    myJournal.close();
+    myJournal = new LocksJournal(myDir);
+  }
+
+  /**
+   * Finds position after the last record in journal file
+   */
+  private long findEnd(@NotNull final RandomAccessFile file) throws Exception {
+    long position = 16;
+    file.seek(position);
+    int length;
+    while ((length = file.readInt()) != 0) {
+      position += 8 + length;
+      file.seek(position);
+    }
+    return position;
+  }
+
+  @NotNull
+  private Map<String, Lock> createLocks(final int count) {
+    final Map<String, Lock> result = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      final String name = "lock" + i;
+      result.put(name, new Lock(name, i % 2 == 0 ? LockType.READ : LockType.WRITE, i == 0 ? "" : "value" + i));
+    }
+    return result;
+  }
+}
@@ -16,9 +16,10 @@
 
 package jetbrains.buildServer.sharedResources.server.runtime;
 
-import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.RunningBuildsManager;
 import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SRunningBuild;
 import jetbrains.buildServer.sharedResources.model.Lock;
@@ -34,7 +35,8 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
-import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
@@ -52,17 +54,24 @@ public class LocksStorageImplTest extends BaseTestCase {
   private static final String file_Values = "lock1\treadLock\tMy Value 1\nlock2\twriteLock\tMy Value 2\n";
   private static final String file_Mixed = "lock1\treadLock\tMy Value 1\nlock2\twriteLock\tMy Value 2\nlock3\twriteLock\t ";
   private static final String file_Incorrect = "lock1\treadLock\t \nHELLO!\n";
+  private static final String file_Weighted = "lock1\treadLock\t \t4\nlock2\twriteLock\tMy Value 2\nlock3\treadLock\t \tx\n";
 
   private final Long buildId = 1L;
 
   private LocksStorage myLocksStorage;
 
+  private File myJournalDir;
+
+  private LocksJournal myJournal;
+
   private SBuild myBuild;
 
   private Mockery m ;
 
   private EventDispatcher<BuildServerListener> myDispatcher;
 
+  private RunningBuildsManager myRunningBuildsManager;
+
   @BeforeMethod
   @Override
   protected void setUp() throws Exception {
@@ -70,12 +79,24 @@ public class LocksStorageImplTest extends BaseTestCase {
     m = new Mockery();
     myBuild = m.mock(SBuild.class);
     myDispatcher = EventDispatcher.create(BuildServerListener.class);
-    myLocksStorage = new LocksStorageImpl(myDispatcher);
+    myJournalDir = createTempDir();
+    myJournal = new LocksJournal(myJournalDir);
+    myRunningBuildsManager = m.mock(RunningBuildsManager.class);
+    final SRunningBuild journaledBuild = m.mock(SRunningBuild.class, "journaled-build");
+    m.checking(new Expectations() {{
+      allowing(myRunningBuildsManager).findRunningBuildById(buildId);
+      will(returnValue(journaledBuild));
+
+      allowing(journaledBuild).isFinished();
+      will(returnValue(false));
+    }});
+    myLocksStorage = new LocksStorageImpl(myDispatcher, myJournal, myRunningBuildsManager);
   }
 
   @Override
   @AfterMethod
   public void tearDown() throws Exception {
+    myJournal.close();
     super.tearDown();
     m.assertIsSatisfied();
   }
@@ -120,6 +141,17 @@ public class LocksStorageImplTest extends BaseTestCase {
     assertEquals(1, result.size());
   }
 
+  @Test
+  public void testLoad_Weighted() throws Exception {
+    final File artifactsDir = createTempFileWithContent(file_Weighted);
+    addSingleArtifactsAccessExpectations(artifactsDir);
+
+    final Map<String, Lock> result = myLocksStorage.load(myBuild);
+    assertEquals(2, result.size());
+    assertEquals(4, result.get("lock1").getWeight());
+    assertEquals(Lock.DEFAULT_WEIGHT, result.get("lock2").getWeight());
+  }
+
   @Test
   public void testStore_Empty() throws Exception {
     final File artifactsDir = createTempDir();
@@ -134,8 +166,7 @@ public class LocksStorageImplTest extends BaseTestCase {
 
   @Test
   public void testStore_NoValues() throws Exception {
-    final File artifactsDir = createTempDir();
-    addSingleArtifactsAccessExpectations(artifactsDir);
+    addStoreExpectations();
 
     final Map<Lock, String> takenLocks = new HashMap<>();
     final Lock lock1 = new Lock("lock1", LockType.READ);
@@ -144,7 +175,7 @@ public class LocksStorageImplTest extends BaseTestCase {
     takenLocks.put(lock1, "");
     takenLocks.put(lock2, "");
     myLocksStorage.store(myBuild, takenLocks);
-    // values are in cache. No file access needed
+    // values are in journal. No file access needed
     m.checking(new Expectations() {{
       oneOf(myBuild).getBuildId();
       will(returnValue(buildId));
@@ -160,8 +191,7 @@ public class LocksStorageImplTest extends BaseTestCase {
 
   @Test
   public void testStore_Values() throws Exception {
-    final File artifactsDir = createTempDir();
-    addSingleArtifactsAccessExpectations(artifactsDir);
+    addStoreExpectations();
     final Map<Lock, String> takenLocks = new HashMap<>();
     final String value1 = "_value_1_";
     final String value2 = "_value_2_";
@@ -171,7 +201,7 @@ public class LocksStorageImplTest extends BaseTestCase {
     takenLocks.put(lock2, value2);
     myLocksStorage.store(myBuild, takenLocks);
 
-    // values are in cache. No file access needed
+    // values are in journal. No file access needed
     m.checking(new Expectations() {{
       oneOf(myBuild).getBuildId();
       will(returnValue(buildId));
@@ -222,7 +252,7 @@ public class LocksStorageImplTest extends BaseTestCase {
     assertFalse(myLocksStorage.locksStored(myBuild));
     assertFalse(myLocksStorage.locksStored(myBuild));
 
-    // store locks. expect 1 disk access here
+    // store locks. no artifacts access expected here
     storeSomeLocks(myBuild);
 
     // subsequent 'locksStored' method calls return true and do not cause disk access
@@ -237,9 +267,7 @@ public class LocksStorageImplTest extends BaseTestCase {
 
   @Test
   @TestFor(issues = "TW-44474")
-  @SuppressWarnings("unchecked")
   public void testReloadTakenLocks_EvictedCache() throws Exception {
-    final File artifactsDir = createTempDir();
     // no locks
     m.checking(new Expectations() {{
       oneOf(myBuild).getBuildId();
@@ -247,18 +275,14 @@ public class LocksStorageImplTest extends BaseTestCase {
     }});
     assertFalse(myLocksStorage.locksStored(myBuild));
     // store some
-    storeSomeLocks(myBuild, artifactsDir);
+    storeSomeLocks(myBuild);
     // check we have them in cache
     m.checking(new Expectations() {{
       oneOf(myBuild).getBuildId();
       will(returnValue(buildId));
     }});
     assertTrue(myLocksStorage.locksStored(myBuild));
-    // evict value cache, but not exists cache
-    Field cacheField = myLocksStorage.getClass().getDeclaredField("myLocksCache");
-    cacheField.setAccessible(true);
-    final Cache<SBuild,  Map<String, Lock>> cache = (Cache<SBuild,  Map<String, Lock>>)cacheField.get(myLocksStorage);
-    cache.invalidate(myBuild);
+    // stored locks are pinned until the build finishes, nothing can be evicted
     // call 'locksStored'. Should return true without accessing disk
     m.checking(new Expectations() {{
       oneOf(myBuild).getBuildId();
@@ -266,13 +290,12 @@ public class LocksStorageImplTest extends BaseTestCase {
     }});
     // locksStored flag must remain
     assertTrue(myLocksStorage.locksStored(myBuild));
-    // call load 2 times. Expect 1 disk access
+    // call load 2 times. Locks are read from journal, no disk access expected
     m.checking(new Expectations() {{
       exactly(2).of(myBuild).getBuildId();
       will(returnValue(buildId));
 
-      oneOf(myBuild).getArtifactsDirectory();
-      will(returnValue(artifactsDir));
+      never(myBuild).getArtifactsDirectory();
     }});
     final Map<String, Lock> result = myLocksStorage.load(myBuild);
     assertNotNull(result);
@@ -283,7 +306,6 @@ public class LocksStorageImplTest extends BaseTestCase {
   @Test
   @TestFor(issues = "TW-44474")
   public void testBuildFinished_CacheCleaned() throws Exception {
-    final File artifactsDir = createTempDir();
     // no locks
     m.checking(new Expectations() {{
       oneOf(myBuild).getBuildId();
@@ -291,7 +313,7 @@ public class LocksStorageImplTest extends BaseTestCase {
     }});
     assertFalse(myLocksStorage.locksStored(myBuild));
     // store some
-    storeSomeLocks(myBuild, artifactsDir);
+    storeSomeLocks(myBuild);
     // check we have them in cache
     m.checking(new Expectations() {{
       oneOf(myBuild).getBuildId();
@@ -327,7 +349,6 @@ public class LocksStorageImplTest extends BaseTestCase {
   @Test
   @TestFor(issues = "TW-31068")
   public void testLoadStore_MultiThreaded() throws Exception {
-    final File artifactsDir = createTempDir();
     final CountDownLatch myLatch = new CountDownLatch(2);
 
     final Map<Lock, String> takenLocks = new HashMap<>();
@@ -344,8 +365,7 @@ public class LocksStorageImplTest extends BaseTestCase {
       allowing(myBuild).getBuildId();
       will(returnValue(buildId));
 
-      oneOf(myBuild).getArtifactsDirectory();
-      will(returnValue(artifactsDir));
+      never(myBuild).getArtifactsDirectory();
     }});
 
 
@@ -376,6 +396,192 @@ public class LocksStorageImplTest extends BaseTestCase {
   }
 
 
+  @Test
+  public void testStore_ExportToArtifacts() throws Exception {
+    final File artifactsDir = createTempDir();
+    System.setProperty(LocksStorageImpl.EXPORT_TO_ARTIFACTS_PROPERTY, "true");
+    try {
+      storeSomeLocks(myBuild, artifactsDir);
+    } finally {
+      System.clearProperty(LocksStorageImpl.EXPORT_TO_ARTIFACTS_PROPERTY);
+    }
+    final File artifact = new File(artifactsDir, LocksStorageImpl.FILE_PATH);
+    assertTrue(artifact.isFile());
+    assertEquals("someLock\treadLock\tSOME_VALUE", FileUtil.readText(artifact, "UTF-8"));
+  }
+
+  @Test
+  public void testStore_ExportToArtifacts_Weighted() throws Exception {
+    final File artifactsDir = createTempDir();
+    System.setProperty(LocksStorageImpl.EXPORT_TO_ARTIFACTS_PROPERTY, "true");
+    try {
+      addSingleArtifactsAccessExpectations(artifactsDir);
+      myLocksStorage.store(myBuild, Collections.singletonMap(new Lock("someLock", LockType.READ, "", 4), ""));
+    } finally {
+      System.clearProperty(LocksStorageImpl.EXPORT_TO_ARTIFACTS_PROPERTY);
+    }
+    final File artifact = new File(artifactsDir, LocksStorageImpl.FILE_PATH);
+    assertEquals("someLock\treadLock\t \t4", FileUtil.readText(artifact, "UTF-8"));
+  }
+
+  @Test
+  public void testStore_ExportToArtifacts_SeveralValues() throws Exception {
+    final File artifactsDir = createTempDir();
+    final Lock lock = new Lock("someLock", LockType.READ, "", 2);
+    System.setProperty(LocksStorageImpl.EXPORT_TO_ARTIFACTS_PROPERTY, "true");
+    try {
+      addSingleArtifactsAccessExpectations(artifactsDir);
+      myLocksStorage.store(myBuild, Collections.singletonMap(lock, Lock.joinValues(Arrays.asList("v1", "v2"))));
+    } finally {
+      System.clearProperty(LocksStorageImpl.EXPORT_TO_ARTIFACTS_PROPERTY);
+    }
+    final File artifact = new File(artifactsDir, LocksStorageImpl.FILE_PATH);
+    assertEquals("someLock\treadLock\tv1\tv2\t2", FileUtil.readText(artifact, "UTF-8"));
+
+    // locks are read from the artifact by fresh storage
+    myJournal.close();
+    myJournal = new LocksJournal(createTempDir());
+    myLocksStorage = new LocksStorageImpl(myDispatcher, myJournal, myRunningBuildsManager);
+    addSingleArtifactsAccessExpectations(artifactsDir);
+    final Lock loaded = myLocksStorage.load(myBuild).get("someLock");
+    assertEquals(Arrays.asList("v1", "v2"), loaded.getValues());
+    assertEquals(2, loaded.getWeight());
+  }
+
+  @Test
+  public void testStore_JournalNotAvailable() throws Exception {
+    final File artifactsDir = createTempDir();
+    // journal directory can not be created inside a file
+    final LocksJournal journal = new LocksJournal(new File(createTempFile(), "journal"));
+    myLocksStorage = new LocksStorageImpl(myDispatcher, journal, myRunningBuildsManager);
+    storeSomeLocks(myBuild, artifactsDir);
+    assertTrue(new File(artifactsDir, LocksStorageImpl.FILE_PATH).isFile());
+
+    m.checking(new Expectations() {{
+      oneOf(myBuild).getBuildId();
+      will(returnValue(buildId));
+    }});
+    assertTrue(myLocksStorage.locksStored(myBuild));
+  }
+
+  @Test
+  public void testJournal_RestoredAfterRestart() throws Exception {
+    storeSomeLocks(myBuild);
+    myJournal.close();
+
+    // new storage over the same journal files
+    myJournal = new LocksJournal(myJournalDir);
+    myLocksStorage = new LocksStorageImpl(EventDispatcher.create(BuildServerListener.class), myJournal, myRunningBuildsManager);
+    m.checking(new Expectations() {{
+      exactly(2).of(myBuild).getBuildId();
+      will(returnValue(buildId));
+
+      never(myBuild).getArtifactsDirectory();
+    }});
+    assertTrue(myLocksStorage.locksStored(myBuild));
+    final Map<String, Lock> result = myLocksStorage.load(myBuild);
+    assertEquals(1, result.size());
+    assertEquals("SOME_VALUE", result.get("someLock").getValue());
+  }
+
+  @Test
+  public void testJournal_BuildFinished_NotRestored() throws Exception {
+    storeSomeLocks(myBuild);
+    final SRunningBuild runningBuild = m.mock(SRunningBuild.class);
+    m.checking(new Expectations() {{
+      allowing(runningBuild).getBuildId();
+      will(returnValue(buildId));
+    }});
+    myDispatcher.getMulticaster().buildFinished(runningBuild);
+    myJournal.close();
+
+    myJournal = new LocksJournal(myJournalDir);
+    myLocksStorage = new LocksStorageImpl(EventDispatcher.create(BuildServerListener.class), myJournal, myRunningBuildsManager);
+    m.checking(new Expectations() {{
+      oneOf(myBuild).getBuildId();
+      will(returnValue(buildId));
+    }});
+    assertFalse(myLocksStorage.locksStored(myBuild));
+  }
+
+  @Test
+  public void testJournal_BuildNotRunningAfterRestart_NotRestored() throws Exception {
+    storeSomeLocks(myBuild);
+    myJournal.close();
+
+    // build was lost while the server was down
+    final RunningBuildsManager runningBuildsManager = m.mock(RunningBuildsManager.class, "restarted-running-builds-manager");
+    m.checking(new Expectations() {{
+      allowing(runningBuildsManager).findRunningBuildById(buildId);
+      will(returnValue(null));
+
+      oneOf(myBuild).getBuildId();
+      will(returnValue(buildId));
+    }});
+    myJournal = new LocksJournal(myJournalDir);
+    myLocksStorage = new LocksStorageImpl(EventDispatcher.create(BuildServerListener.class), myJournal, runningBuildsManager);
+    assertFalse(myLocksStorage.locksStored(myBuild));
+    assertEmpty(myLocksStorage.getTakenValues("someLock").keySet());
+    myJournal.close();
+
+    // locks of the build are compacted out of the journal
+    myJournal = new LocksJournal(myJournalDir);
+    assertEmpty(myJournal.getBuildIds());
+  }
+
+  @Test
+  public void testLoad_RunningBuildPinned() throws Exception {
+    final File artifactsDir = createTempFileWithContent(file_Values);
+    final SRunningBuild runningBuild = m.mock(SRunningBuild.class);
+    m.checking(new Expectations() {{
+      allowing(runningBuild).getBuildId();
+      will(returnValue(buildId));
+
+      allowing(runningBuild).isFinished();
+      will(returnValue(false));
+
+      oneOf(runningBuild).getArtifactsDirectory();
+      will(returnValue(artifactsDir));
+    }});
+    // artifact is read once while the build is running
+    assertEquals(2, myLocksStorage.load(runningBuild).size());
+    assertEquals(2, myLocksStorage.load(runningBuild).size());
+    final CacheStats stats = myLocksStorage.getStatistics();
+    assertEquals(1, stats.hitCount());
+    assertEquals(1, stats.missCount());
+    assertEquals(Collections.singletonMap(buildId, "My Value 1"), myLocksStorage.getTakenValues("lock1"));
+
+    myDispatcher.getMulticaster().buildFinished(runningBuild);
+    assertEmpty(myLocksStorage.getTakenValues("lock1").keySet());
+    m.checking(new Expectations() {{
+      oneOf(runningBuild).getArtifactsDirectory();
+      will(returnValue(artifactsDir));
+    }});
+    myLocksStorage.load(runningBuild);
+    assertEquals(2, myLocksStorage.getStatistics().missCount());
+  }
+
+  @Test
+  public void testTakenValues() throws Exception {
+    storeSomeLocks(myBuild);
+    assertEquals(Collections.singletonMap(buildId, "SOME_VALUE"), myLocksStorage.getTakenValues("someLock"));
+    assertEmpty(myLocksStorage.getTakenValues("otherLock").keySet());
+
+    // values are restored from journal
+    myJournal.close();
+    myJournal = new LocksJournal(myJournalDir);
+    myLocksStorage = new LocksStorageImpl(myDispatcher, myJournal, myRunningBuildsManager);
+    assertEquals(Collections.singletonMap(buildId, "SOME_VALUE"), myLocksStorage.getTakenValues("someLock"));
+
+    final SRunningBuild runningBuild = m.mock(SRunningBuild.class);
+    m.checking(new Expectations() {{
+      allowing(runningBuild).getBuildId();
+      will(returnValue(buildId));
+    }});
+    myDispatcher.getMulticaster().buildFinished(runningBuild);
+    assertEmpty(myLocksStorage.getTakenValues("someLock").keySet());
+  }
+
   /**
    * Creates temp file with specified content.
    * @param content content to write
@@ -394,24 +600,41 @@ public class LocksStorageImplTest extends BaseTestCase {
   }
 
   /**
-   * Creates artifact with locks. Invokes {@code store} method, adds necessary expectations
+   * Stores locks in journal. Invokes {@code store} method, adds necessary expectations
    * @param build build to store locks for
-   * @throws Exception if something goes wrong
    */
-  private void storeSomeLocks(@NotNull final SBuild build) throws Exception {
-    storeSomeLocks(build, createTempDir());
+  private void storeSomeLocks(@NotNull final SBuild build) {
+    addStoreExpectations();
+    myLocksStorage.store(build, createSomeLocks());
   }
 
   /**
-   * Creates artifact with locks inside predefined directory. Invokes {@code store} method, adds necessary expectations
+   * Stores locks, expecting artifact to be created inside predefined directory.
+   * Invokes {@code store} method, adds necessary expectations
    * @param build build to store locks for
    */
   private void storeSomeLocks(@NotNull final SBuild build, @NotNull final File artifactsDir) {
-    final Map<Lock, String> someLocks = new HashMap<Lock, String>() {{
+    addSingleArtifactsAccessExpectations(artifactsDir);
+    myLocksStorage.store(build, createSomeLocks());
+  }
+
+  @NotNull
+  private Map<Lock, String> createSomeLocks() {
+    return new HashMap<Lock, String>() {{
       put(new Lock("someLock", LockType.READ), "SOME_VALUE");
     }};
-    addSingleArtifactsAccessExpectations(artifactsDir);
-    myLocksStorage.store(build, someLocks);
+  }
+
+  /**
+   * Adds mock expectations for storing locks without access to artifacts
+   */
+  private void addStoreExpectations() {
+    m.checking(new Expectations() {{
+      oneOf(myBuild).getBuildId();
+      will(returnValue(buildId));
+
+      never(myBuild).getArtifactsDirectory();
+    }});
   }
 
   /**
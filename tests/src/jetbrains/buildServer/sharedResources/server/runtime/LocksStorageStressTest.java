@@ -0,0 +1,187 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.RunningBuildsManager;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Concurrent store, load and finish of builds in {@link LocksStorageImpl}
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = LocksStorageImpl.class)
+public class LocksStorageStressTest extends BaseTestCase {
+
+  private static final int BUILDS = 2000;
+
+  private static final int RESOURCES = 10;
+
+  private static final int READERS = 4;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private LocksJournal myJournal;
+
+  private LocksStorage myLocksStorage;
+
+  private File myArtifactsDir;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myJournal = new LocksJournal(createTempDir());
+    // journal is empty, no builds are looked up
+    final RunningBuildsManager runningBuildsManager = (RunningBuildsManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {RunningBuildsManager.class}, (proxy, method, args) -> null);
+    myLocksStorage = new LocksStorageImpl(myDispatcher, myJournal, runningBuildsManager);
+    myArtifactsDir = createTempDir();
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myJournal.close();
+    super.tearDown();
+  }
+
+  /**
+   * Builds are stored by one thread and finished by another, while readers check them.
+   * Readers must see either all locks of the build or none of them
+   */
+  @Test
+  public void testConcurrentStoreLoadFinish() throws Exception {
+    final List<SRunningBuild> builds = new ArrayList<>();
+    for (int i = 0; i < BUILDS; i++) {
+      builds.add(createBuild(i));
+    }
+    final BlockingQueue<SRunningBuild> stored = new LinkedBlockingQueue<>();
+    final AtomicReference<String> error = new AtomicReference<>();
+    final AtomicLong reads = new AtomicLong();
+    final CountDownLatch done = new CountDownLatch(2);
+    final ExecutorService executor = Executors.newFixedThreadPool(READERS + 2);
+    try {
+      executor.submit(() -> {
+        for (SRunningBuild build: builds) {
+          myLocksStorage.store(build, createLocks(build.getBuildId()));
+          stored.add(build);
+        }
+        done.countDown();
+      });
+      executor.submit(() -> {
+        try {
+          for (int i = 0; i < BUILDS; i++) {
+            final SRunningBuild build = stored.take();
+            if (build.getBuildId() % 2 == 0) {
+              myDispatcher.getMulticaster().buildFinished(build);
+            }
+          }
+        } catch (InterruptedException e) {
+          error.compareAndSet(null, e.toString());
+        }
+        done.countDown();
+      });
+      for (int r = 0; r < READERS; r++) {
+        final Random random = new Random(r);
+        executor.submit(() -> {
+          while (done.getCount() > 0) {
+            final SRunningBuild build = builds.get(random.nextInt(BUILDS));
+            if (myLocksStorage.locksStored(build)) {
+              final Map<String, Lock> locks = myLocksStorage.load(build);
+              // build could finish between the calls
+              if (!locks.isEmpty() && !isComplete(build.getBuildId(), locks)) {
+                error.compareAndSet(null, "Partially stored locks of build [" + build.getBuildId() + "]: " + locks);
+              }
+            }
+            reads.incrementAndGet();
+          }
+        });
+      }
+      assertTrue("Timed out", done.await(60, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    assertNull(error.get());
+    assertTrue(reads.get() > 0);
+
+    for (SRunningBuild build: builds) {
+      final boolean running = build.getBuildId() % 2 != 0;
+      assertEquals("Build [" + build.getBuildId() + "]", running, myLocksStorage.locksStored(build));
+      if (running) {
+        assertTrue(isComplete(build.getBuildId(), myLocksStorage.load(build)));
+      }
+    }
+    for (int i = 0; i < RESOURCES; i++) {
+      for (Long buildId: myLocksStorage.getTakenValues("resource" + i).keySet()) {
+        assertTrue("Values of finished build [" + buildId + "]", buildId % 2 != 0);
+      }
+    }
+  }
+
+  @NotNull
+  private SRunningBuild createBuild(final long id) {
+    return (SRunningBuild) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {SRunningBuild.class}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getBuildId":
+          return id;
+        case "getArtifactsDirectory":
+          return myArtifactsDir;
+        case "hashCode":
+          return Long.hashCode(id);
+        case "equals":
+          return proxy == args[0];
+        case "toString":
+          return "build-" + id;
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  @NotNull
+  private Map<Lock, String> createLocks(final long buildId) {
+    final Map<Lock, String> result = new HashMap<>();
+    result.put(new Lock("resource" + (buildId % RESOURCES), LockType.READ), "value" + buildId);
+    result.put(new Lock("shared", LockType.READ), "");
+    result.put(new Lock("exclusive" + buildId, LockType.WRITE), "");
+    return result;
+  }
+
+  private boolean isComplete(final long buildId, @NotNull final Map<String, Lock> locks) {
+    final Lock valueLock = locks.get("resource" + (buildId % RESOURCES));
+    return locks.size() == 3 && valueLock != null && ("value" + buildId).equals(valueLock.getValue());
+  }
+}
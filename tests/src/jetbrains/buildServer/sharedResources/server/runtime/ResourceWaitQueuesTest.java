@@ -0,0 +1,239 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = ResourceWaitQueues.class)
+public class ResourceWaitQueuesTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private final Resource myResource1 = ResourceFactory.newQuotedResource("resource1", "MY_PROJECT_ID", "resource1", 2, true);
+
+  private final Resource myResource2 = ResourceFactory.newQuotedResource("resource2", "MY_PROJECT_ID", "resource2", 2, true);
+
+  /**
+   * Class under test
+   */
+  private ResourceWaitQueues myQueues;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myQueues = new ResourceWaitQueues(myDispatcher);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    System.clearProperty(ResourceWaitQueues.MAX_BYPASS_PROPERTY);
+    System.clearProperty(ResourceWaitQueues.MAX_WAIT_PROPERTY);
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testEmptyQueues() throws Exception {
+    assertEmpty(myQueues.getBlockedLocks(1L, locks(myResource1, LockType.WRITE)).keySet());
+    assertEmpty(myQueues.getBlockedLocks(1L, locks(myResource1, LockType.READ)).keySet());
+  }
+
+  @Test
+  public void testReadersBypassLimited() throws Exception {
+    System.setProperty(ResourceWaitQueues.MAX_BYPASS_PROPERTY, "2");
+    myQueues.enqueue(1L, locks(myResource1, LockType.WRITE));
+    assertEquals(1, myQueues.getQueueLength(myResource1));
+
+    final Map<Resource, Lock> readLocks = locks(myResource1, LockType.READ);
+    for (long id = 2L; id < 4L; id++) {
+      assertEmpty(myQueues.getBlockedLocks(id, readLocks).keySet());
+      myQueues.acquired(id, readLocks);
+      myDispatcher.getMulticaster().buildRemovedFromQueue(mockQueuedBuild(id, true), null, null);
+    }
+    assertEquals(readLocks, myQueues.getBlockedLocks(4L, readLocks));
+    // write request itself is not blocked
+    assertEmpty(myQueues.getBlockedLocks(1L, locks(myResource1, LockType.WRITE)).keySet());
+  }
+
+  @Test
+  public void testBypassCountedOnlyForStartedReaders() throws Exception {
+    System.setProperty(ResourceWaitQueues.MAX_BYPASS_PROPERTY, "1");
+    myQueues.enqueue(1L, locks(myResource1, LockType.WRITE));
+
+    final Map<Resource, Lock> readLocks = locks(myResource1, LockType.READ);
+    // reader passes the filter on several passes, but is rejected by other agent filters
+    for (int i = 0; i < 3; i++) {
+      assertEmpty(myQueues.getBlockedLocks(2L, readLocks).keySet());
+      myQueues.acquired(2L, readLocks);
+    }
+    // reader is canceled
+    myDispatcher.getMulticaster().buildRemovedFromQueue(mockQueuedBuild(2L, false), null, null);
+    assertEmpty(myQueues.getBlockedLocks(3L, readLocks).keySet());
+
+    // reader starts
+    myQueues.acquired(3L, readLocks);
+    myDispatcher.getMulticaster().buildRemovedFromQueue(mockQueuedBuild(3L, true), null, null);
+    assertEquals(readLocks, myQueues.getBlockedLocks(4L, readLocks));
+  }
+
+  @Test
+  public void testBypassNotCountedForWaitingReader() throws Exception {
+    System.setProperty(ResourceWaitQueues.MAX_BYPASS_PROPERTY, "1");
+    myQueues.enqueue(1L, locks(myResource1, LockType.WRITE));
+
+    final Map<Resource, Lock> readLocks = locks(myResource1, LockType.READ);
+    myQueues.acquired(2L, readLocks);
+    // on the next pass reader waits for other locks and later starts without bypassing the request
+    myQueues.enqueue(2L, locks(myResource2, LockType.READ));
+    myDispatcher.getMulticaster().buildRemovedFromQueue(mockQueuedBuild(2L, true), null, null);
+    assertEmpty(myQueues.getBlockedLocks(3L, readLocks).keySet());
+  }
+
+  @Test
+  public void testReadersDoNotBypassAgedRequest() throws Exception {
+    System.setProperty(ResourceWaitQueues.MAX_WAIT_PROPERTY, "0");
+    myQueues.enqueue(1L, locks(myResource1, LockType.WRITE));
+
+    final Map<Resource, Lock> readLocks = locks(myResource1, LockType.READ);
+    assertEquals(readLocks, myQueues.getBlockedLocks(2L, readLocks));
+  }
+
+  @Test
+  public void testWritersServedInOrder() throws Exception {
+    final Map<Resource, Lock> writeLocks = locks(myResource1, LockType.WRITE);
+    myQueues.enqueue(1L, writeLocks);
+    myQueues.enqueue(2L, writeLocks);
+
+    assertEmpty(myQueues.getBlockedLocks(1L, writeLocks).keySet());
+    assertEquals(writeLocks, myQueues.getBlockedLocks(2L, writeLocks));
+    // write request, that is not in the queue yet, waits as well
+    assertEquals(writeLocks, myQueues.getBlockedLocks(3L, writeLocks));
+
+    myQueues.acquired(1L, writeLocks);
+    // first build leaves the queue to start
+    myDispatcher.getMulticaster().buildRemovedFromQueue(mockQueuedBuild(1L, true), null, null);
+    assertEmpty(myQueues.getBlockedLocks(2L, writeLocks).keySet());
+  }
+
+  @Test
+  public void testSameOrderInAllQueues() throws Exception {
+    final Map<Resource, Lock> writeLocks = new HashMap<>();
+    writeLocks.putAll(locks(myResource1, LockType.WRITE));
+    writeLocks.putAll(locks(myResource2, LockType.WRITE));
+
+    myQueues.enqueue(1L, locks(myResource1, LockType.WRITE));
+    myQueues.enqueue(2L, writeLocks);
+    // first build waits for the second resource later than the second build
+    myQueues.enqueue(1L, writeLocks);
+
+    assertEmpty(myQueues.getBlockedLocks(1L, writeLocks).keySet());
+    assertEquals(writeLocks, myQueues.getBlockedLocks(2L, writeLocks));
+  }
+
+  @Test
+  public void testPositionKeptUntilRemovedFromQueue() throws Exception {
+    final Map<Resource, Lock> writeLocks = locks(myResource1, LockType.WRITE);
+    myQueues.enqueue(1L, writeLocks);
+    myQueues.enqueue(2L, writeLocks);
+
+    // first build was distributed, but was rejected by other agent filters and did not start
+    myQueues.acquired(1L, writeLocks);
+    assertEquals(2, myQueues.getQueueLength(myResource1));
+    assertEquals(writeLocks, myQueues.getBlockedLocks(2L, writeLocks));
+    myQueues.enqueue(2L, writeLocks);
+    myQueues.enqueue(1L, writeLocks);
+    assertEmpty(myQueues.getBlockedLocks(1L, writeLocks).keySet());
+    assertEquals(writeLocks, myQueues.getBlockedLocks(2L, writeLocks));
+  }
+
+  @Test
+  public void testRemovedFromQueue() throws Exception {
+    final Map<Resource, Lock> writeLocks = locks(myResource1, LockType.WRITE);
+    myQueues.enqueue(1L, writeLocks);
+    myQueues.enqueue(2L, writeLocks);
+
+    myDispatcher.getMulticaster().buildRemovedFromQueue(mockQueuedBuild(1L, false), null, null);
+    assertEquals(1, myQueues.getQueueLength(myResource1));
+    assertEmpty(myQueues.getBlockedLocks(2L, writeLocks).keySet());
+
+    myQueues.remove(2L);
+    assertEquals(0, myQueues.getQueueLength(myResource1));
+  }
+
+  @Test
+  public void testReadLocksNotQueued() throws Exception {
+    myQueues.enqueue(1L, locks(myResource1, LockType.READ));
+    assertEquals(0, myQueues.getQueueLength(myResource1));
+  }
+
+  @NotNull
+  private Map<Resource, Lock> locks(@NotNull final Resource resource, @NotNull final LockType type) {
+    return Collections.singletonMap(resource, new Lock(resource.getName(), type));
+  }
+
+  /**
+   * Mocks build, that leaves the build queue
+   *
+   * @param started {@code true} if the build leaves the queue to start, {@code false} if it is canceled
+   */
+  @NotNull
+  private SQueuedBuild mockQueuedBuild(final long promotionId, final boolean started) {
+    final SQueuedBuild queuedBuild = m.mock(SQueuedBuild.class, "queued-" + promotionId);
+    final BuildPromotion promotion = m.mock(BuildPromotion.class, "promotion-" + promotionId);
+    final SRunningBuild build = started ? m.mock(SRunningBuild.class, "running-" + promotionId) : null;
+    m.checking(new Expectations() {{
+      allowing(queuedBuild).getBuildPromotion();
+      will(returnValue(promotion));
+
+      allowing(promotion).getId();
+      will(returnValue(promotionId));
+
+      allowing(promotion).getAssociatedBuild();
+      will(returnValue(build));
+    }});
+    return queuedBuild;
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.buildDistribution.BuildPromotionInfo;
+import jetbrains.buildServer.serverSide.buildDistribution.SimpleWaitReason;
+import jetbrains.buildServer.serverSide.buildDistribution.WaitReason;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = ResourceWaitRegistry.class)
+public class ResourceWaitRegistryTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private final String myProjectId = "MY_PROJECT_ID";
+
+  private final Resource myResource1 = ResourceFactory.newQuotedResource("resource1", myProjectId, "resource1", 1, true);
+
+  private final Resource myResource2 = ResourceFactory.newQuotedResource("resource2", myProjectId, "resource2", 1, true);
+
+  private final WaitReason myReason = new SimpleWaitReason("waiting");
+
+  private int myPromotions = 0;
+
+  /**
+   * Class under test
+   */
+  private ResourceWaitRegistry myRegistry;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myRegistry = new ResourceWaitRegistry(myDispatcher, new ProjectSettingsVersion(myDispatcher));
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testWaitKeptUntilRelease() throws Exception {
+    final Map<Resource, Lock> locks = locks(myResource1, LockType.READ);
+    myRegistry.register(1L, locks, locks, Collections.emptyMap(), myReason, true, myRegistry.getReleaseVersion());
+
+    final ResourceWaitRegistry.Wait wait = myRegistry.getWait(1L, locks);
+    assertNotNull(wait);
+    assertSame(myReason, wait.getReason());
+
+    assertEmpty(myRegistry.released(Collections.singleton(myResource2)));
+    assertNotNull(myRegistry.getWait(1L, locks));
+
+    assertEquals(Collections.singleton(1L), myRegistry.released(Collections.singleton(myResource1)));
+    assertNull(myRegistry.getWait(1L, locks));
+  }
+
+  @Test
+  public void testReleasedWhileChecked() throws Exception {
+    final Map<Resource, Lock> locks = locks(myResource1, LockType.READ);
+    final long releaseVersion = myRegistry.getReleaseVersion();
+    myRegistry.released(Collections.singleton(myResource1));
+
+    myRegistry.register(1L, locks, locks, Collections.emptyMap(), myReason, true, releaseVersion);
+    assertNull(myRegistry.getWait(1L, locks));
+  }
+
+  @Test
+  public void testNotCacheable() throws Exception {
+    final Map<Resource, Lock> locks = locks(myResource1, LockType.READ);
+    myRegistry.register(1L, locks, locks, Collections.emptyMap(), myReason, false, myRegistry.getReleaseVersion());
+    assertNull(myRegistry.getWait(1L, locks));
+  }
+
+  @Test
+  public void testReasonReusedWhileBlockingLocksSame() throws Exception {
+    final Map<Resource, Lock> locks = locks(myResource1, LockType.WRITE);
+    myRegistry.register(1L, locks, locks, takenLocks(myResource1, 10L), myReason, false, myRegistry.getReleaseVersion());
+
+    // next pass computes the same locks, held by the same builds
+    assertSame(myReason, myRegistry.getReason(1L, new HashMap<>(locks), takenLocks(myResource1, 10L)));
+    assertNull(myRegistry.getReason(1L, locks, takenLocks(myResource1, 10L, 11L)));
+    assertNull(myRegistry.getReason(1L, locks, Collections.emptyMap()));
+    assertNull(myRegistry.getReason(1L, locks(myResource1, LockType.READ), takenLocks(myResource1, 10L)));
+    assertNull(myRegistry.getReason(2L, locks, takenLocks(myResource1, 10L)));
+  }
+
+  @Test
+  public void testRequiredLocksChanged() throws Exception {
+    final Map<Resource, Lock> locks = locks(myResource1, LockType.READ);
+    myRegistry.register(1L, locks, locks, Collections.emptyMap(), myReason, true, myRegistry.getReleaseVersion());
+    assertNotNull(myRegistry.getWait(1L, new HashMap<>(locks)));
+    assertNull(myRegistry.getWait(1L, locks(myResource1, LockType.WRITE)));
+  }
+
+  @Test
+  public void testRemovedFromQueue_ReleasesWriteRequests() throws Exception {
+    final Map<Resource, Lock> writeLocks = locks(myResource1, LockType.WRITE);
+    final Map<Resource, Lock> readLocks = locks(myResource1, LockType.READ);
+    myRegistry.register(1L, writeLocks, writeLocks, Collections.emptyMap(), myReason, true, myRegistry.getReleaseVersion());
+    myRegistry.register(2L, readLocks, readLocks, Collections.emptyMap(), myReason, true, myRegistry.getReleaseVersion());
+
+    // reader no longer waits for the writer, that left the queue
+    myDispatcher.getMulticaster().buildRemovedFromQueue(mockQueuedBuild(1L), null, null);
+    assertNull(myRegistry.getWait(1L, writeLocks));
+    assertNull(myRegistry.getWait(2L, readLocks));
+  }
+
+  @Test
+  public void testRemovedFromQueue_Reader() throws Exception {
+    final Map<Resource, Lock> readLocks = locks(myResource1, LockType.READ);
+    myRegistry.register(1L, readLocks, readLocks, Collections.emptyMap(), myReason, true, myRegistry.getReleaseVersion());
+    myRegistry.register(2L, readLocks, readLocks, Collections.emptyMap(), myReason, true, myRegistry.getReleaseVersion());
+
+    myDispatcher.getMulticaster().buildRemovedFromQueue(mockQueuedBuild(1L), null, null);
+    assertNull(myRegistry.getWait(1L, readLocks));
+    assertNotNull(myRegistry.getWait(2L, readLocks));
+  }
+
+  @Test
+  public void testWokenWriter_ReleasesWriteRequests() throws Exception {
+    final Map<Resource, Lock> writeLocks = new HashMap<>();
+    writeLocks.putAll(locks(myResource1, LockType.WRITE));
+    writeLocks.putAll(locks(myResource2, LockType.WRITE));
+    final Map<Resource, Lock> readLocks = locks(myResource2, LockType.READ);
+    myRegistry.register(1L, writeLocks, writeLocks, Collections.emptyMap(), myReason, true, myRegistry.getReleaseVersion());
+    myRegistry.register(2L, readLocks, readLocks, Collections.emptyMap(), myReason, true, myRegistry.getReleaseVersion());
+
+    assertEquals(new HashSet<>(Arrays.asList(1L, 2L)), myRegistry.released(Collections.singleton(myResource1)));
+  }
+
+  @Test
+  public void testDroppedOnSettingsChange() throws Exception {
+    final Map<Resource, Lock> locks = locks(myResource1, LockType.READ);
+    myRegistry.register(1L, locks, locks, Collections.emptyMap(), myReason, true, myRegistry.getReleaseVersion());
+    myDispatcher.getMulticaster().projectPersisted(myProjectId);
+    assertNull(myRegistry.getWait(1L, locks));
+  }
+
+  @NotNull
+  private Map<Resource, Lock> locks(@NotNull final Resource resource, @NotNull final LockType type) {
+    return Collections.singletonMap(resource, new Lock(resource.getName(), type));
+  }
+
+  /**
+   * Creates taken lock of the resource, held by read locks of given promotions
+   */
+  @NotNull
+  private Map<Resource, TakenLock> takenLocks(@NotNull final Resource resource, final long... promotionIds) {
+    final TakenLock takenLock = new TakenLock(resource);
+    for (long id: promotionIds) {
+      final BuildPromotionInfo promotion = m.mock(BuildPromotionInfo.class, "promotion-info-" + (++myPromotions));
+      m.checking(new Expectations() {{
+        allowing(promotion).getId();
+        will(returnValue(id));
+      }});
+      takenLock.addLock(promotion, new Lock(resource.getName(), LockType.READ));
+    }
+    return Collections.singletonMap(resource, takenLock);
+  }
+
+  @NotNull
+  private SQueuedBuild mockQueuedBuild(final long promotionId) {
+    final SQueuedBuild queuedBuild = m.mock(SQueuedBuild.class, "queued-" + promotionId);
+    final BuildPromotion promotion = m.mock(BuildPromotion.class, "promotion-" + promotionId);
+    m.checking(new Expectations() {{
+      allowing(queuedBuild).getBuildPromotion();
+      will(returnValue(promotion));
+
+      allowing(promotion).getId();
+      will(returnValue(promotionId));
+    }});
+    return queuedBuild;
+  }
+}
@@ -1,6 +1,7 @@
 package jetbrains.buildServer.sharedResources.server.runtime;
 
 import com.intellij.openapi.util.Trinity;
+import java.lang.management.ManagementFactory;
 import java.util.*;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.serverSide.*;
@@ -19,10 +20,12 @@ import jetbrains.buildServer.util.TestFor;
 import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
+import org.testng.SkipException;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import static jetbrains.buildServer.sharedResources.TestUtils.generateRandomName;
+import static jetbrains.buildServer.sharedResources.TestUtils.mockPromotion;
 
 /**
  * Created with IntelliJ IDEA.
@@ -99,8 +102,8 @@ public class TakenLocksImplTest extends BaseTestCase {
     final SBuildType rb1_bt = m.mock(SBuildType.class, "runningBuild_1-buildType");
     final SBuildType rb2_bt = m.mock(SBuildType.class, "runningBuild_2-buildType");
 
-    final BuildPromotionEx bp1 = m.mock(BuildPromotionEx.class, "buildPromotion_1");
-    final BuildPromotionEx bp2 = m.mock(BuildPromotionEx.class, "buildPromotion_2");
+    final BuildPromotionEx bp1 = mockPromotion(m, BuildPromotionEx.class, "buildPromotion_1");
+    final BuildPromotionEx bp2 = mockPromotion(m, BuildPromotionEx.class, "buildPromotion_2");
 
     final Collection<SRunningBuild> runningBuilds = new ArrayList<SRunningBuild>() {{
       add(rb1);
@@ -214,11 +217,11 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final RunningBuildEx rb1 = m.mock(RunningBuildEx.class, "rb-1");
     final BuildTypeEx rb1_bt = m.mock(BuildTypeEx.class, "rb1_bt");
-    final BuildPromotionEx bp1 = m.mock(BuildPromotionEx.class, "bp-1");
+    final BuildPromotionEx bp1 = mockPromotion(m, BuildPromotionEx.class, "bp-1");
 
     final QueuedBuildInfo qb1 = m.mock(QueuedBuildInfo.class, "qb-1");
     final BuildTypeEx qb1_bt = m.mock(BuildTypeEx.class, "qb1_bt");
-    final BuildPromotionEx bp2 = m.mock(BuildPromotionEx.class, "bp-2");
+    final BuildPromotionEx bp2 = mockPromotion(m, BuildPromotionEx.class, "bp-2");
     final Collection<SRunningBuild> runningBuilds = new ArrayList<SRunningBuild>() {{
       add(rb1);
     }};
@@ -292,7 +295,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(myCustomResource);
-      tl1.addLock(m.mock(BuildPromotionInfo.class), new Lock("custom_resource1", LockType.READ));
+      tl1.addLock(mockPromotion(m, BuildPromotionInfo.class), new Lock("custom_resource1", LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
@@ -308,6 +311,94 @@ public class TakenLocksImplTest extends BaseTestCase {
     assertEquals(1, result.size());
   }
 
+  @Test
+  public void testGetUnavailableLocks_Resolved() throws Exception {
+    final Resource available = ResourceFactory.newQuotedResource("quoted_resource1", myProjectId, "quoted_resource1", 1, true);
+    final Resource taken = ResourceFactory.newCustomResource("custom_resource1", myProjectId, "custom_resource1", Collections.singletonList("v1"), true);
+    final Resource disabled = ResourceFactory.newInfiniteResource("infinite_resource1", myProjectId, "infinite_resource1", false);
+
+    final Map<Resource, Lock> locksToTake = new HashMap<>();
+    locksToTake.put(available, new Lock("quoted_resource1", LockType.READ));
+    locksToTake.put(taken, new Lock("custom_resource1", LockType.READ));
+    locksToTake.put(disabled, new Lock("infinite_resource1", LockType.READ));
+
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final TakenLock tl = new TakenLock(taken);
+    tl.addLock(mockPromotion(m, BuildPromotionInfo.class), new Lock("custom_resource1", LockType.READ, "v1"));
+    takenLocks.put(taken, tl);
+
+    // resolved locks do not need resources of the project
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, new HashSet<>());
+    assertEquals(2, result.size());
+    assertTrue(result.containsKey(taken));
+    assertTrue(result.containsKey(disabled));
+  }
+
+  @Test
+  public void testGetUnavailableLocks_DoesNotChangeTakenLocks() throws Exception {
+    final Resource quoted = ResourceFactory.newQuotedResource("quoted_resource1", myProjectId, "quoted_resource1", 1, true);
+    final Resource custom = ResourceFactory.newCustomResource("custom_resource1", myProjectId, "custom_resource1", Arrays.asList("v1", "v2"), true);
+
+    final Map<Resource, Lock> locksToTake = new HashMap<>();
+    locksToTake.put(quoted, new Lock("quoted_resource1", LockType.WRITE));
+    locksToTake.put(custom, new Lock("custom_resource1", LockType.READ, "v2"));
+
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final TakenLock tl = new TakenLock(custom);
+    tl.addLock(mockPromotion(m, BuildPromotionInfo.class), new Lock("custom_resource1", LockType.READ, "v1"));
+    takenLocks.put(custom, tl);
+
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, new HashSet<>());
+    assertEmpty(result.keySet());
+    // resources without taken locks are not added to taken locks
+    assertEquals(1, takenLocks.size());
+    assertEquals(1, tl.getLocksCount());
+  }
+
+  @Test
+  public void testGetUnavailableLocks_AvailableDoesNotAllocate() throws Exception {
+    final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+      throw new SkipException("Allocated memory of threads can not be measured");
+    }
+    final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    final Resource quoted = ResourceFactory.newQuotedResource("quoted_resource1", myProjectId, "quoted_resource1", 10, true);
+    final Resource custom = ResourceFactory.newCustomResource("custom_resource1", myProjectId, "custom_resource1", Arrays.asList("v1", "v2", "v3"), true);
+    final Resource any = ResourceFactory.newCustomResource("custom_resource2", myProjectId, "custom_resource2", Arrays.asList("v1", "v2", "v3"), true);
+
+    final Map<Resource, Lock> resolvedLocks = new HashMap<>();
+    resolvedLocks.put(quoted, new Lock("quoted_resource1", LockType.READ, "", 2));
+    resolvedLocks.put(custom, new Lock("custom_resource1", LockType.READ, "v2"));
+    resolvedLocks.put(any, new Lock("custom_resource2", LockType.READ));
+    final List<Map.Entry<Resource, Lock>> locksToTake = new ArrayList<>(resolvedLocks.entrySet());
+
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final BuildPromotionInfo running = mockPromotion(m, BuildPromotionInfo.class);
+    final TakenLock quotedTaken = new TakenLock(quoted);
+    quotedTaken.addLock(running, new Lock("quoted_resource1", LockType.READ));
+    takenLocks.put(quoted, quotedTaken);
+    final TakenLock customTaken = new TakenLock(custom);
+    customTaken.addLock(running, new Lock("custom_resource1", LockType.READ, "v1"));
+    takenLocks.put(custom, customTaken);
+    final Set<String> fairSet = new HashSet<>();
+
+    final int checks = 10000;
+    // check is compiled before it is measured
+    for (int i = 0; i < 10 * checks; i++) {
+      assertTrue(myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, fairSet).isEmpty());
+    }
+    final long threadId = Thread.currentThread().getId();
+    final long before = threadBean.getThreadAllocatedBytes(threadId);
+    int unavailable = 0;
+    for (int i = 0; i < checks; i++) {
+      unavailable += myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, fairSet).size();
+    }
+    final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+    assertEquals(0, unavailable);
+    // allocation of even the smallest object on each check takes more than a byte per check
+    assertTrue("Check of available locks allocates " + allocated + " bytes per " + checks + " checks", allocated < checks);
+  }
+
   @Test
   public void testGetUnavailableLocks_Custom_Specific() throws Exception {
     final Map<String, Resource> resources = new HashMap<>();
@@ -320,7 +411,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(myCustomResource);
-      tl1.addLock(m.mock(BuildPromotionInfo.class), new Lock("custom_resource1", LockType.READ, "v1"));
+      tl1.addLock(mockPromotion(m, BuildPromotionInfo.class), new Lock("custom_resource1", LockType.READ, "v1"));
       put(tl1.getResource(), tl1);
     }};
 
@@ -350,7 +441,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(myCustomResource);
-      tl1.addLock(m.mock(BuildPromotionInfo.class), new Lock("custom_resource1", LockType.WRITE));
+      tl1.addLock(mockPromotion(m, BuildPromotionInfo.class), new Lock("custom_resource1", LockType.WRITE));
       put(tl1.getResource(), tl1);
     }};
 
@@ -378,8 +469,8 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(myCustomResource);
-      tl1.addLock(m.mock(BuildPromotionInfo.class, "bp1"), new Lock("custom_resource1", LockType.READ, "v1"));
-      tl1.addLock(m.mock(BuildPromotionInfo.class, "bp2"), new Lock("custom_resource1", LockType.READ, "v2"));
+      tl1.addLock(mockPromotion(m, BuildPromotionInfo.class, "bp1"), new Lock("custom_resource1", LockType.READ, "v1"));
+      tl1.addLock(mockPromotion(m, BuildPromotionInfo.class, "bp2"), new Lock("custom_resource1", LockType.READ, "v2"));
       put(tl1.getResource(), tl1);
     }};
 
@@ -394,6 +485,33 @@ public class TakenLocksImplTest extends BaseTestCase {
     assertEquals(1, result.size());
   }
 
+  @Test
+  public void testGetUnavailableLocks_Custom_Several() throws Exception {
+    final Resource customResource = ResourceFactory.newCustomResource("custom_resource1", myProjectId, "custom_resource1", Arrays.asList("v1", "v2", "v3", "v4"), true);
+    final Map<Resource, Lock> threeValues = Collections.singletonMap(customResource, new Lock("custom_resource1", LockType.READ, "", 3));
+    final Set<String> fairSet = new HashSet<>();
+    assertEmpty(myTakenLocks.getUnavailableLocks(threeValues, Collections.emptyMap(), fairSet).keySet());
+
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final TakenLock takenLock = new TakenLock(customResource);
+    takenLock.addLock(mockPromotion(m, BuildPromotionInfo.class, "bp1"), new Lock("custom_resource1", LockType.READ, "v1"));
+    takenLocks.put(customResource, takenLock);
+    assertEmpty(myTakenLocks.getUnavailableLocks(threeValues, takenLocks, fairSet).keySet());
+
+    takenLock.addLock(mockPromotion(m, BuildPromotionInfo.class, "bp2"), new Lock("custom_resource1", LockType.READ, Lock.joinValues(Arrays.asList("v2", "v3")), 2));
+    assertEquals(1, myTakenLocks.getUnavailableLocks(threeValues, takenLocks, fairSet).size());
+    // values, held by lock of several values, are not available for specific locks
+    assertEquals(1, myTakenLocks.getUnavailableLocks(Collections.singletonMap(customResource, new Lock("custom_resource1", LockType.READ, "v3")), takenLocks, fairSet).size());
+    assertEmpty(myTakenLocks.getUnavailableLocks(Collections.singletonMap(customResource, new Lock("custom_resource1", LockType.READ, "v4")), takenLocks, fairSet).keySet());
+  }
+
+  @Test
+  public void testGetUnavailableLocks_Custom_Several_NotEnoughDefined() throws Exception {
+    final Resource customResource = ResourceFactory.newCustomResource("custom_resource1", myProjectId, "custom_resource1", Arrays.asList("v1", "v2"), true);
+    final Map<Resource, Lock> threeValues = Collections.singletonMap(customResource, new Lock("custom_resource1", LockType.READ, "", 3));
+    assertEquals(1, myTakenLocks.getUnavailableLocks(threeValues, Collections.emptyMap(), new HashSet<>()).size());
+  }
+
   @Test
   public void testGetUnavailableLocks_ReadRead_Quota() throws Exception {
     final Map<String, Resource> resources = new HashMap<>();
@@ -406,8 +524,8 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(quotedResource);
-      tl1.addLock(m.mock(BuildPromotionInfo.class, "bp1"), new Lock("quoted_resource1", LockType.READ));
-      tl1.addLock(m.mock(BuildPromotionInfo.class, "bp2"), new Lock("quoted_resource1", LockType.READ));
+      tl1.addLock(mockPromotion(m, BuildPromotionInfo.class, "bp1"), new Lock("quoted_resource1", LockType.READ));
+      tl1.addLock(mockPromotion(m, BuildPromotionInfo.class, "bp2"), new Lock("quoted_resource1", LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
@@ -423,6 +541,38 @@ public class TakenLocksImplTest extends BaseTestCase {
 
   }
 
+  @Test
+  public void testGetUnavailableLocks_Weighted() throws Exception {
+    final Resource quotedResource = ResourceFactory.newQuotedResource("quoted_resource1", myProjectId, "quoted_resource1", 16, true);
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final TakenLock takenLock = new TakenLock(quotedResource);
+    for (int i = 0; i < 3; i++) {
+      takenLock.addLock(mockPromotion(m, BuildPromotionInfo.class, "heavy" + i), new Lock("quoted_resource1", LockType.READ, "", 4));
+    }
+    takenLocks.put(quotedResource, takenLock);
+    final Set<String> fairSet = new HashSet<>();
+
+    // 12 of 16 units are taken
+    assertEmpty(myTakenLocks.getUnavailableLocks(Collections.singletonMap(quotedResource, new Lock("quoted_resource1", LockType.READ, "", 4)), takenLocks, fairSet).keySet());
+    assertEquals(1, myTakenLocks.getUnavailableLocks(Collections.singletonMap(quotedResource, new Lock("quoted_resource1", LockType.READ, "", 5)), takenLocks, fairSet).size());
+
+    takenLock.addLock(mockPromotion(m, BuildPromotionInfo.class, "light"), new Lock("quoted_resource1", LockType.READ));
+    // 13 of 16 units are taken
+    assertEquals(1, myTakenLocks.getUnavailableLocks(Collections.singletonMap(quotedResource, new Lock("quoted_resource1", LockType.READ, "", 4)), takenLocks, fairSet).size());
+    assertEmpty(myTakenLocks.getUnavailableLocks(Collections.singletonMap(quotedResource, new Lock("quoted_resource1", LockType.READ, "", 3)), takenLocks, fairSet).keySet());
+  }
+
+  @Test
+  public void testGetUnavailableLocks_Weighted_ExceedsQuota() throws Exception {
+    final Resource quotedResource = ResourceFactory.newQuotedResource("quoted_resource1", myProjectId, "quoted_resource1", 2, true);
+    final Set<String> fairSet = new HashSet<>();
+
+    final Map<Resource, Lock> read = Collections.singletonMap(quotedResource, new Lock("quoted_resource1", LockType.READ, "", 3));
+    assertEquals(1, myTakenLocks.getUnavailableLocks(read, Collections.emptyMap(), fairSet).size());
+    final Map<Resource, Lock> write = Collections.singletonMap(quotedResource, new Lock("quoted_resource1", LockType.WRITE, "", 2));
+    assertEmpty(myTakenLocks.getUnavailableLocks(write, Collections.emptyMap(), fairSet).keySet());
+  }
+
   @Test
   public void testGetUnavailableLocks_ReadWrite() throws Exception {
     final Map<String, Resource> resources = new HashMap<>();
@@ -435,7 +585,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(quotedResource);
-      tl1.addLock(m.mock(BuildPromotionInfo.class, "bp1"), new Lock("quoted_resource1", LockType.WRITE));
+      tl1.addLock(mockPromotion(m, BuildPromotionInfo.class, "bp1"), new Lock("quoted_resource1", LockType.WRITE));
       put(tl1.getResource(), tl1);
     }};
 
@@ -463,7 +613,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(quotedResource);
-      tl1.addLock(m.mock(BuildPromotionInfo.class, "bp1"), new Lock("quoted_resource1", LockType.READ));
+      tl1.addLock(mockPromotion(m, BuildPromotionInfo.class, "bp1"), new Lock("quoted_resource1", LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
@@ -507,7 +657,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       final TakenLock tl1 = new TakenLock(infiniteResource);
-      tl1.addLock(m.mock(BuildPromotionInfo.class, "bp1"), new Lock(infiniteResource.getName(), LockType.READ));
+      tl1.addLock(mockPromotion(m, BuildPromotionInfo.class, "bp1"), new Lock(infiniteResource.getName(), LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
@@ -557,7 +707,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       final TakenLock tl1 = new TakenLock(infiniteResource);
-      tl1.addLock(m.mock(BuildPromotionInfo.class, "bp1"), new Lock(infiniteResource.getName(), LockType.READ));
+      tl1.addLock(mockPromotion(m, BuildPromotionInfo.class, "bp1"), new Lock(infiniteResource.getName(), LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
@@ -617,13 +767,13 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocksAny = new HashMap<Resource, TakenLock>() {{
       final TakenLock tl1 = new TakenLock(customResource);
-      tl1.addLock(m.mock(BuildPromotionInfo.class, "bp1"), new Lock(customResource.getName(), LockType.READ));
+      tl1.addLock(mockPromotion(m, BuildPromotionInfo.class, "bp1"), new Lock(customResource.getName(), LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
     final Map<Resource, TakenLock> takenLocksSpecific = new HashMap<Resource, TakenLock>() {{
       final TakenLock tl = new TakenLock(customResource);
-      tl.addLock(m.mock(BuildPromotionInfo.class, "bp2"), new Lock(customResource.getName(), LockType.READ, "val1"));
+      tl.addLock(mockPromotion(m, BuildPromotionInfo.class, "bp2"), new Lock(customResource.getName(), LockType.READ, "val1"));
       put(tl.getResource(), tl);
     }};
 
@@ -884,7 +1034,7 @@ public class TakenLocksImplTest extends BaseTestCase {
     final String name = generateRandomName();
     final RunningBuildEx build = m.mock(RunningBuildEx.class, "runningBuild_" + name);
     final BuildTypeEx buildType = m.mock(BuildTypeEx.class, "runningBuild_ " + name + "-buildType");
-    final BuildPromotionEx buildPromotion = m.mock(BuildPromotionEx.class, "runningBuild_" + name + "-buildPromotion");
+    final BuildPromotionEx buildPromotion = mockPromotion(m, BuildPromotionEx.class, "runningBuild_" + name + "-buildPromotion");
     m.checking(new Expectations() {{
       allowing(build).getBuildType();
       will(returnValue(buildType));
@@ -902,7 +1052,7 @@ public class TakenLocksImplTest extends BaseTestCase {
     final String name = generateRandomName();
     final QueuedBuildInfo build = m.mock(QueuedBuildInfo.class, "queuedBuildInfo" + name);
     final BuildTypeEx buildType = m.mock(BuildTypeEx.class, "runningBuild_ " + name + "-buildType");
-    final BuildPromotionEx buildPromotion = m.mock(BuildPromotionEx.class, "runningBuild_" + name + "-buildPromotion");
+    final BuildPromotionEx buildPromotion = mockPromotion(m, BuildPromotionEx.class, "runningBuild_" + name + "-buildPromotion");
     m.checking(new Expectations() {{
       allowing(build).getBuildPromotionInfo();
       will(returnValue(buildPromotion));
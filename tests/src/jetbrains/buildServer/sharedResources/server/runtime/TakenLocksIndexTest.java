@@ -0,0 +1,270 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.RunningBuildsManager;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.buildDistribution.BuildPromotionInfo;
+import jetbrains.buildServer.serverSide.buildDistribution.SimpleWaitReason;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.project.ProjectSettingsVersion;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+import static jetbrains.buildServer.sharedResources.TestUtils.mockPromotion;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = TakenLocksIndex.class)
+public class TakenLocksIndexTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private TakenLocks myTakenLocks;
+
+  private RunningBuildsManager myRunningBuildsManager;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private ResourceWaitRegistry myWaitRegistry;
+
+  private final String myProjectId = "MY_PROJECT_ID";
+
+  private final Resource myResource = ResourceFactory.newQuotedResource("resource1", myProjectId, "resource1", 2, true);
+
+  /**
+   * Class under test
+   */
+  private TakenLocksIndex myIndex;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myTakenLocks = m.mock(TakenLocks.class);
+    myRunningBuildsManager = m.mock(RunningBuildsManager.class);
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    final ProjectSettingsVersion settingsVersion = new ProjectSettingsVersion(myDispatcher);
+    myWaitRegistry = new ResourceWaitRegistry(myDispatcher, settingsVersion);
+    myIndex = new TakenLocksIndex(myDispatcher, myTakenLocks, myRunningBuildsManager, settingsVersion, myWaitRegistry);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testInitializedFromRunningBuilds() throws Exception {
+    final SRunningBuild build = mockBuild(1L);
+    m.checking(new Expectations() {{
+      oneOf(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(Collections.singletonList(build)));
+    }});
+
+    final Map<Resource, TakenLock> result = myIndex.getTakenLocks();
+    assertEquals(1, result.size());
+    assertEquals(1, result.get(myResource).getLocksCount());
+    // second access does not walk running builds
+    assertEquals(1, myIndex.getTakenLocks().size());
+  }
+
+  @Test
+  public void testBuildStartedFinished() throws Exception {
+    final SRunningBuild build = mockBuild(1L);
+    expectNoRunningBuilds();
+
+    assertEmpty(myIndex.getTakenLocks().keySet());
+    myDispatcher.getMulticaster().buildStarted(build);
+    assertEquals(1, myIndex.getTakenLocks().get(myResource).getLocksCount());
+    myDispatcher.getMulticaster().buildFinished(build);
+    assertEmpty(myIndex.getTakenLocks().keySet());
+  }
+
+  @Test
+  public void testBuildInterrupted() throws Exception {
+    final SRunningBuild build = mockBuild(1L);
+    expectNoRunningBuilds();
+
+    myDispatcher.getMulticaster().buildStarted(build);
+    assertEquals(1, myIndex.getTakenLocks().size());
+    myDispatcher.getMulticaster().buildInterrupted(build);
+    assertEmpty(myIndex.getTakenLocks().keySet());
+  }
+
+  @Test
+  public void testMultipleBuilds() throws Exception {
+    final SRunningBuild build1 = mockBuild(1L);
+    final SRunningBuild build2 = mockBuild(2L);
+    expectNoRunningBuilds();
+
+    myDispatcher.getMulticaster().buildStarted(build1);
+    myDispatcher.getMulticaster().buildStarted(build2);
+    assertEquals(2, myIndex.getTakenLocks().get(myResource).getLocksCount());
+
+    myDispatcher.getMulticaster().buildFinished(build1);
+    final TakenLock takenLock = myIndex.getTakenLocks().get(myResource);
+    assertNotNull(takenLock);
+    assertEquals(1, takenLock.getLocksCount());
+  }
+
+  @Test
+  public void testStartedTwice() throws Exception {
+    final SRunningBuild build = mockBuild(1L);
+    expectNoRunningBuilds();
+
+    myDispatcher.getMulticaster().buildStarted(build);
+    myDispatcher.getMulticaster().buildStarted(build);
+    assertEquals(1, myIndex.getTakenLocks().get(myResource).getLocksCount());
+  }
+
+  @Test
+  public void testReturnsCopy() throws Exception {
+    final SRunningBuild build = mockBuild(1L);
+    expectNoRunningBuilds();
+    myDispatcher.getMulticaster().buildStarted(build);
+
+    final Map<Resource, TakenLock> result = myIndex.getTakenLocks();
+    result.get(myResource).addLock(mockPromotion(m, BuildPromotionInfo.class, "other"), new Lock(myResource.getName(), LockType.READ));
+    result.put(ResourceFactory.newInfiniteResource("resource2", myProjectId, "resource2", true), new TakenLock(myResource));
+
+    final Map<Resource, TakenLock> other = myIndex.getTakenLocks();
+    assertEquals(1, other.size());
+    assertEquals(1, other.get(myResource).getLocksCount());
+  }
+
+  @Test
+  public void testReinitializedOnSettingsChange() throws Exception {
+    final SRunningBuild build = mockBuild(1L);
+    m.checking(new Expectations() {{
+      exactly(2).of(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(Collections.singletonList(build)));
+    }});
+
+    assertEquals(1, myIndex.getTakenLocks().get(myResource).getLocksCount());
+    myDispatcher.getMulticaster().projectPersisted(myProjectId);
+    assertEquals(1, myIndex.getTakenLocks().get(myResource).getLocksCount());
+  }
+
+  @Test
+  public void testReleaseReportedToWaitRegistry() throws Exception {
+    final SRunningBuild build = mockBuild(1L);
+    expectNoRunningBuilds();
+    myDispatcher.getMulticaster().buildStarted(build);
+    final long releaseVersion = myWaitRegistry.getReleaseVersion();
+
+    final Map<Resource, Lock> locks = Collections.singletonMap(myResource, new Lock(myResource.getName(), LockType.WRITE));
+    myWaitRegistry.register(100L, locks, locks, Collections.emptyMap(), new SimpleWaitReason("waiting"), true, releaseVersion);
+    assertNotNull(myWaitRegistry.getWait(100L, locks));
+
+    myDispatcher.getMulticaster().buildFinished(build);
+    assertNull(myWaitRegistry.getWait(100L, locks));
+  }
+
+  @Test
+  public void testBuildFinishedWhileIndexFilled() throws Exception {
+    final SRunningBuild build1 = mockBuild(1L);
+    final SRunningBuild build2 = mockBuild(2L);
+    m.checking(new Expectations() {{
+      oneOf(myRunningBuildsManager).getRunningBuilds();
+      will(new CustomAction("finish build while running builds are read") {
+        @Override
+        public Object invoke(final Invocation invocation) {
+          myDispatcher.getMulticaster().buildFinished(build1);
+          return Arrays.asList(build1, build2);
+        }
+      });
+    }});
+
+    final Map<Resource, TakenLock> result = myIndex.getTakenLocks();
+    assertEquals(1, result.get(myResource).getLocksCount());
+  }
+
+  @Test
+  public void testBuildStartedWhileIndexFilled() throws Exception {
+    final SRunningBuild build1 = mockBuild(1L);
+    final SRunningBuild build2 = mockBuild(2L);
+    m.checking(new Expectations() {{
+      oneOf(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(Collections.singletonList(build1)));
+
+      oneOf(myRunningBuildsManager).getRunningBuilds();
+      will(new CustomAction("start build after running builds are read") {
+        @Override
+        public Object invoke(final Invocation invocation) {
+          myDispatcher.getMulticaster().buildStarted(build2);
+          return Collections.singletonList(build1);
+        }
+      });
+    }});
+
+    assertEquals(1, myIndex.getTakenLocks().get(myResource).getLocksCount());
+    myDispatcher.getMulticaster().projectPersisted(myProjectId);
+    assertEquals(2, myIndex.getTakenLocks().get(myResource).getLocksCount());
+  }
+
+  private void expectNoRunningBuilds() {
+    m.checking(new Expectations() {{
+      allowing(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(Collections.emptyList()));
+    }});
+  }
+
+  @NotNull
+  private SRunningBuild mockBuild(final long id) {
+    final SRunningBuild build = m.mock(SRunningBuild.class, "build-" + id);
+    final BuildPromotionInfo promotion = mockPromotion(m, BuildPromotionInfo.class, "promotion-" + id);
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(promotion, new Lock(myResource.getName(), LockType.READ));
+    final Map<Resource, TakenLock> buildLocks = new HashMap<>();
+    buildLocks.put(myResource, takenLock);
+    m.checking(new Expectations() {{
+      allowing(build).getBuildId();
+      will(returnValue(id));
+
+      allowing(build).getProjectId();
+      will(returnValue(myProjectId));
+
+      allowing(build).isFinished();
+      will(returnValue(false));
+
+      allowing(myTakenLocks).collectTakenLocks(myProjectId, Collections.singleton(build), Collections.emptyList());
+      will(returnValue(buildLocks));
+    }});
+    return build;
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.google.common.cache.CacheStats;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.TestFor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = ValueAffinity.class)
+public class ValueAffinityTest extends BaseTestCase {
+
+  private File myFile;
+
+  /**
+   * Class under test
+   */
+  private ValueAffinity myAffinity;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = new File(createTempDir(), ValueAffinity.FILE_NAME);
+    myAffinity = new ValueAffinity(myFile);
+  }
+
+  @Test
+  public void testRemembersLastValue() throws Exception {
+    assertNull(myAffinity.getPreferredValue("bt1", "resource"));
+    myAffinity.granted("bt1", "resource", null, "a");
+    assertEquals("a", myAffinity.getPreferredValue("bt1", "resource"));
+    myAffinity.granted("bt1", "resource", "a", "b");
+    assertEquals("b", myAffinity.getPreferredValue("bt1", "resource"));
+    assertNull(myAffinity.getPreferredValue("bt2", "resource"));
+    assertNull(myAffinity.getPreferredValue("bt1", "other"));
+  }
+
+  @Test
+  public void testStatistics() throws Exception {
+    myAffinity.granted("bt1", "resource", null, "a");
+    myAffinity.granted("bt1", "resource", "a", "a");
+    myAffinity.granted("bt1", "resource", "a", "a");
+    myAffinity.granted("bt1", "resource", "a", "b");
+    final CacheStats stats = myAffinity.getStatistics();
+    assertEquals(2, stats.hitCount());
+    assertEquals(2, stats.missCount());
+  }
+
+  @Test
+  public void testPersisted() throws Exception {
+    myAffinity.granted("bt1", "resource1", null, "a");
+    myAffinity.granted("bt1", "resource2", null, "b");
+    myAffinity.granted("bt2", "resource1", null, "c");
+    myAffinity.flush();
+    assertTrue(myFile.isFile());
+
+    final ValueAffinity loaded = new ValueAffinity(myFile);
+    assertEquals("a", loaded.getPreferredValue("bt1", "resource1"));
+    assertEquals("b", loaded.getPreferredValue("bt1", "resource2"));
+    assertEquals("c", loaded.getPreferredValue("bt2", "resource1"));
+  }
+
+  @Test
+  public void testNotWrittenWithoutChanges() throws Exception {
+    myAffinity.granted("bt1", "resource", null, "a");
+    myAffinity.flush();
+    assertTrue(myFile.delete());
+    myAffinity.granted("bt1", "resource", "a", "a");
+    myAffinity.flush();
+    assertFalse(myFile.exists());
+  }
+
+  @Test
+  public void testNotWrittenOnGrant() throws Exception {
+    myAffinity.granted("bt1", "resource", null, "a");
+    assertFalse(myFile.exists());
+    // values were loaded just now, flush interval has not passed yet
+    myAffinity.flushIfNeeded();
+    assertFalse(myFile.exists());
+    myAffinity.flush();
+    assertTrue(myFile.isFile());
+  }
+
+  @Test
+  public void testBuildTypeRemoved() throws Exception {
+    myAffinity.granted("bt1", "resource", null, "a");
+    myAffinity.granted("bt2", "resource", null, "b");
+    myAffinity.removeBuildType("bt1");
+    myAffinity.flush();
+
+    final ValueAffinity loaded = new ValueAffinity(myFile);
+    assertNull(loaded.getPreferredValue("bt1", "resource"));
+    assertEquals("b", loaded.getPreferredValue("bt2", "resource"));
+  }
+}